@@ -0,0 +1,333 @@
+package es.sandwatch.httprequests;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Benchmark collection for the library internals. Results are written to the log under
+ * the BenchmarkTests tag.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class BenchmarkTests{
+    private static final String TAG = "BenchmarkTests";
+
+    private static final int GENERATOR_ITERATIONS = 200000;
+    private static final int URL_ITERATIONS = 100000;
+    private static final int URL_PARAMETERS = 4;
+    private static final int REGISTRY_ITERATIONS = 200000;
+    private static final int ENCODING_ITERATIONS = 20000;
+    private static final int DECODING_ITERATIONS = 5000;
+    private static final int DECODING_SIZE = 16*1024;
+    private static final int END_TO_END_ITERATIONS = 200;
+    private static final int END_TO_END_TIMEOUT = 10*1000;
+
+
+    /**
+     * A measured operation.
+     */
+    private interface Operation{
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Runs an operation as many times as requested after warming it up, and logs how long
+     * it took on average.
+     *
+     * @param name the name of the operation in the log.
+     * @param iterations the number of times to run the operation.
+     * @param operation the operation.
+     * @return the average time in nanoseconds.
+     */
+    private static long measure(String name, int iterations, Operation operation){
+        try{
+            for (int i = 0; i < iterations; i++){
+                operation.run();
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < iterations; i++){
+                operation.run();
+            }
+            long elapsed = System.nanoTime() - startTime;
+            Log.i(TAG, name + ": " + (elapsed/iterations) + " ns/op, "
+                    + (iterations*1000000000L/Math.max(elapsed, 1)) + " ops/s");
+            return elapsed/iterations;
+        }
+        catch (Exception x){
+            x.printStackTrace();
+            fail(x.getMessage());
+            return -1;
+        }
+    }
+
+
+    @Test
+    public void requestCodeGeneratorBenchmark(){
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2){
+            final long[][] ids = new long[threads][GENERATOR_ITERATIONS];
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch finish = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++){
+                final long[] threadIds = ids[i];
+                new Thread(new Runnable(){
+                    @Override
+                    public void run(){
+                        try{
+                            start.await();
+                            for (int j = 0; j < threadIds.length; j++){
+                                threadIds[j] = RequestCodeGenerator.generateLong();
+                            }
+                        }
+                        catch (InterruptedException ix){
+                            ix.printStackTrace();
+                        }
+                        finish.countDown();
+                    }
+                }).start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            try{
+                finish.await();
+            }
+            catch (InterruptedException ix){
+                fail("No interrupt expected");
+            }
+            long elapsed = System.nanoTime() - startTime;
+
+            long total = (long)threads*GENERATOR_ITERATIONS;
+            Log.i(TAG, "RequestCodeGenerator, " + threads + " threads: " + (elapsed/total)
+                    + " ns/op, " + (total*1000000000L/elapsed) + " ops/s");
+
+            //Every identifier handed out must be unique across all threads
+            long[] all = new long[(int)total];
+            for (int i = 0; i < threads; i++){
+                System.arraycopy(ids[i], 0, all, i*GENERATOR_ITERATIONS, GENERATOR_ITERATIONS);
+            }
+            Arrays.sort(all);
+            for (int i = 1; i < all.length; i++){
+                assertTrue(all[i - 1] != all[i]);
+            }
+        }
+    }
+
+    @Test
+    public void urlBuilderBenchmark(){
+        Map<String, String> parameters = new HashMap<>();
+        UrlBuilder builder = UrlBuilder.EMPTY;
+        for (int i = 0; i < URL_PARAMETERS; i++){
+            parameters.put("key" + i, "value" + i);
+            builder = builder.with("key" + i, "value" + i);
+        }
+        String url = "http://http-requests.sandwatch.es/api/";
+
+        //Both implementations must produce the same URL for values that need no encoding
+        assertEquals(legacyProcessUrl(url, parameters), builder.build(url, null));
+
+        //Warm up both implementations before measuring
+        for (int i = 0; i < URL_ITERATIONS; i++){
+            legacyProcessUrl(url, parameters);
+            builder.build(url, null);
+        }
+
+        int length = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < URL_ITERATIONS; i++){
+            length += legacyProcessUrl(url, parameters).length();
+        }
+        long legacy = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < URL_ITERATIONS; i++){
+            length -= builder.build(url, null).length();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        assertEquals(0, length);
+        Log.i(TAG, "processUrl, " + URL_PARAMETERS + " parameters: "
+                + (legacy/URL_ITERATIONS) + " ns/op before, "
+                + (elapsed/URL_ITERATIONS) + " ns/op after");
+    }
+
+    @Test
+    public void urlBuilderTest(){
+        UrlBuilder builder = UrlBuilder.EMPTY.with("q", "a b&c");
+        assertEquals("http://host/path?q=a+b%26c", builder.build("http://host/path", null));
+        assertEquals("http://host/path?x=1&q=a+b%26c", builder.build("http://host/path?x=1", null));
+        assertEquals("http://host/path?q=a+b%26c", builder.build("http://host/path?", null));
+        assertEquals("http://host/path?q=a+b%26c#top", builder.build("http://host/path#top", null));
+        assertEquals("http://host/path?x=1&q=a+b%26c#top?",
+                builder.build("http://host/path?x=1#top?", null));
+
+        //The parameters of a request replace the global ones with the same key
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("q", "own");
+        assertEquals("http://host/?q=own", builder.build("http://host/", parameters));
+        assertTrue(builder.without("q") == UrlBuilder.EMPTY);
+        assertEquals("http://host/", UrlBuilder.EMPTY.build("http://host/", null));
+    }
+
+    /**
+     * The implementation of HttpRequest.processUrl() before the query string was
+     * precomputed, kept as a baseline.
+     */
+    private static String legacyProcessUrl(String url, Map<String, String> parameters){
+        for (Map.Entry<String, String> parameter : parameters.entrySet()){
+            url += !url.contains("?") ? "?" : "&";
+            url += parameter.getKey() + "=" + parameter.getValue();
+        }
+        return url;
+    }
+
+    @Test
+    public void requestRegistryBenchmark(){
+        final RequestRegistry registry = new RequestRegistry(RequestRegistry.DEFAULT_CAPACITY);
+        final HttpRequest request = new HttpRequest((HttpRequest.RequestCallback)null, null,
+                RequestBody.fromBytes(new byte[0], null));
+
+        measure("RequestRegistry, register and remove", REGISTRY_ITERATIONS, new Operation(){
+            @Override
+            public void run(){
+                int requestCode = registry.register(request);
+                assertTrue(registry.remove(requestCode) == request);
+            }
+        });
+    }
+
+    @Test
+    public void bodyEncodingBenchmark() throws JSONException{
+        final JSONObject json = new JSONObject();
+        for (int i = 0; i < 20; i++){
+            json.put("key" + i, "value " + i);
+        }
+        final byte[] bytes = json.toString().getBytes();
+
+        measure("RequestBody, JSON", ENCODING_ITERATIONS, new Operation(){
+            @Override
+            public void run() throws IOException{
+                assertEquals(bytes.length, RequestBody.fromJson(json).getBytes("UTF-8").length);
+            }
+        });
+        measure("RequestBody, writer", ENCODING_ITERATIONS, new Operation(){
+            @Override
+            public void run() throws IOException{
+                RequestBody body = RequestBody.fromWriter(new RequestBody.Writer(){
+                    @Override
+                    public void writeBody(OutputStream stream) throws IOException{
+                        stream.write(bytes);
+                    }
+                }, null);
+                assertEquals(bytes.length, body.getBytes("UTF-8").length);
+            }
+        });
+    }
+
+    @Test
+    public void responseDecodingBenchmark(){
+        StringBuilder text = new StringBuilder(DECODING_SIZE);
+        while (text.length() < DECODING_SIZE){
+            text.append("{\"key\":\"value\"},");
+        }
+        final byte[] data = text.toString().getBytes();
+        final Map<String, String> withLength = new HashMap<>();
+        withLength.put("Content-Length", String.valueOf(data.length));
+        final Map<String, String> withoutLength = new HashMap<>();
+
+        measure("Response decoding, known length", DECODING_ITERATIONS, new Operation(){
+            @Override
+            public void run() throws IOException{
+                byte[] body = HttpRequest.readBody(new ByteArrayInputStream(data), withLength);
+                assertEquals(data.length, new String(body, "UTF-8").length());
+            }
+        });
+        measure("Response decoding, unknown length", DECODING_ITERATIONS, new Operation(){
+            @Override
+            public void run() throws IOException{
+                byte[] body = HttpRequest.readBody(new ByteArrayInputStream(data), withoutLength);
+                assertEquals(data.length, new String(body, "UTF-8").length());
+            }
+        });
+    }
+
+    @Test
+    public void endToEndBenchmark() throws IOException, JSONException{
+        final StubServer server = new StubServer();
+        final JSONObject body = new JSONObject().put("key", "value");
+        final String url = server.getUrl("/api/");
+        HttpEngine[] engines = {new VolleyEngine(), new UrlConnectionEngine(), new NioEngine()};
+        try{
+            for (HttpEngine engine : engines){
+                EngineFixture.reinitialise(engine);
+                String name = engine.getClass().getSimpleName();
+                measure(name + ", GET", END_TO_END_ITERATIONS, new Operation(){
+                    @Override
+                    public void run() throws InterruptedException{
+                        assertEquals(StubServer.RESPONSE, send(HttpRequest.Method.GET, url, null));
+                    }
+                });
+                measure(name + ", POST", END_TO_END_ITERATIONS, new Operation(){
+                    @Override
+                    public void run() throws InterruptedException{
+                        assertEquals(body.toString(), send(HttpRequest.Method.POST, url, body));
+                    }
+                });
+            }
+        }
+        finally{
+            server.stop();
+            EngineFixture.reinitialise(new VolleyEngine());
+        }
+    }
+
+    /**
+     * Sends a request that bypasses the cache and waits for its result.
+     *
+     * @param method the HTTP method of the request.
+     * @param url the url to send the request to.
+     * @param body the body of the request.
+     * @return the result of the request.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static String send(HttpRequest.Method method, String url, JSONObject body)
+            throws InterruptedException{
+
+        final CountDownLatch signal = new CountDownLatch(1);
+        final String[] result = new String[1];
+        HttpRequest.request(method, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String response){
+                result[0] = response;
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                result[0] = error.toString();
+                signal.countDown();
+            }
+        }, url, body, END_TO_END_TIMEOUT, HttpRequest.Priority.NORMAL,
+                HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY);
+        signal.await();
+        return result[0];
+    }
+}
@@ -0,0 +1,131 @@
+package es.sandwatch.httprequests;
+
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test collection for the response cache.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class CacheTests{
+    private File mDirectory;
+
+
+    @Before
+    public void setUp(){
+        mDirectory = new File(InstrumentationRegistry.getContext().getCacheDir(), "cache-tests");
+        File[] files = mDirectory.listFiles();
+        if (files != null){
+            for (File file:files){
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates a cache entry.
+     *
+     * @param cacheControl the value of the Cache-Control header, or null.
+     * @param size the size of the body.
+     * @return the entry.
+     */
+    private ResponseCache.Entry createEntry(String cacheControl, int size){
+        Map<String, String> headers = new HashMap<>();
+        if (cacheControl != null){
+            headers.put("Cache-Control", cacheControl);
+        }
+        return ResponseCache.createEntry(headers, new byte[size]);
+    }
+
+    @Test
+    public void freshnessTest(){
+        assertTrue(createEntry("public, max-age=60", 1).isFresh());
+        assertFalse(createEntry("max-age=0", 1).isFresh());
+        assertFalse(createEntry("no-cache", 1).isFresh());
+        assertFalse(createEntry(null, 1).isFresh());
+        assertNull(createEntry("private, no-store", 1));
+    }
+
+    @Test
+    public void memoryEvictionTest(){
+        ResponseCache cache = new ResponseCache(mDirectory, 400, 10*1000);
+        cache.put("a", createEntry("max-age=60", 100));
+        cache.put("b", createEntry("max-age=60", 100));
+        cache.put("c", createEntry("max-age=60", 100));
+
+        //Using a makes b the least recently used response
+        assertNotNull(cache.getFromMemory("a"));
+        cache.put("d", createEntry("max-age=60", 100));
+        cache.put("e", createEntry("max-age=60", 100));
+
+        assertNull(cache.getFromMemory("b"));
+        assertNotNull(cache.getFromMemory("a"));
+        assertNotNull(cache.getFromMemory("e"));
+        assertEquals(400, cache.getMemorySize());
+    }
+
+    @Test
+    public void diskTest() throws InterruptedException{
+        ResponseCache cache = new ResponseCache(mDirectory, 0, 10*1000);
+        cache.put("key", createEntry("max-age=60", 100));
+
+        //Disk writes happen in the cache thread, wait for them to finish
+        final CountDownLatch signal = new CountDownLatch(1);
+        cache.execute(new Runnable(){
+            @Override
+            public void run(){
+                signal.countDown();
+            }
+        });
+        signal.await();
+
+        //A new cache on the same directory finds the response
+        ResponseCache another = new ResponseCache(mDirectory, 0, 10*1000);
+        ResponseCache.Entry entry = another.getFromDisk("key");
+        assertNotNull(entry);
+        assertEquals(100, entry.mData.length);
+        assertTrue(entry.isFresh());
+        assertEquals("max-age=60", HttpCall.getHeader(entry.mHeaders, "cache-control"));
+        assertNull(another.getFromDisk("another key"));
+    }
+
+    @Test
+    public void revalidationTest(){
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", "no-cache");
+        headers.put("ETag", "\"v1\"");
+        ResponseCache.Entry entry = ResponseCache.createEntry(headers, new byte[100]);
+        assertNotNull(entry);
+        assertFalse(entry.isFresh());
+        assertTrue(entry.hasValidators());
+        assertEquals("\"v1\"", ResponseCache.getVersion(entry.mHeaders));
+
+        //The 304 renews the response and keeps the cached body
+        Map<String, String> notModified = new HashMap<>();
+        notModified.put("Cache-Control", "max-age=60");
+        notModified.put("Content-Length", "0");
+        ResponseCache.Entry refreshed = ResponseCache.refreshEntry(entry, notModified);
+        assertNotNull(refreshed);
+        assertTrue(refreshed.isFresh());
+        assertEquals(100, refreshed.mData.length);
+        assertEquals("\"v1\"", ResponseCache.getVersion(refreshed.mHeaders));
+        assertNull(HttpCall.getHeader(refreshed.mHeaders, "Content-Length"));
+    }
+}
@@ -0,0 +1,224 @@
+package es.sandwatch.httprequests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for circuit breakers.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class CircuitBreakerTests{
+    private StubServer mServer;
+    private String mHost;
+    private CountDownLatch mSignal;
+    private String mResult;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        mHost = HttpCall.extractHost(mServer.getUrl("/"));
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        HttpRequest.setCircuitBreakerPolicy(null);
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Sends a GET request that bypasses the cache and isn't retried, and waits for its result.
+     *
+     * @param path the path of the url.
+     */
+    private void send(String path){
+        mSignal = new CountDownLatch(1);
+        mResult = null;
+        mError = null;
+        HttpRequest.request(HttpRequest.Method.GET, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                mResult = result;
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        }, mServer.getUrl(path), null, 10*1000, HttpRequest.Priority.NORMAL,
+                HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY, null, null,
+                Delivery.DIRECT, RetryPolicy.NONE);
+
+        try{
+            mSignal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    /**
+     * Trips the breaker of the stub server.
+     *
+     * @param failures the number of failures it takes.
+     */
+    private void trip(int failures){
+        for (int i = 0; i < failures; i++){
+            send("/status/503");
+            assertEquals(503, mError.getStatusCode());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, HttpRequest.getCircuitBreaker(mHost).getState());
+    }
+
+    /**
+     * Waits for a while.
+     *
+     * @param millis the time to wait, in milliseconds.
+     */
+    private void sleep(long millis){
+        try{
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+    }
+
+    @Test
+    public void tripTest(){
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy(3, 0, 60*1000, 1));
+        assertNull(HttpRequest.getCircuitBreaker(mHost));
+        trip(3);
+        assertEquals(3, mServer.getRequestCount());
+
+        //The request is never sent
+        send("/");
+        assertNotNull(mError);
+        assertTrue(mError.isCircuitOpen());
+        assertFalse(mError.isServerError());
+        assertEquals(3, mServer.getRequestCount());
+
+        CircuitBreaker breaker = HttpRequest.getCircuitBreaker(mHost);
+        assertEquals(1, HttpRequest.getCircuitBreakers().size());
+        assertEquals(3, breaker.getConsecutiveFailures());
+        assertEquals(1, breaker.getTripCount());
+        assertTrue(breaker.getRemainingOpenTime() > 0);
+
+        //Breakers start over with a new policy
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy());
+        send("/");
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertNull(HttpRequest.getCircuitBreaker(mHost));
+    }
+
+    @Test
+    public void halfOpenTest(){
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy(2, 0, 200, 1));
+        trip(2);
+        sleep(300);
+        assertEquals(CircuitBreaker.State.HALF_OPEN,
+                HttpRequest.getCircuitBreaker(mHost).getState());
+
+        //A failed probe opens the breaker again
+        send("/status/500");
+        assertEquals(500, mError.getStatusCode());
+        CircuitBreaker breaker = HttpRequest.getCircuitBreaker(mHost);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTripCount());
+        send("/");
+        assertTrue(mError.isCircuitOpen());
+
+        //A successful one closes it
+        sleep(300);
+        send("/");
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cancelledRetryTest(){
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy(1, 0, 200, 1));
+
+        //The first attempt trips the breaker, which is half open when the retry is due
+        int requestCode = HttpRequest.request(HttpRequest.Method.GET,
+                new HttpRequest.RequestCallback(){
+                    @Override
+                    public void onRequestComplete(int requestCode, String result){
+                        fail("Request shouldn't have completed");
+                    }
+
+                    @Override
+                    public void onRequestFailed(int requestCode, HttpRequestError error){
+                        fail("Request shouldn't have failed");
+                    }
+                }, mServer.getUrl("/status/503"), null, 10*1000, HttpRequest.Priority.NORMAL,
+                HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY, null, null,
+                Delivery.DIRECT, new RetryPolicy(1, 400, 400, 0, false));
+        for (int i = 0; i < 100 && HttpRequest.getCircuitBreaker(mHost) == null; i++){
+            sleep(10);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, HttpRequest.getCircuitBreaker(mHost).getState());
+
+        //The retry is cancelled while it waits, and doesn't take the only probe
+        sleep(100);
+        assertTrue(HttpRequest.cancel(requestCode));
+        sleep(600);
+        assertEquals(1, mServer.getRequestCount());
+        send("/");
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertEquals(CircuitBreaker.State.CLOSED, HttpRequest.getCircuitBreaker(mHost).getState());
+    }
+
+    @Test
+    public void clientErrorTest(){
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy(2, 0, 60*1000, 1));
+
+        //The host is up, it just doesn't like the requests
+        for (int i = 0; i < 3; i++){
+            send("/status/404");
+            assertEquals(404, mError.getStatusCode());
+        }
+        assertNull(HttpRequest.getCircuitBreaker(mHost));
+
+        //Failures need to be in a row
+        send("/status/503");
+        send("/");
+        send("/status/503");
+        assertEquals(1, HttpRequest.getCircuitBreaker(mHost).getConsecutiveFailures());
+        assertEquals(CircuitBreaker.State.CLOSED, HttpRequest.getCircuitBreaker(mHost).getState());
+    }
+
+    @Test
+    public void slowCallTest(){
+        HttpRequest.setCircuitBreakerPolicy(new CircuitBreakerPolicy(2, 100, 60*1000, 1));
+        send("/delay/300");
+        assertEquals(StubServer.RESPONSE, mResult);
+        send("/delay/300");
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertEquals(CircuitBreaker.State.OPEN, HttpRequest.getCircuitBreaker(mHost).getState());
+        send("/");
+        assertTrue(mError.isCircuitOpen());
+    }
+}
@@ -0,0 +1,244 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for compressed bodies.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class CompressionTests{
+    private final List<RequestMetrics> mMetrics = new ArrayList<>();
+    private StubServer mServer;
+    private CountDownLatch mSignal;
+    private String mResult;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine(), new RequestMetricsListener(){
+            @Override
+            public void onRequestMetrics(RequestMetrics metrics){
+                mMetrics.add(metrics);
+                mSignal.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        EngineFixture.reinitialise(new VolleyEngine(), null);
+    }
+
+    /**
+     * Sends a request that bypasses the cache and waits for its result and its metrics.
+     *
+     * @param method the HTTP method of the request.
+     * @param path the path of the url.
+     * @param body the body of the request, or null.
+     * @return the metrics of the request.
+     */
+    private RequestMetrics send(HttpRequest.Method method, String path, RequestBody body){
+        mSignal = new CountDownLatch(2);
+        mMetrics.clear();
+        mResult = null;
+        mError = null;
+        HttpRequest.RequestCallback callback = new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                mResult = result;
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        };
+        if (body != null){
+            HttpRequest.post(callback, mServer.getUrl(path), body);
+        }
+        else{
+            HttpRequest.request(method, callback, mServer.getUrl(path), null, 10*1000,
+                    HttpRequest.Priority.NORMAL, HttpRequest.NO_DEADLINE,
+                    HttpRequest.CachePolicy.NETWORK_ONLY);
+        }
+
+        try{
+            assertTrue(mSignal.await(10, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+        assertEquals(1, mMetrics.size());
+        return mMetrics.get(0);
+    }
+
+    /**
+     * Creates the array of consecutive numbers the server sends.
+     *
+     * @param count the number of numbers.
+     * @return the array, as a JSON document.
+     */
+    private static String records(int count){
+        StringBuilder records = new StringBuilder("[");
+        for (int i = 0; i < count; i++){
+            records.append(i == 0 ? "" : ",").append(i);
+        }
+        return records.append(']').toString();
+    }
+
+    /**
+     * Reads a whole stream.
+     *
+     * @param stream the stream.
+     * @return the content of the stream.
+     * @throws IOException if the stream can't be read.
+     */
+    private static byte[] read(InputStream stream) throws IOException{
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int read;
+        while ((read = stream.read(buffer)) != -1){
+            content.write(buffer, 0, read);
+        }
+        stream.close();
+        return content.toByteArray();
+    }
+
+    /**
+     * Compresses some content with gzip.
+     *
+     * @param content the content.
+     * @return the compressed content.
+     * @throws IOException if the content can't be compressed.
+     */
+    private static byte[] gzip(byte[] content) throws IOException{
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream stream = new GZIPOutputStream(compressed);
+        stream.write(content);
+        stream.close();
+        return compressed.toByteArray();
+    }
+
+    @Test
+    public void gzipTest(){
+        RequestMetrics metrics = send(HttpRequest.Method.GET, "/gzip/records/5000", null);
+        assertNull(mError);
+        assertEquals(records(5000), mResult);
+        assertTrue(mServer.getLastHeader("Accept-Encoding").contains("gzip"));
+
+        //The counters tell what was transferred from what it amounted to
+        assertEquals(records(5000).length(), metrics.getUncompressedBytesReceived());
+        assertTrue(metrics.getBytesReceived() > 0);
+        assertTrue(metrics.getBytesReceived() < metrics.getUncompressedBytesReceived());
+    }
+
+    @Test
+    public void deflateTest(){
+        send(HttpRequest.Method.GET, "/deflate/records/5000", null);
+        assertNull(mError);
+        assertEquals(records(5000), mResult);
+    }
+
+    @Test
+    public void errorTest(){
+        //Error bodies are inflated too
+        send(HttpRequest.Method.GET, "/gzip/status/500", null);
+        assertEquals(500, mError.getStatusCode());
+        assertEquals(StubServer.RESPONSE, mError.getMessage());
+    }
+
+    @Test
+    public void requestBodyTest() throws Exception{
+        JSONObject json = new JSONObject().put("records", records(2000));
+        RequestMetrics metrics = send(HttpRequest.Method.POST, "/",
+                RequestBody.gzip(RequestBody.fromJson(json)));
+
+        //The server inflates the body and echoes it back
+        assertNull(mError);
+        assertEquals(json.toString(), mResult);
+        assertEquals("gzip", mServer.getLastHeader("Content-Encoding"));
+        assertEquals(json.toString().length(), metrics.getUncompressedBytesSent());
+        assertTrue(metrics.getBytesSent() < metrics.getUncompressedBytesSent());
+    }
+
+    @Test
+    public void membersTest() throws IOException{
+        //Gzip bodies may be made of several members
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(gzip("first ".getBytes("UTF-8")));
+        body.write(gzip("second".getBytes("UTF-8")));
+        InputStream stream = InflatingInputStream.wrap(
+                new ByteArrayInputStream(body.toByteArray()), "gzip");
+        assertEquals("first second", new String(read(stream), "UTF-8"));
+    }
+
+    @Test
+    public void rawDeflateTest() throws IOException{
+        //Some servers send deflate bodies without the zlib wrapper
+        byte[] content = records(1000).getBytes("UTF-8");
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DeflaterOutputStream stream = new DeflaterOutputStream(raw, new Deflater(6, true));
+        stream.write(content);
+        stream.close();
+        assertArrayEquals(content, read(InflatingInputStream.wrap(
+                new ByteArrayInputStream(raw.toByteArray()), "deflate")));
+    }
+
+    @Test
+    public void emptyTest() throws IOException{
+        assertEquals(0, read(InflatingInputStream.wrap(new ByteArrayInputStream(new byte[0]),
+                "gzip")).length);
+    }
+
+    @Test
+    public void corruptTest() throws IOException{
+        byte[] body = gzip(records(1000).getBytes("UTF-8"));
+        //The checksum of the trailer no longer matches
+        body[body.length - 8]++;
+        try{
+            read(InflatingInputStream.wrap(new ByteArrayInputStream(body), "gzip"));
+            fail("Decoding exception expected");
+        }
+        catch (DecodingException dx){
+            //Expected
+        }
+
+        try{
+            InflatingInputStream.wrap(new ByteArrayInputStream(body), "br");
+            fail("Decoding exception expected");
+        }
+        catch (DecodingException dx){
+            //Expected
+        }
+    }
+}
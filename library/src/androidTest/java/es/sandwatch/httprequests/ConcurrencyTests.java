@@ -0,0 +1,378 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for HttpRequest used from several threads at once.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class ConcurrencyTests{
+    private static final String URL = "http://http-requests.sandwatch.es/api/";
+    private static final int THREADS = 16;
+    private static final int REQUESTS_PER_THREAD = 500;
+
+
+    @Before
+    public void setUp(){
+        HttpRequest.init(InstrumentationRegistry.getContext());
+    }
+
+    @After
+    public void tearDown(){
+        HttpRequest.setRequestLimits(Dispatcher.DEFAULT_MAX_REQUESTS,
+                Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * Runs a task in several threads, starting all of them at the same time, and waits
+     * for all of them to finish.
+     *
+     * @param task the task to run.
+     * @return the first throwable thrown by any of the threads, or null.
+     */
+    private Throwable runConcurrently(final Runnable task){
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++){
+            new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        start.await();
+                        task.run();
+                    }
+                    catch (Throwable t){
+                        failure.compareAndSet(null, t);
+                    }
+                    finish.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        try{
+            finish.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+        return failure.get();
+    }
+
+    @Test
+    public void requestAndCancelStressTest(){
+        Throwable failure = runConcurrently(new Runnable(){
+            @Override
+            public void run(){
+                for (int i = 0; i < REQUESTS_PER_THREAD; i++){
+                    int requestCode = HttpRequest.get(new NoOpCallback(), "");
+                    HttpRequest.cancel(requestCode);
+                    if (HttpRequest.cancel(requestCode)){
+                        throw new IllegalStateException("Request cancelled twice");
+                    }
+                }
+            }
+        });
+        assertNull(failure);
+    }
+
+    @Test
+    public void concurrentCancelTest(){
+        final int[] requestCodes = new int[REQUESTS_PER_THREAD];
+        for (int i = 0; i < requestCodes.length; i++){
+            requestCodes[i] = HttpRequest.get(new NoOpCallback(), "");
+        }
+
+        //Every thread tries to cancel every request, none of them can be cancelled twice. Some
+        //  may not be cancelled at all, since the invalid url can make them fail first
+        final AtomicIntegerArray cancellations = new AtomicIntegerArray(requestCodes.length);
+        Throwable failure = runConcurrently(new Runnable(){
+            @Override
+            public void run(){
+                for (int i = 0; i < requestCodes.length; i++){
+                    if (HttpRequest.cancel(requestCodes[i])){
+                        cancellations.incrementAndGet(i);
+                    }
+                }
+            }
+        });
+        assertNull(failure);
+        for (int i = 0; i < requestCodes.length; i++){
+            assertTrue(cancellations.get(i) <= 1);
+        }
+    }
+
+    @Test
+    public void registryOverflowTest(){
+        //A tiny table, so most requests end up in the overflow
+        final RequestRegistry registry = new RequestRegistry(4);
+        final int[][] requestCodes = new int[THREADS][REQUESTS_PER_THREAD];
+        final AtomicInteger thread = new AtomicInteger(0);
+        Throwable failure = runConcurrently(new Runnable(){
+            @Override
+            public void run(){
+                int[] codes = requestCodes[thread.getAndIncrement()];
+                for (int i = 0; i < codes.length; i++){
+                    codes[i] = registry.register(new HttpRequest(new NoOpCallback(), null,
+                            RequestBody.fromBytes(new byte[0], null)));
+                }
+            }
+        });
+        assertNull(failure);
+        assertEquals(THREADS*REQUESTS_PER_THREAD, registry.size());
+
+        for (int[] codes:requestCodes){
+            for (int requestCode:codes){
+                assertEquals(requestCode, registry.get(requestCode).getRequestCode());
+                assertNotNull(registry.remove(requestCode));
+                assertNull(registry.remove(requestCode));
+            }
+        }
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void requestLimitsTest(){
+        //A single request per host, so every request but the first one is queued. Each request
+        //  goes to a different url and skips the cache, or identical requests would share a
+        //  single call and cached ones would never reach the dispatcher
+        HttpRequest.setRequestLimits(4, 1);
+
+        final int requests = 6;
+        final CountDownLatch signal = new CountDownLatch(requests - 1);
+        final AtomicInteger completed = new AtomicInteger(0);
+        int lastRequestCode = -1;
+        for (int i = 0; i < requests; i++){
+            lastRequestCode = HttpRequest.get(new HttpRequest.RequestCallback(){
+                @Override
+                public void onRequestComplete(int requestCode, String result){
+                    completed.incrementAndGet();
+                    signal.countDown();
+                }
+
+                @Override
+                public void onRequestFailed(int requestCode, HttpRequestError error){
+                    fail(error.getMessage());
+                }
+            }, URL + "?request=" + i, HttpRequest.CachePolicy.NETWORK_ONLY);
+        }
+
+        //The last request is still queued, cancelling it must not hold up the rest
+        assertTrue(HttpRequest.cancel(lastRequestCode));
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+        assertEquals(requests - 1, completed.get());
+    }
+
+    @Test
+    public void deliveryExecutorTest(){
+        //Callbacks run in the thread of the executor the request was made with
+        final AtomicReference<Thread> executorThread = new AtomicReference<>();
+        final AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        final CountDownLatch signal = new CountDownLatch(1);
+        Executor executor = new Executor(){
+            @Override
+            public void execute(@NonNull final Runnable command){
+                Thread thread = new Thread(command);
+                executorThread.set(thread);
+                thread.start();
+            }
+        };
+        HttpRequest.request(HttpRequest.Method.GET, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                callbackThread.set(Thread.currentThread());
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                callbackThread.set(Thread.currentThread());
+                signal.countDown();
+            }
+        }, URL, null, 10*1000, HttpRequest.Priority.NORMAL, HttpRequest.NO_DEADLINE,
+                HttpRequest.CachePolicy.NETWORK_ONLY, null, null, executor);
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+        assertNotNull(callbackThread.get());
+        assertEquals(executorThread.get(), callbackThread.get());
+    }
+
+    @Test
+    public void batchTest(){
+        final RequestBatch batch = new RequestBatch(3, HttpRequest.Priority.NORMAL);
+        for (int i = 0; i < 10; i++){
+            assertEquals(i, batch.get(URL));
+        }
+
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicInteger progress = new AtomicInteger(0);
+        HttpRequest.batch(batch, new HttpRequest.BatchCallback(){
+            @Override
+            public void onBatchProgress(RequestBatch batch, int index, int completed){
+                progress.incrementAndGet();
+            }
+
+            @Override
+            public void onBatchComplete(RequestBatch batch){
+                signal.countDown();
+            }
+        });
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+        assertEquals(10, progress.get());
+        assertEquals(10, batch.getCompletedCount());
+        for (int i = 0; i < batch.size(); i++){
+            assertTrue(batch.getResult(i) != null || batch.getError(i) != null);
+        }
+    }
+
+    @Test
+    public void cachedBatchTest() throws Exception{
+        StubServer server = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+        HttpRequest.setCachePolicy(HttpRequest.CachePolicy.CACHE_FIRST);
+        try{
+            final String url = server.getUrl("/cached");
+            final CountDownLatch cached = new CountDownLatch(1);
+            HttpRequest.get(new HttpRequest.RequestCallback(){
+                @Override
+                public void onRequestComplete(int requestCode, String result){
+                    cached.countDown();
+                }
+
+                @Override
+                public void onRequestFailed(int requestCode, HttpRequestError error){
+                    fail(error.getMessage());
+                }
+            }, url);
+            assertTrue(cached.await(10, TimeUnit.SECONDS));
+
+            //Served from the memory cache, every request of the batch completes as it is sent
+            final RequestBatch batch = new RequestBatch();
+            for (int i = 0; i < 5000; i++){
+                batch.get(url);
+            }
+            final CountDownLatch signal = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            //A small stack, which sending the batch would overflow if it recursed
+            Thread thread = new Thread(null, new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        HttpRequest.batch(batch, new HttpRequest.BatchCallback(){
+                            @Override
+                            public void onBatchProgress(RequestBatch batch, int index,
+                                                        int completed){
+
+                            }
+
+                            @Override
+                            public void onBatchComplete(RequestBatch batch){
+                                signal.countDown();
+                            }
+                        });
+                    }
+                    catch (Throwable t){
+                        failure.set(t);
+                        signal.countDown();
+                    }
+                }
+            }, "Batch", 128*1024);
+            thread.start();
+            assertTrue(signal.await(30, TimeUnit.SECONDS));
+            assertNull(failure.get());
+            assertEquals(5000, batch.getCompletedCount());
+            assertEquals(0, batch.getErrorCount());
+            assertEquals(1, server.getRequestCount());
+        }
+        finally{
+            HttpRequest.setCachePolicy(HttpRequest.CachePolicy.DEFAULT);
+            server.stop();
+            EngineFixture.reinitialise(new VolleyEngine());
+        }
+    }
+
+    @Test
+    public void batchCancelTest(){
+        RequestBatch batch = new RequestBatch(2, HttpRequest.Priority.NORMAL);
+        for (int i = 0; i < 10; i++){
+            batch.get(URL);
+        }
+        final AtomicInteger callbacks = new AtomicInteger(0);
+        HttpRequest.batch(batch, new HttpRequest.BatchCallback(){
+            @Override
+            public void onBatchProgress(RequestBatch batch, int index, int completed){
+                callbacks.incrementAndGet();
+            }
+
+            @Override
+            public void onBatchComplete(RequestBatch batch){
+                callbacks.incrementAndGet();
+            }
+        });
+
+        //Requests in flight are cancelled and the rest are never sent
+        assertTrue(HttpRequest.cancel(batch));
+        assertFalse(HttpRequest.cancel(batch));
+        assertTrue(batch.isCancelled());
+        try{
+            Thread.sleep(2000);
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+        }
+        assertEquals(0, callbacks.get());
+    }
+
+    /**
+     * Callback that does nothing, the stress tests only care about the request codes.
+     */
+    private static class NoOpCallback implements HttpRequest.RequestCallback{
+        @Override
+        public void onRequestComplete(int requestCode, String result){
+
+        }
+
+        @Override
+        public void onRequestFailed(int requestCode, HttpRequestError error){
+
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for typed requests and response decoders.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class DecoderTests{
+    private StubServer mServer;
+    private CountDownLatch mSignal;
+    private Object mResult;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Sends a typed request that bypasses the cache and waits for its result.
+     *
+     * @param method the HTTP method of the request.
+     * @param url the url to send the request to.
+     * @param body the body of the request.
+     * @param decoder the decoder of the response.
+     * @param <T> the type of the decoded object.
+     */
+    private <T> void send(HttpRequest.Method method, String url, JSONObject body,
+                          ResponseDecoder<T> decoder){
+
+        mSignal = new CountDownLatch(1);
+        mResult = null;
+        mError = null;
+        HttpRequest.request(method, new HttpRequest.TypedCallback<T>(){
+            @Override
+            public void onRequestComplete(int requestCode, T result){
+                mResult = result;
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        }, url, body, 10*1000, HttpRequest.Priority.NORMAL, HttpRequest.NO_DEADLINE,
+                HttpRequest.CachePolicy.NETWORK_ONLY, null, null, decoder);
+
+        try{
+            mSignal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    @Test
+    public void readerTest() throws IOException{
+        JsonStreamReader reader = new JsonStreamReader(new StringReader(
+                "{\"name\": \"a \\\"b\\\" \\u00e9\", \"values\": [1, -2.5e3, true, null],"
+                        + " \"nested\": {\"skipped\": [{}, []]}}"));
+
+        reader.beginObject();
+        assertEquals("name", reader.nextName());
+        assertEquals("a \"b\" \u00e9", reader.nextString());
+        assertEquals("values", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextInt());
+        assertEquals(-2500, reader.nextLong());
+        assertTrue(reader.nextBoolean());
+        assertEquals(JsonStreamReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("nested", reader.nextName());
+        reader.skipValue();
+        reader.endObject();
+        assertEquals(JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void malformedTest(){
+        String[] documents = {"{\"a\" 1}", "[1,]", "[01]", "{\"a\":tru}", "[\"a]", "[1] 2"};
+        for (String document:documents){
+            try{
+                JsonStreamReader reader = new JsonStreamReader(new StringReader(document));
+                reader.skipValue();
+                reader.peek();
+                fail("Expected a DecodingException for " + document);
+            }
+            catch (DecodingException dx){
+                //Expected
+            }
+            catch (IOException iox){
+                fail(iox.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void getTest() throws JSONException{
+        send(HttpRequest.Method.GET, mServer.getUrl("/api/"), null, JsonDecoder.OBJECT);
+
+        assertNull(mError);
+        assertEquals("ok", ((JSONObject)mResult).getString("result"));
+    }
+
+    @Test
+    public void streamedPostTest() throws JSONException{
+        JSONObject body = new JSONObject().put("items", new JSONArray().put(1).put(2).put(3));
+        send(HttpRequest.Method.POST, mServer.getUrl("/api/"), body, new JsonDecoder<Long>(){
+            @Override
+            protected Long read(JsonStreamReader reader) throws IOException{
+                //Adds the items up without building any JSON objects
+                long sum = 0;
+                reader.beginObject();
+                reader.nextName();
+                reader.beginArray();
+                while (reader.hasNext()){
+                    sum += reader.nextLong();
+                }
+                return sum;
+            }
+        });
+
+        assertNull(mError);
+        assertEquals(6L, mResult);
+    }
+
+    @Test
+    public void decodingErrorTest(){
+        send(HttpRequest.Method.GET, mServer.getUrl("/api/"), null, JsonDecoder.ARRAY);
+
+        assertNull(mResult);
+        assertNotNull(mError);
+        assertFalse(mError.isNetworkError());
+        assertFalse(mError.isServerError());
+    }
+}
@@ -0,0 +1,55 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.fail;
+
+
+/**
+ * Lets tests initialise HttpRequest again with the engine they need. The library can only
+ * be initialised once, so the engine in use is stopped and forgotten first.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class EngineFixture{
+    /**
+     * Initialises HttpRequest again, with a particular engine.
+     *
+     * @param engine the new engine.
+     */
+    static void reinitialise(@NonNull HttpEngine engine){
+        reinitialise(engine, null);
+    }
+
+    /**
+     * Initialises HttpRequest again, with a particular engine and metrics listener.
+     *
+     * @param engine the new engine.
+     * @param listener the metrics listener, or null.
+     */
+    static void reinitialise(@NonNull HttpEngine engine,
+                             @Nullable RequestMetricsListener listener){
+
+        try{
+            Field field = HttpRequest.class.getDeclaredField("sEngine");
+            field.setAccessible(true);
+            HttpEngine current = (HttpEngine)field.get(null);
+            if (current != null){
+                current.stop();
+            }
+            field.set(null, null);
+            HttpRequest.init(InstrumentationRegistry.getContext(), engine,
+                    Dispatcher.DEFAULT_MAX_REQUESTS, Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST,
+                    listener);
+        }
+        catch (Exception x){
+            fail(x.getMessage());
+            x.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for the engines. Every engine must produce the same results.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class EngineTests{
+    private static final String URL = "http://http-requests.sandwatch.es/api/";
+
+
+    @After
+    public void tearDown(){
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Waits for a latch to be released.
+     *
+     * @param signal the latch.
+     */
+    private void await(CountDownLatch signal){
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs a GET, a POST and a failing request through the current engine.
+     */
+    private void runRequests(){
+        final CountDownLatch signal = new CountDownLatch(3);
+        final String text = new BigInteger(128, new Random()).toString(32);
+
+        HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                assertEquals("GET /api/ Key 'text' with value '" + text + "'", result);
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail(error.getMessage());
+            }
+        }, URL + "?text=" + text);
+
+        JSONObject postBody = new JSONObject();
+        try{
+            postBody.put("text", text);
+        }
+        catch (JSONException jsonx){
+            jsonx.printStackTrace();
+        }
+        HttpRequest.post(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                assertEquals("POST /api/ text = " + text, result);
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail(error.getMessage());
+            }
+        }, URL, postBody);
+
+        HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                fail("Request shouldn't have completed");
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                assertTrue(error.isServerError());
+                assertEquals(400, error.getStatusCode());
+                signal.countDown();
+            }
+        }, URL + "errors/400/");
+
+        await(signal);
+    }
+
+    /**
+     * Streams a response through the current engine with a callback that throws.
+     *
+     * @param server the server to stream the response from.
+     * @param failure what the callback throws, an IOException or a RuntimeException.
+     * @return the error the request failed with.
+     */
+    private HttpRequestError streamAndThrow(StubServer server, final Exception failure){
+        final CountDownLatch signal = new CountDownLatch(1);
+        final HttpRequestError[] error = new HttpRequestError[1];
+        HttpRequest.stream(new HttpRequest.StreamCallback(){
+            @Override
+            public void onResponseStream(int requestCode, InputStream stream) throws IOException{
+                stream.read();
+                if (failure instanceof IOException){
+                    throw (IOException)failure;
+                }
+                throw (RuntimeException)failure;
+            }
+
+            @Override
+            public void onStreamComplete(int requestCode){
+                fail("Request shouldn't have completed");
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError requestError){
+                error[0] = requestError;
+                signal.countDown();
+            }
+        }, server.getUrl("/records/1000"));
+        await(signal);
+        return error[0];
+    }
+
+    @Test
+    public void streamCallbackFailureTest() throws IOException{
+        StubServer server = new StubServer();
+        HttpEngine[] engines = {new VolleyEngine(), new UrlConnectionEngine(), new NioEngine()};
+        try{
+            for (HttpEngine engine:engines){
+                EngineFixture.reinitialise(engine);
+                //Failures of the callback aren't network errors, and the engine survives them
+                HttpRequestError error = streamAndThrow(server, new IOException("Bad record"));
+                assertFalse(error.isNetworkError());
+                assertEquals("java.io.IOException: Bad record", error.getMessage());
+                error = streamAndThrow(server, new IllegalStateException("Bug"));
+                assertFalse(error.isNetworkError());
+                assertEquals("java.lang.IllegalStateException: Bug", error.getMessage());
+
+                final CountDownLatch signal = new CountDownLatch(1);
+                HttpRequest.get(new HttpRequest.RequestCallback(){
+                    @Override
+                    public void onRequestComplete(int requestCode, String result){
+                        assertEquals(StubServer.RESPONSE, result);
+                        signal.countDown();
+                    }
+
+                    @Override
+                    public void onRequestFailed(int requestCode, HttpRequestError error){
+                        fail(error.getMessage());
+                    }
+                }, server.getUrl("/"), HttpRequest.CachePolicy.NETWORK_ONLY);
+                await(signal);
+            }
+        }
+        finally{
+            server.stop();
+        }
+    }
+
+    /**
+     * Makes a request that is expected to fail and waits for it.
+     *
+     * @param url the url of the request.
+     * @return the error of the request.
+     */
+    private HttpRequestError expectFailure(String url){
+        final CountDownLatch signal = new CountDownLatch(1);
+        final HttpRequestError[] error = new HttpRequestError[1];
+        HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                fail("Request shouldn't have completed");
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError requestError){
+                error[0] = requestError;
+                signal.countDown();
+            }
+        }, url, HttpRequest.CachePolicy.NETWORK_ONLY);
+        try{
+            assertTrue(signal.await(10, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+        return error[0];
+    }
+
+    @Test
+    public void unsupportedSchemeTest(){
+        //The connection isn't an HttpURLConnection, the call fails rather than the worker
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+        assertFalse(expectFailure("file:///").isNetworkError());
+    }
+
+    @Test
+    public void selectorFailureTest() throws Exception{
+        NioEngine engine = new NioEngine();
+        EngineFixture.reinitialise(engine);
+
+        //Breaks the selector thread the way a bug in a handler would
+        Method runOnSelector = NioEngine.class.getDeclaredMethod("runOnSelector",
+                Runnable.class);
+        runOnSelector.setAccessible(true);
+        runOnSelector.invoke(engine, new Runnable(){
+            @Override
+            public void run(){
+                throw new IllegalStateException("Bug");
+            }
+        });
+
+        //Calls fail from then on instead of waiting for a selector that's gone
+        StubServer server = new StubServer();
+        try{
+            HttpRequestError error = expectFailure(server.getUrl("/"));
+            assertFalse(error.isNetworkError());
+            assertTrue(error.getMessage().contains("Bug"));
+            assertTrue(expectFailure(server.getUrl("/other")).getMessage().contains("Bug"));
+        }
+        finally{
+            server.stop();
+        }
+    }
+
+    @Test
+    public void volleyEngineTest(){
+        EngineFixture.reinitialise(new VolleyEngine());
+        runRequests();
+    }
+
+    @Test
+    public void urlConnectionEngineTest(){
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+        runRequests();
+    }
+
+    @Test
+    public void nioEngineTest(){
+        EngineFixture.reinitialise(new NioEngine());
+        runRequests();
+    }
+}
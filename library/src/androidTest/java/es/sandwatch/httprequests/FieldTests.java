@@ -22,6 +22,21 @@ import static org.junit.Assert.fail;
  * @version 1.0.0
  */
 public class FieldTests{
+    /**
+     * Gets the current snapshot of the URL parameters added to every request.
+     *
+     * @return the URL parameters.
+     * @throws Exception if the fields can't be read.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getUrlParameters() throws Exception{
+        Field builderField = HttpRequest.class.getDeclaredField("sUrlBuilder");
+        builderField.setAccessible(true);
+        Field parametersField = UrlBuilder.class.getDeclaredField("mParameters");
+        parametersField.setAccessible(true);
+        return (Map<String, String>)parametersField.get(builderField.get(null));
+    }
+
     @Test
     public void setTimeoutTest(){
         HttpRequest.setRequestTimeout(159753);
@@ -42,9 +57,9 @@ public class FieldTests{
     public void setRetriesTest(){
         HttpRequest.setRequestRetries(5);
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestRetries");
+            Field field = HttpRequest.class.getDeclaredField("sRetryPolicy");
             field.setAccessible(true);
-            int retries = (int)field.get(null);
+            int retries = ((RetryPolicy)field.get(null)).getMaxRetries();
             HttpRequest.setRequestRetries(0);
             assertEquals(retries, 5);
         }
@@ -58,11 +73,11 @@ public class FieldTests{
     public void setBackoffTest(){
         HttpRequest.setRetryBackoff(2f);
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRetryBackoff");
+            Field field = HttpRequest.class.getDeclaredField("sRetryPolicy");
             field.setAccessible(true);
-            float retries = (float)field.get(null);
-            HttpRequest.setRequestRetries(0);
-            assertEquals(retries, 2f, 0.01);
+            float backoff = ((RetryPolicy)field.get(null)).getTimeoutBackoff();
+            HttpRequest.setRetryBackoff(RetryPolicy.DEFAULT_TIMEOUT_BACKOFF);
+            assertEquals(backoff, 2f, 0.01);
         }
         catch (Exception x){
             fail(x.getMessage());
@@ -151,6 +166,8 @@ public class FieldTests{
             Map<String, String> headerMap = (Map<String, String>)field.get(null);
             assertTrue(headerMap.containsKey("headerToRemove"));
             HttpRequest.removeHeader("headerToRemove");
+            //The headers are a snapshot, replaced as a whole when modified
+            headerMap = (Map<String, String>)field.get(null);
             assertFalse(headerMap.containsKey("headerToRemove"));
         }
         catch (Exception x){
@@ -165,9 +182,7 @@ public class FieldTests{
         HttpRequest.addUrlParameter("header1", "test");
         HttpRequest.addUrlParameter("header2", "true");
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestUrlParams");
-            field.setAccessible(true);
-            Map<String, String> urlParameterMap = (Map<String, String>)field.get(null);
+            Map<String, String> urlParameterMap = getUrlParameters();
             assertTrue(
                     urlParameterMap.containsKey("header1") &&
                             urlParameterMap.get("header1").equals("test") &&
@@ -187,9 +202,7 @@ public class FieldTests{
         HttpRequest.addUrlParameter("success", "false");
         HttpRequest.addUrlParameter("success", "true");
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestUrlParams");
-            field.setAccessible(true);
-            Map<String, String> urlParameterMap = (Map<String, String>)field.get(null);
+            Map<String, String> urlParameterMap = getUrlParameters();
             assertTrue(
                     urlParameterMap.containsKey("success") &&
                             urlParameterMap.get("success").equals("true")
@@ -206,12 +219,10 @@ public class FieldTests{
     public void urlParameterMapRemoveTest(){
         HttpRequest.addUrlParameter("parameterToRemove", "test");
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestUrlParams");
-            field.setAccessible(true);
-            Map<String, String> urlParameterMap = (Map<String, String>)field.get(null);
+            Map<String, String> urlParameterMap = getUrlParameters();
             assertTrue(urlParameterMap.containsKey("parameterToRemove"));
             HttpRequest.removeUrlParameter("parameterToRemove");
-            assertFalse(urlParameterMap.containsKey("parameterToRemove"));
+            assertFalse(getUrlParameters().containsKey("parameterToRemove"));
         }
         catch (Exception x){
             fail(x.getMessage());
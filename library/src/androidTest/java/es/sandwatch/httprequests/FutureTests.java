@@ -0,0 +1,157 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for futures and blocking requests, run against an in-process server.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class FutureTests{
+    private StubServer mServer;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Makes a GET request that bypasses the cache.
+     *
+     * @param path the path of the url.
+     * @return the future of the result.
+     */
+    private RequestFuture<String> get(String path){
+        return HttpRequest.submit(HttpRequest.Method.GET, mServer.getUrl(path), null, 10*1000,
+                HttpRequest.Priority.NORMAL, HttpRequest.NO_DEADLINE,
+                HttpRequest.CachePolicy.NETWORK_ONLY, null, null);
+    }
+
+    @Test
+    public void executeTest() throws Exception{
+        String result = HttpRequest.execute(HttpRequest.Method.GET, mServer.getUrl("/api/"),
+                null);
+        assertEquals(StubServer.RESPONSE, result);
+
+        try{
+            HttpRequest.execute(HttpRequest.Method.GET, mServer.getUrl("/status/404"), null);
+            fail("Expected a RequestException");
+        }
+        catch (RequestException rx){
+            assertTrue(rx.getError().isServerError());
+            assertEquals(404, rx.getError().getStatusCode());
+        }
+    }
+
+    @Test
+    public void thenTest() throws Exception{
+        //The result of the first request goes in the body of the second one, echoed back
+        RequestFuture<String> future = get("/api/").then(
+                new RequestFuture.Continuation<String, String>(){
+                    @Override
+                    public RequestFuture<String> then(String result) throws JSONException{
+                        JSONObject body = new JSONObject().put("previous", result);
+                        return HttpRequest.submit(HttpRequest.Method.POST,
+                                mServer.getUrl("/api/"), body);
+                    }
+                });
+        RequestFuture<Integer> length = future.map(
+                new RequestFuture.Transformation<String, Integer>(){
+                    @Override
+                    public Integer apply(String result){
+                        return result.length();
+                    }
+                });
+
+        assertTrue(future.get().contains("previous"));
+        assertEquals(future.get().length(), (int)length.get());
+    }
+
+    @Test
+    public void allTest() throws Exception{
+        List<RequestFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++){
+            futures.add(get("/api/" + i));
+        }
+        List<String> results = RequestFuture.all(futures).get();
+        assertEquals(5, results.size());
+        for (String result:results){
+            assertEquals(StubServer.RESPONSE, result);
+        }
+
+        //A single failure fails the whole thing and cancels the rest
+        futures.clear();
+        futures.add(get("/delay/2000"));
+        futures.add(get("/status/500"));
+        try{
+            RequestFuture.all(futures).get();
+            fail("Expected an ExecutionException");
+        }
+        catch (ExecutionException ex){
+            assertEquals(500, ((RequestException)ex.getCause()).getError().getStatusCode());
+        }
+        assertTrue(futures.get(0).isCancelled());
+    }
+
+    @Test
+    public void anyTest() throws Exception{
+        List<RequestFuture<String>> futures = new ArrayList<>();
+        futures.add(get("/status/500"));
+        futures.add(get("/delay/2000"));
+        futures.add(get("/api/"));
+        assertEquals(StubServer.RESPONSE, RequestFuture.any(futures).get());
+        assertTrue(futures.get(1).isCancelled());
+    }
+
+    @Test
+    public void timeoutAndCancelTest() throws Exception{
+        RequestFuture<String> slow = get("/delay/2000");
+        RequestFuture<String> bounded = slow.timeout(100);
+        try{
+            bounded.get();
+            fail("Expected an ExecutionException");
+        }
+        catch (ExecutionException ex){
+            HttpRequestError error = ((RequestException)ex.getCause()).getError();
+            assertFalse(error.isNetworkError());
+            assertFalse(error.isServerError());
+        }
+        assertTrue(slow.isCancelled());
+
+        RequestFuture<String> cancelled = get("/delay/2000");
+        assertTrue(cancelled.cancel(true));
+        assertFalse(cancelled.cancel(true));
+        try{
+            cancelled.get();
+            fail("Expected a CancellationException");
+        }
+        catch (CancellationException cx){
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package es.sandwatch.httprequests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for hedged requests.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class HedgeTests{
+    private StubServer mServer;
+    private CountDownLatch mSignal;
+    private String mResult;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Makes a hedged GET request.
+     *
+     * @param path the path of the url.
+     * @param policy the hedge policy.
+     * @return the request code.
+     */
+    private int get(String path, HedgePolicy policy){
+        mSignal = new CountDownLatch(1);
+        mResult = null;
+        mError = null;
+        return HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                mResult = result;
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        }, mServer.getUrl(path), policy);
+    }
+
+    /**
+     * Makes a hedged GET request and waits for its result.
+     *
+     * @param path the path of the url.
+     * @param policy the hedge policy.
+     * @return the time it took, in milliseconds.
+     */
+    private long send(String path, HedgePolicy policy){
+        long start = System.currentTimeMillis();
+        get(path, policy);
+        await(10*1000);
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Waits for the result of the last request.
+     *
+     * @param timeout the time to wait for, in milliseconds.
+     * @return true if there was a result, false otherwise.
+     */
+    private boolean await(long timeout){
+        try{
+            return mSignal.await(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Feeds a policy the responses it needs before it starts hedging.
+     *
+     * @param policy the policy.
+     */
+    private void warmUp(HedgePolicy policy){
+        for (int i = 0; i < 20; i++){
+            send("/", policy);
+            assertEquals(StubServer.RESPONSE, mResult);
+        }
+        assertEquals(policy.getMinDelay(), policy.getDelay());
+    }
+
+    @Test
+    public void hedgeTest(){
+        HedgePolicy policy = new HedgePolicy(95, 100, new RetryBudget(0.1f, 1));
+        warmUp(policy);
+
+        //The hedge answers while the first request is still waiting
+        long time = send("/slow/hedge/3000", policy);
+        assertNull(mError);
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertTrue(time < 1500);
+        assertEquals(1, policy.getHedgeCount());
+    }
+
+    @Test
+    public void budgetTest(){
+        //A single hedge, and no more
+        HedgePolicy policy = new HedgePolicy(95, 100, new RetryBudget(0, 1));
+        warmUp(policy);
+        assertTrue(send("/slow/first/3000", policy) < 1500);
+        assertTrue(send("/slow/second/600", policy) >= 600);
+        assertEquals(1, policy.getHedgeCount());
+    }
+
+    @Test
+    public void coldTest(){
+        //Nothing is hedged until the policy knows what to expect
+        HedgePolicy policy = new HedgePolicy();
+        assertEquals(-1, policy.getDelay());
+        assertTrue(send("/slow/cold/500", policy) >= 500);
+        assertEquals(0, policy.getHedgeCount());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cancelTest() throws Exception{
+        HedgePolicy policy = new HedgePolicy(95, 100, new RetryBudget(0.1f, 1));
+        warmUp(policy);
+
+        //Cancelling the request cancels both calls
+        int requestCode = get("/delay/1000", policy);
+        Thread.sleep(300);
+        assertEquals(1, policy.getHedgeCount());
+        HttpRequest.cancel(requestCode);
+        assertFalse(await(1500));
+
+        Field field = HttpRequest.class.getDeclaredField("sDispatcher");
+        field.setAccessible(true);
+        assertEquals(0, ((Dispatcher)field.get(null)).getRunningCallCount());
+    }
+}
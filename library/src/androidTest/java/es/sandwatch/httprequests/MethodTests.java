@@ -6,9 +6,13 @@ import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collections;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -30,7 +34,7 @@ public class MethodTests{
     @Test(expected = IllegalStateException.class)
     public void illegalStateTest(){
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestQueue");
+            Field field = HttpRequest.class.getDeclaredField("sEngine");
             field.setAccessible(true);
             field.set(null, null);
             HttpRequest.request(HttpRequest.Method.GET, null, "", new JSONObject());
@@ -49,7 +53,7 @@ public class MethodTests{
     @Test
     public void initialisationTest(){
         try{
-            Field field = HttpRequest.class.getDeclaredField("sRequestQueue");
+            Field field = HttpRequest.class.getDeclaredField("sEngine");
             field.setAccessible(true);
             field.set(null, null);
             HttpRequest.init(InstrumentationRegistry.getContext());
@@ -76,6 +80,52 @@ public class MethodTests{
         assertEquals(requestCode1, requestCode2 - 1);
     }
 
+    @Test
+    public void requestCodeRangeTest(){
+        assertEquals(1, RequestCodeGenerator.toRequestCode(1));
+        assertEquals(Integer.MAX_VALUE, RequestCodeGenerator.toRequestCode(Integer.MAX_VALUE));
+        assertEquals(1, RequestCodeGenerator.toRequestCode(Integer.MAX_VALUE + 1L));
+        assertTrue(RequestCodeGenerator.toRequestCode(Long.MAX_VALUE) > 0);
+    }
+
+    @Test
+    public void requestIdTest() throws IOException{
+        //The second request waits behind the first one, so it can't complete before the check
+        StubServer server = new StubServer();
+        HttpRequest.setRequestLimits(Dispatcher.DEFAULT_MAX_REQUESTS, 1);
+        try{
+            int slowRequestCode = HttpRequest.request(HttpRequest.Method.GET, null,
+                    server.getUrl("/delay/1000"), null, 10*1000, HttpRequest.Priority.NORMAL,
+                    HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY);
+            int requestCode = HttpRequest.request(HttpRequest.Method.GET, null,
+                    server.getUrl("/delay/1001"), null, 10*1000, HttpRequest.Priority.NORMAL,
+                    HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY);
+            long requestId = HttpRequest.getRequestId(requestCode);
+            assertEquals(requestCode, RequestCodeGenerator.toRequestCode(requestId));
+            assertTrue(HttpRequest.cancel(requestCode));
+            assertEquals(-1, HttpRequest.getRequestId(requestCode));
+            HttpRequest.cancel(slowRequestCode);
+        }
+        finally{
+            HttpRequest.setRequestLimits(Dispatcher.DEFAULT_MAX_REQUESTS,
+                    Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void readBodyTest() throws IOException{
+        byte[] data = "{\"result\":\"ok\"}".getBytes("UTF-8");
+
+        //The length the server announces is only trusted up to a point
+        assertArrayEquals(data, HttpRequest.readBody(new ByteArrayInputStream(data),
+                Collections.singletonMap("Content-Length", "2000000000")));
+        assertArrayEquals(data, HttpRequest.readBody(new ByteArrayInputStream(data),
+                Collections.singletonMap("Content-Length", "4")));
+        assertArrayEquals(data, HttpRequest.readBody(new ByteArrayInputStream(data),
+                Collections.singletonMap("Content-Length", String.valueOf(data.length))));
+    }
+
     @Test
     public void headersTest(){
         HttpRequest.addHeader("othello", "test");
@@ -0,0 +1,169 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for request metrics, run against an in-process server.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class MetricsTests{
+    private final List<RequestMetrics> mMetrics = new ArrayList<>();
+    private StubServer mServer;
+    private CountDownLatch mSignal;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        EngineFixture.reinitialise(new UrlConnectionEngine(), new RequestMetricsListener(){
+            @Override
+            public void onRequestMetrics(RequestMetrics metrics){
+                mMetrics.add(metrics);
+                mSignal.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        HttpRequest.setStatisticsEnabled(false);
+        EngineFixture.reinitialise(new VolleyEngine(), null);
+    }
+
+    /**
+     * Sends a request that bypasses the cache and waits for its metrics.
+     *
+     * @param method the HTTP method of the request.
+     * @param url the url to send the request to.
+     * @param body the body of the request.
+     * @return the metrics of the request.
+     */
+    private RequestMetrics send(HttpRequest.Method method, String url, JSONObject body){
+        mSignal = new CountDownLatch(1);
+        mMetrics.clear();
+        HttpRequest.request(method, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                //The metrics are reported right after
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                //The metrics are reported right after
+            }
+        }, url, body, 10*1000, HttpRequest.Priority.NORMAL, HttpRequest.NO_DEADLINE,
+                HttpRequest.CachePolicy.NETWORK_ONLY);
+
+        try{
+            mSignal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+        assertEquals(1, mMetrics.size());
+        return mMetrics.get(0);
+    }
+
+    @Test
+    public void getMetricsTest(){
+        RequestMetrics metrics = send(HttpRequest.Method.GET, mServer.getUrl("/api/"), null);
+
+        assertEquals(HttpRequest.Method.GET, metrics.getMethod());
+        assertEquals(200, metrics.getStatusCode());
+        assertEquals(RequestMetrics.CacheStatus.NETWORK, metrics.getCacheStatus());
+        assertFalse(metrics.isShared());
+        assertEquals(0, metrics.getRetryCount());
+        assertEquals(StubServer.RESPONSE.length(), metrics.getBytesReceived());
+        assertTrue(metrics.getQueueTime() >= 0);
+        assertTrue(metrics.getConnectTime() >= 0);
+        assertTrue(metrics.getTimeToFirstByte() >= 0);
+        assertTrue(metrics.getTransferTime() >= 0);
+        assertTrue(metrics.getParseTime() >= 0);
+        assertTrue(metrics.getDeliveryTime() >= 0);
+        assertTrue(metrics.getTotalTime() >= metrics.getTimeToFirstByte());
+    }
+
+    @Test
+    public void postMetricsTest() throws JSONException{
+        JSONObject body = new JSONObject().put("key", "value");
+        RequestMetrics metrics = send(HttpRequest.Method.POST, mServer.getUrl("/api/"), body);
+
+        assertEquals(body.toString().length(), metrics.getBytesSent());
+        assertEquals(body.toString().length(), metrics.getBytesReceived());
+    }
+
+    @Test
+    public void errorMetricsTest(){
+        RequestMetrics metrics = send(HttpRequest.Method.GET, mServer.getUrl("/status/503"), null);
+
+        assertEquals(503, metrics.getStatusCode());
+        assertNotNull(metrics.getError());
+        assertTrue(metrics.getError().isServerError());
+    }
+
+    @Test
+    public void statisticsTest() throws JSONException{
+        //Statistics are opt-in
+        assertNull(HttpRequest.getStatistics());
+        HttpRequest.setStatisticsEnabled(true);
+        send(HttpRequest.Method.GET, mServer.getUrl("/api/"), null);
+        send(HttpRequest.Method.GET, mServer.getUrl("/status/503"), null);
+        JSONObject body = new JSONObject().put("key", "value");
+        send(HttpRequest.Method.POST, mServer.getUrl("/api/"), body);
+
+        RequestStatistics statistics = HttpRequest.getStatistics();
+        RequestStatistics.Snapshot total = statistics.getSnapshot();
+        assertEquals(3, total.getRequestCount());
+        assertEquals(1, total.getServerErrorCount());
+        assertEquals(1d/3, total.getErrorRate(), 0.001);
+        assertEquals(body.toString().length(), total.getBytesSent());
+        assertTrue(total.getRequestsPerSecond() > 0);
+        assertTrue(total.getLatencyP50() > 0);
+        assertTrue(total.getLatencyP50() <= total.getLatencyP99());
+        assertTrue(total.getLatencyP999() <= total.getMaxLatency());
+
+        assertEquals(2, statistics.getSnapshot(HttpRequest.Method.GET).getRequestCount());
+        assertEquals(1, statistics.getSnapshot(HttpRequest.Method.POST).getRequestCount());
+        assertEquals(1, statistics.getHosts().size());
+        String host = statistics.getHosts().iterator().next();
+        assertEquals(3, statistics.getSnapshot(host).getRequestCount());
+    }
+
+    @Test
+    public void latencyHistogramTest(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++){
+            histogram.record(value);
+        }
+        long[] counts = histogram.copyCounts();
+        long max = histogram.getMax();
+
+        //Buckets are about 3% wide
+        assertEquals(50000, LatencyHistogram.getPercentile(counts, 50, max), 50000*0.04);
+        assertEquals(99000, LatencyHistogram.getPercentile(counts, 99, max), 99000*0.04);
+        assertEquals(99900, LatencyHistogram.getPercentile(counts, 99.9, max), 99900*0.04);
+        assertEquals(100000, LatencyHistogram.getPercentile(counts, 100, max));
+        assertEquals(100000, histogram.getCount());
+    }
+}
@@ -0,0 +1,292 @@
+package es.sandwatch.httprequests;
+
+import android.support.test.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for the outbox.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class OutboxTests{
+    private File mDirectory;
+    private int mPort;
+    private StubServer mServer;
+    private RequestOutbox mOutbox;
+    private CountDownLatch mSignal;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mDirectory = new File(InstrumentationRegistry.getContext().getCacheDir(), "outbox-tests");
+        File[] files = mDirectory.listFiles();
+        if (files != null){
+            for (File file:files){
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+
+        //Requests go to a port nobody listens on until the server is started again
+        StubServer server = new StubServer();
+        mPort = server.getPort();
+        server.stop();
+        mServer = null;
+
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+        mOutbox = new RequestOutbox(mDirectory);
+        HttpRequest.setOutbox(mOutbox);
+    }
+
+    @After
+    public void tearDown(){
+        HttpRequest.setOutbox(null);
+        mOutbox.close();
+        if (mServer != null){
+            mServer.stop();
+        }
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Gets the url of a path in the server.
+     *
+     * @param path the path, starting with a slash.
+     * @return the url.
+     */
+    private String getUrl(String path){
+        return "http://127.0.0.1:" + mPort + path;
+    }
+
+    /**
+     * Makes a request and waits for its result.
+     *
+     * @param method the HTTP method.
+     * @param path the path of the url.
+     */
+    private void send(HttpRequest.Method method, String path){
+        mSignal = new CountDownLatch(1);
+        mError = null;
+        HttpRequest.RequestCallback callback = new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        };
+        if (method == HttpRequest.Method.GET){
+            HttpRequest.get(callback, getUrl(path));
+        }
+        else{
+            HttpRequest.post(callback, getUrl(path), new JSONObject());
+        }
+        await(mSignal);
+    }
+
+    /**
+     * Waits for a latch.
+     *
+     * @param signal the latch.
+     */
+    private void await(CountDownLatch signal){
+        try{
+            assertTrue(signal.await(10, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the outbox, which writes whatever is pending, and opens the journal again, as
+     * a new process would.
+     *
+     * @param size the number of requests expected in the journal.
+     * @return the new outbox, closed already.
+     */
+    private RequestOutbox reopen(int size){
+        mOutbox.close();
+        RequestOutbox outbox = new RequestOutbox(mDirectory);
+        //Closing waits for the journal to be loaded
+        outbox.close();
+        assertEquals(size, outbox.getSize());
+        return outbox;
+    }
+
+    /**
+     * Replays the requests in the outbox, waiting for a number of them to be done with.
+     *
+     * @param count the number of requests.
+     * @return the error of the last request.
+     */
+    private HttpRequestError replay(int count){
+        final CountDownLatch signal = new CountDownLatch(count);
+        final HttpRequestError[] error = new HttpRequestError[1];
+        mOutbox.setListener(new RequestOutbox.Listener(){
+            @Override
+            public void onReplayed(RequestOutbox.Entry entry, HttpRequestError replayError){
+                error[0] = replayError;
+                signal.countDown();
+            }
+
+            @Override
+            public void onExpired(RequestOutbox.Entry entry){
+                fail("No expiration expected");
+            }
+        });
+        mOutbox.replay();
+        await(signal);
+        return error[0];
+    }
+
+    @Test
+    public void queueTest() throws Exception{
+        send(HttpRequest.Method.POST, "/");
+        assertTrue(mError.isNetworkError());
+        assertTrue(mError.isQueued());
+        assertEquals(1, mOutbox.getSize());
+
+        RequestOutbox.Entry entry = mOutbox.getEntries().get(0);
+        assertEquals(HttpRequest.Method.POST, entry.getMethod());
+        assertEquals(getUrl("/"), entry.getUrl());
+
+        //The request survives the process
+        RequestOutbox reopened = reopen(1);
+        assertEquals(entry.getIdempotencyKey(),
+                reopened.getEntries().get(0).getIdempotencyKey());
+    }
+
+    @Test
+    public void getTest(){
+        //Only requests that change something are queued
+        send(HttpRequest.Method.GET, "/");
+        assertTrue(mError.isNetworkError());
+        assertFalse(mError.isQueued());
+        assertEquals(0, mOutbox.getSize());
+    }
+
+    @Test
+    public void retryTest() throws Exception{
+        send(HttpRequest.Method.POST, "/");
+        assertEquals(1, mOutbox.getSize());
+
+        final CountDownLatch signal = new CountDownLatch(1);
+        final HttpRequestError[] error = new HttpRequestError[1];
+        mOutbox.setListener(new RequestOutbox.Listener(){
+            @Override
+            public void onReplayed(RequestOutbox.Entry entry, HttpRequestError replayError){
+                error[0] = replayError;
+                signal.countDown();
+            }
+
+            @Override
+            public void onExpired(RequestOutbox.Entry entry){
+                fail("No expiration expected");
+            }
+        });
+
+        //A replay that doesn't get through is tried again later on its own
+        mOutbox.replay();
+        Thread.sleep(RequestOutbox.BASE_REPLAY_DELAY/4);
+        assertEquals(1, mOutbox.getSize());
+        mServer = new StubServer(mPort);
+        await(signal);
+        assertNull(error[0]);
+        assertEquals(0, mOutbox.getSize());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void replayTest() throws Exception{
+        send(HttpRequest.Method.POST, "/first");
+        send(HttpRequest.Method.POST, "/second");
+        assertEquals(2, mOutbox.getSize());
+        String key = mOutbox.getEntries().get(1).getIdempotencyKey();
+
+        mServer = new StubServer(mPort);
+        assertNull(replay(2));
+        assertEquals(0, mOutbox.getSize());
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(key, mServer.getLastHeader(RequestOutbox.IDEMPOTENCY_KEY_HEADER));
+        reopen(0);
+    }
+
+    @Test
+    public void serverErrorTest() throws Exception{
+        send(HttpRequest.Method.POST, "/status/400");
+        send(HttpRequest.Method.POST, "/status/503");
+        assertEquals(2, mOutbox.getSize());
+
+        //Requests the server turns down are dropped, the ones it can't take now stay
+        mServer = new StubServer(mPort);
+        HttpRequestError error = replay(1);
+        assertEquals(400, error.getStatusCode());
+        Thread.sleep(500);
+        assertEquals(1, mOutbox.getSize());
+        assertEquals(getUrl("/status/503"), mOutbox.getEntries().get(0).getUrl());
+    }
+
+    @Test
+    public void corruptTailTest() throws Exception{
+        send(HttpRequest.Method.POST, "/first");
+        send(HttpRequest.Method.POST, "/second");
+        reopen(2);
+
+        //A record cut short by the process dying is dropped
+        FileOutputStream journal = new FileOutputStream(new File(mDirectory, "journal"), true);
+        journal.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        journal.close();
+        reopen(2);
+        mOutbox = new RequestOutbox(mDirectory);
+        HttpRequest.setOutbox(mOutbox);
+
+        //And the journal takes new records after the ones that were intact
+        send(HttpRequest.Method.POST, "/third");
+        assertTrue(mError.isQueued());
+        reopen(3);
+    }
+
+    @Test
+    public void compactionTest() throws Exception{
+        for (int i = 0; i < 40; i++){
+            send(HttpRequest.Method.POST, "/" + i);
+        }
+        File journal = new File(mDirectory, "journal");
+        mOutbox.close();
+        long length = journal.length();
+        mOutbox = new RequestOutbox(mDirectory);
+        HttpRequest.setOutbox(mOutbox);
+
+        //Once most records are about requests that are gone, the journal is rewritten
+        mServer = new StubServer(mPort);
+        assertNull(replay(40));
+        mOutbox.close();
+        assertTrue(journal.length() < length/2);
+        reopen(0);
+    }
+}
@@ -0,0 +1,273 @@
+package es.sandwatch.httprequests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test collection for publishers, run against an in-process server.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class PublisherTests{
+    private StubServer mServer;
+    private JsonDecoder<RequestPublisher.Page<Long>> mPageDecoder;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        mPageDecoder = new JsonDecoder<RequestPublisher.Page<Long>>(){
+            @Override
+            protected RequestPublisher.Page<Long> read(JsonStreamReader reader)
+                    throws IOException{
+
+                List<Long> items = new ArrayList<>();
+                String next = null;
+                reader.beginObject();
+                while (reader.hasNext()){
+                    if (reader.nextName().equals("items")){
+                        reader.beginArray();
+                        while (reader.hasNext()){
+                            items.add(reader.nextLong());
+                        }
+                        reader.endArray();
+                    }
+                    else if (reader.peek() == JsonStreamReader.Token.NULL){
+                        reader.nextNull();
+                    }
+                    else{
+                        next = mServer.getUrl(reader.nextString());
+                    }
+                }
+                reader.endObject();
+                return new RequestPublisher.Page<>(items, next);
+            }
+        };
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Waits until the server has answered a number of requests.
+     *
+     * @param count the number of requests.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void awaitRequests(int count) throws InterruptedException{
+        for (int i = 0; i < 100 && mServer.getRequestCount() < count; i++){
+            Thread.sleep(20);
+        }
+        //Give it some time to go past the count if it is going to
+        Thread.sleep(100);
+        assertEquals(count, mServer.getRequestCount());
+    }
+
+    @Test
+    public void pagesTest() throws InterruptedException{
+        Collector collector = new Collector(1);
+        RequestPublisher.pages(mServer.getUrl("/pages/0/5"), mPageDecoder)
+                .subscribe(collector, Delivery.DIRECT);
+        assertTrue(collector.await());
+
+        assertNull(collector.mError);
+        assertEquals(50, collector.mItems.size());
+        for (int i = 0; i < 50; i++){
+            assertEquals(i, (long)collector.mItems.get(i));
+        }
+        assertEquals(5, mServer.getRequestCount());
+    }
+
+    @Test
+    public void backpressureTest() throws InterruptedException{
+        Collector collector = new Collector(0);
+        RequestPublisher.pages(mServer.getUrl("/pages/0/5"), mPageDecoder)
+                .subscribe(collector, Delivery.DIRECT);
+
+        //Nothing is fetched before it's asked for
+        Thread.sleep(100);
+        assertEquals(0, mServer.getRequestCount());
+
+        //Three items out of the first page leave most of it at hand
+        collector.mSubscription.request(3);
+        awaitRequests(1);
+        assertEquals(3, collector.mItems.size());
+
+        //Eight out of ten used up, the next page is fetched ahead of time
+        collector.mSubscription.request(5);
+        awaitRequests(2);
+        assertEquals(8, collector.mItems.size());
+
+        collector.mSubscription.cancel();
+        collector.mSubscription.request(100);
+        Thread.sleep(100);
+        assertEquals(8, collector.mItems.size());
+        assertEquals(2, mServer.getRequestCount());
+        assertFalse(collector.mComplete);
+    }
+
+    @Test
+    public void recordsTest() throws InterruptedException{
+        JsonDecoder<Long> decoder = new JsonDecoder<Long>(){
+            @Override
+            protected Long read(JsonStreamReader reader) throws IOException{
+                return reader.nextLong();
+            }
+        };
+
+        Collector collector = new Collector(Long.MAX_VALUE);
+        RequestPublisher.records(mServer.getUrl("/records/1000"), decoder)
+                .subscribe(collector, Delivery.DIRECT);
+        assertTrue(collector.await());
+        assertNull(collector.mError);
+        assertEquals(1000, collector.mItems.size());
+        assertEquals(999L, (long)collector.mItems.get(999));
+
+        //Records are only read as they are asked for
+        collector = new Collector(0);
+        RequestPublisher.records(mServer.getUrl("/records/1000"), decoder)
+                .subscribe(collector, Delivery.DIRECT);
+        collector.mSubscription.request(10);
+        for (int i = 0; i < 100 && collector.mItems.size() < 10; i++){
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        assertEquals(10, collector.mItems.size());
+        collector.mSubscription.cancel();
+        assertFalse(collector.mComplete);
+        assertNull(collector.mError);
+    }
+
+    @Test
+    public void stallTest() throws InterruptedException{
+        JsonDecoder<Long> decoder = new JsonDecoder<Long>(){
+            @Override
+            protected Long read(JsonStreamReader reader) throws IOException{
+                return reader.nextLong();
+            }
+        };
+
+        //A subscriber that stops asking for records doesn't hold the request forever
+        Collector collector = new Collector(0);
+        RequestPublisher.records(mServer.getUrl("/records/1000"), decoder, 500)
+                .subscribe(collector, Delivery.DIRECT);
+        collector.mSubscription.request(10);
+        assertTrue(collector.await());
+        assertEquals(10, collector.mItems.size());
+        assertNotNull(collector.mError);
+        assertFalse(collector.mError.isNetworkError());
+        assertFalse(collector.mComplete);
+
+        //One that keeps asking, however slowly, gets them all
+        collector = new Collector(0);
+        RequestPublisher.records(mServer.getUrl("/records/5"), decoder, 500)
+                .subscribe(collector, Delivery.DIRECT);
+        for (int i = 0; i < 6; i++){
+            Thread.sleep(300);
+            collector.mSubscription.request(1);
+        }
+        assertTrue(collector.await());
+        assertNull(collector.mError);
+        assertEquals(5, collector.mItems.size());
+    }
+
+    @Test
+    public void errorTest() throws InterruptedException{
+        Collector collector = new Collector(Long.MAX_VALUE);
+        RequestPublisher.pages(mServer.getUrl("/status/500"), mPageDecoder)
+                .subscribe(collector, Delivery.DIRECT);
+        assertTrue(collector.await());
+
+        assertNotNull(collector.mError);
+        assertTrue(collector.mError.isServerError());
+        assertTrue(collector.mItems.isEmpty());
+    }
+
+
+    /**
+     * Subscriber that collects every item.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class Collector implements RequestPublisher.Subscriber<Long>{
+        private final long mBatchSize;
+        private final CountDownLatch mSignal;
+        private final List<Long> mItems;
+
+        private RequestPublisher.Subscription mSubscription;
+        private volatile boolean mComplete;
+        private volatile HttpRequestError mError;
+
+
+        /**
+         * Constructor.
+         *
+         * @param batchSize the number of items requested up front and after each item, or
+         *                  0 to leave it to the test.
+         */
+        private Collector(long batchSize){
+            mBatchSize = batchSize;
+            mSignal = new CountDownLatch(1);
+            mItems = Collections.synchronizedList(new ArrayList<Long>());
+        }
+
+        /**
+         * Waits for the subscription to complete or fail.
+         *
+         * @return true if it did, false if it timed out.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private boolean await() throws InterruptedException{
+            return mSignal.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onSubscribe(RequestPublisher.Subscription subscription){
+            mSubscription = subscription;
+            if (mBatchSize != 0){
+                subscription.request(mBatchSize);
+            }
+        }
+
+        @Override
+        public void onNext(Long item){
+            mItems.add(item);
+            if (mBatchSize == 1){
+                mSubscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(HttpRequestError error){
+            mError = error;
+            mSignal.countDown();
+        }
+
+        @Override
+        public void onComplete(){
+            mComplete = true;
+            mSignal.countDown();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
+import android.os.SystemClock;
 import android.support.test.InstrumentationRegistry;
 
 import org.json.JSONException;
@@ -11,11 +12,18 @@ import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -110,6 +118,81 @@ public class RequestTests{
         HttpRequest.removeUrlParameter("text");
     }
 
+    @Test()
+    public void getParametersTest(){
+        final CountDownLatch signal = new CountDownLatch(1);
+        final String text = new BigInteger(128, new Random()).toString(32);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("text", text);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept", "text/plain");
+
+        //The parameter of the request takes precedence over the global one
+        HttpRequest.addUrlParameter("text", "global");
+        HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                assertEquals("GET /api/ Key 'text' with value '" + text + "'", result);
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail("request shouldn't have failed");
+            }
+        }, "http://http-requests.sandwatch.es/api/", headers, parameters);
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+
+        assertTrue(HttpRequest.removeUrlParameter("text"));
+        assertFalse(HttpRequest.removeUrlParameter("text"));
+    }
+
+    @Test()
+    public void streamTest(){
+        final CountDownLatch signal = new CountDownLatch(1);
+        final String text = new BigInteger(128, new Random()).toString(32);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpRequest.addUrlParameter("text", text);
+        HttpRequest.stream(new HttpRequest.StreamCallback(){
+            @Override
+            public void onResponseStream(int requestCode, InputStream stream) throws IOException{
+                byte[] buffer = new byte[64];
+                int read;
+                while ((read = stream.read(buffer)) != -1){
+                    output.write(buffer, 0, read);
+                }
+            }
+
+            @Override
+            public void onStreamComplete(int requestCode){
+                assertEquals("GET /api/ Key 'text' with value '" + text + "'", output.toString());
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail("request shouldn't have failed");
+            }
+        }, "http://http-requests.sandwatch.es/api/");
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+
+        HttpRequest.removeUrlParameter("text");
+    }
+
     @Test()
     public void postTest(){
         final CountDownLatch signal = new CountDownLatch(1);
@@ -144,6 +227,34 @@ public class RequestTests{
         }
     }
 
+    @Test()
+    public void postBytesTest(){
+        final CountDownLatch signal = new CountDownLatch(1);
+        final String text = new BigInteger(128, new Random()).toString(32);
+        byte[] postBody = ("{\"text\":\"" + text + "\"}").getBytes();
+
+        HttpRequest.post(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                assertEquals("POST /api/ text = " + text, result);
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail(error.getMessage());
+            }
+        }, "http://http-requests.sandwatch.es/api/", postBody);
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
     @Test
     public void putTest(){
         final CountDownLatch signal = new CountDownLatch(1);
@@ -222,4 +333,141 @@ public class RequestTests{
             ix.printStackTrace();
         }
     }
+
+    @Test
+    public void priorityTest(){
+        final CountDownLatch signal = new CountDownLatch(1);
+
+        HttpRequest.get(new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                signal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                fail("request shouldn't have failed");
+            }
+        }, "http://http-requests.sandwatch.es/api/", HttpRequest.Priority.HIGH);
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    @Test
+    public void expiredDeadlineTest(){
+        final CountDownLatch signal = new CountDownLatch(1);
+
+        HttpRequest.request(HttpRequest.Method.GET, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                fail("Request shouldn't have completed");
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                //The request never reached the network
+                assertFalse(error.isServerError());
+                assertFalse(error.isNetworkError());
+                signal.countDown();
+            }
+        }, "http://http-requests.sandwatch.es/api/", null, 10*1000, HttpRequest.Priority.NORMAL,
+                SystemClock.elapsedRealtime() - 1);
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    @Test
+    public void queuedDeadlineTest() throws IOException{
+        //The request waits behind a slow one, and fails when its deadline passes, without
+        //  waiting for the queue to move
+        StubServer server = new StubServer();
+        final CountDownLatch signal = new CountDownLatch(1);
+        HttpRequest.setRequestLimits(Dispatcher.DEFAULT_MAX_REQUESTS, 1);
+        try{
+            int slowRequestCode = HttpRequest.request(HttpRequest.Method.GET, null,
+                    server.getUrl("/delay/3000"), null, 10*1000, HttpRequest.Priority.NORMAL,
+                    HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY);
+            HttpRequest.request(HttpRequest.Method.GET, new HttpRequest.RequestCallback(){
+                @Override
+                public void onRequestComplete(int requestCode, String result){
+                    fail("Request shouldn't have completed");
+                }
+
+                @Override
+                public void onRequestFailed(int requestCode, HttpRequestError error){
+                    assertFalse(error.isServerError());
+                    assertFalse(error.isNetworkError());
+                    signal.countDown();
+                }
+            }, server.getUrl("/"), null, 10*1000, HttpRequest.Priority.NORMAL,
+                    SystemClock.elapsedRealtime() + 200, HttpRequest.CachePolicy.NETWORK_ONLY);
+
+            assertTrue(signal.await(1000, TimeUnit.MILLISECONDS));
+            HttpRequest.cancel(slowRequestCode);
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+        finally{
+            HttpRequest.setRequestLimits(Dispatcher.DEFAULT_MAX_REQUESTS,
+                    Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void coalescedGetTest(){
+        final int requests = 3;
+        final CountDownLatch signal = new CountDownLatch(requests - 1);
+        final String text = new BigInteger(128, new Random()).toString(32);
+        final int[] requestCodes = new int[requests];
+        final String[] results = new String[requests];
+
+        for (int i = 0; i < requests; i++){
+            final int index = i;
+            requestCodes[i] = HttpRequest.get(new HttpRequest.RequestCallback(){
+                @Override
+                public void onRequestComplete(int requestCode, String result){
+                    assertEquals(requestCodes[index], requestCode);
+                    results[index] = result;
+                    signal.countDown();
+                }
+
+                @Override
+                public void onRequestFailed(int requestCode, HttpRequestError error){
+                    fail("request shouldn't have failed");
+                }
+            }, "http://http-requests.sandwatch.es/api/?text=" + text);
+        }
+
+        //The first request made the call the others attached to, cancelling it must not
+        //  affect the others
+        assertTrue(HttpRequest.cancel(requestCodes[0]));
+
+        try{
+            signal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+
+        assertEquals(null, results[0]);
+        for (int i = 1; i < requests; i++){
+            assertEquals("GET /api/ Key 'text' with value '" + text + "'", results[i]);
+        }
+    }
 }
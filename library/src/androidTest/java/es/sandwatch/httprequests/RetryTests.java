@@ -0,0 +1,179 @@
+package es.sandwatch.httprequests;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Test collection for retry policies and the retry budget.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class RetryTests{
+    private static final RetryPolicy POLICY = new RetryPolicy(3, 10, 1000, 1.5f, false);
+
+
+    private StubServer mServer;
+    private CountDownLatch mSignal;
+    private String mResult;
+    private HttpRequestError mError;
+
+
+    @Before
+    public void setUp() throws IOException{
+        mServer = new StubServer();
+        HttpRequest.setRetryBudget(new RetryBudget());
+        EngineFixture.reinitialise(new UrlConnectionEngine());
+    }
+
+    @After
+    public void tearDown(){
+        mServer.stop();
+        HttpRequest.setRetryBudget(new RetryBudget());
+        EngineFixture.reinitialise(new VolleyEngine());
+    }
+
+    /**
+     * Sends a request that bypasses the cache and waits for its result.
+     *
+     * @param method the HTTP method of the request.
+     * @param path the path of the url.
+     * @param retryPolicy the retry policy of the request.
+     */
+    private void send(HttpRequest.Method method, String path, RetryPolicy retryPolicy){
+        mSignal = new CountDownLatch(1);
+        mResult = null;
+        mError = null;
+        JSONObject body = method == HttpRequest.Method.POST ? new JSONObject() : null;
+        HttpRequest.request(method, new HttpRequest.RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                mResult = result;
+                mSignal.countDown();
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                mError = error;
+                mSignal.countDown();
+            }
+        }, mServer.getUrl(path), body, 10*1000, HttpRequest.Priority.NORMAL,
+                HttpRequest.NO_DEADLINE, HttpRequest.CachePolicy.NETWORK_ONLY, null, null,
+                Delivery.DIRECT, retryPolicy);
+
+        try{
+            mSignal.await();
+        }
+        catch (InterruptedException ix){
+            fail("No interrupt expected");
+            ix.printStackTrace();
+        }
+    }
+
+    @Test
+    public void retryTest(){
+        send(HttpRequest.Method.GET, "/flaky/get/2", POLICY);
+        assertNull(mError);
+        assertEquals(StubServer.RESPONSE, mResult);
+        assertEquals(3, mServer.getRequestCount());
+
+        //Out of retries
+        send(HttpRequest.Method.GET, "/flaky/exhausted/5", POLICY);
+        assertNotNull(mError);
+        assertEquals(503, mError.getStatusCode());
+        assertEquals(7, mServer.getRequestCount());
+
+        //Not worth retrying
+        send(HttpRequest.Method.GET, "/status/404", POLICY);
+        assertEquals(404, mError.getStatusCode());
+        assertEquals(8, mServer.getRequestCount());
+    }
+
+    @Test
+    public void nonIdempotentTest(){
+        //The server may have acted on a POST before failing with a 502
+        send(HttpRequest.Method.POST, "/status/502", POLICY);
+        assertEquals(502, mError.getStatusCode());
+        assertEquals(1, mServer.getRequestCount());
+
+        //But not if it turned the request down
+        send(HttpRequest.Method.POST, "/flaky/post/1", POLICY);
+        assertNull(mError);
+        assertEquals(3, mServer.getRequestCount());
+
+        //Unless the policy says so
+        send(HttpRequest.Method.POST, "/status/502", new RetryPolicy(1, 10, 1000, 1.5f, true));
+        assertEquals(502, mError.getStatusCode());
+        assertEquals(5, mServer.getRequestCount());
+    }
+
+    @Test
+    public void retryAfterTest(){
+        long start = System.currentTimeMillis();
+        send(HttpRequest.Method.GET, "/flaky/soon/1/1", POLICY);
+        assertNull(mError);
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(2, mServer.getRequestCount());
+
+        //Asking for more than the maximum delay isn't honoured, the error is delivered
+        send(HttpRequest.Method.GET, "/flaky/later/1/60", POLICY);
+        assertEquals(503, mError.getStatusCode());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void budgetTest(){
+        HttpRequest.setRetryBudget(new RetryBudget(0, 1));
+        send(HttpRequest.Method.GET, "/flaky/budget/5", POLICY);
+        assertEquals(503, mError.getStatusCode());
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, HttpRequest.getRetryBudget().getAvailableRetries());
+
+        //Ten requests earn one retry
+        RetryBudget budget = new RetryBudget(0.1f, 1);
+        assertTrue(budget.withdraw());
+        assertFalse(budget.withdraw());
+        for (int i = 0; i < 10; i++){
+            budget.deposit();
+        }
+        assertEquals(1, budget.getAvailableRetries());
+        assertTrue(budget.withdraw());
+    }
+
+    @Test
+    public void policyTest(){
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000, 1.5f, false);
+        long previous = 0;
+        for (int i = 0; i < 100; i++){
+            long delay = policy.getNextDelay(previous);
+            assertTrue(delay >= 100);
+            assertTrue(delay <= Math.min(1000, Math.max(100, previous)*3));
+            previous = delay;
+        }
+
+        assertEquals(3000, RetryPolicy.parseRetryAfter("3"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+
+        assertTrue(policy.isRetryable(HttpRequest.Method.POST, -1, new ConnectException()));
+        assertFalse(policy.isRetryable(HttpRequest.Method.POST, -1, new SocketTimeoutException()));
+        assertTrue(policy.isRetryable(HttpRequest.Method.GET, -1, new SocketTimeoutException()));
+        assertFalse(policy.isRetryable(HttpRequest.Method.GET, -1, new DecodingException("")));
+        assertFalse(policy.isRetryable(HttpRequest.Method.GET, 500, null));
+    }
+}
@@ -0,0 +1,452 @@
+package es.sandwatch.httprequests;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Minimal in-process HTTP/1.1 server, to measure and test the library without depending
+ * on a remote server. Connections are kept alive. Requests to /status/<code> get that
+ * status code, requests to /delay/<milliseconds> are answered after that long, requests to
+ * /pages/<page>/<count> get a page of ten numbers out of that many pages, requests to
+ * /records/<count> get an array of that many numbers, requests to
+ * /flaky/<name>/<failures>[/<retry after>] get a 503, with a Retry-After header if there's
+ * one, the first that many times, the first request to /slow/<name>/<milliseconds> is
+ * answered after that long and the rest right away, requests with a body get it echoed
+ * back, and the rest get a short JSON document. Paths prefixed with /gzip or /deflate get
+ * the response to the rest of the path compressed that way, and bodies compressed with
+ * gzip are inflated before they are echoed.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+class StubServer{
+    static final String RESPONSE = "{\"result\":\"ok\"}";
+
+
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mRequestCount;
+    private final ConcurrentHashMap<String, AtomicInteger> mAttempts;
+    private volatile Map<String, String> mLastHeaders;
+    private volatile boolean mRunning;
+
+
+    /**
+     * Constructor. Starts listening on a free port of the loopback interface.
+     *
+     * @throws IOException if the server can't be started.
+     */
+    StubServer() throws IOException{
+        this(0);
+    }
+
+    /**
+     * Constructor. Starts listening on a particular port of the loopback interface, say,
+     * the port of a server that was stopped.
+     *
+     * @param port the port, or 0 for a free one.
+     * @throws IOException if the server can't be started.
+     */
+    StubServer(int port) throws IOException{
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 50);
+        mRequestCount = new AtomicInteger();
+        mAttempts = new ConcurrentHashMap<>();
+        mLastHeaders = new HashMap<>();
+        mRunning = true;
+        Thread acceptor = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                accept();
+            }
+        }, "StubServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Gets the url of a path in this server.
+     *
+     * @param path the path, starting with a slash.
+     * @return the url.
+     */
+    String getUrl(String path){
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Gets the number of requests this server has answered.
+     *
+     * @return the number of requests.
+     */
+    int getRequestCount(){
+        return mRequestCount.get();
+    }
+
+    /**
+     * Gets a header of the last request this server got.
+     *
+     * @param name the name of the header.
+     * @return the value of the header, or null if it wasn't there.
+     */
+    String getLastHeader(String name){
+        return mLastHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Gets the port this server listens on.
+     *
+     * @return the port.
+     */
+    int getPort(){
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stops the server.
+     */
+    void stop(){
+        mRunning = false;
+        try{
+            mServerSocket.close();
+        }
+        catch (IOException iox){
+            iox.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts connections until the server is stopped.
+     */
+    private void accept(){
+        while (mRunning){
+            try{
+                final Socket socket = mServerSocket.accept();
+                Thread worker = new Thread(new Runnable(){
+                    @Override
+                    public void run(){
+                        serve(socket);
+                    }
+                }, "StubServer-Connection");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            catch (IOException iox){
+                //The socket was closed
+            }
+        }
+    }
+
+    /**
+     * Answers the requests sent through a connection.
+     *
+     * @param socket the connection.
+     */
+    private void serve(Socket socket){
+        try{
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive){
+                String requestLine = readLine(input);
+                if (requestLine == null || requestLine.length() == 0){
+                    break;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(input)) != null && line.length() != 0){
+                    int colon = line.indexOf(':');
+                    if (colon > 0){
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                byte[] body = readBody(input, headers);
+                if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))){
+                    body = gunzip(body);
+                }
+                mLastHeaders = headers;
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                respond(output, requestLine, body, keepAlive);
+                mRequestCount.incrementAndGet();
+            }
+        }
+        catch (IOException iox){
+            //The client went away
+        }
+        finally{
+            try{
+                socket.close();
+            }
+            catch (IOException iox){
+                iox.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the response to a request.
+     *
+     * @param output the stream of the connection.
+     * @param requestLine the request line of the request.
+     * @param body the body of the request.
+     * @param keepAlive whether the connection will be kept alive.
+     * @throws IOException if the response can't be written.
+     */
+    private void respond(OutputStream output, String requestLine, byte[] body, boolean keepAlive)
+            throws IOException{
+
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "/";
+        int query = path.indexOf('?');
+        if (query != -1){
+            path = path.substring(0, query);
+        }
+        String coding = null;
+        if (path.startsWith("/gzip/") || path.startsWith("/deflate/")){
+            coding = path.substring(1, path.indexOf('/', 1));
+            path = path.substring(coding.length() + 1);
+        }
+
+        int status = 200;
+        String retryAfter = null;
+        if (path.startsWith("/status/")){
+            status = Integer.parseInt(path.substring("/status/".length()));
+        }
+        else if (path.startsWith("/flaky/")){
+            String[] flaky = path.substring("/flaky/".length()).split("/");
+            if (countAttempt(flaky[0]) <= Integer.parseInt(flaky[1])){
+                status = 503;
+                retryAfter = flaky.length > 2 ? flaky[2] : null;
+            }
+        }
+        else if (path.startsWith("/slow/")){
+            String[] slow = path.substring("/slow/".length()).split("/");
+            if (countAttempt(slow[0]) == 1){
+                sleep(Long.parseLong(slow[1]));
+            }
+        }
+        else if (path.startsWith("/delay/")){
+            sleep(Long.parseLong(path.substring("/delay/".length())));
+        }
+        byte[] content = body.length != 0 ? body : RESPONSE.getBytes("UTF-8");
+        if (path.startsWith("/pages/")){
+            String[] page = path.substring("/pages/".length()).split("/");
+            content = page(Integer.parseInt(page[0]), Integer.parseInt(page[1]));
+        }
+        else if (path.startsWith("/records/")){
+            content = records(Integer.parseInt(path.substring("/records/".length())));
+        }
+        if (coding != null){
+            content = compress(content, coding);
+        }
+        boolean hasContent = status != 204 && status != 304;
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(" Stub\r\n");
+        head.append("Content-Type: application/json\r\n");
+        if (coding != null){
+            head.append("Content-Encoding: ").append(coding).append("\r\n");
+        }
+        if (retryAfter != null){
+            head.append("Retry-After: ").append(retryAfter).append("\r\n");
+        }
+        head.append("Content-Length: ").append(hasContent ? content.length : 0).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        head.append("\r\n");
+        output.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasContent){
+            output.write(content);
+        }
+        output.flush();
+    }
+
+    /**
+     * Counts a request to a path whose answer depends on how many times it was requested.
+     *
+     * @param name the name the path goes by.
+     * @return the number of requests so far, this one included.
+     */
+    private int countAttempt(String name){
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger existing = mAttempts.putIfAbsent(name, attempts);
+        attempts = existing != null ? existing : attempts;
+        return attempts.incrementAndGet();
+    }
+
+    /**
+     * Holds the response back for a while.
+     *
+     * @param millis the time to wait, in milliseconds.
+     */
+    private static void sleep(long millis){
+        try{
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ix){
+            //Answer right away
+        }
+    }
+
+    /**
+     * Compresses a response.
+     *
+     * @param content the response.
+     * @param coding the content coding, gzip or deflate.
+     * @return the compressed response.
+     * @throws IOException if the response can't be compressed.
+     */
+    private static byte[] compress(byte[] content, String coding) throws IOException{
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream stream = coding.equals("gzip") ? new GZIPOutputStream(compressed)
+                : new DeflaterOutputStream(compressed);
+        stream.write(content);
+        stream.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Inflates a body compressed with gzip.
+     *
+     * @param body the compressed body.
+     * @return the body.
+     * @throws IOException if the body can't be inflated.
+     */
+    private static byte[] gunzip(byte[] body) throws IOException{
+        InputStream stream = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1){
+            inflated.write(buffer, 0, read);
+        }
+        return inflated.toByteArray();
+    }
+
+    /**
+     * Creates a page of ten consecutive numbers, with the path of the next page.
+     *
+     * @param page the index of the page.
+     * @param count the number of pages.
+     * @return the page, as a JSON document.
+     * @throws IOException if the page can't be encoded.
+     */
+    private static byte[] page(int page, int count) throws IOException{
+        StringBuilder content = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 10; i++){
+            content.append(i == 0 ? "" : ",").append(page*10 + i);
+        }
+        content.append("],\"next\":");
+        if (page + 1 < count){
+            content.append("\"/pages/").append(page + 1).append('/').append(count).append('"');
+        }
+        else{
+            content.append("null");
+        }
+        return content.append('}').toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Creates an array of consecutive numbers.
+     *
+     * @param count the number of numbers.
+     * @return the array, as a JSON document.
+     * @throws IOException if the array can't be encoded.
+     */
+    private static byte[] records(int count) throws IOException{
+        StringBuilder content = new StringBuilder("[");
+        for (int i = 0; i < count; i++){
+            content.append(i == 0 ? "" : ",").append(i);
+        }
+        return content.append(']').toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Reads the body of a request, either delimited by its length or chunked.
+     *
+     * @param input the stream of the connection.
+     * @param headers the headers of the request, with lower case names.
+     * @return the body, which is empty if the request has none.
+     * @throws IOException if the body can't be read.
+     */
+    private static byte[] readBody(InputStream input, Map<String, String> headers)
+            throws IOException{
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))){
+            int length;
+            while ((length = Integer.parseInt(readLine(input).trim(), 16)) > 0){
+                copy(input, body, length);
+                readLine(input);
+            }
+            readLine(input);
+        }
+        else if (headers.containsKey("content-length")){
+            copy(input, body, Integer.parseInt(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Copies an exact number of bytes.
+     *
+     * @param input the stream to read from.
+     * @param output the stream to write to.
+     * @param length the number of bytes to copy.
+     * @throws IOException if the input ends too early.
+     */
+    private static void copy(InputStream input, OutputStream output, int length)
+            throws IOException{
+
+        byte[] buffer = new byte[4096];
+        while (length > 0){
+            int read = input.read(buffer, 0, Math.min(buffer.length, length));
+            if (read == -1){
+                throw new IOException("Unexpected end of stream.");
+            }
+            output.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /**
+     * Reads a line terminated by CRLF.
+     *
+     * @param input the stream to read from.
+     * @return the line without the terminator, or null if the stream ended.
+     * @throws IOException if the line can't be read.
+     */
+    private static String readLine(InputStream input) throws IOException{
+        StringBuilder line = new StringBuilder();
+        int read;
+        while ((read = input.read()) != -1){
+            if (read == '\n'){
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r'){
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char)read);
+        }
+        return line.length() != 0 ? line.toString() : null;
+    }
+}
@@ -0,0 +1,192 @@
+package es.sandwatch.httprequests;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+
+/**
+ * The circuit breaker of a host. While closed, requests go through and failures in a row
+ * are counted. Once there are enough, the breaker opens and requests to the host fail right
+ * away with an error whose isCircuitOpen() is true. When the open duration is over, the
+ * next requests to come are let through as probes, up to the number set in the policy, and
+ * the rest keep failing. The breaker closes when the probes succeed and opens again as soon
+ * as one of them fails.
+ *
+ * Breakers are created by HttpRequest the first time a host fails and are meant to be
+ * looked at, for monitoring; see HttpRequest.getCircuitBreakers().
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class CircuitBreaker{
+    /**
+     * The states of a breaker.
+     */
+    public enum State{
+        /**
+         * Requests go through.
+         */
+        CLOSED,
+
+        /**
+         * Requests fail right away.
+         */
+        OPEN,
+
+        /**
+         * A few requests go through to find out whether the host is back.
+         */
+        HALF_OPEN
+    }
+
+
+    private final String mHost;
+    private final CircuitBreakerPolicy mPolicy;
+
+    //Guarded by this
+    private State mState;
+    private int mConsecutiveFailures;
+    private long mOpenedAt;
+    private int mProbesInFlight;
+    private int mProbeSuccesses;
+    private int mTripCount;
+
+
+    /**
+     * Constructor.
+     *
+     * @param host the host.
+     * @param policy the policy.
+     */
+    CircuitBreaker(@NonNull String host, @NonNull CircuitBreakerPolicy policy){
+        mHost = host;
+        mPolicy = policy;
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenedAt = 0;
+        mProbesInFlight = 0;
+        mProbeSuccesses = 0;
+        mTripCount = 0;
+    }
+
+    /**
+     * Getter for the host.
+     *
+     * @return the host, lower case, including the port if there is one.
+     */
+    public String getHost(){
+        return mHost;
+    }
+
+    /**
+     * Getter for the state. An open breaker reports HALF_OPEN once the open duration is
+     * over, even if no request has been let through yet.
+     *
+     * @return the state.
+     */
+    public synchronized State getState(){
+        if (mState == State.OPEN && getRemainingOpenTime() == 0){
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    /**
+     * Getter for the number of failures in a row.
+     *
+     * @return the number of failures.
+     */
+    public synchronized int getConsecutiveFailures(){
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * Getter for the number of times the breaker has opened.
+     *
+     * @return the number of times.
+     */
+    public synchronized int getTripCount(){
+        return mTripCount;
+    }
+
+    /**
+     * Gets the time left before an open breaker lets probes through.
+     *
+     * @return the time in milliseconds, 0 if the breaker isn't open.
+     */
+    public synchronized long getRemainingOpenTime(){
+        if (mState != State.OPEN){
+            return 0;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mOpenedAt;
+        return Math.max(0, mPolicy.getOpenDuration() - elapsed);
+    }
+
+    /**
+     * Decides whether a call goes through, flagging it as a probe if the breaker is half
+     * open.
+     *
+     * @param call the call.
+     * @return true if the call can be sent, false if it should fail right away.
+     */
+    synchronized boolean admit(@NonNull HttpCall call){
+        if (mState == State.CLOSED){
+            return true;
+        }
+        if (mState == State.OPEN){
+            if (getRemainingOpenTime() != 0){
+                return false;
+            }
+            mState = State.HALF_OPEN;
+            mProbeSuccesses = 0;
+        }
+        if (mProbesInFlight >= mPolicy.getProbes()){
+            return false;
+        }
+        mProbesInFlight++;
+        call.setProbe(this);
+        return true;
+    }
+
+    /**
+     * Records a call that went well.
+     *
+     * @param probe whether the call was a probe.
+     */
+    synchronized void onSuccess(boolean probe){
+        mConsecutiveFailures = 0;
+        if (probe){
+            mProbesInFlight--;
+            if (mState == State.HALF_OPEN && ++mProbeSuccesses >= mPolicy.getProbes()){
+                mState = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Records a failed call.
+     *
+     * @param probe whether the call was a probe.
+     */
+    synchronized void onFailure(boolean probe){
+        mConsecutiveFailures++;
+        if (probe){
+            mProbesInFlight--;
+        }
+        boolean tripped = mState == State.CLOSED
+                && mConsecutiveFailures >= mPolicy.getFailureThreshold();
+        if (tripped || mState == State.HALF_OPEN){
+            mState = State.OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+            mTripCount++;
+        }
+    }
+
+    /**
+     * Frees the slot of a probe that ended without telling anything about the host, like
+     * one that was cancelled.
+     */
+    synchronized void releaseProbe(){
+        mProbesInFlight--;
+    }
+}
@@ -0,0 +1,146 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.NetworkError;
+import com.android.volley.TimeoutError;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+
+/**
+ * Decides when the circuit breaker of a host trips and for how long. A breaker trips after
+ * a number of failures in a row, where failures are network errors, timeouts, responses
+ * with a 5XX status code and, optionally, responses that take too long. Client errors, like
+ * a 404, tell that the host is up and don't count. Once tripped, requests to the host fail
+ * right away for a while, and then a few probe requests are let through to find out if the
+ * host is back.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class CircuitBreakerPolicy{
+    /**
+     * The number of failures in a row that trip a breaker, by default.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The time a breaker stays open before probing the host, by default, in milliseconds.
+     */
+    public static final int DEFAULT_OPEN_DURATION = 30*1000;
+
+    /**
+     * The number of probe requests let through at a time, by default.
+     */
+    public static final int DEFAULT_PROBES = 1;
+
+    //Outcomes of a call, as far as breakers are concerned
+    static final int SUCCESS = 0;
+    static final int FAILURE = 1;
+    static final int NEUTRAL = 2;
+
+
+    private final int mFailureThreshold;
+    private final int mSlowCallThreshold;
+    private final int mOpenDuration;
+    private final int mProbes;
+
+
+    /**
+     * Constructor. Uses the default values, and doesn't count slow responses as failures.
+     */
+    public CircuitBreakerPolicy(){
+        this(DEFAULT_FAILURE_THRESHOLD, 0, DEFAULT_OPEN_DURATION, DEFAULT_PROBES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold the number of failures in a row that trip a breaker.
+     * @param slowCallThreshold the time after which a response counts as a failure, in
+     *                          milliseconds, or 0 to only count errors.
+     * @param openDuration the time a breaker stays open before probing the host, in
+     *                     milliseconds.
+     * @param probes the number of probe requests let through at a time. The breaker closes
+     *               once that many have succeeded.
+     */
+    public CircuitBreakerPolicy(int failureThreshold, int slowCallThreshold, int openDuration,
+                                int probes){
+
+        if (failureThreshold < 1 || slowCallThreshold < 0 || openDuration < 0 || probes < 1){
+            throw new IllegalArgumentException("Invalid circuit breaker policy.");
+        }
+        mFailureThreshold = failureThreshold;
+        mSlowCallThreshold = slowCallThreshold;
+        mOpenDuration = openDuration;
+        mProbes = probes;
+    }
+
+    /**
+     * Getter for the number of failures in a row that trip a breaker.
+     *
+     * @return the number of failures.
+     */
+    public int getFailureThreshold(){
+        return mFailureThreshold;
+    }
+
+    /**
+     * Getter for the time after which a response counts as a failure.
+     *
+     * @return the time in milliseconds, or 0 if slow responses don't count.
+     */
+    public int getSlowCallThreshold(){
+        return mSlowCallThreshold;
+    }
+
+    /**
+     * Getter for the time a breaker stays open before probing the host.
+     *
+     * @return the time in milliseconds.
+     */
+    public int getOpenDuration(){
+        return mOpenDuration;
+    }
+
+    /**
+     * Getter for the number of probe requests let through at a time.
+     *
+     * @return the number of probes.
+     */
+    public int getProbes(){
+        return mProbes;
+    }
+
+    /**
+     * Tells what a call says about the health of its host.
+     *
+     * @param statusCode the status code of the response, or -1 if there wasn't one.
+     * @param cause the reason of the failure if there wasn't a response, or null.
+     * @param latency the time it took to get the response or the failure, in milliseconds.
+     * @return SUCCESS, FAILURE or NEUTRAL if it says nothing, like a deadline that passed.
+     */
+    int classify(int statusCode, @Nullable Throwable cause, long latency){
+        if (cause != null){
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutError
+                    || cause instanceof NetworkError){
+                return FAILURE;
+            }
+            if (cause instanceof IOException && !(cause instanceof DecodingException)
+                    && !(cause instanceof InterruptedIOException)){
+                return FAILURE;
+            }
+            return NEUTRAL;
+        }
+        if (statusCode >= 500){
+            return FAILURE;
+        }
+        if (mSlowCallThreshold != 0 && latency > mSlowCallThreshold){
+            return FAILURE;
+        }
+        return SUCCESS;
+    }
+}
@@ -0,0 +1,98 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Stream that counts the bytes read through it, and remembers whether reading the stream
+ * underneath ever failed.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class CountingInputStream extends FilterInputStream{
+    private long mCount;
+    private boolean mFailed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param stream the stream to count the bytes of.
+     */
+    CountingInputStream(@NonNull InputStream stream){
+        super(stream);
+        mCount = 0;
+        mFailed = false;
+    }
+
+    @Override
+    public int read() throws IOException{
+        try{
+            int read = super.read();
+            if (read != -1){
+                mCount++;
+            }
+            return read;
+        }
+        catch (IOException iox){
+            mFailed = true;
+            throw iox;
+        }
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException{
+        try{
+            int read = super.read(buffer, offset, length);
+            if (read > 0){
+                mCount += read;
+            }
+            return read;
+        }
+        catch (IOException iox){
+            mFailed = true;
+            throw iox;
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException{
+        try{
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+        catch (IOException iox){
+            mFailed = true;
+            throw iox;
+        }
+    }
+
+    @Override
+    public boolean markSupported(){
+        return false;
+    }
+
+    /**
+     * Getter for the number of bytes read so far.
+     *
+     * @return the number of bytes.
+     */
+    long getCount(){
+        return mCount;
+    }
+
+    /**
+     * Tells whether reading the stream underneath failed.
+     *
+     * @return true if the stream underneath threw an IOException, false otherwise.
+     */
+    boolean isFailed(){
+        return mFailed;
+    }
+}
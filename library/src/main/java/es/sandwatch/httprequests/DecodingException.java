@@ -0,0 +1,26 @@
+package es.sandwatch.httprequests;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown by a ResponseDecoder when the body of a response can't be decoded. Unlike other
+ * IOExceptions, which make the request fail with a network error, it makes the request
+ * fail with an error that is neither a network nor a server error.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class DecodingException extends IOException{
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Constructor.
+     *
+     * @param message the reason the body couldn't be decoded.
+     */
+    public DecodingException(String message){
+        super(message);
+    }
+}
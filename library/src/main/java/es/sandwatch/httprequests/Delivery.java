@@ -0,0 +1,107 @@
+package es.sandwatch.httprequests;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+
+/**
+ * Executors that choose the thread the callbacks of requests run in. Any other Executor,
+ * like a thread pool, can be used as well.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class Delivery{
+    /**
+     * Runs the callbacks in the main thread. This is the default.
+     */
+    public static final Executor MAIN_THREAD = new LooperExecutor(Looper.getMainLooper());
+
+    /**
+     * Runs the callbacks in the looper of the thread that makes each request, or in the main
+     * thread if that thread doesn't have a looper.
+     */
+    public static final Executor CALLING_THREAD = new Executor(){
+        @Override
+        public void execute(@NonNull Runnable command){
+            //Never used as it is, replaced by the looper of the thread in resolve()
+            MAIN_THREAD.execute(command);
+        }
+    };
+
+    /**
+     * Runs the callbacks right away in the thread that got the result, usually a network
+     * thread, so they should be quick or hand the work over themselves. Results served from
+     * the memory cache are delivered before the request method returns.
+     */
+    public static final Executor DIRECT = new Executor(){
+        @Override
+        public void execute(@NonNull Runnable command){
+            command.run();
+        }
+    };
+
+
+    /**
+     * Constructor. Not meant to be instantiated.
+     */
+    private Delivery(){
+
+    }
+
+    /**
+     * Creates an executor that runs the callbacks in a particular looper.
+     *
+     * @param looper the looper.
+     * @return the executor.
+     */
+    @NonNull
+    public static Executor looper(@NonNull Looper looper){
+        return looper == Looper.getMainLooper() ? MAIN_THREAD : new LooperExecutor(looper);
+    }
+
+    /**
+     * Turns an executor into the one a request should use. Called from the thread that
+     * makes the request.
+     *
+     * @param executor the executor chosen for the request.
+     * @return the executor to deliver the result of the request with.
+     */
+    @NonNull
+    static Executor resolve(@NonNull Executor executor){
+        if (executor == CALLING_THREAD){
+            Looper looper = Looper.myLooper();
+            return looper != null ? looper(looper) : MAIN_THREAD;
+        }
+        return executor;
+    }
+
+
+    /**
+     * Executor that posts to the Handler of a looper.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static final class LooperExecutor implements Executor{
+        private final Handler mHandler;
+
+
+        /**
+         * Constructor.
+         *
+         * @param looper the looper to post to.
+         */
+        private LooperExecutor(@NonNull Looper looper){
+            mHandler = new Handler(looper);
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command){
+            mHandler.post(command);
+        }
+    }
+}
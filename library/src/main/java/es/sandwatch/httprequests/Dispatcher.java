@@ -0,0 +1,334 @@
+package es.sandwatch.httprequests;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sits between HttpRequest and the engine and decides when calls reach the engine. There is
+ * a cap on the number of calls in flight overall and another one on the number of calls in
+ * flight to each host; calls over either cap wait in a queue until a call to the same host
+ * or any call at all finishes.
+ *
+ * Queued calls are sent by priority; calls with the same priority are sent by deadline, and
+ * calls with the same deadline, or without one, in the order they arrived. Calls whose
+ * deadline passes while they wait are failed without being sent, when the deadline passes
+ * rather than when the queue next moves.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class Dispatcher{
+    static final int DEFAULT_MAX_REQUESTS = 64;
+    static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+
+
+    private final LinkedList<HttpCall> mQueuedCalls;
+    private final Set<HttpCall> mRunningCalls;
+    private final Map<String, Integer> mRunningCallsPerHost;
+
+    private volatile HttpEngine mEngine;
+    private int mMaxRequests;
+    private int mMaxRequestsPerHost;
+    private int mQueuedDeadlines;
+
+    //The timer that fails the queued call with the earliest deadline once it passes
+    private ScheduledFuture<?> mExpiryTimer;
+    private long mExpiryTimerDeadline;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxRequests the maximum number of calls in flight.
+     * @param maxRequestsPerHost the maximum number of calls in flight to a single host.
+     */
+    Dispatcher(int maxRequests, int maxRequestsPerHost){
+        mQueuedCalls = new LinkedList<>();
+        mRunningCalls = new HashSet<>();
+        mRunningCallsPerHost = new HashMap<>();
+        setLimits(maxRequests, maxRequestsPerHost);
+    }
+
+    /**
+     * Sets the engine the calls are handed over to.
+     *
+     * @param engine the engine.
+     */
+    void setEngine(@NonNull HttpEngine engine){
+        mEngine = engine;
+    }
+
+    /**
+     * Overrides the limits. If they are raised, queued calls are started right away.
+     *
+     * @param maxRequests the maximum number of calls in flight.
+     * @param maxRequestsPerHost the maximum number of calls in flight to a single host.
+     */
+    void setLimits(int maxRequests, int maxRequestsPerHost){
+        if (maxRequests < 1 || maxRequestsPerHost < 1){
+            throw new IllegalArgumentException("Request limits must be at least 1.");
+        }
+        List<HttpCall> calls;
+        synchronized (this){
+            mMaxRequests = maxRequests;
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            calls = promote();
+        }
+        execute(calls);
+    }
+
+    /**
+     * Hands a call over to the engine, or queues it if a limit has been reached. Calls
+     * that are already cancelled are dropped.
+     *
+     * @param call the call.
+     */
+    void enqueue(@NonNull HttpCall call){
+        List<HttpCall> calls;
+        synchronized (this){
+            //Calls are flagged before cancel() is called, so checking it here while holding
+            //  the lock means a call is either never queued or cancel() finds it
+            if (call.isCancelled()){
+                return;
+            }
+            insert(call);
+            calls = promote();
+        }
+        execute(calls);
+    }
+
+    /**
+     * Cancels a call. Queued calls are simply dropped, calls in flight are aborted in the
+     * engine and their slot is released.
+     *
+     * @param call the call, already flagged as cancelled.
+     */
+    void cancel(@NonNull HttpCall call){
+        synchronized (this){
+            if (mQueuedCalls.remove(call)){
+                if (call.getDeadline() != HttpRequest.NO_DEADLINE){
+                    mQueuedDeadlines--;
+                }
+                return;
+            }
+        }
+        HttpEngine engine = mEngine;
+        if (engine != null){
+            engine.cancel(call);
+        }
+        //The engine won't complete a cancelled call, so the slot is released here, unless
+        //  the call was completed in the meantime, in which case it will be released there
+        if (call.complete()){
+            finished(call);
+        }
+    }
+
+    /**
+     * Releases the slot of a call that is no longer in flight and starts queued calls.
+     * Calls that never got a slot are ignored.
+     *
+     * @param call the call.
+     */
+    void finished(@NonNull HttpCall call){
+        List<HttpCall> calls;
+        synchronized (this){
+            if (!mRunningCalls.remove(call)){
+                return;
+            }
+            String host = call.getHost();
+            int running = mRunningCallsPerHost.get(host) - 1;
+            if (running == 0){
+                mRunningCallsPerHost.remove(host);
+            }
+            else{
+                mRunningCallsPerHost.put(host, running);
+            }
+            calls = promote();
+        }
+        execute(calls);
+    }
+
+    /**
+     * Gets the number of calls in flight.
+     *
+     * @return the number of calls in flight.
+     */
+    synchronized int getRunningCallCount(){
+        return mRunningCalls.size();
+    }
+
+    /**
+     * Gets the number of calls waiting for a slot.
+     *
+     * @return the number of queued calls.
+     */
+    synchronized int getQueuedCallCount(){
+        return mQueuedCalls.size();
+    }
+
+    /**
+     * Inserts a call in the queue, behind every call that should be sent before it. Must be
+     * called holding the lock. Most calls share the priority, so the search starts at the
+     * tail.
+     *
+     * @param call the call.
+     */
+    private void insert(@NonNull HttpCall call){
+        ListIterator<HttpCall> iterator = mQueuedCalls.listIterator(mQueuedCalls.size());
+        while (iterator.hasPrevious()){
+            if (!goesBefore(call, iterator.previous())){
+                iterator.next();
+                break;
+            }
+        }
+        iterator.add(call);
+        if (call.getDeadline() != HttpRequest.NO_DEADLINE){
+            mQueuedDeadlines++;
+        }
+    }
+
+    /**
+     * Tells whether a call should be sent before another one.
+     *
+     * @param call the call.
+     * @param another the other call.
+     * @return true if call goes strictly before another, false otherwise.
+     */
+    private static boolean goesBefore(@NonNull HttpCall call, @NonNull HttpCall another){
+        int priority = call.getPriority().compareTo(another.getPriority());
+        if (priority != 0){
+            return priority > 0;
+        }
+        if (call.getDeadline() == HttpRequest.NO_DEADLINE){
+            return false;
+        }
+        return another.getDeadline() == HttpRequest.NO_DEADLINE
+                || call.getDeadline() < another.getDeadline();
+    }
+
+    /**
+     * Moves the queued calls that fit within the limits out of the queue, along with the
+     * calls whose deadline has passed, and times the earliest deadline of the calls that are
+     * left. Must be called holding the lock; the calls returned should be executed after
+     * releasing it.
+     *
+     * @return the calls to execute or fail.
+     */
+    private List<HttpCall> promote(){
+        List<HttpCall> calls = null;
+        long earliestDeadline = HttpRequest.NO_DEADLINE;
+        Iterator<HttpCall> iterator = mQueuedCalls.iterator();
+        while (iterator.hasNext()){
+            boolean full = mRunningCalls.size() >= mMaxRequests;
+            if (full && mQueuedDeadlines == 0){
+                //Nothing else can be sent and nothing can expire
+                break;
+            }
+            HttpCall call = iterator.next();
+            if (call.isExpired()){
+                //Handed over without a slot, execute() fails it
+                iterator.remove();
+                mQueuedDeadlines--;
+                if (calls == null){
+                    calls = new ArrayList<>();
+                }
+                calls.add(call);
+                continue;
+            }
+            String host = call.getHost();
+            Integer running = mRunningCallsPerHost.get(host);
+            if (running == null){
+                running = 0;
+            }
+            if (!full && running < mMaxRequestsPerHost){
+                iterator.remove();
+                if (call.getDeadline() != HttpRequest.NO_DEADLINE){
+                    mQueuedDeadlines--;
+                }
+                mRunningCalls.add(call);
+                mRunningCallsPerHost.put(host, running + 1);
+                if (calls == null){
+                    calls = new ArrayList<>();
+                }
+                calls.add(call);
+            }
+            else if (call.getDeadline() != HttpRequest.NO_DEADLINE
+                    && (earliestDeadline == HttpRequest.NO_DEADLINE
+                    || call.getDeadline() < earliestDeadline)){
+
+                earliestDeadline = call.getDeadline();
+            }
+        }
+        scheduleExpiry(earliestDeadline);
+        return calls;
+    }
+
+    /**
+     * Makes sure the queue moves when the earliest deadline of the queued calls passes, even
+     * if no call is queued or finishes in the meantime. Must be called holding the lock.
+     *
+     * @param deadline the earliest deadline, or HttpRequest.NO_DEADLINE if no queued call
+     *                 has one.
+     */
+    private void scheduleExpiry(long deadline){
+        if (mExpiryTimer != null){
+            if (deadline != HttpRequest.NO_DEADLINE && mExpiryTimerDeadline <= deadline){
+                //The timer fires in time, and times the next deadline then
+                return;
+            }
+            mExpiryTimer.cancel(false);
+            mExpiryTimer = null;
+        }
+        if (deadline == HttpRequest.NO_DEADLINE){
+            return;
+        }
+        mExpiryTimerDeadline = deadline;
+        mExpiryTimer = RequestFuture.getTimer().schedule(new Runnable(){
+            @Override
+            public void run(){
+                List<HttpCall> calls;
+                synchronized (Dispatcher.this){
+                    mExpiryTimer = null;
+                    calls = promote();
+                }
+                execute(calls);
+            }
+        }, Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands calls over to the engine. Must be called without holding the lock, engines
+     * may complete calls synchronously.
+     *
+     * @param calls the calls to execute, may be null.
+     */
+    private void execute(List<HttpCall> calls){
+        if (calls != null){
+            for (HttpCall call:calls){
+                if (call.isCancelled()){
+                    //Cancelled between being promoted and being executed
+                    if (call.complete()){
+                        finished(call);
+                    }
+                }
+                else if (!call.failIfExpired()){
+                    call.markDispatched();
+                    mEngine.execute(call);
+                }
+            }
+        }
+    }
+}
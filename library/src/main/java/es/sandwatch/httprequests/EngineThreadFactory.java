@@ -0,0 +1,44 @@
+package es.sandwatch.httprequests;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates the worker threads of the engines. Threads are daemons and run with background
+ * priority, so that they don't compete with the main thread.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class EngineThreadFactory implements ThreadFactory{
+    private final String mName;
+    private final AtomicInteger mCount;
+
+
+    /**
+     * Constructor.
+     *
+     * @param name the prefix of the names of the threads.
+     */
+    EngineThreadFactory(@NonNull String name){
+        mName = name;
+        mCount = new AtomicInteger(0);
+    }
+
+    @Override
+    public Thread newThread(@NonNull final Runnable runnable){
+        Thread thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }
+        }, mName + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,167 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Decides when a GET request is hedged. If the response takes longer than a percentile of
+ * the latencies the policy has seen, an identical request is sent, and whichever of the two
+ * answers first wins while the other is cancelled. The latency of a handful of slow
+ * responses is cut down to about the delay plus a regular response.
+ *
+ * The policy learns the latencies of the requests that use it, so requests that share one
+ * should go to the same backend and take roughly the same time. Nothing is hedged until
+ * enough responses have been seen. Hedges are extra load on the server, which is capped
+ * with a RetryBudget: every request hedged with the policy adds a fraction of a token and
+ * every hedge takes a whole one.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class HedgePolicy{
+    /**
+     * The latency percentile after which requests are hedged, by default.
+     */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /**
+     * The shortest delay before a request is hedged, by default, in milliseconds.
+     */
+    public static final int DEFAULT_MIN_DELAY = 10;
+
+    /**
+     * The fraction of extra requests hedging can make, by default.
+     */
+    public static final float DEFAULT_MAX_EXTRA_LOAD = 0.05f;
+
+    //Responses seen before hedging starts, and responses between updates of the delay
+    private static final int MIN_SAMPLES = 20;
+    private static final int UPDATE_INTERVAL = 16;
+
+
+    private final double mPercentile;
+    private final int mMinDelay;
+    private final RetryBudget mBudget;
+
+    private final LatencyHistogram mLatency;
+    private final AtomicLong mHedgeCount;
+    private volatile long mDelay;
+
+
+    /**
+     * Constructor. Hedges the slowest 5% of the requests, as long as hedges don't amount
+     * to more than 5% of the requests.
+     */
+    public HedgePolicy(){
+        this(DEFAULT_PERCENTILE, DEFAULT_MIN_DELAY,
+                new RetryBudget(DEFAULT_MAX_EXTRA_LOAD, RetryBudget.DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param percentile the latency percentile after which requests are hedged, between 0
+     *                   and 100.
+     * @param minDelay the shortest delay before a request is hedged, in milliseconds.
+     * @param budget the budget that caps the hedges.
+     */
+    public HedgePolicy(double percentile, int minDelay, @NonNull RetryBudget budget){
+        if (percentile < 0 || percentile > 100 || minDelay < 0){
+            throw new IllegalArgumentException("Invalid hedge policy.");
+        }
+        mPercentile = percentile;
+        mMinDelay = minDelay;
+        mBudget = budget;
+
+        mLatency = new LatencyHistogram();
+        mHedgeCount = new AtomicLong();
+        mDelay = -1;
+    }
+
+    /**
+     * Getter for the latency percentile after which requests are hedged.
+     *
+     * @return the percentile.
+     */
+    public double getPercentile(){
+        return mPercentile;
+    }
+
+    /**
+     * Getter for the shortest delay before a request is hedged.
+     *
+     * @return the delay, in milliseconds.
+     */
+    public int getMinDelay(){
+        return mMinDelay;
+    }
+
+    /**
+     * Getter for the budget that caps the hedges.
+     *
+     * @return the budget.
+     */
+    public RetryBudget getBudget(){
+        return mBudget;
+    }
+
+    /**
+     * Gets the delay before a request is hedged, as of the latencies seen so far.
+     *
+     * @return the delay in milliseconds, or -1 if not enough responses have been seen yet.
+     */
+    public long getDelay(){
+        return mDelay;
+    }
+
+    /**
+     * Gets the number of hedges sent.
+     *
+     * @return the number of hedges.
+     */
+    public long getHedgeCount(){
+        return mHedgeCount.get();
+    }
+
+    /**
+     * Records the latency of a response. The delay is worked out again every few responses,
+     * finding a percentile means going through the whole histogram.
+     *
+     * @param latency the time from the moment the call was sent to the response, in
+     *                milliseconds.
+     */
+    void record(long latency){
+        mLatency.record(latency);
+        long count = mLatency.getCount();
+        if (count >= MIN_SAMPLES && (count - MIN_SAMPLES)%UPDATE_INTERVAL == 0){
+            long percentile = LatencyHistogram.getPercentile(mLatency.copyCounts(), mPercentile,
+                    mLatency.getMax());
+            mDelay = Math.max(mMinDelay, percentile);
+        }
+    }
+
+    /**
+     * Adds the share of a request that may be hedged to the budget.
+     */
+    void deposit(){
+        mBudget.deposit();
+    }
+
+    /**
+     * Takes the token of a hedge from the budget, if there is one.
+     *
+     * @return true if the hedge can be sent, false otherwise.
+     */
+    boolean withdraw(){
+        return mBudget.withdraw();
+    }
+
+    /**
+     * Counts a hedge that was sent.
+     */
+    void countHedge(){
+        mHedgeCount.incrementAndGet();
+    }
+}
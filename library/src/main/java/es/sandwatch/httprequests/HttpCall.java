@@ -0,0 +1,781 @@
+package es.sandwatch.httprequests;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A single network exchange, as handed over to an HttpEngine. Holds everything the engine
+ * needs to send the request and the means to hand the result back to HttpRequest.
+ *
+ * Identical GET requests made while a call is in flight are attached to that call rather
+ * than getting calls of their own, so a call may serve several requests. The call is only
+ * cancelled when every request attached to it has been cancelled.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class HttpCall{
+    private final HttpRequest.Method mMethod;
+    private final String mUrl;
+    private Map<String, String> mHeaders;
+    private final RequestBody mBody;
+    private final String mEncoding;
+    private final int mTimeout;
+    private final RetryPolicy mRetryPolicy;
+    private final HttpRequest.Priority mPriority;
+    private final long mDeadline;
+    private final String mKey;
+    private final HedgePolicy mHedgePolicy;
+
+    private String mHost;
+    private ResponseCache.Entry mCachedEntry;
+    private int mAttempt;
+    private long mRetryDelay;
+    private CircuitBreaker mProbedBreaker;
+
+    //Hedging. A hedged call and its hedge share the number of them still running, which
+    //  drops to 0 once the pair has a result. The requests stay attached to the first call
+    private final AtomicInteger mRunning;
+    private HttpCall mHedged;
+    private volatile HttpCall mHedge;
+
+    //Guarded by this
+    private final List<HttpRequest> mRequests;
+    private boolean mClosed;
+
+    private final AtomicBoolean mCompleted;
+    private volatile boolean mCancelled;
+    private volatile Object mTag;
+
+    //Timings, in System.nanoTime() time, only recorded if there is a metrics listener. The
+    //  dispatch time is always recorded, circuit breakers need it to spot slow calls
+    private boolean mTimed;
+    private volatile long mDispatchedAt;
+    private long mConnectStartedAt;
+    private long mConnectEndedAt;
+    private long mRespondedAt;
+    private long mCompressedLength;
+
+
+    /**
+     * Constructor.
+     *
+     * @param method the HTTP method.
+     * @param url the processed url.
+     * @param headers the headers to send.
+     * @param body the body to send, or null if the method doesn't send one.
+     * @param encoding the name of the encoding used for JSON bodies.
+     * @param timeout the timeout in milliseconds.
+     * @param retryPolicy the retry policy.
+     * @param priority the priority.
+     * @param deadline the deadline, in SystemClock.elapsedRealtime() time, or
+     *                 HttpRequest.NO_DEADLINE.
+     * @param key the key identical requests share, or null if the call can't be shared.
+     * @param hedgePolicy the hedge policy, or null if the call isn't hedged.
+     */
+    HttpCall(@NonNull HttpRequest.Method method, @NonNull String url,
+             @NonNull Map<String, String> headers, @Nullable RequestBody body,
+             @NonNull String encoding, int timeout, @NonNull RetryPolicy retryPolicy,
+             @NonNull HttpRequest.Priority priority, long deadline, @Nullable String key,
+             @Nullable HedgePolicy hedgePolicy){
+
+        mMethod = method;
+        mUrl = url;
+        mHeaders = headers;
+        mBody = body;
+        mEncoding = encoding;
+        mTimeout = timeout;
+        mRetryPolicy = retryPolicy;
+        mPriority = priority;
+        mDeadline = deadline;
+        mKey = key;
+        mHedgePolicy = hedgePolicy;
+
+        mAttempt = 0;
+        mRetryDelay = 0;
+        mProbedBreaker = null;
+
+        mRunning = hedgePolicy != null ? new AtomicInteger(1) : null;
+        mHedged = null;
+        mHedge = null;
+
+        mRequests = new ArrayList<>(1);
+        mClosed = false;
+
+        mCompleted = new AtomicBoolean(false);
+        mCancelled = false;
+
+        mTimed = false;
+        mCompressedLength = -1;
+    }
+
+    /**
+     * Getter for the HTTP method.
+     *
+     * @return the HTTP method.
+     */
+    public HttpRequest.Method getMethod(){
+        return mMethod;
+    }
+
+    /**
+     * Getter for the url, with the global url parameters already appended.
+     *
+     * @return the url.
+     */
+    public String getUrl(){
+        return mUrl;
+    }
+
+    /**
+     * Getter for the headers. The map must not be modified.
+     *
+     * @return the headers.
+     */
+    public Map<String, String> getHeaders(){
+        return mHeaders;
+    }
+
+    /**
+     * Gets the host the call is sent to, including the port if the url has one. Used to
+     * apply the per host limits.
+     *
+     * @return the host, lower case.
+     */
+    String getHost(){
+        if (mHost == null){
+            mHost = extractHost(mUrl);
+        }
+        return mHost;
+    }
+
+    /**
+     * Tells whether the call sends a body.
+     *
+     * @return true if there is a body, false otherwise.
+     */
+    public boolean hasBody(){
+        return mBody != null;
+    }
+
+    /**
+     * Gets the content type of the body.
+     *
+     * @return the content type of the body, or null if there isn't a body.
+     */
+    public String getBodyContentType(){
+        return mBody != null ? mBody.getContentType(mEncoding) : null;
+    }
+
+    /**
+     * Gets the length of the body if it is known without encoding it.
+     *
+     * @return the length of the body, or -1 if there is no body or the length is unknown.
+     */
+    public long getBodyLength(){
+        return mBody != null ? mBody.getLength() : -1;
+    }
+
+    /**
+     * Gets the length of the body before it is compressed, if it is known without encoding
+     * it. Bodies that aren't compressed have the same length either way.
+     *
+     * @return the length of the body, or -1 if there is no body or the length is unknown.
+     */
+    long getUncompressedBodyLength(){
+        return mBody != null ? mBody.getUncompressedLength() : -1;
+    }
+
+    /**
+     * Gets the encoded body. The body is encoded the first time and reused afterwards.
+     *
+     * @return the encoded body, or null if there isn't one.
+     * @throws IOException if the body can't be encoded.
+     */
+    public byte[] getBody() throws IOException{
+        return mBody != null ? mBody.getBytes(mEncoding) : null;
+    }
+
+    /**
+     * Writes the body to a stream without buffering it if possible.
+     *
+     * @param stream the stream to write the body to.
+     * @throws IOException if the body can't be encoded or written.
+     */
+    public void writeBody(@NonNull OutputStream stream) throws IOException{
+        if (mBody != null){
+            mBody.writeTo(stream, mEncoding);
+        }
+    }
+
+    /**
+     * Getter for the timeout.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout(){
+        return mTimeout;
+    }
+
+    /**
+     * Getter for the priority. Engines that queue calls should pick them by priority.
+     *
+     * @return the priority.
+     */
+    public HttpRequest.Priority getPriority(){
+        return mPriority;
+    }
+
+    /**
+     * Getter for the deadline.
+     *
+     * @return the deadline, in SystemClock.elapsedRealtime() time, or HttpRequest.NO_DEADLINE.
+     */
+    public long getDeadline(){
+        return mDeadline;
+    }
+
+    /**
+     * Tells whether the deadline of the call has passed.
+     *
+     * @return true if the call has a deadline and it has passed, false otherwise.
+     */
+    public boolean isExpired(){
+        return mDeadline != HttpRequest.NO_DEADLINE && SystemClock.elapsedRealtime() >= mDeadline;
+    }
+
+    /**
+     * Fails the call if its deadline has passed. Engines should call this right before
+     * sending the request and drop the call if it returns true.
+     *
+     * @return true if the call was failed, false if it can go ahead.
+     */
+    public boolean failIfExpired(){
+        if (isExpired()){
+            deliverFailure(new TimeoutException("The deadline passed before the request was sent."));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether the call has been cancelled.
+     *
+     * @return true if the call has been cancelled, false otherwise.
+     */
+    public boolean isCancelled(){
+        return mCancelled;
+    }
+
+    /**
+     * Gets the object the engine attached to this call.
+     *
+     * @return the tag.
+     */
+    public Object getTag(){
+        return mTag;
+    }
+
+    /**
+     * Attaches an object to this call, for the engine to keep track of it.
+     *
+     * @param tag the tag.
+     */
+    public void setTag(Object tag){
+        mTag = tag;
+    }
+
+    /**
+     * Reports that the engine is about to resolve the host and open a connection. Engines
+     * that take connections from a pool report the time it takes to get one.
+     */
+    public void reportConnectStart(){
+        if (mTimed){
+            mConnectStartedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Reports that the connection is open.
+     */
+    public void reportConnectEnd(){
+        if (mTimed){
+            mConnectEndedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Hands a response over to HttpRequest. The body is read before this method returns,
+     * so the engine can release the stream afterwards. Errors reading the body fail the
+     * request.
+     *
+     * @param statusCode the HTTP status code.
+     * @param headers the response headers.
+     * @param body the body of the response.
+     */
+    public void deliverResponse(int statusCode, @NonNull Map<String, String> headers,
+                                @NonNull InputStream body){
+
+        if (complete()){
+            markResponded();
+            HttpRequest.onCallResponse(this, statusCode, headers, body, null);
+        }
+    }
+
+    /**
+     * Hands an already buffered response over to HttpRequest.
+     *
+     * @param statusCode the HTTP status code.
+     * @param headers the response headers.
+     * @param body the body of the response.
+     */
+    public void deliverResponse(int statusCode, @NonNull Map<String, String> headers,
+                                @NonNull byte[] body){
+
+        if (complete()){
+            markResponded();
+            HttpRequest.onCallResponse(this, statusCode, headers, null, body);
+        }
+    }
+
+    /**
+     * Reports that the call failed before a response was received.
+     *
+     * @param cause the reason of the failure.
+     */
+    public void deliverFailure(@NonNull Throwable cause){
+        if (complete()){
+            markResponded();
+            HttpRequest.onCallFailure(this, cause);
+        }
+    }
+
+    /**
+     * Starts recording the timings of this call. Must be called before the call is handed
+     * over to the dispatcher.
+     */
+    void setTimed(){
+        mTimed = true;
+    }
+
+    /**
+     * Tells whether the timings of this call are being recorded.
+     *
+     * @return true if the timings are being recorded, false otherwise.
+     */
+    boolean isTimed(){
+        return mTimed;
+    }
+
+    /**
+     * Records the moment the call is handed over to the engine.
+     */
+    void markDispatched(){
+        mDispatchedAt = System.nanoTime();
+    }
+
+    /**
+     * Records the moment the engine hands over the response or the failure.
+     */
+    private void markResponded(){
+        if (mTimed){
+            mRespondedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Getter for the moment the call was handed over to the engine.
+     *
+     * @return the moment in System.nanoTime() time, or 0 if unknown.
+     */
+    long getDispatchedAt(){
+        return mDispatchedAt;
+    }
+
+    /**
+     * Getter for the moment the engine started connecting.
+     *
+     * @return the moment in System.nanoTime() time, or 0 if unknown.
+     */
+    long getConnectStartedAt(){
+        return mConnectStartedAt;
+    }
+
+    /**
+     * Getter for the moment the connection was open.
+     *
+     * @return the moment in System.nanoTime() time, or 0 if unknown.
+     */
+    long getConnectEndedAt(){
+        return mConnectEndedAt;
+    }
+
+    /**
+     * Getter for the moment the engine handed over the response or the failure.
+     *
+     * @return the moment in System.nanoTime() time, or 0 if unknown.
+     */
+    long getRespondedAt(){
+        return mRespondedAt;
+    }
+
+    /**
+     * Records the length of the body of the response as it was transferred, when it was
+     * compressed.
+     *
+     * @param length the length of the compressed body.
+     */
+    void setCompressedLength(long length){
+        mCompressedLength = length;
+    }
+
+    /**
+     * Getter for the length of the body of the response as it was transferred.
+     *
+     * @return the length of the compressed body, or -1 if the body wasn't compressed.
+     */
+    long getCompressedLength(){
+        return mCompressedLength;
+    }
+
+    /**
+     * Getter for the retry policy.
+     *
+     * @return the retry policy.
+     */
+    RetryPolicy getRetryPolicy(){
+        return mRetryPolicy;
+    }
+
+    /**
+     * Getter for the number of attempts made before this one.
+     *
+     * @return the number of attempts, 0 if this is the first one.
+     */
+    int getAttempt(){
+        return mAttempt;
+    }
+
+    /**
+     * Getter for the delay before this attempt.
+     *
+     * @return the delay in milliseconds, 0 if this is the first attempt.
+     */
+    long getRetryDelay(){
+        return mRetryDelay;
+    }
+
+    /**
+     * Flags this call as a probe, let through by a half open circuit breaker to find out
+     * whether the host is back.
+     *
+     * @param breaker the breaker that let the call through.
+     */
+    synchronized void setProbe(@NonNull CircuitBreaker breaker){
+        mProbedBreaker = breaker;
+    }
+
+    /**
+     * Takes the probe flag off this call. The breaker is told about each probe once, either
+     * when its outcome is known or when it is cancelled.
+     *
+     * @return the breaker that let the call through as a probe, or null if it wasn't one.
+     */
+    synchronized CircuitBreaker releaseProbe(){
+        CircuitBreaker breaker = mProbedBreaker;
+        mProbedBreaker = null;
+        return breaker;
+    }
+
+    /**
+     * Creates the call of the next attempt, identical to this one but for the timeout.
+     * Requests are not carried over, they need to be attached to the new call.
+     *
+     * @param timeout the timeout of the next attempt, in milliseconds.
+     * @param delay the delay before the next attempt, in milliseconds.
+     * @return the new call.
+     */
+    HttpCall retry(int timeout, long delay){
+        HttpCall call = new HttpCall(mMethod, mUrl, mHeaders, mBody, mEncoding, timeout,
+                mRetryPolicy, mPriority, mDeadline, mKey, mHedgePolicy);
+        call.mCachedEntry = mCachedEntry;
+        call.mAttempt = mAttempt + 1;
+        call.mRetryDelay = delay;
+        call.mTimed = mTimed;
+        return call;
+    }
+
+    /**
+     * Getter for the hedge policy.
+     *
+     * @return the hedge policy, or null if the call isn't hedged.
+     */
+    HedgePolicy getHedgePolicy(){
+        return mHedgePolicy;
+    }
+
+    /**
+     * Creates a hedge of this call, identical to it. The hedge isn't linked to this call
+     * until it is started.
+     *
+     * @return the hedge.
+     */
+    HttpCall createHedge(){
+        HttpCall call = new HttpCall(mMethod, mUrl, mHeaders, mBody, mEncoding, mTimeout,
+                mRetryPolicy, mPriority, mDeadline, mKey, mHedgePolicy);
+        call.mCachedEntry = mCachedEntry;
+        call.mAttempt = mAttempt;
+        call.mRetryDelay = mRetryDelay;
+        call.mTimed = mTimed;
+        return call;
+    }
+
+    /**
+     * Links a hedge to this call, so that the two race for the result.
+     *
+     * @param hedge the hedge, as created by createHedge().
+     * @return true if the hedge was linked, false if this call has a result already.
+     */
+    boolean startHedge(@NonNull HttpCall hedge){
+        if (!mRunning.compareAndSet(1, 2)){
+            return false;
+        }
+        hedge.mHedged = this;
+        mHedge = hedge;
+        return true;
+    }
+
+    /**
+     * Gets the call holding the requests, this call unless it is a hedge.
+     *
+     * @return the call the requests are attached to.
+     */
+    HttpCall getHedged(){
+        return mHedged != null ? mHedged : this;
+    }
+
+    /**
+     * Gets the call this call races against.
+     *
+     * @return the hedge of this call, the call this one hedges, or null if there is none.
+     */
+    HttpCall getRival(){
+        return mHedged != null ? mHedged : mHedge;
+    }
+
+    /**
+     * Settles the race of a hedged pair with a response.
+     *
+     * @return true if the response of this call stands, false if the rival won already.
+     */
+    boolean win(){
+        AtomicInteger running = getRunning();
+        if (running == null){
+            return true;
+        }
+        while (true){
+            int count = running.get();
+            if (count == 0){
+                return false;
+            }
+            if (running.compareAndSet(count, 0)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Settles the race of a hedged pair with a failure. While the rival is still running
+     * the failure is dropped, the rival may still get a response.
+     *
+     * @return true if the failure of this call stands, false if it is dropped.
+     */
+    boolean lose(){
+        AtomicInteger running = getRunning();
+        if (running == null){
+            return true;
+        }
+        while (true){
+            int count = running.get();
+            if (count == 0){
+                return false;
+            }
+            if (running.compareAndSet(count, count - 1)){
+                return count == 1;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of calls of the pair still running.
+     *
+     * @return the shared counter, or null if the call isn't hedged.
+     */
+    private AtomicInteger getRunning(){
+        return mHedged != null ? mHedged.mRunning : mRunning;
+    }
+
+    /**
+     * Flags this call as cancelled, unless it has a result already. Used to cancel the
+     * losing call of a hedged pair, which has no requests of its own.
+     *
+     * @return true if the call got cancelled by this invocation, false otherwise.
+     */
+    synchronized boolean cancel(){
+        if (mClosed || mCancelled){
+            return false;
+        }
+        mCancelled = true;
+        return true;
+    }
+
+    /**
+     * Getter for the key identical requests share.
+     *
+     * @return the key, or null if the call can't be shared.
+     */
+    String getKey(){
+        return mKey;
+    }
+
+    /**
+     * Turns this call into a conditional request that revalidates a cached response. Must
+     * be called before the call is handed over to the dispatcher.
+     *
+     * @param entry the cached response, which must have validators.
+     */
+    void setCachedEntry(@NonNull ResponseCache.Entry entry){
+        mCachedEntry = entry;
+        Map<String, String> headers = new HashMap<>(mHeaders);
+        String eTag = getHeader(entry.mHeaders, "ETag");
+        if (eTag != null){
+            headers.put("If-None-Match", eTag);
+        }
+        String lastModified = getHeader(entry.mHeaders, "Last-Modified");
+        if (lastModified != null){
+            headers.put("If-Modified-Since", lastModified);
+        }
+        mHeaders = Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Gets the cached response this call revalidates.
+     *
+     * @return the cached response, or null if this isn't a conditional request.
+     */
+    ResponseCache.Entry getCachedEntry(){
+        return mCachedEntry;
+    }
+
+    /**
+     * Attaches a request to this call, so that it gets the result.
+     *
+     * @param request the request.
+     * @return true if the request was attached, false if the call is cancelled or has a
+     *         result already.
+     */
+    synchronized boolean attach(@NonNull HttpRequest request){
+        if (mClosed || mCancelled){
+            return false;
+        }
+        mRequests.add(request);
+        return true;
+    }
+
+    /**
+     * Detaches a request from this call. When the last request is detached before the call
+     * has a result, the call is flagged as cancelled.
+     *
+     * @param request the request.
+     * @return true if the call got cancelled by this invocation, false otherwise.
+     */
+    synchronized boolean detach(@NonNull HttpRequest request){
+        if (!mRequests.remove(request) || !mRequests.isEmpty() || mClosed){
+            return false;
+        }
+        mCancelled = true;
+        return true;
+    }
+
+    /**
+     * Stops taking new requests. Called once the result is available.
+     *
+     * @return the requests attached to this call, which are to get the result.
+     */
+    synchronized List<HttpRequest> close(){
+        mClosed = true;
+        if (mRequests.isEmpty()){
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(mRequests);
+    }
+
+    /**
+     * Flags this call as completed. A call is completed exactly once, either by the engine
+     * or when it is cancelled.
+     *
+     * @return true if the call was completed by this invocation, false if it already was.
+     */
+    boolean complete(){
+        return mCompleted.compareAndSet(false, true);
+    }
+
+    /**
+     * Extracts the host, and the port if there is one, from a url.
+     *
+     * @param url the url.
+     * @return the host, lower case.
+     */
+    static String extractHost(@NonNull String url){
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length()){
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#'){
+                break;
+            }
+            end++;
+        }
+        //Drop the user info, if any
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start){
+            start = at + 1;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Looks up a header ignoring the case of its name.
+     *
+     * @param headers the headers.
+     * @param name the name of the header.
+     * @return the value of the header, or null if it isn't there.
+     */
+    static String getHeader(@NonNull Map<String, String> headers, @NonNull String name){
+        String value = headers.get(name);
+        if (value == null){
+            for (Map.Entry<String, String> header:headers.entrySet()){
+                if (name.equalsIgnoreCase(header.getKey())){
+                    return header.getValue();
+                }
+            }
+        }
+        return value;
+    }
+}
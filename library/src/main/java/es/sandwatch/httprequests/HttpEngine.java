@@ -0,0 +1,46 @@
+package es.sandwatch.httprequests;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+
+/**
+ * Transport engine used by HttpRequest to carry out the network exchanges. The engine is
+ * picked when the library is initialised; VolleyEngine is used by default.
+ *
+ * Engines receive HttpCall objects and must complete each of them exactly once, through
+ * either HttpCall.deliverResponse() or HttpCall.deliverFailure(). Both can be called from
+ * any thread other than the main thread; HttpRequest takes care of delivering the result
+ * to the callbacks.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public interface HttpEngine{
+    /**
+     * Starts the engine. Called once, when the library is initialised.
+     *
+     * @param context a reference to the context.
+     */
+    void start(@NonNull Context context);
+
+    /**
+     * Carries out a call. This shouldn't block, the exchange should take place elsewhere.
+     *
+     * @param call the call to carry out.
+     */
+    void execute(@NonNull HttpCall call);
+
+    /**
+     * Aborts a call. After this, the result of the call is ignored, so the engine doesn't
+     * need to complete it.
+     *
+     * @param call the call to abort.
+     */
+    void cancel(@NonNull HttpCall call);
+
+    /**
+     * Stops the engine and releases its resources.
+     */
+    void stop();
+}
@@ -1,26 +1,36 @@
 package es.sandwatch.httprequests;
 
 import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
-import com.android.volley.AuthFailureError;
-import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.HttpHeaderParser;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
 
 import org.json.JSONObject;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -32,28 +42,76 @@ import java.util.Map;
 public final class HttpRequest{
     private static final String TAG = "HttpRequest";
 
+    /**
+     * Deadline value meaning that the request has no deadline.
+     */
+    public static final long NO_DEADLINE = 0;
+
     private static final int DEFAULT_REQUEST_TIMEOUT = 10*1000;
     private static final int DEFAULT_REQUEST_RETRIES = 0;
-    private static final float DEFAULT_RETRY_BACKOFF = 1.5f;
 
     private static final String DEFAULT_ENCODING = "UTF-8";
 
+    private static final int BUFFER_SIZE = 4*1024;
+    private static final int MAX_PRESIZED_BUFFER = 1024*1024;
+
+    private static final String CACHE_DIRECTORY = "http";
+    private static final String OUTBOX_DIRECTORY = "http-outbox";
+    private static final int DEFAULT_CACHE_MEMORY_SIZE = 1024*1024;
+    private static final long DEFAULT_CACHE_DISK_SIZE = 10*1024*1024;
+    private static final int MAX_DELIVERED_VERSIONS = 64;
+
 
     //Retry policy values
     private static int sRequestTimeout = DEFAULT_REQUEST_TIMEOUT;
-    private static int sRequestRetries = DEFAULT_REQUEST_RETRIES;
-    private static float sRetryBackoff = DEFAULT_RETRY_BACKOFF;
+    private static volatile RetryPolicy sRetryPolicy = new RetryPolicy(DEFAULT_REQUEST_RETRIES);
+    private static volatile RetryBudget sRetryBudget = new RetryBudget();
 
     //Encoding
     private static String sEncoding = DEFAULT_ENCODING;
 
-    //Request headers
-    private static Map<String, String> sRequestHeaders;
-    private static Map<String, String> sRequestUrlParams;
+    //Request headers and URL parameters. These are immutable snapshots, which are replaced
+    //  as a whole when modified, so requests can read them without locking or copying.
+    //  Compressed responses are asked for unless the Accept-Encoding header is removed
+    private static final Object sSnapshotLock = new Object();
+    private static volatile Map<String, String> sRequestHeaders = Collections.singletonMap(
+            "Accept-Encoding", InflatingInputStream.ACCEPT_ENCODING);
+    private static volatile UrlBuilder sUrlBuilder = UrlBuilder.EMPTY;
 
     //requestCode -> HttpRequest
-    private static Map<Integer, HttpRequest> sRequestMap;
-    private static RequestQueue sRequestQueue;
+    private static final RequestRegistry sRequestRegistry = new RequestRegistry(
+            RequestRegistry.DEFAULT_CAPACITY);
+
+    //Response cache
+    private static volatile ResponseCache sCache;
+    private static CachePolicy sCachePolicy = CachePolicy.DEFAULT;
+
+    //Conditional callback -> (request key -> version of the last result it got), the keys
+    //  a callback got a result for the longest time ago are forgotten past a limit
+    private static final Map<ConditionalCallback, LinkedHashMap<String, String>>
+            sDeliveredVersions = new WeakHashMap<>();
+
+    //Coalescing key -> call in flight that identical requests can attach to
+    private static final ConcurrentHashMap<String, HttpCall> sSharedCalls =
+            new ConcurrentHashMap<>();
+
+    //Transport and delivery
+    private static final Dispatcher sDispatcher = new Dispatcher(Dispatcher.DEFAULT_MAX_REQUESTS,
+            Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+    private static volatile HttpEngine sEngine;
+    private static volatile Executor sDeliveryExecutor = Delivery.MAIN_THREAD;
+
+    //Circuit breakers, host -> breaker, created the first time a host fails
+    private static volatile CircuitBreakerPolicy sCircuitBreakerPolicy;
+    private static final ConcurrentHashMap<String, CircuitBreaker> sCircuitBreakers =
+            new ConcurrentHashMap<>();
+
+    //Mutating requests that fail for lack of connectivity are queued here, if there's one
+    private static volatile RequestOutbox sOutbox;
+
+    //Metrics are only recorded if there is a listener or statistics are being kept
+    private static volatile RequestMetricsListener sMetricsListener;
+    private static volatile RequestStatistics sStatistics;
 
 
     /**
@@ -66,23 +124,134 @@ public final class HttpRequest{
     }
 
     /**
-     * Overrides the existing maximum retry number.
+     * Overrides the existing maximum retry number of the default retry policy.
      *
      * @param requestRetries the new maximum number of retries.
      */
-    public static void setRequestRetries(int requestRetries){
-        sRequestRetries = requestRetries;
+    public static synchronized void setRequestRetries(int requestRetries){
+        RetryPolicy policy = sRetryPolicy;
+        sRetryPolicy = new RetryPolicy(requestRetries, policy.getBaseDelay(),
+                policy.getMaxDelay(), policy.getTimeoutBackoff(), policy.retriesNonIdempotent());
     }
 
     /**
-     * Overrides the existing backoff value. The backoff is the increase in the timeout value
-     * after a request fails. When that happens, the new request timeout is calculated as the
-     * product of the current request timeout times the backoff.
+     * Overrides the existing backoff value of the default retry policy. The backoff is the
+     * increase in the timeout value after a request times out. When that happens, the new
+     * request timeout is the current timeout plus the product of the current timeout times
+     * the backoff.
      *
      * @param retryBackoff the timeout backoff.
      */
-    public static void setRetryBackoff(float retryBackoff){
-        sRetryBackoff = retryBackoff;
+    public static synchronized void setRetryBackoff(float retryBackoff){
+        RetryPolicy policy = sRetryPolicy;
+        sRetryPolicy = new RetryPolicy(policy.getMaxRetries(), policy.getBaseDelay(),
+                policy.getMaxDelay(), retryBackoff, policy.retriesNonIdempotent());
+    }
+
+    /**
+     * Overrides the retry policy used by requests that don't specify one. By default,
+     * requests aren't retried.
+     *
+     * @param retryPolicy the new default retry policy.
+     */
+    public static synchronized void setRetryPolicy(@NonNull RetryPolicy retryPolicy){
+        sRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Overrides the budget that caps the retries of every request together.
+     *
+     * @param retryBudget the new retry budget, or null to leave retries uncapped.
+     */
+    public static void setRetryBudget(@Nullable RetryBudget retryBudget){
+        sRetryBudget = retryBudget;
+    }
+
+    /**
+     * Gets the budget that caps the retries of every request together.
+     *
+     * @return the retry budget, or null if retries are uncapped.
+     */
+    @Nullable
+    public static RetryBudget getRetryBudget(){
+        return sRetryBudget;
+    }
+
+    /**
+     * Sets the policy of the circuit breakers, which make requests to a host that keeps
+     * failing fail right away, with an error whose isCircuitOpen() is true. Breakers are
+     * off by default. Setting a policy resets every breaker.
+     *
+     * @param circuitBreakerPolicy the new policy, or null to turn the breakers off.
+     */
+    public static synchronized void setCircuitBreakerPolicy(
+            @Nullable CircuitBreakerPolicy circuitBreakerPolicy){
+
+        sCircuitBreakerPolicy = circuitBreakerPolicy;
+        sCircuitBreakers.clear();
+    }
+
+    /**
+     * Gets the circuit breaker of a host.
+     *
+     * @param host the host, including the port if the urls sent to it have one.
+     * @return the breaker, or null if the host hasn't failed since the policy was set.
+     */
+    @Nullable
+    public static CircuitBreaker getCircuitBreaker(@NonNull String host){
+        return sCircuitBreakers.get(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Gets the circuit breakers of every host that has failed since the policy was set.
+     *
+     * @return a list with the breakers.
+     */
+    @NonNull
+    public static List<CircuitBreaker> getCircuitBreakers(){
+        return new ArrayList<>(sCircuitBreakers.values());
+    }
+
+    /**
+     * Creates an outbox in the files directory of the app and makes it the outbox of the
+     * library. POST, PUT and DELETE requests that fail for lack of connectivity are queued
+     * in it and sent again once connectivity returns, in the background, even after the
+     * process is restarted, as long as this is called every time the process starts. The
+     * callbacks of queued requests get a network error whose isQueued() is true.
+     *
+     * @param context a reference to the context.
+     * @return the outbox.
+     */
+    @NonNull
+    public static synchronized RequestOutbox enableOutbox(@NonNull Context context){
+        RequestOutbox outbox = sOutbox;
+        if (outbox == null){
+            outbox = new RequestOutbox(new File(context.getFilesDir(), OUTBOX_DIRECTORY));
+            outbox.watchConnectivity(context);
+            sOutbox = outbox;
+        }
+        return outbox;
+    }
+
+    /**
+     * Sets the outbox POST, PUT and DELETE requests that fail for lack of connectivity are
+     * queued in. The outbox doesn't replay on its own unless enableOutbox() created it.
+     *
+     * @param outbox the outbox, or null to stop queueing requests.
+     */
+    public static synchronized void setOutbox(@Nullable RequestOutbox outbox){
+        sOutbox = outbox;
+    }
+
+    /**
+     * Gets the outbox POST, PUT and DELETE requests that fail for lack of connectivity are
+     * queued in.
+     *
+     * @return the outbox, or null if requests aren't queued.
+     */
+    @Nullable
+    public static RequestOutbox getOutbox(){
+        return sOutbox;
     }
 
     /**
@@ -97,13 +266,162 @@ public final class HttpRequest{
     }
 
     /**
-     * Initialises the library.
+     * Overrides the existing request limits. Requests over either limit are queued and sent
+     * as soon as requests in flight complete, in the order they were made.
+     *
+     * @param maxRequests the maximum number of requests in flight.
+     * @param maxRequestsPerHost the maximum number of requests in flight to a single host.
+     */
+    public static void setRequestLimits(int maxRequests, int maxRequestsPerHost){
+        sDispatcher.setLimits(maxRequests, maxRequestsPerHost);
+    }
+
+    /**
+     * Replaces the response cache. The library creates a cache in the app's cache
+     * directory when it is initialised, so this should be called afterwards.
+     *
+     * @param cache the new cache, or null to stop caching responses altogether.
+     */
+    public static void setCache(@Nullable ResponseCache cache){
+        sCache = cache;
+    }
+
+    /**
+     * Gets the response cache, useful to check its hit and miss counters.
+     *
+     * @return the response cache, or null if responses aren't being cached.
+     */
+    public static ResponseCache getCache(){
+        return sCache;
+    }
+
+    /**
+     * Overrides the cache policy used by requests that don't specify one.
+     *
+     * @param cachePolicy the new default cache policy.
+     */
+    public static void setCachePolicy(@NonNull CachePolicy cachePolicy){
+        sCachePolicy = cachePolicy;
+    }
+
+    /**
+     * Overrides the executor the callbacks of requests that don't specify one run in. By
+     * default they run in the main thread, see Delivery for other options.
+     *
+     * @param deliveryExecutor the new default delivery executor.
+     */
+    public static void setDeliveryExecutor(@NonNull Executor deliveryExecutor){
+        sDeliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Turns aggregate statistics on or off. They're off by default, since keeping them means
+     * recording the metrics of every request. Turning them on again starts them over.
+     *
+     * @param enabled true to keep statistics, false otherwise.
+     */
+    public static void setStatisticsEnabled(boolean enabled){
+        sStatistics = enabled ? new RequestStatistics() : null;
+    }
+
+    /**
+     * Gets the aggregate statistics of the requests delivered so far.
+     *
+     * @return the statistics, or null if they are turned off.
+     */
+    public static RequestStatistics getStatistics(){
+        return sStatistics;
+    }
+
+    /**
+     * Initialises the library using the default engine, backed by Volley.
      *
      * @param context a reference to the context.
      */
     public static void init(@NonNull Context context){
-        if (sRequestQueue == null){
-            sRequestQueue = Volley.newRequestQueue(context);
+        init(context, new VolleyEngine());
+    }
+
+    /**
+     * Initialises the library using the default engine, backed by Volley, with a
+     * particular number of network threads and request limits.
+     *
+     * @param context a reference to the context.
+     * @param threadPoolSize the number of network threads.
+     * @param maxRequests the maximum number of requests in flight.
+     * @param maxRequestsPerHost the maximum number of requests in flight to a single host.
+     */
+    public static void init(@NonNull Context context, int threadPoolSize, int maxRequests,
+                            int maxRequestsPerHost){
+
+        init(context, new VolleyEngine(threadPoolSize), maxRequests, maxRequestsPerHost);
+    }
+
+    /**
+     * Initialises the library using a particular engine. If the library is initialised
+     * already this has no effect.
+     *
+     * @param context a reference to the context.
+     * @param engine the engine to carry out the requests.
+     */
+    public static void init(@NonNull Context context, @NonNull HttpEngine engine){
+        init(context, engine, Dispatcher.DEFAULT_MAX_REQUESTS,
+                Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * Initialises the library using a particular engine and a listener that gets the
+     * metrics of every request. If the library is initialised already this has no effect.
+     *
+     * @param context a reference to the context.
+     * @param engine the engine to carry out the requests.
+     * @param metricsListener the listener to get the metrics of every request.
+     */
+    public static void init(@NonNull Context context, @NonNull HttpEngine engine,
+                            @NonNull RequestMetricsListener metricsListener){
+
+        init(context, engine, Dispatcher.DEFAULT_MAX_REQUESTS,
+                Dispatcher.DEFAULT_MAX_REQUESTS_PER_HOST, metricsListener);
+    }
+
+    /**
+     * Initialises the library using a particular engine and request limits. If the library
+     * is initialised already this has no effect.
+     *
+     * @param context a reference to the context.
+     * @param engine the engine to carry out the requests.
+     * @param maxRequests the maximum number of requests in flight.
+     * @param maxRequestsPerHost the maximum number of requests in flight to a single host.
+     */
+    public static void init(@NonNull Context context, @NonNull HttpEngine engine,
+                            int maxRequests, int maxRequestsPerHost){
+
+        init(context, engine, maxRequests, maxRequestsPerHost, null);
+    }
+
+    /**
+     * Initialises the library using a particular engine, request limits and a listener
+     * that gets the metrics of every request. If the library is initialised already this
+     * has no effect.
+     *
+     * @param context a reference to the context.
+     * @param engine the engine to carry out the requests.
+     * @param maxRequests the maximum number of requests in flight.
+     * @param maxRequestsPerHost the maximum number of requests in flight to a single host.
+     * @param metricsListener the listener to get the metrics of every request, or null.
+     */
+    public static synchronized void init(@NonNull Context context, @NonNull HttpEngine engine,
+                                         int maxRequests, int maxRequestsPerHost,
+                                         @Nullable RequestMetricsListener metricsListener){
+
+        if (sEngine == null){
+            sMetricsListener = metricsListener;
+            sDispatcher.setLimits(maxRequests, maxRequestsPerHost);
+            sCache = new ResponseCache(new File(context.getCacheDir(), CACHE_DIRECTORY),
+                    DEFAULT_CACHE_MEMORY_SIZE, DEFAULT_CACHE_DISK_SIZE);
+            engine.start(context);
+            sDispatcher.setEngine(engine);
+            sEngine = engine;
         }
     }
 
@@ -113,7 +431,7 @@ public final class HttpRequest{
      * @return true if the system is initialised, false otherwise.
      */
     private static boolean isInitialised(){
-        return sRequestQueue != null;
+        return sEngine != null;
     }
 
     /**
@@ -132,10 +450,9 @@ public final class HttpRequest{
      * @param value the value of the header.
      */
     public static void addHeader(String header, String value){
-        if (sRequestHeaders == null){
-            sRequestHeaders = new HashMap<>();
+        synchronized (sSnapshotLock){
+            sRequestHeaders = withEntry(sRequestHeaders, header, value);
         }
-        sRequestHeaders.put(header, value);
     }
 
     /**
@@ -145,7 +462,13 @@ public final class HttpRequest{
      * @return true if the header was removed, false otherwise.
      */
     public static boolean removeHeader(String header){
-        return sRequestHeaders != null && sRequestHeaders.remove(header) != null;
+        synchronized (sSnapshotLock){
+            if (!sRequestHeaders.containsKey(header)){
+                return false;
+            }
+            sRequestHeaders = withoutEntry(sRequestHeaders, header);
+            return true;
+        }
     }
 
     /**
@@ -155,10 +478,9 @@ public final class HttpRequest{
      * @param value the value of the parameter.
      */
     public static void addUrlParameter(String parameter, String value){
-        if (sRequestUrlParams == null){
-            sRequestUrlParams = new HashMap<>();
+        synchronized (sSnapshotLock){
+            sUrlBuilder = sUrlBuilder.with(parameter, value);
         }
-        sRequestUrlParams.put(parameter, value);
     }
 
     /**
@@ -168,7 +490,47 @@ public final class HttpRequest{
      * @return true if the parameter was removed, false otherwise.
      */
     public static boolean removeUrlParameter(String parameter){
-        return sRequestUrlParams != null && sRequestUrlParams.remove(parameter) != null;
+        synchronized (sSnapshotLock){
+            if (!sUrlBuilder.contains(parameter)){
+                return false;
+            }
+            sUrlBuilder = sUrlBuilder.without(parameter);
+            return true;
+        }
+    }
+
+    /**
+     * Creates a snapshot with an additional mapping.
+     *
+     * @param snapshot the current snapshot.
+     * @param key the key to add.
+     * @param value the value to add.
+     * @return the new snapshot.
+     */
+    private static Map<String, String> withEntry(@NonNull Map<String, String> snapshot,
+                                                 String key, String value){
+
+        Map<String, String> copy = new HashMap<>(snapshot);
+        copy.put(key, value);
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Creates a snapshot without a mapping.
+     *
+     * @param snapshot the current snapshot.
+     * @param key the key to remove.
+     * @return the new snapshot.
+     */
+    private static Map<String, String> withoutEntry(@NonNull Map<String, String> snapshot,
+                                                    String key){
+
+        Map<String, String> copy = new HashMap<>(snapshot);
+        copy.remove(key);
+        if (copy.isEmpty()){
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(copy);
     }
 
 
@@ -199,6 +561,71 @@ public final class HttpRequest{
         return request(Method.GET, callback, url, null, timeout);
     }
 
+    /**
+     * Makes a GET request with a particular priority using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param priority the priority of this request.
+     * @return a request code.
+     */
+    public static int get(@NonNull RequestCallback callback, @NonNull String url,
+                          @NonNull Priority priority){
+
+        return request(Method.GET, callback, url, null, sRequestTimeout, priority);
+    }
+
+    /**
+     * Makes a GET request with a particular cache policy using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param cachePolicy the cache policy of this request.
+     * @return a request code.
+     */
+    public static int get(@NonNull RequestCallback callback, @NonNull String url,
+                          @NonNull CachePolicy cachePolicy){
+
+        return request(Method.GET, callback, url, null, sRequestTimeout, Priority.NORMAL,
+                NO_DEADLINE, cachePolicy);
+    }
+
+    /**
+     * Makes a GET request with headers and URL parameters of its own using the default
+     * timeout. These are sent along with the ones set for every request, and take
+     * precedence over them.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param headers the headers of this request.
+     * @param parameters the URL parameters of this request.
+     * @return a request code.
+     */
+    public static int get(@NonNull RequestCallback callback, @NonNull String url,
+                          @Nullable Map<String, String> headers,
+                          @Nullable Map<String, String> parameters){
+
+        return request(Method.GET, callback, url, null, sRequestTimeout, headers, parameters);
+    }
+
+    /**
+     * Makes a hedged GET request using the default timeout. If the response takes longer
+     * than the hedge policy allows, an identical request is sent, the first response to
+     * arrive is delivered and the other request is cancelled.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param hedgePolicy the hedge policy of this request.
+     * @return a request code.
+     */
+    public static int get(@NonNull RequestCallback callback, @NonNull String url,
+                          @NonNull HedgePolicy hedgePolicy){
+
+        return request(Method.GET, new HttpRequest(callback, null, toRequestBody(null)), url,
+                sRequestTimeout, Priority.NORMAL, NO_DEADLINE, sCachePolicy, null, null, null,
+                null, hedgePolicy);
+    }
+
     /**
      * Makes a POST request using the default timeout.
      *
@@ -229,251 +656,2223 @@ public final class HttpRequest{
     }
 
     /**
-     * Makes a PUT request using the default timeout.
+     * Makes a POST request with a particular priority using the default timeout.
      *
      * @param callback the callback object.
      * @param url the url to send the request to.
      * @param body the body of this request.
+     * @param priority the priority of this request.
      * @return a request code.
      */
-    public static int put(@Nullable RequestCallback callback, @NonNull String url,
-                          @NonNull JSONObject body){
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull JSONObject body, @NonNull Priority priority){
 
-        return request(Method.PUT, callback, url, body, sRequestTimeout);
+        return request(Method.POST, callback, url, body, sRequestTimeout, priority);
     }
 
     /**
-     * Makes a PUT request.
+     * Makes a POST request with headers and URL parameters of its own using the default
+     * timeout. These are sent along with the ones set for every request, and take
+     * precedence over them.
      *
      * @param callback the callback object.
      * @param url the url to send the request to.
      * @param body the body of this request.
-     * @param timeout the timeout in milliseconds of this request.
+     * @param headers the headers of this request.
+     * @param parameters the URL parameters of this request.
      * @return a request code.
      */
-    public static int put(@Nullable RequestCallback callback, @NonNull String url,
-                          @NonNull JSONObject body, int timeout){
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull JSONObject body, @Nullable Map<String, String> headers,
+                          @Nullable Map<String, String> parameters){
 
-        return request(Method.PUT, callback, url, body, timeout);
+        return request(Method.POST, callback, url, body, sRequestTimeout, headers, parameters);
     }
 
     /**
-     * Makes a DELETE request using the default timeout.
+     * Makes a POST request with an already encoded JSON body using the default timeout.
      *
      * @param callback the callback object.
      * @param url the url to send the request to.
+     * @param body the encoded body of this request.
      * @return a request code.
      */
-    public static int delete(@Nullable RequestCallback callback, @NonNull String url){
-        return request(Method.DELETE, callback, url, null, sRequestTimeout);
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull byte[] body){
+
+        return post(callback, url, RequestBody.fromBytes(body, null), sRequestTimeout);
     }
 
     /**
-     * Makes a DELETE request.
+     * Makes a POST request with an already encoded JSON body using the default timeout. The
+     * remaining content of the buffer is sent.
      *
      * @param callback the callback object.
      * @param url the url to send the request to.
-     * @param timeout the timeout in milliseconds of this request.
+     * @param body the encoded body of this request.
      * @return a request code.
      */
-    public static int delete(@Nullable RequestCallback callback, @NonNull String url, int timeout){
-        return request(Method.DELETE, callback, url, null, timeout);
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull ByteBuffer body){
+
+        return post(callback, url, RequestBody.fromBuffer(body, null), sRequestTimeout);
     }
 
     /**
-     * Cancels a request if the request is still active.
+     * Makes a POST request whose JSON body is produced by a writer using the default timeout.
      *
-     * @param requestCode the request code of the request to cancel.
-     * @return true if the request was cancelled successfully, false otherwise.
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the writer of the body of this request.
+     * @return a request code.
      */
-    public static boolean cancel(int requestCode){
-        if (sRequestMap != null){
-            HttpRequest request = sRequestMap.remove(requestCode);
-            if (request != null){
-                request.mRequest.cancel();
-                return true;
-            }
-        }
-        return false;
-    }
-
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull RequestBody.Writer body){
 
-    /*--------------------------------------------------------------------------------*
-     * THE FOLLOWING METHOD, request(), IS THE CORE OF THIS CLASS. EVERY REQUEST TYPE *
-     * METHOD SHOULD WRAP IT TO CREATE THE DESIRED REQUEST.                           *
-     *--------------------------------------------------------------------------------*/
+        return post(callback, url, RequestBody.fromWriter(body, null), sRequestTimeout);
+    }
 
     /**
-     * Creates a request with the default timeout.
+     * Makes a POST request using the default timeout.
      *
-     * @param method the HTTP method of this request.
      * @param callback the callback object.
-     * @param url the url to make the request to.
-     * @param body the body of the request.
-     * @return the request code.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @return a request code.
      */
-    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
-                              @Nullable JSONObject body){
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull RequestBody body){
 
-        return request(method, callback, url, body, sRequestTimeout);
+        return post(callback, url, body, sRequestTimeout);
     }
 
     /**
-     * Creates a request.
+     * Makes a POST request.
      *
-     * @param method the HTTP method of this request.
      * @param callback the callback object.
-     * @param url the url to make the request to.
-     * @param body the body of the request.
-     * @param timeout a request timeout value.
-     * @return the request code.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param timeout the timeout in milliseconds of this request.
+     * @return a request code.
      */
-    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
-                              @Nullable JSONObject body, int timeout){
-
-        //If the class has not yet been initialised the request can't be carried out and
-        //  an Exception is thrown
-        checkInitialisation();
-
-        //Generate the request code
-        final int requestCode = RequestCodeGenerator.generate();
-
-        //Create the request object and put it in the map
-        HttpRequest request = new HttpRequest(callback, body);
-        if (sRequestMap == null){
-            sRequestMap = new HashMap<>();
-        }
-        sRequestMap.put(requestCode, request);
+    public static int post(@Nullable RequestCallback callback, @NonNull String url,
+                           @NonNull RequestBody body, int timeout){
 
-        url = processUrl(url);
+        return request(Method.POST, new HttpRequest(callback, null, body), url, timeout,
+                Priority.NORMAL, NO_DEADLINE, CachePolicy.NETWORK_ONLY, null, null, null, null,
+                null);
+    }
 
-        //Request a string response from the provided URL
-        StringRequest volleyRequest = new StringRequest(
-                //Method and url
-                method.getMethod(), url,
+    /**
+     * Makes a PUT request using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull JSONObject body){
+
+        return request(Method.PUT, callback, url, body, sRequestTimeout);
+    }
+
+    /**
+     * Makes a PUT request.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param timeout the timeout in milliseconds of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull JSONObject body, int timeout){
+
+        return request(Method.PUT, callback, url, body, timeout);
+    }
+
+    /**
+     * Makes a PUT request with a particular priority using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param priority the priority of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull JSONObject body, @NonNull Priority priority){
+
+        return request(Method.PUT, callback, url, body, sRequestTimeout, priority);
+    }
+
+    /**
+     * Makes a PUT request with headers and URL parameters of its own using the default
+     * timeout. These are sent along with the ones set for every request, and take
+     * precedence over them.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param headers the headers of this request.
+     * @param parameters the URL parameters of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                         @NonNull JSONObject body, @Nullable Map<String, String> headers,
+                         @Nullable Map<String, String> parameters){
+
+        return request(Method.PUT, callback, url, body, sRequestTimeout, headers, parameters);
+    }
+
+    /**
+     * Makes a PUT request with an already encoded JSON body using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the encoded body of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull byte[] body){
+
+        return put(callback, url, RequestBody.fromBytes(body, null), sRequestTimeout);
+    }
+
+    /**
+     * Makes a PUT request with an already encoded JSON body using the default timeout. The
+     * remaining content of the buffer is sent.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the encoded body of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull ByteBuffer body){
+
+        return put(callback, url, RequestBody.fromBuffer(body, null), sRequestTimeout);
+    }
+
+    /**
+     * Makes a PUT request whose JSON body is produced by a writer using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the writer of the body of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull RequestBody.Writer body){
+
+        return put(callback, url, RequestBody.fromWriter(body, null), sRequestTimeout);
+    }
+
+    /**
+     * Makes a PUT request using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull RequestBody body){
+
+        return put(callback, url, body, sRequestTimeout);
+    }
+
+    /**
+     * Makes a PUT request.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param timeout the timeout in milliseconds of this request.
+     * @return a request code.
+     */
+    public static int put(@Nullable RequestCallback callback, @NonNull String url,
+                          @NonNull RequestBody body, int timeout){
+
+        return request(Method.PUT, new HttpRequest(callback, null, body), url, timeout,
+                Priority.NORMAL, NO_DEADLINE, CachePolicy.NETWORK_ONLY, null, null, null, null,
+                null);
+    }
+
+    /**
+     * Makes a DELETE request using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @return a request code.
+     */
+    public static int delete(@Nullable RequestCallback callback, @NonNull String url){
+        return request(Method.DELETE, callback, url, null, sRequestTimeout);
+    }
+
+    /**
+     * Makes a DELETE request.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param timeout the timeout in milliseconds of this request.
+     * @return a request code.
+     */
+    public static int delete(@Nullable RequestCallback callback, @NonNull String url, int timeout){
+        return request(Method.DELETE, callback, url, null, timeout);
+    }
+
+    /**
+     * Makes a DELETE request with a particular priority using the default timeout.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param priority the priority of this request.
+     * @return a request code.
+     */
+    public static int delete(@Nullable RequestCallback callback, @NonNull String url,
+                             @NonNull Priority priority){
+
+        return request(Method.DELETE, callback, url, null, sRequestTimeout, priority);
+    }
+
+    /**
+     * Makes a DELETE request with headers and URL parameters of its own using the default
+     * timeout. These are sent along with the ones set for every request, and take
+     * precedence over them.
+     *
+     * @param callback the callback object.
+     * @param url the url to send the request to.
+     * @param headers the headers of this request.
+     * @param parameters the URL parameters of this request.
+     * @return a request code.
+     */
+    public static int delete(@Nullable RequestCallback callback, @NonNull String url,
+                             @Nullable Map<String, String> headers,
+                             @Nullable Map<String, String> parameters){
+
+        return request(Method.DELETE, callback, url, null, sRequestTimeout, headers, parameters);
+    }
+
+    /**
+     * Makes a typed GET request using the default timeout. The body of the response is
+     * decoded in a worker thread and the callback gets the decoded object.
+     *
+     * @param callback the typed callback object.
+     * @param url the url to send the request to.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return a request code.
+     */
+    public static <T> int get(@Nullable TypedCallback<T> callback, @NonNull String url,
+                              @NonNull ResponseDecoder<T> decoder){
+
+        return request(Method.GET, callback, url, null, sRequestTimeout, Priority.NORMAL,
+                NO_DEADLINE, sCachePolicy, null, null, decoder);
+    }
+
+    /**
+     * Makes a hedged typed GET request using the default timeout. If the response takes
+     * longer than the hedge policy allows, an identical request is sent, the first response
+     * to arrive is decoded and delivered and the other request is cancelled.
+     *
+     * @param callback the typed callback object.
+     * @param url the url to send the request to.
+     * @param decoder the decoder of the body of the response.
+     * @param hedgePolicy the hedge policy of this request.
+     * @param <T> the type of the decoded object.
+     * @return a request code.
+     */
+    public static <T> int get(@Nullable TypedCallback<T> callback, @NonNull String url,
+                              @NonNull ResponseDecoder<T> decoder,
+                              @NonNull HedgePolicy hedgePolicy){
+
+        return request(Method.GET, new HttpRequest(callback, decoder, toRequestBody(null)), url,
+                sRequestTimeout, Priority.NORMAL, NO_DEADLINE, sCachePolicy, null, null, null,
+                null, hedgePolicy);
+    }
+
+    /**
+     * Makes a typed POST request using the default timeout. The body of the response is
+     * decoded in a worker thread and the callback gets the decoded object.
+     *
+     * @param callback the typed callback object.
+     * @param url the url to send the request to.
+     * @param body the body of this request.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return a request code.
+     */
+    public static <T> int post(@Nullable TypedCallback<T> callback, @NonNull String url,
+                               @NonNull JSONObject body, @NonNull ResponseDecoder<T> decoder){
+
+        return request(Method.POST, callback, url, body, sRequestTimeout, Priority.NORMAL,
+                NO_DEADLINE, sCachePolicy, null, null, decoder);
+    }
+
+    /**
+     * Makes a streaming GET request using the default timeout.
+     *
+     * @param callback the stream callback object.
+     * @param url the url to send the request to.
+     * @return a request code.
+     */
+    public static int stream(@NonNull StreamCallback callback, @NonNull String url){
+        return stream(Method.GET, callback, url, null, sRequestTimeout);
+    }
+
+    /**
+     * Makes a streaming GET request.
+     *
+     * @param callback the stream callback object.
+     * @param url the url to send the request to.
+     * @param timeout the timeout in milliseconds of this request.
+     * @return a request code.
+     */
+    public static int stream(@NonNull StreamCallback callback, @NonNull String url, int timeout){
+        return stream(Method.GET, callback, url, null, timeout);
+    }
+
+    /**
+     * Creates a streaming request. The body of the response is not turned into a String,
+     * instead, it is handed to the callback as an InputStream from a worker thread.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the stream callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @return the request code.
+     */
+    public static int stream(Method method, @NonNull StreamCallback callback, @NonNull String url,
+                             @Nullable JSONObject body, int timeout){
+
+        return request(method, new HttpRequest(null, callback, toRequestBody(body)), url, timeout,
+                Priority.NORMAL, NO_DEADLINE, CachePolicy.NETWORK_ONLY, null, null, null, null,
+                null);
+    }
+
+    /**
+     * Makes a request whose result is handed over through a future rather than a callback,
+     * using the default timeout.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @return the future of the result.
+     */
+    @NonNull
+    public static RequestFuture<String> submit(Method method, @NonNull String url,
+                                               @Nullable JSONObject body){
+
+        return submit(method, url, body, sRequestTimeout, Priority.NORMAL, NO_DEADLINE,
+                sCachePolicy, null, null);
+    }
+
+    /**
+     * Makes a request whose result is handed over through a future rather than a callback.
+     * The future completes in the network thread, cancelling it cancels the request.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @return the future of the result.
+     */
+    @NonNull
+    public static RequestFuture<String> submit(Method method, @NonNull String url,
+                                               @Nullable JSONObject body, int timeout,
+                                               @NonNull Priority priority, long deadline,
+                                               @NonNull CachePolicy cachePolicy,
+                                               @Nullable Map<String, String> headers,
+                                               @Nullable Map<String, String> parameters){
+
+        final RequestFuture<String> future = new RequestFuture<>();
+        RequestCallback callback = new RequestCallback(){
+            @Override
+            public void onRequestComplete(int requestCode, String result){
+                future.succeed(result);
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                future.fail(error);
+            }
+        };
+        future.setRequestCode(request(method, new HttpRequest(callback, null, toRequestBody(body)),
+                url, timeout, priority, deadline, cachePolicy, headers, parameters,
+                Delivery.DIRECT, null, null));
+        return future;
+    }
+
+    /**
+     * Makes a typed request whose result is handed over through a future rather than a
+     * callback, using the default timeout.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return the future of the decoded object.
+     */
+    @NonNull
+    public static <T> RequestFuture<T> submit(Method method, @NonNull String url,
+                                              @Nullable JSONObject body,
+                                              @NonNull ResponseDecoder<T> decoder){
+
+        return submit(method, url, body, sRequestTimeout, Priority.NORMAL, NO_DEADLINE,
+                sCachePolicy, null, null, decoder);
+    }
+
+    /**
+     * Makes a typed request whose result is handed over through a future rather than a
+     * callback. The future completes in the network thread, cancelling it cancels the
+     * request.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return the future of the decoded object.
+     */
+    @NonNull
+    public static <T> RequestFuture<T> submit(Method method, @NonNull String url,
+                                              @Nullable JSONObject body, int timeout,
+                                              @NonNull Priority priority, long deadline,
+                                              @NonNull CachePolicy cachePolicy,
+                                              @Nullable Map<String, String> headers,
+                                              @Nullable Map<String, String> parameters,
+                                              @NonNull ResponseDecoder<T> decoder){
+
+        final RequestFuture<T> future = new RequestFuture<>();
+        TypedCallback<T> callback = new TypedCallback<T>(){
+            @Override
+            public void onRequestComplete(int requestCode, T result){
+                future.succeed(result);
+            }
+
+            @Override
+            public void onRequestFailed(int requestCode, HttpRequestError error){
+                future.fail(error);
+            }
+        };
+        future.setRequestCode(request(method, new HttpRequest(callback, decoder,
+                toRequestBody(body)), url, timeout, priority, deadline, cachePolicy, headers,
+                parameters, Delivery.DIRECT, null, null));
+        return future;
+    }
+
+    /**
+     * Makes a request and waits for its result, using the default timeout. Meant for
+     * worker threads, the request goes through the same queue as the rest.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @return the result.
+     * @throws RequestException if the request fails.
+     * @throws InterruptedException if the thread is interrupted while waiting, in which
+     *                              case the request is cancelled.
+     * @throws IllegalStateException if called from the main thread.
+     */
+    public static String execute(Method method, @NonNull String url, @Nullable JSONObject body)
+            throws RequestException, InterruptedException{
+
+        checkNotMainThread();
+        return await(submit(method, url, body));
+    }
+
+    /**
+     * Makes a typed request and waits for the decoded object, using the default timeout.
+     * Meant for worker threads, the request goes through the same queue as the rest.
+     *
+     * @param method the HTTP method of this request.
+     * @param url the url to make the request to.
+     * @param body the body of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return the decoded object.
+     * @throws RequestException if the request fails.
+     * @throws InterruptedException if the thread is interrupted while waiting, in which
+     *                              case the request is cancelled.
+     * @throws IllegalStateException if called from the main thread.
+     */
+    public static <T> T execute(Method method, @NonNull String url, @Nullable JSONObject body,
+                                @NonNull ResponseDecoder<T> decoder)
+            throws RequestException, InterruptedException{
+
+        checkNotMainThread();
+        return await(submit(method, url, body, decoder));
+    }
+
+    /**
+     * Throws an exception if called from the main thread, where blocking isn't allowed.
+     */
+    private static void checkNotMainThread(){
+        if (Looper.myLooper() == Looper.getMainLooper()){
+            throw new IllegalStateException("Blocking requests can't be made in the main thread.");
+        }
+    }
+
+    /**
+     * Waits for a future, cancelling it if the thread is interrupted.
+     *
+     * @param future the future.
+     * @param <T> the type of the result.
+     * @return the result.
+     * @throws RequestException if the request fails.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private static <T> T await(@NonNull RequestFuture<T> future)
+            throws RequestException, InterruptedException{
+
+        try{
+            return future.await();
+        }
+        catch (InterruptedException ix){
+            future.cancel(true);
+            throw ix;
+        }
+    }
+
+    /**
+     * Carries out a batch of requests. Up to the parallelism of the batch are in flight at
+     * a time, and the callback gets the progress of the batch and its completion through
+     * the default delivery executor.
+     *
+     * @param batch the batch.
+     * @param callback the batch callback object.
+     * @throws IllegalStateException if the batch has been started already.
+     */
+    public static void batch(@NonNull RequestBatch batch, @NonNull BatchCallback callback){
+        checkInitialisation();
+        batch.start(callback, Delivery.resolve(sDeliveryExecutor));
+    }
+
+    /**
+     * Creates a request of a batch. The callback is called right in the network thread.
+     *
+     * @param method the HTTP method of the request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param headers the headers of the request, or null.
+     * @param priority the priority of the request.
+     * @return the request code.
+     */
+    static int batchRequest(Method method, @NonNull RequestCallback callback, @NonNull String url,
+                            @Nullable JSONObject body, @Nullable Map<String, String> headers,
+                            @NonNull Priority priority){
+
+        return request(method, new HttpRequest(callback, null, toRequestBody(body)), url,
+                sRequestTimeout, priority, NO_DEADLINE, sCachePolicy, headers, null,
+                Delivery.DIRECT, null, null);
+    }
+
+    /**
+     * Creates a streaming GET request for a publisher. The callback is called right in the
+     * network thread.
+     *
+     * @param callback the stream callback object.
+     * @param url the url to make the request to.
+     * @return the request code.
+     */
+    static int publisherRequest(@NonNull StreamCallback callback, @NonNull String url){
+        return request(Method.GET, new HttpRequest(null, callback, null), url, sRequestTimeout,
+                Priority.NORMAL, NO_DEADLINE, CachePolicy.NETWORK_ONLY, null, null,
+                Delivery.DIRECT, null, null);
+    }
+
+    /**
+     * Gets the executor a subscription to a publisher delivers to when it doesn't specify
+     * one. Called from the thread that subscribes.
+     *
+     * @return the executor.
+     */
+    @NonNull
+    static Executor getSubscriptionExecutor(){
+        checkInitialisation();
+        return Delivery.resolve(sDeliveryExecutor);
+    }
+
+    /**
+     * Gets the identifier of a request in flight. Unlike request codes, which are eventually
+     * reused, identifiers are never repeated during the life of the process, which makes them
+     * suitable to correlate requests in logs.
+     *
+     * @param requestCode the request code of the request.
+     * @return the identifier of the request, or -1 if the request is no longer active.
+     */
+    public static long getRequestId(int requestCode){
+        HttpRequest request = sRequestRegistry.get(requestCode);
+        return request != null ? request.mRequestId : -1;
+    }
+
+    /**
+     * Cancels a request if the request is still active.
+     *
+     * @param requestCode the request code of the request to cancel.
+     * @return true if the request was cancelled successfully, false otherwise.
+     */
+    public static boolean cancel(int requestCode){
+        HttpRequest request = sRequestRegistry.remove(requestCode);
+        if (request != null){
+            request.cancelRequest();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancels a batch of requests if it is still active. Its requests in flight are
+     * cancelled, the rest are never sent.
+     *
+     * @param batch the batch to cancel.
+     * @return true if the batch was cancelled successfully, false otherwise.
+     */
+    public static boolean cancel(@NonNull RequestBatch batch){
+        return batch.cancel();
+    }
+
+
+    /*--------------------------------------------------------------------------------*
+     * THE FOLLOWING METHOD, request(), IS THE CORE OF THIS CLASS. EVERY REQUEST TYPE *
+     * METHOD SHOULD WRAP IT TO CREATE THE DESIRED REQUEST.                           *
+     *--------------------------------------------------------------------------------*/
+
+    /**
+     * Creates a request with the default timeout.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body){
+
+        return request(method, callback, url, body, sRequestTimeout);
+    }
+
+    /**
+     * Creates a request.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout){
+
+        return request(method, callback, url, body, timeout, Priority.NORMAL, NO_DEADLINE);
+    }
+
+    /**
+     * Creates a request with headers and URL parameters of its own. These are sent along
+     * with the ones set for every request, and take precedence over them.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param headers the headers of the request.
+     * @param parameters the URL parameters of the request.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout,
+                              @Nullable Map<String, String> headers,
+                              @Nullable Map<String, String> parameters){
+
+        return request(method, callback, url, body, timeout, Priority.NORMAL, NO_DEADLINE,
+                sCachePolicy, headers, parameters);
+    }
+
+    /**
+     * Creates a request with a particular priority. Requests waiting to be sent are sent
+     * in order of priority.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority){
+
+        return request(method, callback, url, body, timeout, priority, NO_DEADLINE);
+    }
+
+    /**
+     * Creates a request with a particular priority and deadline. Among requests with the
+     * same priority, the ones with the earliest deadline are sent first. If the deadline
+     * passes before the request is sent, the request fails without being sent.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority,
+                              long deadline){
+
+        return request(method, callback, url, body, timeout, priority, deadline, sCachePolicy);
+    }
+
+    /**
+     * Creates a request with a particular priority, deadline and cache policy. Only the
+     * responses to GET requests are cached.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority,
+                              long deadline, @NonNull CachePolicy cachePolicy){
+
+        return request(method, callback, url, body, timeout, priority, deadline, cachePolicy,
+                null, null);
+    }
+
+    /**
+     * Creates a request with a particular priority, deadline, cache policy and headers and
+     * URL parameters of its own. The headers and parameters of the request are sent along
+     * with the ones set for every request, and take precedence over them.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority,
+                              long deadline, @NonNull CachePolicy cachePolicy,
+                              @Nullable Map<String, String> headers,
+                              @Nullable Map<String, String> parameters){
+
+        return request(method, callback, url, body, timeout, priority, deadline, cachePolicy,
+                headers, parameters, null);
+    }
+
+    /**
+     * Creates a request with every option, including the executor its callback runs in.
+     * Background work can use Delivery.DIRECT or an executor of its own to avoid going
+     * through the main thread.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param deliveryExecutor the executor the callback runs in, or null for the default.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority,
+                              long deadline, @NonNull CachePolicy cachePolicy,
+                              @Nullable Map<String, String> headers,
+                              @Nullable Map<String, String> parameters,
+                              @Nullable Executor deliveryExecutor){
+
+        return request(method, callback, url, body, timeout, priority, deadline, cachePolicy,
+                headers, parameters, deliveryExecutor, null);
+    }
+
+    /**
+     * Creates a request with every option, including the executor its callback runs in and
+     * its retry policy.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param deliveryExecutor the executor the callback runs in, or null for the default.
+     * @param retryPolicy the retry policy of the request, or null for the default.
+     * @return the request code.
+     */
+    public static int request(Method method, @Nullable RequestCallback callback, @NonNull String url,
+                              @Nullable JSONObject body, int timeout, @NonNull Priority priority,
+                              long deadline, @NonNull CachePolicy cachePolicy,
+                              @Nullable Map<String, String> headers,
+                              @Nullable Map<String, String> parameters,
+                              @Nullable Executor deliveryExecutor,
+                              @Nullable RetryPolicy retryPolicy){
+
+        return request(method, new HttpRequest(callback, null, toRequestBody(body)), url, timeout,
+                priority, deadline, cachePolicy, headers, parameters, deliveryExecutor,
+                retryPolicy, null);
+    }
+
+    /**
+     * Creates a typed request. The body of the response is decoded in a worker thread and
+     * the callback gets the decoded object. Responses to typed GET requests are cached and
+     * shared with identical requests like any other.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the typed callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param <T> the type of the decoded object.
+     * @return the request code.
+     */
+    public static <T> int request(Method method, @Nullable TypedCallback<T> callback,
+                                  @NonNull String url, @Nullable JSONObject body, int timeout,
+                                  @NonNull Priority priority, long deadline,
+                                  @NonNull CachePolicy cachePolicy,
+                                  @Nullable Map<String, String> headers,
+                                  @Nullable Map<String, String> parameters,
+                                  @NonNull ResponseDecoder<T> decoder){
+
+        return request(method, callback, url, body, timeout, priority, deadline, cachePolicy,
+                headers, parameters, decoder, null);
+    }
+
+    /**
+     * Creates a typed request with every option, including the executor its callback runs
+     * in. The body of the response is decoded in a worker thread either way.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the typed callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param deliveryExecutor the executor the callback runs in, or null for the default.
+     * @param <T> the type of the decoded object.
+     * @return the request code.
+     */
+    public static <T> int request(Method method, @Nullable TypedCallback<T> callback,
+                                  @NonNull String url, @Nullable JSONObject body, int timeout,
+                                  @NonNull Priority priority, long deadline,
+                                  @NonNull CachePolicy cachePolicy,
+                                  @Nullable Map<String, String> headers,
+                                  @Nullable Map<String, String> parameters,
+                                  @NonNull ResponseDecoder<T> decoder,
+                                  @Nullable Executor deliveryExecutor){
+
+        return request(method, callback, url, body, timeout, priority, deadline, cachePolicy,
+                headers, parameters, decoder, deliveryExecutor, null);
+    }
+
+    /**
+     * Creates a typed request with every option, including the executor its callback runs
+     * in and its retry policy.
+     *
+     * @param method the HTTP method of this request.
+     * @param callback the typed callback object.
+     * @param url the url to make the request to.
+     * @param body the body of the request.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the instant by which the request must be sent, in
+     *                 SystemClock.elapsedRealtime() time, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param decoder the decoder of the body of the response.
+     * @param deliveryExecutor the executor the callback runs in, or null for the default.
+     * @param retryPolicy the retry policy of the request, or null for the default.
+     * @param <T> the type of the decoded object.
+     * @return the request code.
+     */
+    public static <T> int request(Method method, @Nullable TypedCallback<T> callback,
+                                  @NonNull String url, @Nullable JSONObject body, int timeout,
+                                  @NonNull Priority priority, long deadline,
+                                  @NonNull CachePolicy cachePolicy,
+                                  @Nullable Map<String, String> headers,
+                                  @Nullable Map<String, String> parameters,
+                                  @NonNull ResponseDecoder<T> decoder,
+                                  @Nullable Executor deliveryExecutor,
+                                  @Nullable RetryPolicy retryPolicy){
+
+        return request(method, new HttpRequest(callback, decoder, toRequestBody(body)), url,
+                timeout, priority, deadline, cachePolicy, headers, parameters, deliveryExecutor,
+                retryPolicy, null);
+    }
+
+    /**
+     * Wraps a JSON body. Null bodies are sent as an empty JSON object.
+     *
+     * @param body the body of the request.
+     * @return the wrapped body.
+     */
+    private static RequestBody toRequestBody(@Nullable JSONObject body){
+        return RequestBody.fromJson(body != null ? body : new JSONObject());
+    }
+
+    /**
+     * Queues a request.
+     *
+     * @param method the HTTP method of this request.
+     * @param request the request object holding the callback and the body.
+     * @param url the url to make the request to.
+     * @param timeout a request timeout value.
+     * @param priority the priority of the request.
+     * @param deadline the deadline of the request, or NO_DEADLINE.
+     * @param cachePolicy the cache policy of the request.
+     * @param headers the headers of the request, or null.
+     * @param parameters the URL parameters of the request, or null.
+     * @param deliveryExecutor the executor the callback runs in, or null for the default.
+     * @param retryPolicy the retry policy of the request, or null for the default.
+     * @param hedgePolicy the hedge policy of the request, or null if it isn't hedged.
+     * @return the request code.
+     */
+    private static int request(Method method, @NonNull HttpRequest request,
+                               @NonNull String url, int timeout, @NonNull Priority priority,
+                               long deadline, @NonNull CachePolicy cachePolicy,
+                               @Nullable Map<String, String> headers,
+                               @Nullable Map<String, String> parameters,
+                               @Nullable Executor deliveryExecutor,
+                               @Nullable RetryPolicy retryPolicy,
+                               @Nullable HedgePolicy hedgePolicy){
+
+        //If the class has not yet been initialised the request can't be carried out and
+        //  an Exception is thrown
+        checkInitialisation();
+
+        //Put the request object in the registry, which generates the request code
+        int requestCode = sRequestRegistry.register(request);
+
+        //Every request earns a share of a retry
+        RetryBudget retryBudget = sRetryBudget;
+        if (retryBudget != null){
+            retryBudget.deposit();
+        }
+
+        //The looper of the calling thread, if that's the choice, can only be found out here
+        request.mDeliveryExecutor = Delivery.resolve(deliveryExecutor != null ? deliveryExecutor
+                : sDeliveryExecutor);
+
+        //Bodies are only sent with the methods that support them
+        RequestBody body = method.permitsBody() ? request.mBody : null;
+
+        //The global snapshots are used as they are unless the request brings its own
+        headers = merge(sRequestHeaders, headers);
+        String processedUrl = sUrlBuilder.build(url, parameters);
+        if (body != null && body.isCompressed()){
+            headers = withEntry(headers, "Content-Encoding", "gzip");
+        }
+
+        //Requests that may end up in the outbox carry a key the server can spot replays by
+        RequestOutbox outbox = sOutbox;
+        if (outbox != null && method != Method.GET && request.mStreamCallback == null){
+            request.mOutbox = outbox;
+            if (HttpCall.getHeader(headers, RequestOutbox.IDEMPOTENCY_KEY_HEADER) == null){
+                headers = withEntry(headers, RequestOutbox.IDEMPOTENCY_KEY_HEADER,
+                        UUID.randomUUID().toString());
+            }
+        }
+
+        //Plain GET requests can be served from the cache and shared by identical requests
+        String key = null;
+        if (method == Method.GET && request.mStreamCallback == null){
+            key = getRequestKey(method, processedUrl, headers);
+        }
+        HttpCall call = new HttpCall(method, processedUrl, headers, body, sEncoding, timeout,
+                retryPolicy != null ? retryPolicy : sRetryPolicy, priority, deadline, key,
+                hedgePolicy);
+        if (sMetricsListener != null || sStatistics != null){
+            request.mMetrics = new RequestMetrics(requestCode, request.mRequestId, method,
+                    processedUrl);
+            call.setTimed();
+        }
+
+        ResponseCache cache = sCache;
+        if (key != null && cache != null && cachePolicy != CachePolicy.NETWORK_ONLY){
+            lookUp(cache, cachePolicy, request, call);
+        }
+        else{
+            send(request, call);
+        }
+
+        return requestCode;
+    }
+
+    /**
+     * Sends a request queued in an outbox again. The request goes through the regular path
+     * with the headers it was made with, but the ones sent with every request win, in case
+     * they changed in the meantime, say, a token. The callback is called right in the
+     * network thread.
+     *
+     * @param entry the queued request.
+     * @param callback the callback object.
+     * @return true if the request was sent, false if the library isn't initialised.
+     */
+    static boolean replay(@NonNull RequestOutbox.Entry entry, @NonNull RequestCallback callback){
+        if (!isInitialised()){
+            return false;
+        }
+        byte[] data = entry.getBody();
+        RequestBody body = data != null ? RequestBody.fromBytes(data, entry.getContentType())
+                : null;
+        HttpRequest request = new HttpRequest(callback, null,
+                body != null ? body : toRequestBody(null));
+        int requestCode = sRequestRegistry.register(request);
+        request.mDeliveryExecutor = Delivery.DIRECT;
+
+        Method method = entry.getMethod();
+        HttpCall call = new HttpCall(method, entry.getUrl(),
+                merge(entry.getHeaders(), sRequestHeaders), method.permitsBody() ? body : null,
+                sEncoding, sRequestTimeout, RetryPolicy.NONE, Priority.LOW, NO_DEADLINE, null,
+                null);
+        if (sMetricsListener != null || sStatistics != null){
+            request.mMetrics = new RequestMetrics(requestCode, request.mRequestId, method,
+                    entry.getUrl());
+            call.setTimed();
+        }
+        send(request, call);
+        return true;
+    }
+
+    /**
+     * Sends a request. Requests that can be shared and are identical to one in flight just
+     * wait for its result, the rest get a call of their own, which is handed over to the
+     * dispatcher, which passes it on to the engine once the request limits allow it.
+     *
+     * @param request the request.
+     * @param call the call to use if the request isn't shared.
+     */
+    private static void send(@NonNull HttpRequest request, @NonNull HttpCall call){
+        //A shared call can only honour one deadline
+        String key = call.getKey();
+        boolean shareable = key != null && call.getDeadline() == NO_DEADLINE;
+        if (shareable){
+            HttpCall sharedCall = sSharedCalls.get(key);
+            if (sharedCall != null && sharedCall.attach(request)){
+                if (request.mMetrics != null){
+                    request.mMetrics.setShared();
+                }
+                request.setCall(sharedCall);
+                return;
+            }
+        }
+
+        //Requests to a host that keeps failing fail right away, rather than piling on it
+        if (!admit(call)){
+            request.deliverFailure(HttpRequestError.circuitOpen(call.getHost()));
+            return;
+        }
+
+        call.attach(request);
+        if (shareable){
+            sSharedCalls.put(key, call);
+        }
+        request.setCall(call);
+        dispatch(call);
+    }
+
+    /**
+     * Hands a call over to the dispatcher and, if the call is hedged and the hedge policy
+     * has seen enough responses, schedules its hedge.
+     *
+     * @param call the call.
+     */
+    private static void dispatch(@NonNull final HttpCall call){
+        sDispatcher.enqueue(call);
+        HedgePolicy policy = call.getHedgePolicy();
+        if (policy != null){
+            policy.deposit();
+            long delay = policy.getDelay();
+            if (delay >= 0){
+                RequestFuture.getTimer().schedule(new Runnable(){
+                    @Override
+                    public void run(){
+                        hedge(call);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends an identical call to race a call that is taking too long, if the budget of the
+     * hedge policy allows it. Calls still waiting in the dispatcher aren't hedged, the hedge
+     * would only wait behind them.
+     *
+     * @param call the call.
+     */
+    private static void hedge(@NonNull HttpCall call){
+        HedgePolicy policy = call.getHedgePolicy();
+        if (call.isCancelled() || call.getDispatchedAt() == 0 || !policy.withdraw()){
+            return;
+        }
+        HttpCall hedge = call.createHedge();
+        if (!admit(hedge)){
+            return;
+        }
+        if (!call.startHedge(hedge)){
+            //The call got its result in the meantime
+            CircuitBreaker breaker = hedge.releaseProbe();
+            if (breaker != null){
+                breaker.releaseProbe();
+            }
+            return;
+        }
+        policy.countHedge();
+        sDispatcher.enqueue(hedge);
+        //Requests cancelled while the hedge was being started don't see it
+        if (call.isCancelled() && hedge.cancel()){
+            abort(hedge);
+        }
+    }
+
+    /**
+     * Looks the response to a request up in the cache, first in memory and then, in the
+     * cache thread, on disk. If there isn't a usable response the request is sent.
+     *
+     * @param cache the cache.
+     * @param cachePolicy the cache policy of the request.
+     * @param request the request.
+     * @param call the call to use if the request needs to be sent.
+     */
+    private static void lookUp(@NonNull final ResponseCache cache,
+                               @NonNull final CachePolicy cachePolicy,
+                               @NonNull final HttpRequest request, @NonNull final HttpCall call){
+
+        //Typed requests are looked up in the cache thread, so that decoding the cached body
+        //  doesn't happen in the calling thread, which is usually the main thread
+        if (request.mDecoder == null){
+            ResponseCache.Entry entry = cache.getFromMemory(call.getKey());
+            if (entry != null){
+                //Whatever is on disk is not newer than what is in memory
+                if (!serve(cache, cachePolicy, request, call, entry, true)){
+                    miss(cache, request, call, entry);
+                }
+                return;
+            }
+        }
+        cache.execute(new Runnable(){
+            @Override
+            public void run(){
+                ResponseCache.Entry entry = cache.getFromMemory(call.getKey());
+                boolean fromMemory = entry != null;
+                if (!fromMemory){
+                    entry = cache.getFromDisk(call.getKey());
+                }
+                if (entry == null || !serve(cache, cachePolicy, request, call, entry, fromMemory)){
+                    miss(cache, request, call, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a request the cache couldn't serve. If there is a cached response that can be
+     * revalidated, the request is sent as a conditional request.
+     *
+     * @param cache the cache.
+     * @param request the request.
+     * @param call the call to send.
+     * @param entry the cached response, or null.
+     */
+    private static void miss(@NonNull ResponseCache cache, @NonNull HttpRequest request,
+                             @NonNull HttpCall call, @Nullable ResponseCache.Entry entry){
+
+        cache.recordMiss();
+        if (entry != null && entry.hasValidators()){
+            call.setCachedEntry(entry);
+        }
+        send(request, call);
+    }
+
+    /**
+     * Serves a request from the cache if the cache policy allows it and the cached body
+     * can be decoded.
+     *
+     * @param cache the cache.
+     * @param cachePolicy the cache policy of the request.
+     * @param request the request.
+     * @param call the call to revalidate the response with, if needed.
+     * @param entry the cached response.
+     * @param fromMemory whether the response came from the memory tier.
+     * @return true if the request was served, false if it needs to be sent.
+     */
+    private static boolean serve(@NonNull ResponseCache cache, @NonNull CachePolicy cachePolicy,
+                                 @NonNull HttpRequest request, @NonNull HttpCall call,
+                                 @NonNull ResponseCache.Entry entry, boolean fromMemory){
+
+        boolean fresh = entry.isFresh();
+        if (!fresh && cachePolicy == CachePolicy.DEFAULT){
+            return false;
+        }
+        Object result;
+        try{
+            if (request.mDecoder != null){
+                result = request.decode(new ByteArrayInputStream(entry.mData));
+            }
+            else{
+                result = new String(entry.mData, sEncoding);
+            }
+        }
+        catch (IOException iox){
+            return false;
+        }
+        cache.recordHit(fromMemory);
+        if (request.mMetrics != null){
+            request.mMetrics.setCacheStatus(fromMemory ? RequestMetrics.CacheStatus.MEMORY
+                    : RequestMetrics.CacheStatus.DISK);
+        }
+        request.deliverResult(result, call.getKey(), ResponseCache.getVersion(entry.mHeaders));
+
+        if (!fresh && cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE){
+            //Nobody waits for this call, its response just refreshes the cache. If there's
+            //  an identical call in flight already, that one will do
+            if (entry.hasValidators()){
+                call.setCachedEntry(entry);
+            }
+            if (sSharedCalls.putIfAbsent(call.getKey(), call) == null){
+                if (admit(call)){
+                    sDispatcher.enqueue(call);
+                }
+                else{
+                    forget(call);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the key identical requests share out of everything that goes on the wire.
+     * The same key identifies their response in the cache.
+     *
+     * @param method the HTTP method of the request.
+     * @param url the processed url.
+     * @param headers the headers of the request.
+     * @return the key.
+     */
+    private static String getRequestKey(@NonNull Method method, @NonNull String url,
+                                        @NonNull Map<String, String> headers){
+
+        StringBuilder key = new StringBuilder(method.name()).append(' ').append(url);
+        if (!headers.isEmpty()){
+            //Sorted, so that equal maps produce equal keys
+            for (Map.Entry<String, String> header:new TreeMap<>(headers).entrySet()){
+                key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Stops identical requests from attaching to a call.
+     *
+     * @param call the call.
+     */
+    private static void forget(@NonNull HttpCall call){
+        if (call.getKey() != null){
+            sSharedCalls.remove(call.getKey(), call);
+        }
+    }
+
+    /**
+     * Merges the headers of a request with the ones sent with every request.
+     *
+     * @param global the snapshot of the headers sent with every request.
+     * @param headers the headers of the request, or null.
+     * @return the merged headers.
+     */
+    private static Map<String, String> merge(@NonNull Map<String, String> global,
+                                             @Nullable Map<String, String> headers){
+
+        if (headers == null || headers.isEmpty()){
+            return global;
+        }
+        Map<String, String> merged = new HashMap<>(global);
+        merged.putAll(headers);
+        return Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * Tells whether a status code carries a successful response. Engines that cache may
+     * hand over a 304 along with the cached body.
+     *
+     * @param statusCode the HTTP status code.
+     * @return true if the response is successful, false otherwise.
+     */
+    private static boolean isSuccessful(int statusCode){
+        return (statusCode >= 200 && statusCode < 300) || statusCode == 304;
+    }
+
+    /**
+     * Reads a whole body. If the length of the body is known, the body is read straight into
+     * an array of that size, unless it is over a megabyte; the server may be lying, so an
+     * array that big is only allocated as the body actually arrives.
+     *
+     * @param stream the body.
+     * @param headers the headers of the response.
+     * @return the body.
+     * @throws IOException if the body can't be read.
+     */
+    static byte[] readBody(@NonNull InputStream stream, @NonNull Map<String, String> headers)
+            throws IOException{
+
+        int length = -1;
+        String contentLength = HttpCall.getHeader(headers, "Content-Length");
+        if (contentLength != null){
+            try{
+                length = Integer.parseInt(contentLength.trim());
+            }
+            catch (NumberFormatException nfx){
+                length = -1;
+            }
+        }
+
+        byte[] buffer = new byte[length >= 0 ? Math.min(length, MAX_PRESIZED_BUFFER)
+                : BUFFER_SIZE];
+        int count = 0;
+        int read;
+        while ((read = stream.read(buffer, count, buffer.length - count)) > 0){
+            count += read;
+            if (count == buffer.length){
+                //If the length was right, there's nothing else to read
+                int next = stream.read();
+                if (next == -1){
+                    return buffer;
+                }
+                byte[] grown = new byte[buffer.length*2 + 1];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+                buffer[count++] = (byte)next;
+            }
+        }
+        if (count == buffer.length){
+            return buffer;
+        }
+        byte[] body = new byte[count];
+        System.arraycopy(buffer, 0, body, 0, count);
+        return body;
+    }
+
+
+    /*----------------------------------------------*
+     * HttpRequest OBJECT ATTRIBUTES AND METHODS *
+     *----------------------------------------------*/
+
+    private final RequestCallback mCallback;
+    private final StreamCallback mStreamCallback;
+    private final TypedCallback<Object> mTypedCallback;
+    private final ResponseDecoder<?> mDecoder;
+    private final RequestBody mBody;
+
+    private long mRequestId;
+    private int mRequestCode;
+    private volatile HttpCall mCall;
+    private volatile boolean mCancelled;
+    private Executor mDeliveryExecutor;
+    private RequestMetrics mMetrics;
+    private RequestOutbox mOutbox;
+
+
+    /**
+     * Constructor.
+     *
+     * @param callback the callback object for this request.
+     * @param streamCallback the stream callback object for this request.
+     * @param body the body of the request.
+     */
+    HttpRequest(@Nullable RequestCallback callback, @Nullable StreamCallback streamCallback,
+                @NonNull RequestBody body){
+
+        mCallback = callback;
+        mStreamCallback = streamCallback;
+        mTypedCallback = null;
+        mDecoder = null;
+        mBody = body;
+    }
+
+    /**
+     * Constructor for typed requests.
+     *
+     * @param callback the typed callback object for this request.
+     * @param decoder the decoder of the body of the response.
+     * @param body the body of the request.
+     * @param <T> the type of the decoded object.
+     */
+    @SuppressWarnings("unchecked")
+    <T> HttpRequest(@Nullable TypedCallback<T> callback, @NonNull ResponseDecoder<T> decoder,
+                    @NonNull RequestBody body){
+
+        mCallback = null;
+        mStreamCallback = null;
+        //The decoder guarantees the type of the objects the callback gets
+        mTypedCallback = (TypedCallback<Object>)callback;
+        mDecoder = decoder;
+        mBody = body;
+    }
+
+    /**
+     * Decodes the body of the response to this typed request.
+     *
+     * @param stream the body of the response.
+     * @return the decoded object.
+     * @throws IOException if the body can't be read or decoded.
+     */
+    private Object decode(@NonNull InputStream stream) throws IOException{
+        try{
+            return mDecoder.decode(stream, sEncoding);
+        }
+        catch (RuntimeException rx){
+            //A broken decoder fails its request rather than the engine thread
+            throw new DecodingException(rx.toString());
+        }
+    }
+
+    /**
+     * Associates the call with this HttpRequest. Useful to cancel requests.
+     *
+     * @param call the call.
+     */
+    private void setCall(@NonNull HttpCall call){
+        mCall = call;
+        //The request may have been cancelled before the call was set
+        if (mCancelled){
+            detachFrom(call);
+        }
+    }
+
+    /**
+     * Cancels the call associated with this HttpRequest, or flags it to be cancelled as
+     * soon as it is set if it hasn't been yet.
+     */
+    private void cancelRequest(){
+        mCancelled = true;
+        HttpCall call = mCall;
+        if (call != null){
+            detachFrom(call);
+        }
+    }
+
+    /**
+     * Detaches this request from its call. The call is only cancelled if no other request
+     * is attached to it.
+     *
+     * @param call the call.
+     */
+    private void detachFrom(@NonNull HttpCall call){
+        if (call.detach(this)){
+            abort(call);
+            HttpCall hedge = call.getRival();
+            if (hedge != null && hedge.cancel()){
+                abort(hedge);
+            }
+        }
+    }
+
+    /**
+     * Aborts a call that has been flagged as cancelled.
+     *
+     * @param call the call.
+     */
+    private static void abort(@NonNull HttpCall call){
+        CircuitBreaker breaker = call.releaseProbe();
+        if (breaker != null){
+            breaker.releaseProbe();
+        }
+        forget(call);
+        sDispatcher.cancel(call);
+    }
+
+    /**
+     * Called from an engine thread when a call gets a response. Either the stream or the
+     * data is set. The body is read once, stored in the cache if the response can be cached,
+     * and the result is handed to every request still attached to the call, decoded here for
+     * typed requests. If the call revalidated a cached response and the server confirmed it,
+     * the cached body is used. The call holds on to its slot in the dispatcher until the
+     * body has been consumed.
+     *
+     * @param call the call.
+     * @param statusCode the HTTP status code.
+     * @param headers the headers of the response.
+     * @param stream the body of the response as a stream.
+     * @param data the body of the response, already buffered.
+     */
+    static void onCallResponse(@NonNull HttpCall call, int statusCode,
+                               @NonNull Map<String, String> headers, @Nullable InputStream stream,
+                               @Nullable byte[] data){
+
+        forget(call);
+        report(call, statusCode, null);
+        if (!call.win()){
+            //The other call of a hedged pair got there first
+            sDispatcher.finished(call);
+            return;
+        }
+        HttpCall hedged = call.getHedged();
+        if (call.getHedgePolicy() != null){
+            HttpCall rival = call.getRival();
+            if (rival != null && rival.cancel()){
+                abort(rival);
+            }
+            forget(hedged);
+            call.getHedgePolicy().record((System.nanoTime() - call.getDispatchedAt())/1000000);
+        }
+        List<HttpRequest> requests = hedged.close();
+        ResponseCache cache = sCache;
+        ResponseCache.Entry cachedEntry = call.getCachedEntry();
+        boolean notModified = statusCode == 304 && cachedEntry != null;
+        boolean store = cache != null && call.getKey() != null
+                && (statusCode == 200 || notModified);
+        String contentEncoding = HttpCall.getHeader(headers, "Content-Encoding");
+        CountingInputStream transferred = null;
+        try{
+            if (requests.isEmpty() && !store){
+                return;
+            }
+            if (InflatingInputStream.isCompressed(contentEncoding) && !notModified){
+                //Compressed bodies are inflated as they are read, and from here on the
+                //  response looks like it was never compressed
+                transferred = new CountingInputStream(stream != null ? stream
+                        : new ByteArrayInputStream(data));
+                stream = InflatingInputStream.wrap(transferred, contentEncoding);
+                data = null;
+                headers = withoutContentEncoding(headers);
+            }
+            if (!isSuccessful(statusCode)){
+                if (data == null){
+                    data = readBody(stream, headers);
+                }
+                if (retry(call, requests, statusCode, headers, null)){
+                    return;
+                }
+                if (call.isTimed()){
+                    measure(call, transferred);
+                    record(requests, call, statusCode, data.length, System.nanoTime(), 0);
+                }
+                deliverFailure(requests, new HttpRequestError(statusCode, new String(data)));
+            }
+            else if (!requests.isEmpty() && requests.get(0).mStreamCallback != null){
+                //Streaming requests are never shared and skip the String conversion
+                //  altogether, the callback reads the body from here, in the engine thread
+                HttpRequest request = requests.get(0);
+                if (request.mCancelled){
+                    return;
+                }
+                //Failures reading the body are told apart from failures of the callback
+                CountingInputStream body = new CountingInputStream(stream != null ? stream
+                        : new ByteArrayInputStream(data));
+                try{
+                    request.mStreamCallback.onResponseStream(request.mRequestCode, body);
+                }
+                catch (IOException iox){
+                    request.deliverFailure(body.isFailed() ? new HttpRequestError(iox)
+                            : HttpRequestError.callbackFailure(iox));
+                    return;
+                }
+                catch (RuntimeException rx){
+                    request.deliverFailure(HttpRequestError.callbackFailure(rx));
+                    return;
+                }
+                if (call.isTimed()){
+                    measure(call, transferred);
+                    record(requests, call, statusCode, -1, System.nanoTime(), 0);
+                }
+                request.deliverResult(null);
+            }
+            else if (stream != null && !store && requests.size() == 1
+                    && requests.get(0).mDecoder != null){
+
+                //Nothing else needs the body, so it is decoded as it is read. Reading and
+                //  decoding can't be told apart, the transfer time covers both
+                HttpRequest request = requests.get(0);
+                CountingInputStream counter = new CountingInputStream(stream);
+                Object result = request.decode(counter);
+                if (call.isTimed()){
+                    measure(call, transferred);
+                    record(requests, call, statusCode, counter.getCount(), System.nanoTime(), 0);
+                }
+                request.deliverResult(result);
+            }
+            else{
+                ResponseCache.Entry entry;
+                long bytesReceived;
+                long readAt;
+                if (notModified){
+                    //Nothing was transferred, the cached response is renewed and used
+                    entry = ResponseCache.refreshEntry(cachedEntry, headers);
+                    data = cachedEntry.mData;
+                    bytesReceived = 0;
+                    readAt = call.isTimed() ? System.nanoTime() : 0;
+                    if (cache != null){
+                        cache.recordNotModified();
+                    }
+                }
+                else{
+                    if (data == null){
+                        data = readBody(stream, headers);
+                    }
+                    bytesReceived = data.length;
+                    readAt = call.isTimed() ? System.nanoTime() : 0;
+                    measure(call, transferred);
+                    entry = store ? ResponseCache.createEntry(headers, data) : null;
+                }
+                if (store && entry != null){
+                    cache.put(call.getKey(), entry);
+                }
+                //304 responses may leave the validators out
+                String version = ResponseCache.getVersion(headers);
+                if (version == null && notModified){
+                    version = ResponseCache.getVersion(cachedEntry.mHeaders);
+                }
 
-                //Response listener, called if the request succeeds
-                new Response.Listener<String>(){
-                    @Override
-                    public void onResponse(String response){
-                        HttpRequest request = sRequestMap.remove(requestCode);
-                        if (request.mCallback != null){
-                            request.mCallback.onRequestComplete(requestCode, response);
+                //The body is converted or decoded once for all the requests that need it
+                //  the same way. A request whose body can't be decoded fails on its own
+                String text = null;
+                ResponseDecoder<?> decoder = null;
+                Object decoded = null;
+                for (HttpRequest request:requests){
+                    Object result;
+                    HttpRequestError error = null;
+                    if (request.mDecoder == null){
+                        if (text == null){
+                            text = new String(data, sEncoding);
                         }
+                        result = text;
                     }
-                },
-
-                //Error listener, called if the request fails
-                new Response.ErrorListener(){
-                    @Override
-                    public void onErrorResponse(VolleyError error){
-                        handleError(requestCode, error);
+                    else if (request.mDecoder == decoder){
+                        result = decoded;
+                    }
+                    else{
+                        try{
+                            decoded = request.decode(new ByteArrayInputStream(data));
+                            decoder = request.mDecoder;
+                        }
+                        catch (DecodingException dx){
+                            decoded = null;
+                            decoder = null;
+                            error = new HttpRequestError(dx);
+                        }
+                        result = decoded;
+                    }
+                    if (request.mMetrics != null){
+                        request.mMetrics.recordCall(call, statusCode, bytesReceived, readAt,
+                                System.nanoTime());
+                        if (notModified){
+                            request.mMetrics.setCacheStatus(RequestMetrics.CacheStatus.VALIDATED);
+                        }
+                    }
+                    if (error != null){
+                        request.deliverFailure(error);
+                    }
+                    else{
+                        request.deliverResult(result, call.getKey(), version);
                     }
                 }
-        ){
-            @Override
-            public Map<String, String> getHeaders() throws AuthFailureError{
-                if (sRequestHeaders == null){
-                    return new HashMap<>();
-                }
-                return sRequestHeaders;
             }
+        }
+        catch (IOException iox){
+            deliverFailure(requests, new HttpRequestError(iox));
+        }
+        finally{
+            if (transferred != null){
+                //Gives the inflater back
+                close(stream);
+            }
+            sDispatcher.finished(call);
+        }
+    }
 
-            @Override
-            public String getBodyContentType(){
-                return "application/json";
+    /**
+     * Removes the headers that describe a compressed body from the headers of a response
+     * whose body is being inflated.
+     *
+     * @param headers the headers of the response.
+     * @return the headers of the inflated response.
+     */
+    private static Map<String, String> withoutContentEncoding(
+            @NonNull Map<String, String> headers){
+
+        Map<String, String> inflated = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        inflated.putAll(headers);
+        inflated.remove("Content-Encoding");
+        inflated.remove("Content-Length");
+        return inflated;
+    }
+
+    /**
+     * Records the length of a compressed body as it was transferred.
+     *
+     * @param call the call that got the body.
+     * @param transferred the counter of the compressed body, or null if it wasn't compressed.
+     */
+    private static void measure(@NonNull HttpCall call,
+                                @Nullable CountingInputStream transferred){
+
+        if (transferred != null){
+            call.setCompressedLength(transferred.getCount());
+        }
+    }
+
+    /**
+     * Closes a stream quietly.
+     *
+     * @param stream the stream, may be null.
+     */
+    private static void close(@Nullable InputStream stream){
+        if (stream != null){
+            try{
+                stream.close();
+            }
+            catch (IOException iox){
+                //Nothing to do
             }
+        }
+    }
 
-            @Override
-            public byte[] getBody() throws AuthFailureError{
-                return sRequestMap.get(requestCode).mBody.toString().getBytes();
+    /**
+     * Called from an engine thread when a call fails.
+     *
+     * @param call the call.
+     * @param cause the reason of the failure.
+     */
+    static void onCallFailure(@NonNull HttpCall call, @NonNull Throwable cause){
+        forget(call);
+        report(call, -1, cause);
+        if (!call.lose()){
+            //The other call of a hedged pair may still get a response, or got it already
+            sDispatcher.finished(call);
+            return;
+        }
+        List<HttpRequest> requests = call.getHedged().close();
+        if (!requests.isEmpty() && !retry(call, requests, -1, null, cause)){
+            if (call.isTimed()){
+                record(requests, call, -1, -1, 0, 0);
+            }
+            deliverFailure(requests, park(call, requests, new HttpRequestError(cause)));
+        }
+        sDispatcher.finished(call);
+    }
+
+    /**
+     * Queues a failed call in the outbox if it failed for lack of connectivity and its
+     * request may be queued. Calls that carry a mutating request aren't shared, so there
+     * is one request at most.
+     *
+     * @param call the call.
+     * @param requests the requests attached to the call.
+     * @param error the error of the call.
+     * @return the error to deliver, which tells whether the request was queued.
+     */
+    private static HttpRequestError park(@NonNull HttpCall call,
+                                         @NonNull List<HttpRequest> requests,
+                                         @NonNull HttpRequestError error){
+
+        if (!error.isNetworkError() || requests.size() != 1){
+            return error;
+        }
+        HttpRequest request = requests.get(0);
+        if (request.mOutbox == null || request.mCancelled){
+            return error;
+        }
+        try{
+            request.mOutbox.add(call);
+            return error.queued();
+        }
+        catch (IOException iox){
+            Log.e(TAG, "Unable to queue the request: " + iox);
+            return error;
+        }
+    }
+
+    /**
+     * Sends a failed call again if its retry policy and the retry budget allow it. The
+     * requests attached to the call are moved over to the call of the next attempt, which is
+     * handed over to the dispatcher once the delay has passed.
+     *
+     * @param call the call that failed.
+     * @param requests the requests attached to the call.
+     * @param statusCode the status code of the response, or -1 if there wasn't one.
+     * @param headers the headers of the response, or null if there wasn't one.
+     * @param cause the reason of the failure if there wasn't a response, or null.
+     * @return true if the call is retried, false if the failure stands.
+     */
+    private static boolean retry(@NonNull HttpCall call, @NonNull List<HttpRequest> requests,
+                                 int statusCode, @Nullable Map<String, String> headers,
+                                 @Nullable Throwable cause){
+
+        RetryPolicy policy = call.getRetryPolicy();
+        if (requests.isEmpty() || call.getAttempt() >= policy.getMaxRetries()
+                || !policy.isRetryable(call.getMethod(), statusCode, cause)){
+            return false;
+        }
+
+        long delay = policy.getNextDelay(call.getRetryDelay());
+        if (headers != null){
+            //The server knows best, unless it asks for more patience than the policy has
+            long retryAfter = RetryPolicy.parseRetryAfter(HttpCall.getHeader(headers,
+                    "Retry-After"));
+            if (retryAfter > policy.getMaxDelay()){
+                return false;
             }
+            delay = Math.max(delay, retryAfter);
+        }
+        long deadline = call.getDeadline();
+        if (deadline != NO_DEADLINE && SystemClock.elapsedRealtime() + delay >= deadline){
+            return false;
+        }
+        RetryBudget budget = sRetryBudget;
+        if (budget != null && !budget.withdraw()){
+            return false;
+        }
 
+        int timeout = call.getTimeout();
+        if (cause != null && RetryPolicy.isTimeout(cause)){
+            timeout += (int)(timeout*policy.getTimeoutBackoff());
+        }
+        final HttpCall next = call.retry(timeout, delay);
+        for (HttpRequest request:requests){
+            next.attach(request);
+            request.setCall(next);
+        }
+        if (next.getKey() != null && deadline == NO_DEADLINE){
+            sSharedCalls.putIfAbsent(next.getKey(), next);
+        }
+        RequestFuture.getTimer().schedule(new Runnable(){
             @Override
-            protected Response<String> parseNetworkResponse(NetworkResponse response){
-                try{
-                    String utf8String = new String(response.data, sEncoding);
-                    return Response.success(utf8String, HttpHeaderParser.parseCacheHeaders(response));
+            public void run(){
+                //Cancelled requests have let go of the call already, and a probe taken now
+                //  would never be released
+                if (next.isCancelled()){
+                    return;
+                }
+                //The host may have been given up on while waiting
+                if (admit(next)){
+                    if (next.isCancelled()){
+                        //Cancelled as it was admitted, possibly before it held the probe
+                        abort(next);
+                    }
+                    else{
+                        dispatch(next);
+                    }
                 }
-                catch (UnsupportedEncodingException uex){
-                    return Response.error(new VolleyError("Internal error"));
+                else{
+                    forget(next);
+                    deliverFailure(next.close(), HttpRequestError.circuitOpen(next.getHost()));
                 }
             }
-        };
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Asks the circuit breaker of the host of a call whether the call can be sent.
+     *
+     * @param call the call.
+     * @return true if the call can be sent, false if the breaker is open.
+     */
+    private static boolean admit(@NonNull HttpCall call){
+        if (sCircuitBreakerPolicy == null){
+            return true;
+        }
+        CircuitBreaker breaker = sCircuitBreakers.get(call.getHost());
+        return breaker == null || breaker.admit(call);
+    }
 
-        //Create and set the retry policy
-        volleyRequest.setRetryPolicy(new DefaultRetryPolicy(timeout, sRequestRetries, sRetryBackoff));
+    /**
+     * Tells the circuit breaker of the host of a call how the call went. The breaker of a
+     * host is created the first time the host fails.
+     *
+     * @param call the call.
+     * @param statusCode the status code of the response, or -1 if there wasn't one.
+     * @param cause the reason of the failure if there wasn't a response, or null.
+     */
+    private static void report(@NonNull HttpCall call, int statusCode,
+                               @Nullable Throwable cause){
+
+        CircuitBreakerPolicy policy = sCircuitBreakerPolicy;
+        CircuitBreaker probed = call.releaseProbe();
+        if (policy == null){
+            if (probed != null){
+                probed.releaseProbe();
+            }
+            return;
+        }
 
-        //Set the volley request to the request object
-        request.setRequest(volleyRequest);
+        String host = call.getHost();
+        CircuitBreaker breaker = probed != null ? probed : sCircuitBreakers.get(host);
+        long latency = (System.nanoTime() - call.getDispatchedAt())/1000000;
+        switch (policy.classify(statusCode, cause, latency)){
+            case CircuitBreakerPolicy.FAILURE:
+                if (breaker == null){
+                    breaker = new CircuitBreaker(host, policy);
+                    CircuitBreaker current = sCircuitBreakers.putIfAbsent(host, breaker);
+                    if (current != null){
+                        breaker = current;
+                    }
+                }
+                breaker.onFailure(probed != null);
+                break;
 
-        //Add the request to the queue
-        sRequestQueue.add(volleyRequest);
+            case CircuitBreakerPolicy.SUCCESS:
+                if (breaker != null){
+                    breaker.onSuccess(probed != null);
+                }
+                break;
 
-        return requestCode;
+            default:
+                if (probed != null){
+                    probed.releaseProbe();
+                }
+        }
     }
 
     /**
-     * Adds the parameters to the URL
+     * Records the network timings of a call in the metrics of the requests it served.
      *
-     * @param url the url to append the parameters to.
-     * @return the processed url.
+     * @param requests the requests.
+     * @param call the call.
+     * @param statusCode the HTTP status code, or -1 if there wasn't a response.
+     * @param bytesReceived the length of the body of the response, or -1 if unknown.
+     * @param readAt when the body was read, or 0 if it wasn't.
+     * @param parsedAt when the body was decoded, or 0 if it wasn't.
      */
-    private static String processUrl(@NonNull String url){
-        if (sRequestUrlParams != null){
-            for (Map.Entry<String, String> parameter : sRequestUrlParams.entrySet()){
-                url += !url.contains("?") ? "?" : "&";
-                url += parameter.getKey() + "=" + parameter.getValue();
+    private static void record(@NonNull List<HttpRequest> requests, @NonNull HttpCall call,
+                               int statusCode, long bytesReceived, long readAt, long parsedAt){
+
+        for (HttpRequest request:requests){
+            if (request.mMetrics != null){
+                request.mMetrics.recordCall(call, statusCode, bytesReceived, readAt, parsedAt);
             }
         }
-        return url;
     }
 
     /**
-     * Creates the HttpRequestError object and delivers it to the callback if there is one.
+     * Records the version of a result delivered to a conditional callback. Only the
+     * versions of the last MAX_DELIVERED_VERSIONS requests a callback got are kept, so a
+     * callback that gets the result of a request it last got long ago may get a version
+     * it had already.
      *
-     * @param requestCode the request code of the subject request.
-     * @param error the VolleyError to generate the error from.
+     * @param callback the callback.
+     * @param key the key of the request.
+     * @param version the version of the result.
+     * @return true if the callback hadn't got this version of the result before.
      */
-    private static void handleError(int requestCode, VolleyError error){
-        HttpRequest request = sRequestMap.remove(requestCode);
-        if (request.mCallback != null){
-            request.mCallback.onRequestFailed(requestCode, new HttpRequestError(error));
+    private static boolean isNewVersion(@NonNull ConditionalCallback callback,
+                                        @NonNull String key, @NonNull String version){
+
+        synchronized (sDeliveredVersions){
+            LinkedHashMap<String, String> versions = sDeliveredVersions.get(callback);
+            if (versions == null){
+                versions = new LinkedHashMap<>(16, 0.75f, true);
+                sDeliveredVersions.put(callback, versions);
+            }
+            boolean isNew = !version.equals(versions.put(key, version));
+            if (versions.size() > MAX_DELIVERED_VERSIONS){
+                Iterator<String> iterator = versions.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+            return isNew;
         }
     }
 
+    /**
+     * Delivers an error to several requests.
+     *
+     * @param requests the requests.
+     * @param error the error.
+     */
+    private static void deliverFailure(@NonNull List<HttpRequest> requests,
+                                       @NonNull HttpRequestError error){
 
-    /*----------------------------------------------*
-     * HttpRequest OBJECT ATTRIBUTES AND METHODS *
-     *----------------------------------------------*/
+        for (HttpRequest request:requests){
+            request.deliverFailure(error);
+        }
+    }
 
-    private final RequestCallback mCallback;
-    private final JSONObject mBody;
+    /**
+     * Delivers the result to the callback through the delivery executor, unless the request
+     * gets cancelled before.
+     *
+     * @param result the result, null for streaming requests.
+     */
+    private void deliverResult(@Nullable Object result){
+        deliverResult(result, null, null);
+    }
+
+    /**
+     * Delivers the result to the callback through the delivery executor, unless the request
+     * gets cancelled before. Conditional callbacks that got this same version of the result
+     * for this same request before are told that the result wasn't modified instead.
+     *
+     * @param result the result, a String for plain requests, the decoded object for typed
+     *               requests and null for streaming requests.
+     * @param key the key of the request, or null.
+     * @param version the version of the result, or null if it's unknown.
+     */
+    private void deliverResult(@Nullable final Object result, @Nullable final String key,
+                               @Nullable final String version){
 
-    private StringRequest mRequest;
+        final long postedAt = mMetrics != null ? System.nanoTime() : 0;
+        mDeliveryExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                if (sRequestRegistry.remove(mRequestCode) == null){
+                    //The request was cancelled in the meantime
+                    return;
+                }
+                if (mCallback instanceof ConditionalCallback && key != null && version != null
+                        && !isNewVersion((ConditionalCallback)mCallback, key, version)){
 
+                    ((ConditionalCallback)mCallback).onRequestNotModified(mRequestCode);
+                }
+                else if (mCallback != null){
+                    mCallback.onRequestComplete(mRequestCode, (String)result);
+                }
+                else if (mTypedCallback != null){
+                    mTypedCallback.onRequestComplete(mRequestCode, result);
+                }
+                else if (mStreamCallback != null){
+                    mStreamCallback.onStreamComplete(mRequestCode);
+                }
+                report(postedAt, null);
+            }
+        });
+    }
 
     /**
-     * Constructor.
+     * Delivers an error to the callback through the delivery executor, unless the request
+     * gets cancelled before.
      *
-     * @param callback the callback object for this request.
-     * @param body the body of the request.
+     * @param error the error.
      */
-    private HttpRequest(@Nullable RequestCallback callback, @Nullable JSONObject body){
-        mCallback = callback;
-        if (body == null){
-            body = new JSONObject();
+    private void deliverFailure(@NonNull final HttpRequestError error){
+        final long postedAt = mMetrics != null ? System.nanoTime() : 0;
+        mDeliveryExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                if (sRequestRegistry.remove(mRequestCode) == null){
+                    //The request was cancelled in the meantime
+                    return;
+                }
+                if (mCallback != null){
+                    mCallback.onRequestFailed(mRequestCode, error);
+                }
+                else if (mTypedCallback != null){
+                    mTypedCallback.onRequestFailed(mRequestCode, error);
+                }
+                else if (mStreamCallback != null){
+                    mStreamCallback.onRequestFailed(mRequestCode, error);
+                }
+                report(postedAt, error);
+            }
+        });
+    }
+
+    /**
+     * Adds the metrics of this request, if there are any, to the statistics and hands them
+     * over to the listener.
+     *
+     * @param postedAt when the result was handed to the delivery executor.
+     * @param error the error delivered, or null if the request succeeded.
+     */
+    private void report(long postedAt, @Nullable HttpRequestError error){
+        RequestMetrics metrics = mMetrics;
+        if (metrics != null){
+            metrics.recordDelivery(postedAt, error);
+            RequestStatistics statistics = sStatistics;
+            if (statistics != null){
+                statistics.record(metrics);
+            }
+            RequestMetricsListener listener = sMetricsListener;
+            if (listener != null){
+                listener.onRequestMetrics(metrics);
+            }
         }
-        mBody = body;
     }
 
     /**
-     * Associates the volley request with this HttpRequest. Useful to cancel requests.
+     * Sets the identifier and the request code of this request. Only the registry should
+     * call this.
+     *
+     * @param requestId the identifier of the request.
+     * @param requestCode the request code.
+     */
+    void setRequestId(long requestId, int requestCode){
+        mRequestId = requestId;
+        mRequestCode = requestCode;
+    }
+
+    /**
+     * Getter for the request code of this request.
      *
-     * @param request the volley request.
+     * @return the request code.
      */
-    private void setRequest(@NonNull StringRequest request){
-        mRequest = request;
+    int getRequestCode(){
+        return mRequestCode;
     }
 
 
@@ -484,21 +2883,46 @@ public final class HttpRequest{
      * @version 1.0.0
      */
     public enum Method{
-        GET(Request.Method.GET),
-        POST(Request.Method.POST),
-        PUT(Request.Method.PUT),
-        DELETE(Request.Method.DELETE);
+        GET(Request.Method.GET, false, true),
+        POST(Request.Method.POST, true, false),
+        PUT(Request.Method.PUT, true, true),
+        DELETE(Request.Method.DELETE, false, true);
 
         int mMethod;
+        boolean mPermitsBody;
+        boolean mIdempotent;
 
 
         /**
          * Constructor. Sets the method mapping so that Volley can understand it.
          *
          * @param method Volley's representation of the method.
+         * @param permitsBody whether requests using this method send a body.
+         * @param idempotent whether sending a request twice has the same effect as once.
          */
-        Method(int method){
+        Method(int method, boolean permitsBody, boolean idempotent){
             mMethod = method;
+            mPermitsBody = permitsBody;
+            mIdempotent = idempotent;
+        }
+
+        /**
+         * Tells whether requests using this method send a body.
+         *
+         * @return true if a body is sent, false otherwise.
+         */
+        boolean permitsBody(){
+            return mPermitsBody;
+        }
+
+        /**
+         * Tells whether sending a request with this method twice has the same effect as
+         * sending it once, which makes it safe to retry.
+         *
+         * @return true if the method is idempotent, false otherwise.
+         */
+        boolean isIdempotent(){
+            return mIdempotent;
         }
 
         /**
@@ -506,12 +2930,56 @@ public final class HttpRequest{
          *
          * @return Volley's representation of the method.
          */
-        private int getMethod(){
+        int getMethod(){
             return mMethod;
         }
     }
 
 
+    /**
+     * Enumeration containing the request priorities, from lowest to highest. Requests
+     * waiting to be sent are sent in order of priority.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public enum Priority{
+        LOW, NORMAL, HIGH, IMMEDIATE
+    }
+
+
+    /**
+     * Enumeration containing the cache policies. Only the responses to GET requests are
+     * cached, and every response is stored regardless of the policy.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public enum CachePolicy{
+        /**
+         * Cached responses are used while they are fresh according to their headers.
+         */
+        DEFAULT,
+
+        /**
+         * The cache is never read, the request always goes to the network.
+         */
+        NETWORK_ONLY,
+
+        /**
+         * Cached responses are used no matter how old they are, the request only goes to
+         * the network if the response isn't cached.
+         */
+        CACHE_FIRST,
+
+        /**
+         * Cached responses are used no matter how old they are, but if they are no longer
+         * fresh the request is also sent in the background to refresh the cache.
+         */
+        STALE_WHILE_REVALIDATE
+    }
+
+
     /**
      * Callback interface for HttpRequest.
      *
@@ -535,4 +3003,114 @@ public final class HttpRequest{
          */
         void onRequestFailed(int requestCode, HttpRequestError error);
     }
+
+
+    /**
+     * Callback interface for batches of requests.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface BatchCallback{
+        /**
+         * Called every time a request of the batch completes, successfully or not.
+         *
+         * @param batch the batch.
+         * @param index the index of the request that completed.
+         * @param completed the number of requests of the batch completed so far.
+         */
+        void onBatchProgress(RequestBatch batch, int index, int completed);
+
+        /**
+         * Called when every request of the batch has completed. The results and errors can
+         * be read from the batch.
+         *
+         * @param batch the batch.
+         */
+        void onBatchComplete(RequestBatch batch);
+    }
+
+
+    /**
+     * Callback interface for requests whose result is parsed or processed in a costly way.
+     * When a request gets the same version of a result this callback already got for an
+     * identical request, according to the ETag or the Last-Modified date of the response,
+     * onRequestNotModified() is called instead of onRequestComplete(), so the result
+     * doesn't need to be processed again.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface ConditionalCallback extends RequestCallback{
+        /**
+         * Called when a request completes successfully with a result this callback already
+         * got before.
+         *
+         * @param requestCode the request code of the particular request.
+         */
+        void onRequestNotModified(int requestCode);
+    }
+
+
+    /**
+     * Callback interface for typed requests, which get the body of the response already
+     * decoded into an object.
+     *
+     * @param <T> the type of the decoded object.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface TypedCallback<T>{
+        /**
+         * Called when a request is completed successfully.
+         *
+         * @param requestCode the request code of the particular request.
+         * @param result the decoded body of the response.
+         */
+        void onRequestComplete(int requestCode, T result);
+
+        /**
+         * Called when a request fails, including when the body can't be decoded.
+         *
+         * @param requestCode the request code of the particular request.
+         * @param error the object containing all the information about the error.
+         */
+        void onRequestFailed(int requestCode, HttpRequestError error);
+    }
+
+
+    /**
+     * Callback interface for streaming requests. The body of the response is delivered
+     * as a stream so that it can be parsed incrementally.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface StreamCallback{
+        /**
+         * Called from a worker thread when the body of the response becomes available. The
+         * stream is only valid until this method returns, so it should be consumed here.
+         *
+         * @param requestCode the request code of the particular request.
+         * @param stream the body of the response.
+         * @throws IOException if the stream can't be read. The request is failed in that case,
+         *                     with a network error only if reading the stream is what failed.
+         */
+        void onResponseStream(int requestCode, InputStream stream) throws IOException;
+
+        /**
+         * Called when a request whose stream has been consumed completes successfully.
+         *
+         * @param requestCode the request code of the particular request.
+         */
+        void onStreamComplete(int requestCode);
+
+        /**
+         * Called when a request fails.
+         *
+         * @param requestCode the request code of the particular request.
+         * @param error the object containing all the information about the error.
+         */
+        void onRequestFailed(int requestCode, HttpRequestError error);
+    }
 }
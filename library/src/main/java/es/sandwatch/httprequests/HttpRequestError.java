@@ -8,6 +8,9 @@ import com.android.volley.NoConnectionError;
 import com.android.volley.ServerError;
 import com.android.volley.VolleyError;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
 
 /**
  * Contains all the information about a request error.
@@ -21,27 +24,91 @@ public final class HttpRequestError{
     private static final int ERROR_TYPE_NETWORK = 1;
     private static final int ERROR_TYPE_SERVER = 2;
     private static final int ERROR_TYPE_OTHER = 3;
+    private static final int ERROR_TYPE_CIRCUIT_OPEN = 4;
 
     private final int mErrorType;
     private final String mMessage;
     private final int mStatusCode;
+    private final boolean mQueued;
+
+
+    /**
+     * Constructor. Creates a server error out of a response whose status code is not in
+     * the 2XX range.
+     *
+     * @param statusCode the HTTP status code of the response.
+     * @param message the body of the response.
+     */
+    HttpRequestError(int statusCode, String message){
+        Log.d(TAG, "Server error: " + statusCode);
+        mErrorType = ERROR_TYPE_SERVER;
+        mMessage = message;
+        mStatusCode = statusCode;
+        mQueued = false;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param errorType the type of the error.
+     * @param message the message of the error.
+     * @param statusCode the HTTP status code, or -1.
+     * @param queued whether the request was queued in an outbox to be sent again.
+     */
+    private HttpRequestError(int errorType, String message, int statusCode, boolean queued){
+        mErrorType = errorType;
+        mMessage = message;
+        mStatusCode = statusCode;
+        mQueued = queued;
+    }
 
+    /**
+     * Creates the error of a request that wasn't sent because the circuit breaker of its
+     * host is open.
+     *
+     * @param host the host.
+     * @return the error.
+     */
+    static HttpRequestError circuitOpen(String host){
+        Log.d(TAG, "Circuit open: " + host);
+        return new HttpRequestError(ERROR_TYPE_CIRCUIT_OPEN,
+                "The circuit breaker of " + host + " is open", -1, false);
+    }
 
     /**
-     * Constructor. Extracts the relevant information from a VolleyError.
+     * Creates the error of a streaming request whose callback threw while it consumed the
+     * body, for reasons that have nothing to do with the transfer.
      *
-     * @param error the source volley error.
+     * @param cause what the callback threw.
+     * @return the error.
      */
-    HttpRequestError(VolleyError error){
+    static HttpRequestError callbackFailure(Throwable cause){
+        Log.d(TAG, "Callback failure: " + cause);
+        return new HttpRequestError(ERROR_TYPE_OTHER, cause.toString(), -1, false);
+    }
+
+    /**
+     * Constructor. Extracts the relevant information from the cause of a failed request,
+     * which may be a VolleyError or an exception thrown by any other engine.
+     *
+     * @param error the source of the error.
+     */
+    HttpRequestError(Throwable error){
         Log.d(TAG, error.toString());
-        NetworkResponse response = error.networkResponse;
+        NetworkResponse response = null;
+        if (error instanceof VolleyError){
+            response = ((VolleyError)error).networkResponse;
+        }
         if (error instanceof ServerError && response != null && response.data != null){
             mErrorType = ERROR_TYPE_SERVER;
             mMessage = new String(response.data);
             mStatusCode = response.statusCode;
             Log.d(TAG, "Server error: " + response.statusCode);
         }
-        else if (error instanceof NoConnectionError || error instanceof NetworkError){
+        else if (error instanceof NoConnectionError || error instanceof NetworkError
+                || (error instanceof IOException && !(error instanceof SocketTimeoutException)
+                && !(error instanceof DecodingException))){
+
             mErrorType = ERROR_TYPE_NETWORK;
             mMessage = "Offline, check your internet connection";
             mStatusCode = -1;
@@ -51,6 +118,16 @@ public final class HttpRequestError{
             mMessage = error.getMessage();
             mStatusCode = -1;
         }
+        mQueued = false;
+    }
+
+    /**
+     * Creates a copy of this error for a request that was put in the outbox.
+     *
+     * @return the copy.
+     */
+    HttpRequestError queued(){
+        return new HttpRequestError(mErrorType, mMessage, mStatusCode, true);
     }
 
     /**
@@ -71,6 +148,26 @@ public final class HttpRequestError{
         return mErrorType == ERROR_TYPE_NETWORK;
     }
 
+    /**
+     * Determines whether this error comes from an open circuit breaker, in which case the
+     * request wasn't sent at all.
+     *
+     * @return true if the circuit breaker of the host is open, false otherwise.
+     */
+    public boolean isCircuitOpen(){
+        return mErrorType == ERROR_TYPE_CIRCUIT_OPEN;
+    }
+
+    /**
+     * Determines whether the request was put in the outbox, to be sent again once
+     * connectivity returns.
+     *
+     * @return true if the request was queued, false otherwise.
+     */
+    public boolean isQueued(){
+        return mQueued;
+    }
+
     /**
      * Gets the message of this error.
      *
@@ -96,7 +193,10 @@ public final class HttpRequestError{
             result += "server error, code: " + mStatusCode + ", message: " + mMessage;
         }
         else if (isNetworkError()){
-            result += "network error";
+            result += "network error" + (mQueued ? ", queued" : "");
+        }
+        else if (isCircuitOpen()){
+            result += "circuit open, message: " + mMessage;
         }
         else{
             result += mMessage;
@@ -0,0 +1,403 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * Stream that inflates a body compressed with the gzip or the deflate content coding as it
+ * is read. Unlike GZIPInputStream and InflaterInputStream, inflaters and input buffers are
+ * taken from a small pool and given back when the stream is closed, so inflating a body
+ * costs neither a native inflater nor a buffer of its own.
+ *
+ * Gzip bodies may hold several members, and their checksums and lengths are checked.
+ * Deflate bodies are supposed to be zlib streams, but some servers send raw deflate data,
+ * which is told apart by its first two bytes. An empty body is an empty body, whatever the
+ * content coding says.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class InflatingInputStream extends InputStream{
+    /**
+     * The content codings the library can decode, as sent in the Accept-Encoding header.
+     */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8*1024;
+    private static final int POOL_SIZE = 4;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int DEFLATE_METHOD = 8;
+
+    //Flags of the gzip header
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    //Flag of the zlib header
+    private static final int FLAG_DICTIONARY = 0x20;
+
+
+    //Guarded by the lists themselves
+    private static final List<Inflater> sInflaters = new ArrayList<>(POOL_SIZE);
+    private static final List<byte[]> sBuffers = new ArrayList<>(POOL_SIZE);
+
+
+    /**
+     * Tells whether the body of a response is compressed.
+     *
+     * @param contentEncoding the value of the Content-Encoding header, or null.
+     * @return true if the body needs to be decoded, false otherwise.
+     */
+    static boolean isCompressed(@Nullable String contentEncoding){
+        if (contentEncoding == null){
+            return false;
+        }
+        for (String coding:contentEncoding.split(",")){
+            coding = coding.trim();
+            if (coding.length() != 0 && !coding.equalsIgnoreCase("identity")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps a body in the streams that undo its content codings.
+     *
+     * @param stream the body.
+     * @param contentEncoding the value of the Content-Encoding header.
+     * @return the decoded body.
+     * @throws DecodingException if one of the codings isn't supported.
+     */
+    @NonNull
+    static InputStream wrap(@NonNull InputStream stream, @NonNull String contentEncoding)
+            throws DecodingException{
+
+        String[] codings = contentEncoding.split(",");
+        for (int i = 0; i < codings.length; i++){
+            codings[i] = codings[i].trim().toLowerCase(Locale.US);
+            if (!codings[i].equals("gzip") && !codings[i].equals("x-gzip")
+                    && !codings[i].equals("deflate") && !codings[i].equals("identity")
+                    && codings[i].length() != 0){
+
+                throw new DecodingException("Unsupported content encoding: " + codings[i]);
+            }
+        }
+        //Codings are listed in the order they were applied, so they are undone backwards
+        for (int i = codings.length - 1; i >= 0; i--){
+            if (codings[i].equals("gzip") || codings[i].equals("x-gzip")){
+                stream = new InflatingInputStream(stream, true);
+            }
+            else if (codings[i].equals("deflate")){
+                stream = new InflatingInputStream(stream, false);
+            }
+        }
+        return stream;
+    }
+
+
+    private final InputStream mSource;
+    private final boolean mGzip;
+    private final Checksum mChecksum;
+    private final byte[] mSingle;
+
+    private Inflater mInflater;
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+
+    private boolean mStarted;
+    private boolean mZlib;
+    private boolean mFinished;
+    private long mMemberLength;
+
+
+    /**
+     * Constructor.
+     *
+     * @param source the compressed body.
+     * @param gzip true if the body uses the gzip coding, false if it uses deflate.
+     */
+    private InflatingInputStream(@NonNull InputStream source, boolean gzip){
+        mSource = source;
+        mGzip = gzip;
+        mChecksum = gzip ? new CRC32() : new Adler32();
+        mSingle = new byte[1];
+
+        mInflater = acquireInflater();
+        mBuffer = acquireBuffer();
+        mPosition = 0;
+        mLimit = 0;
+
+        mStarted = false;
+        mZlib = false;
+        mFinished = false;
+        mMemberLength = 0;
+    }
+
+    @Override
+    public int read() throws IOException{
+        int read = read(mSingle, 0, 1);
+        return read == -1 ? -1 : mSingle[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException{
+        if (mInflater == null){
+            throw new IOException("Stream closed.");
+        }
+        if (length == 0){
+            return 0;
+        }
+        if (!mStarted){
+            mStarted = true;
+            mFinished = !readHeader();
+        }
+        while (!mFinished){
+            int inflated;
+            try{
+                inflated = mInflater.inflate(buffer, offset, length);
+            }
+            catch (DataFormatException dfx){
+                throw new DecodingException("Invalid compressed body: " + dfx.getMessage());
+            }
+            if (inflated > 0){
+                mChecksum.update(buffer, offset, inflated);
+                mMemberLength += inflated;
+                return inflated;
+            }
+            if (mInflater.finished()){
+                //Whatever the inflater didn't take belongs to the trailer
+                mPosition = mLimit - mInflater.getRemaining();
+                readTrailer();
+                mFinished = !mGzip || !readHeader();
+            }
+            else if (mInflater.needsDictionary()){
+                throw new DecodingException("Preset dictionaries aren't supported.");
+            }
+            else if (mInflater.needsInput()){
+                if (!require(1)){
+                    throw new EOFException("Unexpected end of compressed body");
+                }
+                mInflater.setInput(mBuffer, mPosition, mLimit - mPosition);
+                mPosition = mLimit;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException{
+        if (mInflater != null){
+            release(mInflater, mBuffer);
+            mInflater = null;
+            mBuffer = null;
+        }
+        mSource.close();
+    }
+
+    /**
+     * Reads the header of the next gzip member, or the zlib header of a deflate body, and
+     * gets the inflater ready for the compressed data that follows.
+     *
+     * @return true if there is compressed data, false if the body ended.
+     * @throws IOException if the header can't be read or isn't valid.
+     */
+    private boolean readHeader() throws IOException{
+        if (!require(1)){
+            return false;
+        }
+        mInflater.reset();
+        mChecksum.reset();
+        mMemberLength = 0;
+        if (mGzip){
+            if ((readByte() | (readByte() << 8)) != GZIP_MAGIC){
+                throw new DecodingException("Invalid gzip header.");
+            }
+            if (readByte() != DEFLATE_METHOD){
+                throw new DecodingException("Unsupported gzip compression method.");
+            }
+            int flags = readByte();
+            //Modification time, extra flags and operating system
+            skip(6);
+            if ((flags & FLAG_EXTRA) != 0){
+                skip(readByte() | (readByte() << 8));
+            }
+            if ((flags & FLAG_NAME) != 0){
+                skipString();
+            }
+            if ((flags & FLAG_COMMENT) != 0){
+                skipString();
+            }
+            if ((flags & FLAG_HEADER_CRC) != 0){
+                skip(2);
+            }
+        }
+        else if (require(2)){
+            int method = mBuffer[mPosition] & 0xFF;
+            int flags = mBuffer[mPosition + 1] & 0xFF;
+            mZlib = (method & 0x0F) == DEFLATE_METHOD && (method*256 + flags)%31 == 0;
+            if (mZlib){
+                if ((flags & FLAG_DICTIONARY) != 0){
+                    throw new DecodingException("Preset dictionaries aren't supported.");
+                }
+                mPosition += 2;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads and checks the trailer of a gzip member or a zlib stream. Raw deflate data has
+     * no trailer.
+     *
+     * @throws IOException if the trailer can't be read or doesn't match the data.
+     */
+    private void readTrailer() throws IOException{
+        if (mGzip){
+            long crc = readByte() | (readByte() << 8) | (readByte() << 16)
+                    | ((long)readByte() << 24);
+            long size = readByte() | (readByte() << 8) | (readByte() << 16)
+                    | ((long)readByte() << 24);
+            if (crc != mChecksum.getValue() || size != (mMemberLength & 0xFFFFFFFFL)){
+                throw new DecodingException("Corrupt gzip body.");
+            }
+        }
+        else if (mZlib){
+            long adler = ((long)readByte() << 24) | (readByte() << 16) | (readByte() << 8)
+                    | readByte();
+            if (adler != mChecksum.getValue()){
+                throw new DecodingException("Corrupt deflate body.");
+            }
+        }
+    }
+
+    /**
+     * Reads a byte of a header or a trailer.
+     *
+     * @return the byte, unsigned.
+     * @throws IOException if the body ended or can't be read.
+     */
+    private int readByte() throws IOException{
+        if (!require(1)){
+            throw new EOFException("Unexpected end of compressed body");
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    /**
+     * Skips bytes of a header.
+     *
+     * @param count the number of bytes to skip.
+     * @throws IOException if the body ended or can't be read.
+     */
+    private void skip(int count) throws IOException{
+        for (int i = 0; i < count; i++){
+            readByte();
+        }
+    }
+
+    /**
+     * Skips a zero terminated string of a header.
+     *
+     * @throws IOException if the body ended or can't be read.
+     */
+    private void skipString() throws IOException{
+        while (readByte() != 0){
+            //Keep going
+        }
+    }
+
+    /**
+     * Makes sure there are a number of bytes in the buffer that haven't been used yet,
+     * reading from the source if there aren't.
+     *
+     * @param count the number of bytes.
+     * @return true if there are that many bytes, false if the source ended before.
+     * @throws IOException if the source can't be read.
+     */
+    private boolean require(int count) throws IOException{
+        while (mLimit - mPosition < count){
+            if (mPosition > 0){
+                System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+                mLimit -= mPosition;
+                mPosition = 0;
+            }
+            int read = mSource.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read == -1){
+                return false;
+            }
+            mLimit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Takes an inflater from the pool, or creates one if the pool is empty.
+     *
+     * @return the inflater.
+     */
+    private static Inflater acquireInflater(){
+        synchronized (sInflaters){
+            if (!sInflaters.isEmpty()){
+                return sInflaters.remove(sInflaters.size() - 1);
+            }
+        }
+        //Headers and trailers are handled here, the inflater only sees the raw data
+        return new Inflater(true);
+    }
+
+    /**
+     * Takes an input buffer from the pool, or creates one if the pool is empty.
+     *
+     * @return the buffer.
+     */
+    private static byte[] acquireBuffer(){
+        synchronized (sBuffers){
+            if (!sBuffers.isEmpty()){
+                return sBuffers.remove(sBuffers.size() - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives an inflater and a buffer back to the pool. Inflaters that don't fit are ended
+     * right away rather than waiting for the garbage collector to free their native memory.
+     *
+     * @param inflater the inflater.
+     * @param buffer the buffer.
+     */
+    private static void release(@NonNull Inflater inflater, @NonNull byte[] buffer){
+        inflater.reset();
+        synchronized (sInflaters){
+            if (sInflaters.size() < POOL_SIZE){
+                sInflaters.add(inflater);
+                inflater = null;
+            }
+        }
+        if (inflater != null){
+            inflater.end();
+        }
+        synchronized (sBuffers){
+            if (sBuffers.size() < POOL_SIZE){
+                sBuffers.add(buffer);
+            }
+        }
+    }
+}
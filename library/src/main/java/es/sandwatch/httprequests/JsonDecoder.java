@@ -0,0 +1,137 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Decoder that reads JSON token by token from the body of the response. Subclasses build
+ * their objects straight out of a JsonStreamReader, so neither the body as a String nor a
+ * tree of JSONObjects is ever held in memory.
+ *
+ * @param <T> the type of the object.
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public abstract class JsonDecoder<T> implements ResponseDecoder<T>{
+    /**
+     * Decodes a JSON object into a JSONObject.
+     */
+    public static final JsonDecoder<JSONObject> OBJECT = new JsonDecoder<JSONObject>(){
+        @Override
+        protected JSONObject read(@NonNull JsonStreamReader reader) throws IOException{
+            return readObject(reader);
+        }
+    };
+
+    /**
+     * Decodes a JSON array into a JSONArray.
+     */
+    public static final JsonDecoder<JSONArray> ARRAY = new JsonDecoder<JSONArray>(){
+        @Override
+        protected JSONArray read(@NonNull JsonStreamReader reader) throws IOException{
+            return readArray(reader);
+        }
+    };
+
+
+    @Override
+    public final T decode(@NonNull InputStream stream, @NonNull String encoding)
+            throws IOException{
+
+        return read(new JsonStreamReader(stream, encoding));
+    }
+
+    /**
+     * Reads the object out of the document. Called from a worker thread.
+     *
+     * @param reader the reader, positioned at the beginning of the document.
+     * @return the object.
+     * @throws IOException if the document can't be read or isn't what's expected.
+     */
+    protected abstract T read(@NonNull JsonStreamReader reader) throws IOException;
+
+    /**
+     * Reads an object into a JSONObject.
+     *
+     * @param reader the reader, positioned at the beginning of the object.
+     * @return the object.
+     * @throws IOException if the document can't be read or the next value isn't an object.
+     */
+    @NonNull
+    public static JSONObject readObject(@NonNull JsonStreamReader reader) throws IOException{
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()){
+            String name = reader.nextName();
+            try{
+                object.put(name, readValue(reader));
+            }
+            catch (JSONException jx){
+                throw new DecodingException(jx.getMessage());
+            }
+        }
+        reader.endObject();
+        return object;
+    }
+
+    /**
+     * Reads an array into a JSONArray.
+     *
+     * @param reader the reader, positioned at the beginning of the array.
+     * @return the array.
+     * @throws IOException if the document can't be read or the next value isn't an array.
+     */
+    @NonNull
+    public static JSONArray readArray(@NonNull JsonStreamReader reader) throws IOException{
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()){
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    /**
+     * Reads any value into what org.json would have parsed it into.
+     *
+     * @param reader the reader, positioned at the beginning of the value.
+     * @return the value.
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    private static Object readValue(@NonNull JsonStreamReader reader) throws IOException{
+        switch (reader.peek()){
+            case BEGIN_OBJECT:
+                return readObject(reader);
+
+            case BEGIN_ARRAY:
+                return readArray(reader);
+
+            case BOOLEAN:
+                return reader.nextBoolean();
+
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+
+            case NUMBER:
+                String number = reader.nextString();
+                try{
+                    return Long.parseLong(number);
+                }
+                catch (NumberFormatException nfx){
+                    return Double.parseDouble(number);
+                }
+
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,707 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+
+/**
+ * Pull parser that reads a JSON document token by token straight from a stream, so that
+ * objects can be built without holding the whole document, or a tree of it, in memory.
+ * It works like android.util.JsonReader, which isn't available before API 11, and it is
+ * strict: anything that isn't valid JSON makes it throw a DecodingException.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class JsonStreamReader implements Closeable{
+    private static final int BUFFER_SIZE = 1024;
+
+    //Scopes, kept in a stack as the reader goes in and out of arrays and objects
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+
+    private final Reader mReader;
+    private final char[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private long mOffset;
+
+    private int[] mStack;
+    private int mStackSize;
+
+    private final StringBuilder mBuilder;
+    private Token mToken;
+    private String mValue;
+
+
+    /**
+     * Constructor.
+     *
+     * @param reader the source of the document.
+     */
+    public JsonStreamReader(@NonNull Reader reader){
+        mReader = reader;
+        mBuffer = new char[BUFFER_SIZE];
+        mPosition = 0;
+        mLimit = 0;
+        mOffset = 0;
+
+        mStack = new int[16];
+        mStack[0] = EMPTY_DOCUMENT;
+        mStackSize = 1;
+
+        mBuilder = new StringBuilder();
+        mToken = null;
+        mValue = null;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stream the source of the document.
+     * @param encoding the name of the charset of the document.
+     * @throws IOException if the charset isn't supported.
+     */
+    public JsonStreamReader(@NonNull InputStream stream, @NonNull String encoding)
+            throws IOException{
+
+        this(new InputStreamReader(stream, encoding));
+    }
+
+    /**
+     * Gets the type of the next token without consuming it.
+     *
+     * @return the type of the next token.
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    @NonNull
+    public Token peek() throws IOException{
+        if (mToken == null){
+            mToken = readToken();
+        }
+        return mToken;
+    }
+
+    /**
+     * Tells whether the current array or object has more elements.
+     *
+     * @return true if there are more elements, false otherwise.
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    public boolean hasNext() throws IOException{
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY
+                && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the beginning of an array.
+     *
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public void beginArray() throws IOException{
+        consume(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    /**
+     * Consumes the end of an array.
+     *
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public void endArray() throws IOException{
+        consume(Token.END_ARRAY);
+        mStackSize--;
+    }
+
+    /**
+     * Consumes the beginning of an object.
+     *
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public void beginObject() throws IOException{
+        consume(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    /**
+     * Consumes the end of an object.
+     *
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public void endObject() throws IOException{
+        consume(Token.END_OBJECT);
+        mStackSize--;
+    }
+
+    /**
+     * Consumes the name of a property.
+     *
+     * @return the name.
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    @NonNull
+    public String nextName() throws IOException{
+        consume(Token.NAME);
+        return mValue;
+    }
+
+    /**
+     * Consumes a string. Numbers are consumed too, as they were written.
+     *
+     * @return the string.
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    @NonNull
+    public String nextString() throws IOException{
+        if (peek() == Token.NUMBER){
+            mToken = null;
+            return mValue;
+        }
+        consume(Token.STRING);
+        return mValue;
+    }
+
+    /**
+     * Consumes a boolean.
+     *
+     * @return the boolean.
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public boolean nextBoolean() throws IOException{
+        consume(Token.BOOLEAN);
+        return mValue.equals("true");
+    }
+
+    /**
+     * Consumes a null.
+     *
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    public void nextNull() throws IOException{
+        consume(Token.NULL);
+    }
+
+    /**
+     * Consumes a number as a double. Strings holding a number are consumed too.
+     *
+     * @return the number.
+     * @throws IOException if the document can't be read or the next token isn't a number.
+     */
+    public double nextDouble() throws IOException{
+        String value = nextNumber();
+        try{
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException nfx){
+            throw error("Expected a number but was \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Consumes a number as a long. Strings holding a number are consumed too.
+     *
+     * @return the number.
+     * @throws IOException if the document can't be read or the next token isn't a number
+     *                     that fits in a long.
+     */
+    public long nextLong() throws IOException{
+        String value = nextNumber();
+        try{
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException nfx){
+            //Numbers like 1.0 or 1e3 are fine as long as they are whole
+            try{
+                double number = Double.parseDouble(value);
+                long result = (long)number;
+                if (result == number){
+                    return result;
+                }
+            }
+            catch (NumberFormatException nfx2){
+                //Reported below
+            }
+            throw error("Expected a long but was \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Consumes a number as an int. Strings holding a number are consumed too.
+     *
+     * @return the number.
+     * @throws IOException if the document can't be read or the next token isn't a number
+     *                     that fits in an int.
+     */
+    public int nextInt() throws IOException{
+        long value = nextLong();
+        if (value != (int)value){
+            throw error("Expected an int but was " + value);
+        }
+        return (int)value;
+    }
+
+    /**
+     * Consumes the next value, along with everything in it if it is an array or an object.
+     *
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    public void skipValue() throws IOException{
+        int depth = 0;
+        do{
+            switch (peek()){
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+
+                case END_DOCUMENT:
+                    throw error("Unexpected end of document");
+
+                default:
+                    mToken = null;
+            }
+        }
+        while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException{
+        mReader.close();
+    }
+
+    /**
+     * Consumes a number or a string and returns it as it was written.
+     *
+     * @return the number.
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    private String nextNumber() throws IOException{
+        Token token = peek();
+        if (token != Token.NUMBER && token != Token.STRING){
+            throw error("Expected a number but was " + token);
+        }
+        mToken = null;
+        return mValue;
+    }
+
+    /**
+     * Consumes the next token, which must be of a particular type.
+     *
+     * @param expected the type of the token.
+     * @throws IOException if the document can't be read or the next token is something else.
+     */
+    private void consume(@NonNull Token expected) throws IOException{
+        Token token = peek();
+        if (token != expected){
+            throw error("Expected " + expected + " but was " + token);
+        }
+        mToken = null;
+    }
+
+    /**
+     * Enters an array or an object.
+     *
+     * @param scope the scope of the array or object.
+     */
+    private void push(int scope){
+        if (mStackSize == mStack.length){
+            int[] grown = new int[mStack.length*2];
+            System.arraycopy(mStack, 0, grown, 0, mStackSize);
+            mStack = grown;
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    /**
+     * Reads the next token, depending on the scope the reader is in.
+     *
+     * @return the type of the token.
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    private Token readToken() throws IOException{
+        int top = mStackSize - 1;
+        int c;
+        switch (mStack[top]){
+            case EMPTY_DOCUMENT:
+                mStack[top] = NONEMPTY_DOCUMENT;
+                return readValue(nextNonWhitespace(true));
+
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace(false) != -1){
+                    throw error("Unexpected content after the end of the document");
+                }
+                return Token.END_DOCUMENT;
+
+            case EMPTY_ARRAY:
+                c = nextNonWhitespace(true);
+                if (c == ']'){
+                    return Token.END_ARRAY;
+                }
+                mStack[top] = NONEMPTY_ARRAY;
+                return readValue(c);
+
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace(true);
+                if (c == ']'){
+                    return Token.END_ARRAY;
+                }
+                if (c != ','){
+                    throw error("Expected ',' or ']'");
+                }
+                return readValue(nextNonWhitespace(true));
+
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace(true);
+                if (c == '}'){
+                    return Token.END_OBJECT;
+                }
+                if (mStack[top] == NONEMPTY_OBJECT){
+                    if (c != ','){
+                        throw error("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace(true);
+                }
+                if (c != '"'){
+                    throw error("Expected a name");
+                }
+                mValue = readString();
+                mStack[top] = DANGLING_NAME;
+                return Token.NAME;
+
+            default:
+                if (nextNonWhitespace(true) != ':'){
+                    throw error("Expected ':'");
+                }
+                mStack[top] = NONEMPTY_OBJECT;
+                return readValue(nextNonWhitespace(true));
+        }
+    }
+
+    /**
+     * Reads a value.
+     *
+     * @param c the first character of the value.
+     * @return the type of the value.
+     * @throws IOException if the document can't be read or isn't valid.
+     */
+    private Token readValue(int c) throws IOException{
+        switch (c){
+            case '{':
+                return Token.BEGIN_OBJECT;
+
+            case '[':
+                return Token.BEGIN_ARRAY;
+
+            case '"':
+                mValue = readString();
+                return Token.STRING;
+
+            case 't':
+                readLiteral("true");
+                mValue = "true";
+                return Token.BOOLEAN;
+
+            case 'f':
+                readLiteral("false");
+                mValue = "false";
+                return Token.BOOLEAN;
+
+            case 'n':
+                readLiteral("null");
+                mValue = null;
+                return Token.NULL;
+
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')){
+                    mValue = readNumber((char)c);
+                    return Token.NUMBER;
+                }
+                throw error("Unexpected character '" + (char)c + "'");
+        }
+    }
+
+    /**
+     * Reads the rest of a literal whose first character has been read already.
+     *
+     * @param literal the literal.
+     * @throws IOException if the document can't be read or the literal is something else.
+     */
+    private void readLiteral(@NonNull String literal) throws IOException{
+        for (int i = 1; i < literal.length(); i++){
+            if (read() != literal.charAt(i)){
+                throw error("Expected " + literal);
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a number whose first character has been read already. The number is
+     * validated as the JSON grammar says and returned as it was written.
+     *
+     * @param first the first character.
+     * @return the number.
+     * @throws IOException if the document can't be read or the number isn't valid.
+     */
+    private String readNumber(char first) throws IOException{
+        mBuilder.setLength(0);
+        mBuilder.append(first);
+        //Integer part, fraction and exponent, in that order
+        int c = first == '-' ? appendDigits(1) : appendDigits(0);
+        int integer = first == '-' ? 1 : 0;
+        if (mBuilder.charAt(integer) == '0' && mBuilder.length() > integer + 1){
+            throw error("Leading zeros in number");
+        }
+        if (c == '.'){
+            mBuilder.append('.');
+            c = appendDigits(1);
+        }
+        if (c == 'e' || c == 'E'){
+            mBuilder.append((char)c);
+            mPosition++;
+            c = peekChar();
+            if (c == '+' || c == '-'){
+                mBuilder.append((char)c);
+                mPosition++;
+            }
+            c = appendDigits(1);
+        }
+        if (c != -1 && c != ',' && c != ']' && c != '}' && !isWhitespace(c)){
+            throw error("Malformed number");
+        }
+        return mBuilder.toString();
+    }
+
+    /**
+     * Appends the digits that come next to the builder. If a dot was peeked it is consumed.
+     *
+     * @param minimum the minimum number of digits there must be.
+     * @return the character that follows the digits, not consumed unless it's a dot, or -1.
+     * @throws IOException if the document can't be read or there aren't enough digits.
+     */
+    private int appendDigits(int minimum) throws IOException{
+        int count = 0;
+        int c = peekChar();
+        while (c >= '0' && c <= '9'){
+            mBuilder.append((char)c);
+            mPosition++;
+            count++;
+            c = peekChar();
+        }
+        if (count < minimum){
+            throw error("Malformed number");
+        }
+        if (c == '.'){
+            mPosition++;
+        }
+        return c;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been read already.
+     *
+     * @return the string.
+     * @throws IOException if the document can't be read or the string isn't valid.
+     */
+    private String readString() throws IOException{
+        mBuilder.setLength(0);
+        while (true){
+            //Plain runs of characters are copied in one go
+            int start = mPosition;
+            while (mPosition < mLimit){
+                char c = mBuffer[mPosition];
+                if (c == '"' || c == '\\' || c < 0x20){
+                    break;
+                }
+                mPosition++;
+            }
+            mBuilder.append(mBuffer, start, mPosition - start);
+            if (mPosition == mLimit){
+                if (!fill()){
+                    throw error("Unterminated string");
+                }
+                continue;
+            }
+
+            char c = mBuffer[mPosition++];
+            if (c == '"'){
+                return mBuilder.toString();
+            }
+            if (c < 0x20){
+                throw error("Unescaped control character in string");
+            }
+            mBuilder.append(readEscape());
+        }
+    }
+
+    /**
+     * Reads an escape sequence whose backslash has been read already.
+     *
+     * @return the escaped character.
+     * @throws IOException if the document can't be read or the sequence isn't valid.
+     */
+    private char readEscape() throws IOException{
+        int c = read();
+        switch (c){
+            case '"':
+            case '\\':
+            case '/':
+                return (char)c;
+
+            case 'b':
+                return '\b';
+
+            case 'f':
+                return '\f';
+
+            case 'n':
+                return '\n';
+
+            case 'r':
+                return '\r';
+
+            case 't':
+                return '\t';
+
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++){
+                    int digit = Character.digit(read(), 16);
+                    if (digit == -1){
+                        throw error("Malformed unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char)value;
+
+            default:
+                throw error("Invalid escape sequence");
+        }
+    }
+
+    /**
+     * Consumes the whitespace that comes next and the character after it.
+     *
+     * @param required whether the end of the document is an error.
+     * @return the character, or -1 if the document ended and that's allowed.
+     * @throws IOException if the document can't be read or ends unexpectedly.
+     */
+    private int nextNonWhitespace(boolean required) throws IOException{
+        while (mPosition < mLimit || fill()){
+            char c = mBuffer[mPosition++];
+            if (!isWhitespace(c)){
+                return c;
+            }
+        }
+        if (required){
+            throw error("Unexpected end of document");
+        }
+        return -1;
+    }
+
+    /**
+     * Consumes the next character.
+     *
+     * @return the character.
+     * @throws IOException if the document can't be read or has ended.
+     */
+    private int read() throws IOException{
+        if (mPosition == mLimit && !fill()){
+            throw error("Unexpected end of document");
+        }
+        return mBuffer[mPosition++];
+    }
+
+    /**
+     * Gets the next character without consuming it.
+     *
+     * @return the character, or -1 if the document has ended.
+     * @throws IOException if the document can't be read.
+     */
+    private int peekChar() throws IOException{
+        if (mPosition == mLimit && !fill()){
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    /**
+     * Refills the buffer once it's been consumed.
+     *
+     * @return true if there are characters to read, false if the document has ended.
+     * @throws IOException if the document can't be read.
+     */
+    private boolean fill() throws IOException{
+        mOffset += mLimit;
+        mPosition = 0;
+        mLimit = 0;
+        int read;
+        while ((read = mReader.read(mBuffer, 0, mBuffer.length)) == 0){
+            //Keep reading until there's something or the document ends
+        }
+        if (read == -1){
+            return false;
+        }
+        mLimit = read;
+        return true;
+    }
+
+    /**
+     * Tells whether a character is JSON whitespace.
+     *
+     * @param c the character.
+     * @return true if the character is whitespace, false otherwise.
+     */
+    private static boolean isWhitespace(int c){
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * Creates an exception saying where in the document the problem is.
+     *
+     * @param message the problem.
+     * @return the exception.
+     */
+    private DecodingException error(@NonNull String message){
+        return new DecodingException(message + " at character " + (mOffset + mPosition));
+    }
+
+
+    /**
+     * The types of token in a JSON document.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public enum Token{
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT
+    }
+}
@@ -0,0 +1,163 @@
+package es.sandwatch.httprequests;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram.
+ * Values under 32 get a bucket each, and every power of two above that is split in 32
+ * buckets, so percentiles are accurate to about 3% whatever the magnitude. Recording a
+ * value is a couple of atomic increments.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class LatencyHistogram{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    //Values up to 2^32 microseconds, over an hour, have a bucket of their own
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKETS = SUB_BUCKETS
+            + (MAX_EXPONENT - SUB_BUCKET_BITS + 1)*SUB_BUCKETS;
+
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+
+    /**
+     * Constructor.
+     */
+    LatencyHistogram(){
+        mCounts = new AtomicLongArray(BUCKETS);
+        mCount = new AtomicLong();
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, negative values are ignored.
+     */
+    void record(long value){
+        if (value < 0){
+            return;
+        }
+        mCounts.incrementAndGet(indexOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)){
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Copies the counts of every bucket. Values recorded while copying may or may not
+     * be included.
+     *
+     * @return the counts.
+     */
+    long[] copyCounts(){
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++){
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Getter for the number of values recorded.
+     *
+     * @return the number of values.
+     */
+    long getCount(){
+        return mCount.get();
+    }
+
+    /**
+     * Getter for the sum of the values recorded.
+     *
+     * @return the sum.
+     */
+    long getSum(){
+        return mSum.get();
+    }
+
+    /**
+     * Getter for the largest value recorded.
+     *
+     * @return the largest value, or 0 if none were recorded.
+     */
+    long getMax(){
+        return mMax.get();
+    }
+
+    /**
+     * Finds a percentile in a copy of the counts.
+     *
+     * @param counts the counts, as returned by copyCounts().
+     * @param percentile the percentile, between 0 and 100.
+     * @param max the largest value recorded, which bounds the result.
+     * @return the highest value equivalent to the percentile, or 0 if there are no values.
+     */
+    static long getPercentile(long[] counts, double percentile, long max){
+        long total = 0;
+        for (long count:counts){
+            total += count;
+        }
+        if (total == 0){
+            return 0;
+        }
+        //The rank of the value we're after, at least the first value
+        long rank = Math.max(1, (long)Math.ceil(total*Math.min(100, percentile)/100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if (seen >= rank){
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value the value, not negative.
+     * @return the index of the bucket.
+     */
+    static int indexOf(long value){
+        if (value < SUB_BUCKETS){
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT){
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift*SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the highest value that falls in a bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the highest value of the bucket.
+     */
+    static long highestValueOf(int index){
+        if (index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS)/SUB_BUCKETS;
+        long subBucket = (index - SUB_BUCKETS)%SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,944 @@
+package es.sandwatch.httprequests;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Non-blocking engine. A single selector thread drives every connection, so the number of
+ * requests in flight is not bound by the number of threads; worker threads are only used
+ * to resolve host names and to hand the response bodies over as they arrive. When the
+ * consumer of a body falls behind, the engine stops reading from its socket until it
+ * catches up.
+ *
+ * Every exchange uses a fresh connection. TLS is not handled by this engine, https
+ * requests are carried out by an UrlConnectionEngine instead.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class NioEngine implements HttpEngine{
+    private static final String TAG = "NioEngine";
+
+    private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+    private static final int BUFFER_SIZE = 8*1024;
+    private static final int MAX_QUEUED_CHUNKS = 16;
+    private static final int DEFAULT_PORT = 80;
+    private static final String HEAD_ENCODING = "ISO-8859-1";
+
+
+    private final int mThreadPoolSize;
+    private final UrlConnectionEngine mSecureEngine;
+    private final Queue<Runnable> mSelectorTasks;
+
+    private ExecutorService mWorkers;
+    private Selector mSelector;
+    private volatile boolean mRunning;
+    //Why the selector thread is gone, calls that reach it from then on fail with it
+    private volatile Throwable mFailure;
+
+
+    /**
+     * Constructor. Uses the default number of worker threads.
+     */
+    public NioEngine(){
+        this(DEFAULT_THREAD_POOL_SIZE);
+    }
+
+    /**
+     * Constructor. The worker threads don't bound the number of requests in flight, but
+     * they do bound the number of bodies that can be consumed at the same time. The same
+     * number of threads is used for https requests.
+     *
+     * @param threadPoolSize the number of worker threads.
+     */
+    public NioEngine(int threadPoolSize){
+        if (threadPoolSize < 1){
+            throw new IllegalArgumentException("The thread pool size must be at least 1.");
+        }
+        mThreadPoolSize = threadPoolSize;
+        mSecureEngine = new UrlConnectionEngine(threadPoolSize);
+        mSelectorTasks = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public void start(@NonNull Context context){
+        mSecureEngine.start(context);
+        mWorkers = Executors.newFixedThreadPool(mThreadPoolSize,
+                new EngineThreadFactory("HttpRequest-Nio"));
+        try{
+            mSelector = Selector.open();
+        }
+        catch (IOException iox){
+            throw new IllegalStateException("The selector couldn't be opened: " + iox.getMessage());
+        }
+        mRunning = true;
+        mFailure = null;
+        new EngineThreadFactory("HttpRequest-NioSelector").newThread(new Runnable(){
+            @Override
+            public void run(){
+                loop();
+            }
+        }).start();
+    }
+
+    @Override
+    public void execute(@NonNull HttpCall call){
+        if (call.getUrl().regionMatches(true, 0, "https:", 0, 6)){
+            mSecureEngine.execute(call);
+        }
+        else if (mFailure != null){
+            call.deliverFailure(mFailure);
+        }
+        else{
+            final Exchange exchange = new Exchange(call);
+            call.setTag(exchange);
+            mWorkers.execute(new Runnable(){
+                @Override
+                public void run(){
+                    exchange.prepare();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void cancel(@NonNull HttpCall call){
+        final Object exchange = call.getTag();
+        if (exchange instanceof Exchange){
+            runOnSelector(new Runnable(){
+                @Override
+                public void run(){
+                    ((Exchange)exchange).abort(new InterruptedIOException("Cancelled"));
+                }
+            });
+        }
+        else{
+            mSecureEngine.cancel(call);
+        }
+    }
+
+    @Override
+    public void stop(){
+        mRunning = false;
+        mSelector.wakeup();
+        mWorkers.shutdownNow();
+        mSecureEngine.stop();
+    }
+
+    /**
+     * Queues a task to be run in the selector thread. Once the selector thread is gone,
+     * tasks are run right away in the calling thread, where they fail their exchanges.
+     *
+     * @param task the task.
+     */
+    private void runOnSelector(@NonNull Runnable task){
+        mSelectorTasks.add(task);
+        if (mFailure != null){
+            runTasks();
+        }
+        else{
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the queued selector tasks.
+     */
+    private void runTasks(){
+        Runnable task;
+        while ((task = mSelectorTasks.poll()) != null){
+            task.run();
+        }
+    }
+
+    /**
+     * The selector loop. Runs queued tasks, processes the ready connections, and times
+     * out the ones that have been idle for too long. If the selector fails the engine
+     * stops as if it had been stopped, failing the calls in flight and every call that
+     * comes after with the cause.
+     */
+    private void loop(){
+        Throwable failure;
+        try{
+            while (mRunning){
+                //Without connections there's nothing to time out, block until woken up
+                long deadline = nextDeadline();
+                if (deadline == Long.MAX_VALUE){
+                    mSelector.select();
+                }
+                else{
+                    mSelector.select(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+
+                runTasks();
+
+                for (SelectionKey key:mSelector.selectedKeys()){
+                    Exchange exchange = (Exchange)key.attachment();
+                    try{
+                        if (key.isValid() && key.isConnectable()){
+                            exchange.onConnectable();
+                        }
+                        if (key.isValid() && key.isWritable()){
+                            exchange.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()){
+                            exchange.onReadable();
+                        }
+                    }
+                    catch (IOException iox){
+                        exchange.abort(iox);
+                    }
+                }
+                mSelector.selectedKeys().clear();
+
+                //Retries register new keys, so the expired exchanges are collected first
+                long now = System.currentTimeMillis();
+                List<Exchange> expired = new ArrayList<>();
+                for (SelectionKey key:mSelector.keys()){
+                    Exchange exchange = (Exchange)key.attachment();
+                    if (key.isValid() && exchange.mDeadline <= now){
+                        expired.add(exchange);
+                    }
+                }
+                for (Exchange exchange:expired){
+                    exchange.onTimeout();
+                }
+            }
+            failure = new InterruptedIOException("Engine stopped");
+        }
+        catch (IOException iox){
+            failure = onSelectorFailure(iox);
+        }
+        catch (RuntimeException rx){
+            failure = onSelectorFailure(rx);
+        }
+
+        //Whatever is queued or comes later fails as soon as it reaches the selector
+        mFailure = failure;
+        mRunning = false;
+        for (SelectionKey key:mSelector.keys()){
+            ((Exchange)key.attachment()).abort(failure);
+        }
+        runTasks();
+        try{
+            mSelector.close();
+        }
+        catch (IOException iox){
+            //Nothing to do
+        }
+    }
+
+    /**
+     * Logs the failure of the selector thread and creates the error calls fail with from
+     * then on. A broken engine isn't a connectivity problem, so the error isn't an IOException.
+     *
+     * @param cause what made the selector thread fail.
+     * @return the error.
+     */
+    private static Throwable onSelectorFailure(@NonNull Exception cause){
+        Log.e(TAG, "The selector thread failed: " + cause);
+        return new IllegalStateException("The selector thread failed: " + cause);
+    }
+
+    /**
+     * Finds the earliest deadline among the registered connections.
+     *
+     * @return the earliest deadline, or Long.MAX_VALUE if there isn't any.
+     */
+    private long nextDeadline(){
+        long deadline = Long.MAX_VALUE;
+        for (SelectionKey key:mSelector.keys()){
+            if (key.isValid()){
+                deadline = Math.min(deadline, ((Exchange)key.attachment()).mDeadline);
+            }
+        }
+        return deadline;
+    }
+
+
+    /**
+     * A call being carried out by this engine. Apart from prepare() and consume(), which
+     * run in worker threads, every method runs in the selector thread.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private class Exchange{
+        private final HttpCall mCall;
+        private final int mTimeout;
+
+        private InetSocketAddress mAddress;
+        private byte[] mRequestHead;
+        private byte[] mRequestBody;
+
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private ByteBuffer[] mOutput;
+        private ByteBuffer mInput;
+        private ByteArrayOutputStream mResponseHead;
+        private BodyStream mBody;
+        private long mDeadline;
+
+
+        /**
+         * Constructor.
+         *
+         * @param call the call to carry out.
+         */
+        private Exchange(@NonNull HttpCall call){
+            mCall = call;
+            mTimeout = call.getTimeout();
+            mDeadline = Long.MAX_VALUE;
+        }
+
+        /**
+         * Resolves the host and encodes the request, then hands the exchange over to the
+         * selector thread. Runs in a worker thread, since resolving may block.
+         */
+        private void prepare(){
+            if (mCall.isCancelled() || mCall.failIfExpired()){
+                return;
+            }
+            mCall.reportConnectStart();
+            try{
+                URL url = new URL(mCall.getUrl());
+                int port = url.getPort() != -1 ? url.getPort() : DEFAULT_PORT;
+                mAddress = new InetSocketAddress(url.getHost(), port);
+                if (mAddress.isUnresolved()){
+                    throw new IOException("Unable to resolve host " + url.getHost());
+                }
+                mRequestBody = mCall.getBody();
+                mRequestHead = encodeHead(url);
+            }
+            catch (IOException iox){
+                mCall.deliverFailure(iox);
+                return;
+            }
+            runOnSelector(new Runnable(){
+                @Override
+                public void run(){
+                    connect();
+                }
+            });
+        }
+
+        /**
+         * Encodes the request line and the headers.
+         *
+         * @param url the url of the request.
+         * @return the encoded head of the request.
+         * @throws IOException if the head can't be encoded.
+         */
+        private byte[] encodeHead(@NonNull URL url) throws IOException{
+            StringBuilder head = new StringBuilder();
+            String path = url.getFile().length() != 0 ? url.getFile() : "/";
+            head.append(mCall.getMethod().name()).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1){
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+            for (Map.Entry<String, String> header:mCall.getHeaders().entrySet()){
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (mRequestBody != null){
+                head.append("Content-Type: ").append(mCall.getBodyContentType()).append("\r\n");
+                head.append("Content-Length: ").append(mRequestBody.length).append("\r\n");
+            }
+            head.append("Connection: close\r\n\r\n");
+            return head.toString().getBytes(HEAD_ENCODING);
+        }
+
+        /**
+         * Opens a connection and starts an attempt.
+         */
+        private void connect(){
+            if (mCall.isCancelled()){
+                return;
+            }
+            if (mFailure != null){
+                mCall.deliverFailure(mFailure);
+                return;
+            }
+            if (mRequestBody == null){
+                mOutput = new ByteBuffer[]{ByteBuffer.wrap(mRequestHead)};
+            }
+            else{
+                mOutput = new ByteBuffer[]{
+                        ByteBuffer.wrap(mRequestHead), ByteBuffer.wrap(mRequestBody)
+                };
+            }
+            mInput = ByteBuffer.allocate(BUFFER_SIZE);
+            mResponseHead = new ByteArrayOutputStream();
+            mDeadline = System.currentTimeMillis() + mTimeout;
+            try{
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                if (mChannel.connect(mAddress)){
+                    mCall.reportConnectEnd();
+                    mKey = mChannel.register(mSelector, SelectionKey.OP_WRITE, this);
+                }
+                else{
+                    mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT, this);
+                }
+            }
+            catch (IOException iox){
+                abort(iox);
+            }
+        }
+
+        /**
+         * Completes the connection.
+         *
+         * @throws IOException if the connection can't be established.
+         */
+        private void onConnectable() throws IOException{
+            if (mChannel.finishConnect()){
+                mCall.reportConnectEnd();
+                mKey.interestOps(SelectionKey.OP_WRITE);
+                mDeadline = System.currentTimeMillis() + mTimeout;
+            }
+        }
+
+        /**
+         * Writes as much of the request as the socket takes.
+         *
+         * @throws IOException if the request can't be written.
+         */
+        private void onWritable() throws IOException{
+            mChannel.write(mOutput);
+            mDeadline = System.currentTimeMillis() + mTimeout;
+            if (!mOutput[mOutput.length - 1].hasRemaining()){
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Reads whatever is available, parsing the head of the response if it hasn't been
+         * parsed yet and queueing the body for the consumer otherwise.
+         *
+         * @throws IOException if the response can't be read.
+         */
+        private void onReadable() throws IOException{
+            mInput.clear();
+            int read = mChannel.read(mInput);
+            if (read == -1){
+                if (mBody == null){
+                    throw new EOFException("Connection closed before a response was received");
+                }
+                mBody.finish();
+                close();
+                return;
+            }
+            mDeadline = System.currentTimeMillis() + mTimeout;
+            mInput.flip();
+
+            if (mBody == null){
+                mResponseHead.write(mInput.array(), 0, mInput.limit());
+                byte[] head = mResponseHead.toByteArray();
+                int end = findHeadEnd(head);
+                if (end != -1){
+                    final Response response = parseHead(new String(head, 0, end, HEAD_ENCODING));
+                    mResponseHead = null;
+                    mBody = new BodyStream(this);
+                    if (end < head.length){
+                        byte[] chunk = new byte[head.length - end];
+                        System.arraycopy(head, end, chunk, 0, chunk.length);
+                        mBody.offer(chunk);
+                    }
+                    mWorkers.execute(new Runnable(){
+                        @Override
+                        public void run(){
+                            consume(response);
+                        }
+                    });
+                }
+            }
+            else{
+                byte[] chunk = new byte[mInput.limit()];
+                mInput.get(chunk);
+                mBody.offer(chunk);
+            }
+
+            //Stop reading until the consumer catches up
+            if (mBody != null && mBody.isFull()){
+                mKey.interestOps(0);
+                mDeadline = Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Resumes reading after the consumer caught up.
+         */
+        private void resume(){
+            if (mKey != null && mKey.isValid()){
+                mKey.interestOps(SelectionKey.OP_READ);
+                mDeadline = System.currentTimeMillis() + mTimeout;
+            }
+        }
+
+        /**
+         * Times the exchange out. Failed calls are retried by HttpRequest, not here.
+         */
+        private void onTimeout(){
+            abort(new SocketTimeoutException("Timed out after " + mTimeout + " ms"));
+        }
+
+        /**
+         * Hands the body over to the call. Runs in a worker thread and blocks for as long
+         * as the consumer keeps reading the body.
+         *
+         * @param response the head of the response.
+         */
+        private void consume(@NonNull Response response){
+            InputStream body = mBody;
+            String transferEncoding = HttpCall.getHeader(response.mHeaders, "Transfer-Encoding");
+            String contentLength = HttpCall.getHeader(response.mHeaders, "Content-Length");
+            if (response.mStatusCode == 204 || response.mStatusCode == 304){
+                //These never carry a body, whatever the headers say
+                body = new FixedLengthInputStream(body, 0);
+            }
+            else if (transferEncoding != null
+                    && transferEncoding.toLowerCase(Locale.US).contains("chunked")){
+
+                body = new ChunkedInputStream(body);
+            }
+            else if (contentLength != null){
+                try{
+                    body = new FixedLengthInputStream(body, Long.parseLong(contentLength.trim()));
+                }
+                catch (NumberFormatException nfx){
+                    //Read until the connection is closed
+                }
+            }
+            mCall.deliverResponse(response.mStatusCode, response.mHeaders, body);
+            runOnSelector(new Runnable(){
+                @Override
+                public void run(){
+                    close();
+                }
+            });
+        }
+
+        /**
+         * Fails the exchange. If the response is being consumed, the error is raised in the
+         * consumer; otherwise the call is failed.
+         *
+         * @param error the cause of the failure.
+         */
+        private void abort(@NonNull Throwable error){
+            close();
+            if (mBody != null){
+                mBody.fail(error instanceof IOException ? (IOException)error
+                        : new IOException(error.getMessage()));
+            }
+            else{
+                mCall.deliverFailure(error);
+            }
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close(){
+            mDeadline = Long.MAX_VALUE;
+            if (mChannel != null){
+                try{
+                    mChannel.close();
+                }
+                catch (IOException iox){
+                    //Nothing to do
+                }
+                mChannel = null;
+                mKey = null;
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the head of a response.
+     *
+     * @param data the data received so far.
+     * @return the index of the first byte of the body, or -1 if the head isn't complete.
+     */
+    private static int findHeadEnd(@NonNull byte[] data){
+        for (int i = 3; i < data.length; i++){
+            if (data[i] == '\n' && data[i - 1] == '\r'
+                    && data[i - 2] == '\n' && data[i - 3] == '\r'){
+
+
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the status line and the headers of a response.
+     *
+     * @param head the head of the response.
+     * @return the parsed head.
+     * @throws IOException if the head is malformed.
+     */
+    private static Response parseHead(@NonNull String head) throws IOException{
+        String[] lines = head.split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")){
+            throw new IOException("Invalid HTTP response");
+        }
+
+        Response response = new Response();
+        try{
+            response.mStatusCode = Integer.parseInt(statusLine[1]);
+        }
+        catch (NumberFormatException nfx){
+            throw new IOException("Invalid HTTP status " + statusLine[1]);
+        }
+        for (int i = 1; i < lines.length; i++){
+            int separator = lines[i].indexOf(':');
+            if (separator > 0){
+                String name = lines[i].substring(0, separator).trim();
+                String value = lines[i].substring(separator + 1).trim();
+                String previous = response.mHeaders.get(name);
+                response.mHeaders.put(name, previous == null ? value : previous + ", " + value);
+            }
+        }
+        return response;
+    }
+
+
+    /**
+     * The status code and headers of a response.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class Response{
+        private int mStatusCode;
+        private final Map<String, String> mHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+
+    /**
+     * Stream of the raw bytes of a body. The selector thread queues chunks as they arrive
+     * and the consumer blocks until there's something to read.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private class BodyStream extends InputStream{
+        private final Exchange mExchange;
+        private final LinkedList<byte[]> mChunks;
+        private byte[] mChunk;
+        private int mPosition;
+        private boolean mFinished;
+        private boolean mPaused;
+        private IOException mError;
+
+
+        /**
+         * Constructor.
+         *
+         * @param exchange the exchange the body belongs to.
+         */
+        private BodyStream(@NonNull Exchange exchange){
+            mExchange = exchange;
+            mChunks = new LinkedList<>();
+            mFinished = false;
+            mPaused = false;
+        }
+
+        /**
+         * Queues a chunk. Called from the selector thread.
+         *
+         * @param chunk the chunk.
+         */
+        private synchronized void offer(@NonNull byte[] chunk){
+            mChunks.add(chunk);
+            notifyAll();
+        }
+
+        /**
+         * Tells whether the queue is full, pausing the stream if so. Called from the
+         * selector thread.
+         *
+         * @return true if the queue is full.
+         */
+        private synchronized boolean isFull(){
+            mPaused = mChunks.size() >= MAX_QUEUED_CHUNKS;
+            return mPaused;
+        }
+
+        /**
+         * Flags the end of the body. Called from the selector thread.
+         */
+        private synchronized void finish(){
+            mFinished = true;
+            notifyAll();
+        }
+
+        /**
+         * Flags an error, which will be thrown to the consumer. Called from the selector
+         * thread.
+         *
+         * @param error the error.
+         */
+        private synchronized void fail(@NonNull IOException error){
+            mError = error;
+            notifyAll();
+        }
+
+        /**
+         * Makes sure there is a chunk with data to read, waiting for one if necessary.
+         *
+         * @return true if there is data, false if the body is over.
+         * @throws IOException if the exchange failed or the consumer was interrupted.
+         */
+        private synchronized boolean fill() throws IOException{
+            while (mChunk == null || mPosition == mChunk.length){
+                if (mError != null){
+                    throw mError;
+                }
+                if (!mChunks.isEmpty()){
+                    mChunk = mChunks.removeFirst();
+                    mPosition = 0;
+                    if (mPaused && mChunks.size() <= MAX_QUEUED_CHUNKS/2){
+                        mPaused = false;
+                        runOnSelector(new Runnable(){
+                            @Override
+                            public void run(){
+                                mExchange.resume();
+                            }
+                        });
+                    }
+                }
+                else if (mFinished){
+                    return false;
+                }
+                else{
+                    try{
+                        wait();
+                    }
+                    catch (InterruptedException ix){
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException{
+            if (!fill()){
+                return -1;
+            }
+            return mChunk[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException{
+            if (length == 0){
+                return 0;
+            }
+            if (!fill()){
+                return -1;
+            }
+            int count = Math.min(length, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available(){
+            return mChunk != null ? mChunk.length - mPosition : 0;
+        }
+    }
+
+
+    /**
+     * Reads a body of a known length.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class FixedLengthInputStream extends InputStream{
+        private final InputStream mSource;
+        private long mRemaining;
+
+
+        /**
+         * Constructor.
+         *
+         * @param source the raw body.
+         * @param length the length of the body.
+         */
+        private FixedLengthInputStream(@NonNull InputStream source, long length){
+            mSource = source;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException{
+            if (mRemaining <= 0){
+                return -1;
+            }
+            int read = mSource.read();
+            if (read == -1){
+                throw new EOFException("Unexpected end of body");
+            }
+            mRemaining--;
+            return read;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException{
+            if (mRemaining <= 0){
+                return -1;
+            }
+            int read = mSource.read(buffer, offset, (int)Math.min(length, mRemaining));
+            if (read == -1){
+                throw new EOFException("Unexpected end of body");
+            }
+            mRemaining -= read;
+            return read;
+        }
+    }
+
+
+    /**
+     * Decodes a body sent with the chunked transfer encoding.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class ChunkedInputStream extends InputStream{
+        private final InputStream mSource;
+        private long mRemaining;
+        private boolean mFinished;
+
+
+        /**
+         * Constructor.
+         *
+         * @param source the raw body.
+         */
+        private ChunkedInputStream(@NonNull InputStream source){
+            mSource = source;
+            mRemaining = 0;
+            mFinished = false;
+        }
+
+        /**
+         * Reads a line, without the line terminator.
+         *
+         * @return the line.
+         * @throws IOException if the line can't be read.
+         */
+        private String readLine() throws IOException{
+            StringBuilder line = new StringBuilder();
+            int read;
+            while ((read = mSource.read()) != '\n'){
+                if (read == -1){
+                    throw new EOFException("Unexpected end of chunked body");
+                }
+                if (read != '\r'){
+                    line.append((char)read);
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * Moves on to the next chunk if the current one is over.
+         *
+         * @return true if there is data to read, false if the body is over.
+         * @throws IOException if the body is malformed.
+         */
+        private boolean nextChunk() throws IOException{
+            if (mFinished){
+                return false;
+            }
+            if (mRemaining == 0){
+                String size = readLine();
+                //Skip the line break after the previous chunk
+                if (size.length() == 0){
+                    size = readLine();
+                }
+                int extension = size.indexOf(';');
+                if (extension != -1){
+                    size = size.substring(0, extension);
+                }
+                try{
+                    mRemaining = Long.parseLong(size.trim(), 16);
+                }
+                catch (NumberFormatException nfx){
+                    throw new IOException("Invalid chunk size " + size);
+                }
+                if (mRemaining == 0){
+                    //Skip the trailers
+                    String trailer;
+                    do{
+                        trailer = readLine();
+                    }
+                    while (trailer.length() != 0);
+                    mFinished = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException{
+            if (!nextChunk()){
+                return -1;
+            }
+            int read = mSource.read();
+            if (read == -1){
+                throw new EOFException("Unexpected end of chunked body");
+            }
+            mRemaining--;
+            return read;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException{
+            if (!nextChunk()){
+                return -1;
+            }
+            int read = mSource.read(buffer, offset, (int)Math.min(length, mRemaining));
+            if (read == -1){
+                throw new EOFException("Unexpected end of chunked body");
+            }
+            mRemaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+
+/**
+ * A set of requests carried out as a whole, with a bounded number of them in flight at a
+ * time, and a single callback that reports the progress and the completion of the batch.
+ * Requests are added to the batch, which is then handed to HttpRequest.batch(). Once the
+ * batch is complete, the result or the error of every request can be read from it.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestBatch{
+    /**
+     * The number of requests of a batch in flight at a time, by default.
+     */
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
+
+    private final int mMaxParallel;
+    private final HttpRequest.Priority mPriority;
+    private final List<Member> mMembers;
+
+    private HttpRequest.BatchCallback mCallback;
+    private Executor mDeliveryExecutor;
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mSending;
+    private int mNext;
+    private int mRunning;
+    private int mCompleted;
+    private int mErrorCount;
+
+
+    /**
+     * Constructor. Up to DEFAULT_MAX_PARALLEL requests are in flight at a time, with normal
+     * priority.
+     */
+    public RequestBatch(){
+        this(DEFAULT_MAX_PARALLEL, HttpRequest.Priority.NORMAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxParallel the maximum number of requests of this batch in flight at a time.
+     * @param priority the priority of the requests of this batch.
+     */
+    public RequestBatch(int maxParallel, @NonNull HttpRequest.Priority priority){
+        if (maxParallel < 1){
+            throw new IllegalArgumentException("The parallelism must be at least 1.");
+        }
+        mMaxParallel = maxParallel;
+        mPriority = priority;
+        mMembers = new ArrayList<>();
+
+        mCallback = null;
+        mDeliveryExecutor = null;
+        mStarted = false;
+        mCancelled = false;
+        mSending = false;
+        mNext = 0;
+        mRunning = 0;
+        mCompleted = 0;
+        mErrorCount = 0;
+    }
+
+    /**
+     * Adds a GET request to the batch.
+     *
+     * @param url the url to send the request to.
+     * @return the index of the request in the batch.
+     */
+    public int get(@NonNull String url){
+        return add(HttpRequest.Method.GET, url, null, null);
+    }
+
+    /**
+     * Adds a POST request to the batch.
+     *
+     * @param url the url to send the request to.
+     * @param body the body of the request.
+     * @return the index of the request in the batch.
+     */
+    public int post(@NonNull String url, @NonNull JSONObject body){
+        return add(HttpRequest.Method.POST, url, body, null);
+    }
+
+    /**
+     * Adds a PUT request to the batch.
+     *
+     * @param url the url to send the request to.
+     * @param body the body of the request.
+     * @return the index of the request in the batch.
+     */
+    public int put(@NonNull String url, @NonNull JSONObject body){
+        return add(HttpRequest.Method.PUT, url, body, null);
+    }
+
+    /**
+     * Adds a DELETE request to the batch.
+     *
+     * @param url the url to send the request to.
+     * @return the index of the request in the batch.
+     */
+    public int delete(@NonNull String url){
+        return add(HttpRequest.Method.DELETE, url, null, null);
+    }
+
+    /**
+     * Adds a request to the batch. Requests are sent in the order they were added.
+     *
+     * @param method the HTTP method of the request.
+     * @param url the url to send the request to.
+     * @param body the body of the request, or null.
+     * @param headers the headers of the request, or null.
+     * @return the index of the request in the batch.
+     * @throws IllegalStateException if the batch has been started already.
+     */
+    public synchronized int add(@NonNull HttpRequest.Method method, @NonNull String url,
+                                @Nullable JSONObject body, @Nullable Map<String, String> headers){
+
+        if (mStarted){
+            throw new IllegalStateException("Requests can't be added to a batch once started.");
+        }
+        mMembers.add(new Member(method, url, body, headers));
+        return mMembers.size() - 1;
+    }
+
+    /**
+     * Gets the number of requests in the batch.
+     *
+     * @return the number of requests.
+     */
+    public synchronized int size(){
+        return mMembers.size();
+    }
+
+    /**
+     * Gets the number of requests of the batch that have completed, either way.
+     *
+     * @return the number of completed requests.
+     */
+    public synchronized int getCompletedCount(){
+        return mCompleted;
+    }
+
+    /**
+     * Gets the number of requests of the batch that have failed.
+     *
+     * @return the number of failed requests.
+     */
+    public synchronized int getErrorCount(){
+        return mErrorCount;
+    }
+
+    /**
+     * Gets the result of a request of the batch.
+     *
+     * @param index the index of the request.
+     * @return the result, or null if the request hasn't completed or failed.
+     */
+    @Nullable
+    public synchronized String getResult(int index){
+        return mMembers.get(index).mResult;
+    }
+
+    /**
+     * Gets the error of a request of the batch.
+     *
+     * @param index the index of the request.
+     * @return the error, or null if the request hasn't completed or succeeded.
+     */
+    @Nullable
+    public synchronized HttpRequestError getError(int index){
+        return mMembers.get(index).mError;
+    }
+
+    /**
+     * Tells whether the batch has been cancelled.
+     *
+     * @return true if the batch has been cancelled, false otherwise.
+     */
+    public synchronized boolean isCancelled(){
+        return mCancelled;
+    }
+
+    /**
+     * Starts sending the requests of the batch.
+     *
+     * @param callback the callback of the batch.
+     * @param deliveryExecutor the executor the callback runs in.
+     * @throws IllegalStateException if the batch has been started already.
+     */
+    void start(@NonNull HttpRequest.BatchCallback callback, @NonNull Executor deliveryExecutor){
+        boolean empty;
+        synchronized (this){
+            if (mStarted){
+                throw new IllegalStateException("Batches can only be started once.");
+            }
+            mStarted = true;
+            mCallback = callback;
+            mDeliveryExecutor = deliveryExecutor;
+            empty = mMembers.isEmpty();
+        }
+        if (empty){
+            deliver(-1, 0, true);
+        }
+        else{
+            sendNext();
+        }
+    }
+
+    /**
+     * Cancels the batch. The requests in flight are cancelled the same way single requests
+     * are, the ones that haven't been sent yet never are, and the callback isn't called
+     * again.
+     *
+     * @return true if the batch was cancelled, false if it had completed or been cancelled.
+     */
+    boolean cancel(){
+        List<Integer> requestCodes = new ArrayList<>();
+        synchronized (this){
+            if (mCancelled || (mStarted && mCompleted == mMembers.size())){
+                return false;
+            }
+            mCancelled = true;
+            for (int i = 0; i < mNext; i++){
+                Member member = mMembers.get(i);
+                if (!member.mDone && member.mRequestCode != -1){
+                    requestCodes.add(member.mRequestCode);
+                }
+            }
+        }
+        for (int requestCode:requestCodes){
+            HttpRequest.cancel(requestCode);
+        }
+        return true;
+    }
+
+    /**
+     * Sends requests until the limit of requests in flight is reached or there are no
+     * more requests to send. Requests served from the memory cache complete before they
+     * are sent, and their completion calls this again. Only one caller sends at a time,
+     * the rest leave it to the loop that's running, which checks the limit again before
+     * every request, so the stack doesn't grow with the size of the batch.
+     */
+    private void sendNext(){
+        synchronized (this){
+            if (mSending){
+                return;
+            }
+            mSending = true;
+        }
+        while (true){
+            final int index;
+            Member member;
+            synchronized (this){
+                if (mCancelled || mRunning >= mMaxParallel || mNext == mMembers.size()){
+                    mSending = false;
+                    return;
+                }
+                index = mNext++;
+                mRunning++;
+                member = mMembers.get(index);
+            }
+
+            //Requests are called back right in the network thread, the batch takes care of
+            //  delivering its own callback
+            HttpRequest.RequestCallback callback = new HttpRequest.RequestCallback(){
+                @Override
+                public void onRequestComplete(int requestCode, String result){
+                    onMemberDone(index, result, null);
+                }
+
+                @Override
+                public void onRequestFailed(int requestCode, HttpRequestError error){
+                    onMemberDone(index, null, error);
+                }
+            };
+            int requestCode = HttpRequest.batchRequest(member.mMethod, callback, member.mUrl,
+                    member.mBody, member.mHeaders, mPriority);
+
+            boolean cancel;
+            synchronized (this){
+                //The request may be done already, and its code given to another request
+                cancel = mCancelled && !member.mDone;
+                if (!member.mDone){
+                    member.mRequestCode = requestCode;
+                }
+            }
+            if (cancel){
+                HttpRequest.cancel(requestCode);
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a request of the batch and sends the next one.
+     *
+     * @param index the index of the request.
+     * @param result the result, or null if the request failed.
+     * @param error the error, or null if the request succeeded.
+     */
+    private void onMemberDone(int index, @Nullable String result,
+                              @Nullable HttpRequestError error){
+
+        int completed;
+        boolean complete;
+        synchronized (this){
+            Member member = mMembers.get(index);
+            member.mDone = true;
+            member.mResult = result;
+            member.mError = error;
+            if (error != null){
+                mErrorCount++;
+            }
+            mRunning--;
+            completed = ++mCompleted;
+            complete = completed == mMembers.size();
+            if (mCancelled){
+                return;
+            }
+        }
+        deliver(index, completed, complete);
+        sendNext();
+    }
+
+    /**
+     * Hands the progress of the batch over to the callback through the delivery executor.
+     *
+     * @param index the index of the request that completed, or -1 if none did.
+     * @param completed the number of requests completed.
+     * @param complete whether the whole batch is complete.
+     */
+    private void deliver(final int index, final int completed, final boolean complete){
+        mDeliveryExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                if (isCancelled()){
+                    return;
+                }
+                if (index != -1){
+                    mCallback.onBatchProgress(RequestBatch.this, index, completed);
+                }
+                if (complete){
+                    mCallback.onBatchComplete(RequestBatch.this);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * A request of the batch and its outcome.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static final class Member{
+        private final HttpRequest.Method mMethod;
+        private final String mUrl;
+        private final JSONObject mBody;
+        private final Map<String, String> mHeaders;
+
+        private int mRequestCode;
+        private boolean mDone;
+        private String mResult;
+        private HttpRequestError mError;
+
+
+        /**
+         * Constructor.
+         *
+         * @param method the HTTP method of the request.
+         * @param url the url to send the request to.
+         * @param body the body of the request, or null.
+         * @param headers the headers of the request, or null.
+         */
+        private Member(@NonNull HttpRequest.Method method, @NonNull String url,
+                       @Nullable JSONObject body, @Nullable Map<String, String> headers){
+
+            mMethod = method;
+            mUrl = url;
+            mBody = body;
+            mHeaders = headers;
+
+            mRequestCode = -1;
+            mDone = false;
+            mResult = null;
+            mError = null;
+        }
+    }
+}
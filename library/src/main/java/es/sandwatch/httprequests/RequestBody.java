@@ -0,0 +1,256 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * The body of a request. Bodies are encoded at most once, the first time they are needed,
+ * and the encoded bytes are kept around so that retries don't encode them again.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestBody{
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final int BUFFER_SIZE = 8*1024;
+
+
+    /**
+     * Creates a body from a JSON object. The object is serialized using the encoding set
+     * in HttpRequest.
+     *
+     * @param json the JSON object.
+     * @return the body.
+     */
+    public static RequestBody fromJson(@NonNull JSONObject json){
+        return new RequestBody(json, null, null, null);
+    }
+
+    /**
+     * Creates a body from an already encoded array. The array is not copied, so it
+     * shouldn't be modified after being handed over.
+     *
+     * @param bytes the encoded body.
+     * @param contentType the content type of the body, or null for application/json.
+     * @return the body.
+     */
+    public static RequestBody fromBytes(@NonNull byte[] bytes, String contentType){
+        return new RequestBody(null, bytes, null, contentType);
+    }
+
+    /**
+     * Creates a body from the remaining content of an already encoded buffer. The position
+     * of the buffer is not modified. If the buffer is backed by an array that holds exactly
+     * its remaining content, the array is used as is; otherwise the content is copied once.
+     *
+     * @param buffer the encoded body.
+     * @param contentType the content type of the body, or null for application/json.
+     * @return the body.
+     */
+    public static RequestBody fromBuffer(@NonNull ByteBuffer buffer, String contentType){
+        byte[] bytes;
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length){
+
+            bytes = buffer.array();
+        }
+        else{
+            bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+        }
+        return new RequestBody(null, bytes, null, contentType);
+    }
+
+    /**
+     * Creates a body whose content is produced by a writer when the request is sent.
+     *
+     * @param writer the writer.
+     * @param contentType the content type of the body, or null for application/json.
+     * @return the body.
+     */
+    public static RequestBody fromWriter(@NonNull Writer writer, String contentType){
+        return new RequestBody(null, null, writer, contentType);
+    }
+
+    /**
+     * Creates a body that compresses another one with gzip. The request is sent with a
+     * Content-Encoding header, so the server needs to accept compressed bodies. Bodies
+     * produced by a writer are compressed as they are streamed, the rest are compressed
+     * once, the first time they are needed.
+     *
+     * @param body the body to compress.
+     * @return the compressed body.
+     */
+    public static RequestBody gzip(@NonNull RequestBody body){
+        if (body.mSource != null){
+            return body;
+        }
+        return new RequestBody(body);
+    }
+
+
+    private final JSONObject mJson;
+    private final Writer mWriter;
+    private final String mContentType;
+    private final RequestBody mSource;
+
+    private volatile byte[] mBytes;
+
+
+    /**
+     * Constructor. Exactly one of the sources must be set.
+     *
+     * @param json the JSON source.
+     * @param bytes the encoded source.
+     * @param writer the writer source.
+     * @param contentType the content type.
+     */
+    private RequestBody(JSONObject json, byte[] bytes, Writer writer, String contentType){
+        mJson = json;
+        mBytes = bytes;
+        mWriter = writer;
+        mContentType = contentType;
+        mSource = null;
+    }
+
+    /**
+     * Constructor for compressed bodies.
+     *
+     * @param source the body to compress.
+     */
+    private RequestBody(@NonNull RequestBody source){
+        mJson = null;
+        mBytes = null;
+        mWriter = null;
+        mContentType = null;
+        mSource = source;
+    }
+
+    /**
+     * Tells whether the body is compressed with gzip.
+     *
+     * @return true if the body is compressed, false otherwise.
+     */
+    boolean isCompressed(){
+        return mSource != null;
+    }
+
+    /**
+     * Gets the content type of the body. JSON bodies include the charset.
+     *
+     * @param encoding the name of the encoding used for JSON bodies.
+     * @return the content type.
+     */
+    String getContentType(@NonNull String encoding){
+        if (mSource != null){
+            return mSource.getContentType(encoding);
+        }
+        if (mJson != null){
+            return JSON_CONTENT_TYPE + "; charset=" + encoding;
+        }
+        return mContentType != null ? mContentType : JSON_CONTENT_TYPE;
+    }
+
+    /**
+     * Gets the length of the encoded body, if it is known without encoding it. The length
+     * of a compressed body is its compressed length.
+     *
+     * @return the length in bytes, or -1 if it is not known yet.
+     */
+    long getLength(){
+        byte[] bytes = mBytes;
+        return bytes != null ? bytes.length : -1;
+    }
+
+    /**
+     * Gets the length of the encoded body before it is compressed, if it is known without
+     * encoding it.
+     *
+     * @return the length in bytes, or -1 if it is not known yet.
+     */
+    long getUncompressedLength(){
+        return mSource != null ? mSource.getLength() : getLength();
+    }
+
+    /**
+     * Writes the encoded body to a stream. Bodies produced by a writer are streamed
+     * straight through without being buffered, the rest are encoded once.
+     *
+     * @param stream the stream to write the body to.
+     * @param encoding the name of the encoding used for JSON bodies.
+     * @throws IOException if the body can't be encoded or written.
+     */
+    void writeTo(@NonNull OutputStream stream, @NonNull String encoding) throws IOException{
+        if (mBytes == null && mWriter != null){
+            mWriter.writeBody(stream);
+        }
+        else if (mBytes == null && mSource != null && mSource.mBytes == null
+                && mSource.mWriter != null){
+
+            //The stream belongs to the engine, so the compressor is finished, not closed
+            GZIPOutputStream compressor = new GZIPOutputStream(stream, BUFFER_SIZE);
+            mSource.writeTo(compressor, encoding);
+            compressor.finish();
+        }
+        else{
+            stream.write(getBytes(encoding));
+        }
+    }
+
+    /**
+     * Gets the encoded body, encoding it the first time.
+     *
+     * @param encoding the name of the encoding used for JSON bodies.
+     * @return the encoded body.
+     * @throws IOException if the body can't be encoded.
+     */
+    byte[] getBytes(@NonNull String encoding) throws IOException{
+        byte[] bytes = mBytes;
+        if (bytes == null){
+            if (mJson != null){
+                bytes = mJson.toString().getBytes(encoding);
+            }
+            else if (mSource != null){
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(BUFFER_SIZE);
+                GZIPOutputStream compressor = new GZIPOutputStream(stream, BUFFER_SIZE);
+                compressor.write(mSource.getBytes(encoding));
+                compressor.close();
+                bytes = stream.toByteArray();
+            }
+            else{
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                mWriter.writeBody(stream);
+                bytes = stream.toByteArray();
+            }
+            //Two threads may race to encode the body, but the outcome is the same
+            mBytes = bytes;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Produces the content of a body.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Writer{
+        /**
+         * Writes the body of a request. Engines that stream bodies may call this once per
+         * attempt if the request is retried.
+         *
+         * @param stream the stream to write the body to.
+         * @throws IOException if the body can't be written.
+         */
+        void writeBody(OutputStream stream) throws IOException;
+    }
+}
@@ -1,28 +1,51 @@
 package es.sandwatch.httprequests;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /**
- * Generates unique request codes. The count resets after generating every million codes.
+ * Generates unique request identifiers and request codes. Identifiers are 64 bit values
+ * drawn from an atomic counter, so they are never repeated during the life of the process.
+ * Request codes are the positive int view of an identifier; they repeat every
+ * Integer.MAX_VALUE identifiers, but the registry never hands out a code that belongs to
+ * a request still in flight.
  *
  * @author Ismael Alonso
  * @version 1.0.0
  */
 abstract class RequestCodeGenerator{
-    private static final int MAX_REQUEST_CODE = 999999;
+    private static final int MAX_REQUEST_CODE = Integer.MAX_VALUE;
+
+    //Need to keep track of the last identifier delivered to avoid collisions
+    private static final AtomicLong sLastRequestId = new AtomicLong(0);
 
-    //Need to keep track of the last request code delivered to avoid collisions
-    private static int sLastRequestCode = 0;
 
+    /**
+     * Generates a unique request identifier. This is a single atomic increment of a shared
+     * counter, so concurrent callers never get the same identifier.
+     *
+     * @return the request identifier, always greater than zero.
+     */
+    static long generateLong(){
+        return sLastRequestId.incrementAndGet();
+    }
 
     /**
-     * Generates a unique request code.
+     * Generates a request code.
      *
      * @return the request code.
      */
     static int generate(){
-        if (sLastRequestCode >= MAX_REQUEST_CODE){
-            sLastRequestCode = 0;
-        }
-        return ++sLastRequestCode;
+        return toRequestCode(generateLong());
+    }
+
+    /**
+     * Maps a request identifier to its request code. Codes go from 1 to Integer.MAX_VALUE.
+     *
+     * @param requestId the request identifier.
+     * @return the request code.
+     */
+    static int toRequestCode(long requestId){
+        return (int)((requestId - 1) % MAX_REQUEST_CODE) + 1;
     }
 }
@@ -0,0 +1,38 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+
+/**
+ * Thrown by blocking requests and futures when a request fails. It carries the same
+ * HttpRequestError callbacks get.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public class RequestException extends Exception{
+    private static final long serialVersionUID = 1L;
+
+
+    private final HttpRequestError mError;
+
+
+    /**
+     * Constructor.
+     *
+     * @param error the error of the request.
+     */
+    RequestException(@NonNull HttpRequestError error){
+        super(error.getMessage());
+        mError = error;
+    }
+
+    /**
+     * Getter for the error of the request.
+     *
+     * @return the error.
+     */
+    public HttpRequestError getError(){
+        return mError;
+    }
+}
@@ -0,0 +1,612 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The pending result of a request, or of a composition of requests. Futures complete in
+ * the network thread, without going through the main thread, and can be chained with
+ * then() and map(), combined with all() and any(), and bounded with timeout(). Cancelling
+ * a future cancels the requests it's waiting for, the same way cancel(int) does.
+ *
+ * @param <T> the type of the result.
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestFuture<T> implements Future<T>{
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+
+    //Timeouts of every future and delayed retries share a single thread, created the first
+    //  time it's needed
+    private static ScheduledExecutorService sTimer;
+
+
+    private int mState;
+    private boolean mSettled;
+    private T mResult;
+    private HttpRequestError mError;
+    private int mRequestCode;
+    private List<Runnable> mListeners;
+    private final List<Future<?>> mUpstream;
+
+
+    /**
+     * Constructor.
+     */
+    RequestFuture(){
+        mState = PENDING;
+        mSettled = false;
+        mResult = null;
+        mError = null;
+        mRequestCode = -1;
+        mListeners = new ArrayList<>();
+        mUpstream = new ArrayList<>();
+    }
+
+    /**
+     * Creates a future that succeeds when every future in a list succeeds, with their
+     * results in the same order. If any of them fails or is cancelled, so is the future,
+     * and the rest are cancelled.
+     *
+     * @param futures the futures.
+     * @param <T> the type of the results.
+     * @return the future.
+     */
+    @NonNull
+    public static <T> RequestFuture<List<T>> all(
+            @NonNull final List<? extends RequestFuture<? extends T>> futures){
+
+        final RequestFuture<List<T>> future = new RequestFuture<>();
+        if (futures.isEmpty()){
+            future.succeed(Collections.<T>emptyList());
+            return future;
+        }
+        final Object[] results = new Object[futures.size()];
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int i = 0; i < futures.size(); i++){
+            final int index = i;
+            final RequestFuture<? extends T> input = futures.get(i);
+            future.addUpstream(input);
+            input.addListener(new Runnable(){
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run(){
+                    int state = input.getState();
+                    if (state == SUCCEEDED){
+                        results[index] = input.mResult;
+                        if (remaining.decrementAndGet() == 0){
+                            List<T> list = new ArrayList<>(results.length);
+                            for (Object result:results){
+                                list.add((T)result);
+                            }
+                            future.succeed(list);
+                        }
+                    }
+                    else if (state == FAILED){
+                        future.complete(FAILED, null, input.mError, futures);
+                    }
+                    else{
+                        future.cancel(false);
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Creates a future that succeeds as soon as any future in a list succeeds, with its
+     * result, and then cancels the rest. If all of them fail, the future fails with the
+     * error of the last one.
+     *
+     * @param futures the futures.
+     * @param <T> the type of the results.
+     * @return the future.
+     */
+    @NonNull
+    public static <T> RequestFuture<T> any(
+            @NonNull final List<? extends RequestFuture<? extends T>> futures){
+
+        final RequestFuture<T> future = new RequestFuture<>();
+        if (futures.isEmpty()){
+            future.cancel(false);
+            return future;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (final RequestFuture<? extends T> input:futures){
+            future.addUpstream(input);
+            input.addListener(new Runnable(){
+                @Override
+                public void run(){
+                    int state = input.getState();
+                    if (state == SUCCEEDED){
+                        future.complete(SUCCEEDED, input.mResult, null, futures);
+                    }
+                    else if (remaining.decrementAndGet() == 0){
+                        //This one failed or was cancelled, and so did every other one
+                        if (state == FAILED){
+                            future.fail(input.mError);
+                        }
+                        else{
+                            future.cancel(false);
+                        }
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Gets the thread timeouts and retries are scheduled in.
+     *
+     * @return the timer.
+     */
+    static synchronized ScheduledExecutorService getTimer(){
+        if (sTimer == null){
+            sTimer = Executors.newSingleThreadScheduledExecutor(
+                    new EngineThreadFactory("HttpRequest-Timer"));
+        }
+        return sTimer;
+    }
+
+    /**
+     * Chains another request that depends on the result of this one. The continuation is
+     * called in the network thread once this future succeeds, and the future returned
+     * completes with the future the continuation returns.
+     *
+     * @param continuation the continuation.
+     * @param <R> the type of the result of the next request.
+     * @return a future of the result of the next request.
+     */
+    @NonNull
+    public <R> RequestFuture<R> then(@NonNull final Continuation<? super T, R> continuation){
+        final RequestFuture<R> future = new RequestFuture<>();
+        future.addUpstream(this);
+        addListener(new Runnable(){
+            @Override
+            public void run(){
+                int state = getState();
+                if (state == SUCCEEDED){
+                    RequestFuture<R> next;
+                    try{
+                        next = continuation.then(mResult);
+                    }
+                    catch (Exception x){
+                        future.fail(new HttpRequestError(x));
+                        return;
+                    }
+                    future.follow(next);
+                }
+                else if (state == FAILED){
+                    future.fail(mError);
+                }
+                else{
+                    future.cancel(false);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Transforms the result of this future. The transformation is called in the network
+     * thread once this future succeeds.
+     *
+     * @param transformation the transformation.
+     * @param <R> the type of the transformed result.
+     * @return a future of the transformed result.
+     */
+    @NonNull
+    public <R> RequestFuture<R> map(
+            @NonNull final Transformation<? super T, ? extends R> transformation){
+
+        final RequestFuture<R> future = new RequestFuture<>();
+        future.addUpstream(this);
+        addListener(new Runnable(){
+            @Override
+            public void run(){
+                int state = getState();
+                if (state == SUCCEEDED){
+                    try{
+                        future.succeed(transformation.apply(mResult));
+                    }
+                    catch (Exception x){
+                        future.fail(new HttpRequestError(x));
+                    }
+                }
+                else if (state == FAILED){
+                    future.fail(mError);
+                }
+                else{
+                    future.cancel(false);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Bounds the time this future can take. If it isn't done by then, the future returned
+     * fails with an error that is neither a network nor a server error, and this one is
+     * cancelled.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return a future that completes like this one or times out.
+     */
+    @NonNull
+    public RequestFuture<T> timeout(final long timeout){
+        final RequestFuture<T> future = new RequestFuture<>();
+        final ScheduledFuture<?> timer = getTimer().schedule(new Runnable(){
+            @Override
+            public void run(){
+                TimeoutException cause = new TimeoutException("Timed out after " + timeout + "ms");
+                future.complete(FAILED, null, new HttpRequestError(cause),
+                        Collections.singletonList(RequestFuture.this));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        addListener(new Runnable(){
+            @Override
+            public void run(){
+                timer.cancel(false);
+            }
+        });
+        future.follow(this);
+        return future;
+    }
+
+    /**
+     * Adds a callback called when the future completes. Cancelled futures don't call
+     * their callbacks.
+     *
+     * @param callback the callback.
+     * @param executor the executor the callback runs in, like the ones in Delivery.
+     */
+    public void addCallback(@NonNull final Callback<? super T> callback,
+                            @NonNull Executor executor){
+
+        final Executor deliveryExecutor = Delivery.resolve(executor);
+        addListener(new Runnable(){
+            @Override
+            public void run(){
+                final int state = getState();
+                if (state == CANCELLED){
+                    return;
+                }
+                deliveryExecutor.execute(new Runnable(){
+                    @Override
+                    public void run(){
+                        if (state == SUCCEEDED){
+                            callback.onSuccess(mResult);
+                        }
+                        else{
+                            callback.onFailure(mError);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning){
+        return complete(CANCELLED, null, null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled(){
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone(){
+        return mSettled;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException{
+        try{
+            return await();
+        }
+        catch (RequestException rx){
+            throw new ExecutionException(rx);
+        }
+    }
+
+    @Override
+    public T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException{
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this){
+            while (!mSettled){
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0){
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            try{
+                return getOutcome();
+            }
+            catch (RequestException rx){
+                throw new ExecutionException(rx);
+            }
+        }
+    }
+
+    /**
+     * Waits for the future to complete.
+     *
+     * @return the result.
+     * @throws RequestException if the request failed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    synchronized T await() throws RequestException, InterruptedException{
+        while (!mSettled){
+            wait();
+        }
+        return getOutcome();
+    }
+
+    /**
+     * Gets the outcome of a future that has completed. Must be called holding the lock.
+     *
+     * @return the result.
+     * @throws RequestException if the request failed.
+     */
+    private T getOutcome() throws RequestException{
+        if (mState == CANCELLED){
+            throw new CancellationException();
+        }
+        if (mState == FAILED){
+            throw new RequestException(mError);
+        }
+        return mResult;
+    }
+
+    /**
+     * Associates the request this future waits for. If the future was cancelled before,
+     * the request is cancelled right away.
+     *
+     * @param requestCode the request code of the request.
+     */
+    void setRequestCode(int requestCode){
+        boolean cancel;
+        synchronized (this){
+            cancel = mState == CANCELLED;
+            if (mState == PENDING){
+                mRequestCode = requestCode;
+            }
+        }
+        if (cancel){
+            HttpRequest.cancel(requestCode);
+        }
+    }
+
+    /**
+     * Completes the future successfully.
+     *
+     * @param result the result.
+     * @return true if the future completed, false if it had completed before.
+     */
+    boolean succeed(T result){
+        return complete(SUCCEEDED, result, null, null);
+    }
+
+    /**
+     * Fails the future.
+     *
+     * @param error the error.
+     * @return true if the future completed, false if it had completed before.
+     */
+    boolean fail(@NonNull HttpRequestError error){
+        return complete(FAILED, null, error, null);
+    }
+
+    /**
+     * Completes the future like another one once that one completes. Cancelling this one
+     * cancels the other one.
+     *
+     * @param source the other future.
+     */
+    private void follow(@NonNull final RequestFuture<? extends T> source){
+        addUpstream(source);
+        source.addListener(new Runnable(){
+            @Override
+            public void run(){
+                int state = source.getState();
+                if (state == SUCCEEDED){
+                    succeed(source.mResult);
+                }
+                else if (state == FAILED){
+                    fail(source.mError);
+                }
+                else{
+                    cancel(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes the future, if it hasn't been completed already, and runs the listeners.
+     * Cancelling the future cancels its request and the futures it depends on. Whatever
+     * needs cancelling is cancelled before anyone waiting for the future is woken up.
+     *
+     * @param state the final state.
+     * @param result the result, if the future succeeded.
+     * @param error the error, if the future failed.
+     * @param others other futures to cancel along with the completion, or null.
+     * @return true if the future completed, false if it had completed before.
+     */
+    private boolean complete(int state, T result, HttpRequestError error,
+                             List<? extends Future<?>> others){
+
+        List<Runnable> listeners;
+        List<Future<?>> upstream = null;
+        int requestCode;
+        synchronized (this){
+            if (mState != PENDING){
+                return false;
+            }
+            mState = state;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            requestCode = mRequestCode;
+            if (state == CANCELLED){
+                upstream = new ArrayList<>(mUpstream);
+            }
+            mUpstream.clear();
+        }
+
+        if (state == CANCELLED){
+            if (requestCode != -1){
+                HttpRequest.cancel(requestCode);
+            }
+            for (Future<?> future:upstream){
+                future.cancel(false);
+            }
+        }
+        if (others != null){
+            for (Future<?> future:others){
+                future.cancel(false);
+            }
+        }
+        synchronized (this){
+            mSettled = true;
+            notifyAll();
+        }
+        for (Runnable listener:listeners){
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Adds a future this one depends on, which is cancelled if this one is.
+     *
+     * @param future the future.
+     */
+    private void addUpstream(@NonNull Future<?> future){
+        boolean cancel;
+        synchronized (this){
+            cancel = mState == CANCELLED;
+            if (mState == PENDING){
+                mUpstream.add(future);
+            }
+        }
+        if (cancel){
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Adds a listener run once the future completes, in the thread that completes it, or
+     * right away if it has completed already.
+     *
+     * @param listener the listener.
+     */
+    private void addListener(@NonNull Runnable listener){
+        synchronized (this){
+            if (mListeners != null){
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Gets the state of the future.
+     *
+     * @return the state.
+     */
+    private synchronized int getState(){
+        return mState;
+    }
+
+
+    /**
+     * Receives the outcome of a future.
+     *
+     * @param <T> the type of the result.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Callback<T>{
+        /**
+         * Called when the future succeeds.
+         *
+         * @param result the result.
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called when the future fails.
+         *
+         * @param error the object containing all the information about the error.
+         */
+        void onFailure(HttpRequestError error);
+    }
+
+
+    /**
+     * Makes the next request out of the result of the previous one.
+     *
+     * @param <T> the type of the result of the previous request.
+     * @param <R> the type of the result of the next request.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Continuation<T, R>{
+        /**
+         * Makes the next request. Called from the network thread.
+         *
+         * @param result the result of the previous request.
+         * @return the future of the next request.
+         * @throws Exception if the next request can't be made. The chain fails in that case.
+         */
+        RequestFuture<R> then(T result) throws Exception;
+    }
+
+
+    /**
+     * Transforms the result of a request.
+     *
+     * @param <T> the type of the result.
+     * @param <R> the type of the transformed result.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Transformation<T, R>{
+        /**
+         * Transforms the result. Called from the network thread.
+         *
+         * @param result the result.
+         * @return the transformed result.
+         * @throws Exception if the result can't be transformed. The future fails in that case.
+         */
+        R apply(T result) throws Exception;
+    }
+}
@@ -0,0 +1,375 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+
+/**
+ * Timings and figures of a single request, handed to the RequestMetricsListener once the
+ * request has been delivered. Times are in nanoseconds; the ones that don't apply to a
+ * request, like the connection time of a request served from the cache, are -1.
+ *
+ * Requests that share a call with identical requests in flight share its network
+ * timings, but each of them has its own queue, delivery and total times.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestMetrics{
+    private static final long UNKNOWN = -1;
+
+
+    private final int mRequestCode;
+    private final long mRequestId;
+    private final HttpRequest.Method mMethod;
+    private final String mUrl;
+    private final long mStartedAt;
+
+    private CacheStatus mCacheStatus;
+    private boolean mShared;
+    private int mStatusCode;
+    private HttpRequestError mError;
+    private int mRetryCount;
+    private long mBytesSent;
+    private long mBytesReceived;
+    private long mUncompressedBytesSent;
+    private long mUncompressedBytesReceived;
+
+    private long mQueueTime;
+    private long mConnectTime;
+    private long mTimeToFirstByte;
+    private long mTransferTime;
+    private long mParseTime;
+    private long mDeliveryTime;
+    private long mTotalTime;
+
+
+    /**
+     * Constructor. Called when the request is made.
+     *
+     * @param requestCode the request code of the request.
+     * @param requestId the identifier of the request.
+     * @param method the HTTP method of the request.
+     * @param url the processed url of the request.
+     */
+    RequestMetrics(int requestCode, long requestId, @NonNull HttpRequest.Method method,
+                   @NonNull String url){
+
+        mRequestCode = requestCode;
+        mRequestId = requestId;
+        mMethod = method;
+        mUrl = url;
+        mStartedAt = System.nanoTime();
+
+        mCacheStatus = CacheStatus.NETWORK;
+        mShared = false;
+        mStatusCode = -1;
+        mError = null;
+        mRetryCount = 0;
+        mBytesSent = UNKNOWN;
+        mBytesReceived = UNKNOWN;
+        mUncompressedBytesSent = UNKNOWN;
+        mUncompressedBytesReceived = UNKNOWN;
+
+        mQueueTime = UNKNOWN;
+        mConnectTime = UNKNOWN;
+        mTimeToFirstByte = UNKNOWN;
+        mTransferTime = UNKNOWN;
+        mParseTime = UNKNOWN;
+        mDeliveryTime = UNKNOWN;
+        mTotalTime = UNKNOWN;
+    }
+
+    /**
+     * Records where the result of the request came from.
+     *
+     * @param cacheStatus the source of the result.
+     */
+    void setCacheStatus(@NonNull CacheStatus cacheStatus){
+        mCacheStatus = cacheStatus;
+    }
+
+    /**
+     * Records that the request got the result of an identical request in flight.
+     */
+    void setShared(){
+        mShared = true;
+    }
+
+    /**
+     * Records the network timings of the call that carried out the request.
+     *
+     * @param call the call.
+     * @param statusCode the HTTP status code, or -1 if there wasn't a response.
+     * @param bytesReceived the length of the body of the response once decompressed, or -1
+     *                      if unknown.
+     * @param readAt when the body was read, or 0 if it wasn't.
+     * @param parsedAt when the body was decoded, or 0 if it wasn't.
+     */
+    void recordCall(@NonNull HttpCall call, int statusCode, long bytesReceived, long readAt,
+                    long parsedAt){
+
+        mStatusCode = statusCode;
+        mRetryCount = call.getAttempt();
+        mBytesSent = call.getBodyLength();
+        mUncompressedBytesSent = call.getUncompressedBodyLength();
+        long compressedLength = call.getCompressedLength();
+        mBytesReceived = compressedLength != UNKNOWN ? compressedLength : bytesReceived;
+        mUncompressedBytesReceived = bytesReceived;
+
+        long dispatchedAt = call.getDispatchedAt();
+        long respondedAt = call.getRespondedAt();
+        if (dispatchedAt != 0){
+            //Requests that joined a call that was already sent didn't wait at all
+            mQueueTime = Math.max(0, dispatchedAt - mStartedAt);
+            if (respondedAt != 0){
+                mTimeToFirstByte = respondedAt - dispatchedAt;
+            }
+        }
+        long connectStartedAt = call.getConnectStartedAt();
+        long connectEndedAt = call.getConnectEndedAt();
+        if (connectStartedAt != 0 && connectEndedAt >= connectStartedAt){
+            mConnectTime = connectEndedAt - connectStartedAt;
+        }
+        if (respondedAt != 0 && readAt != 0){
+            mTransferTime = readAt - respondedAt;
+            if (parsedAt != 0){
+                mParseTime = parsedAt - readAt;
+            }
+        }
+    }
+
+    /**
+     * Records the delivery of the request. Called once the callback returns.
+     *
+     * @param postedAt when the result was handed to the delivery executor.
+     * @param error the error delivered, or null if the request succeeded.
+     */
+    void recordDelivery(long postedAt, @Nullable HttpRequestError error){
+        long now = System.nanoTime();
+        mDeliveryTime = now - postedAt;
+        mTotalTime = now - mStartedAt;
+        mError = error;
+        if (error != null && mStatusCode == -1){
+            mStatusCode = error.getStatusCode();
+        }
+    }
+
+    /**
+     * Getter for the request code.
+     *
+     * @return the request code.
+     */
+    public int getRequestCode(){
+        return mRequestCode;
+    }
+
+    /**
+     * Getter for the identifier of the request, which is never repeated.
+     *
+     * @return the identifier of the request.
+     */
+    public long getRequestId(){
+        return mRequestId;
+    }
+
+    /**
+     * Getter for the HTTP method.
+     *
+     * @return the HTTP method.
+     */
+    public HttpRequest.Method getMethod(){
+        return mMethod;
+    }
+
+    /**
+     * Getter for the url, with the url parameters already added.
+     *
+     * @return the url.
+     */
+    public String getUrl(){
+        return mUrl;
+    }
+
+    /**
+     * Tells where the result of the request came from.
+     *
+     * @return the source of the result.
+     */
+    public CacheStatus getCacheStatus(){
+        return mCacheStatus;
+    }
+
+    /**
+     * Tells whether the request got the result of an identical request in flight rather
+     * than being sent on its own.
+     *
+     * @return true if the request was shared, false otherwise.
+     */
+    public boolean isShared(){
+        return mShared;
+    }
+
+    /**
+     * Getter for the HTTP status code.
+     *
+     * @return the status code, or -1 if there wasn't a response or it came from the cache.
+     */
+    public int getStatusCode(){
+        return mStatusCode;
+    }
+
+    /**
+     * Getter for the error delivered to the callback.
+     *
+     * @return the error, or null if the request succeeded.
+     */
+    public HttpRequestError getError(){
+        return mError;
+    }
+
+    /**
+     * Getter for the number of times the request was retried.
+     *
+     * @return the number of retries.
+     */
+    public int getRetryCount(){
+        return mRetryCount;
+    }
+
+    /**
+     * Getter for the length of the body sent, as it was transferred, compressed if it was.
+     *
+     * @return the length in bytes, or -1 if there was no body or its length is unknown.
+     */
+    public long getBytesSent(){
+        return mBytesSent;
+    }
+
+    /**
+     * Getter for the length of the body received, as it was transferred, compressed if it
+     * was.
+     *
+     * @return the length in bytes, or -1 if it is unknown.
+     */
+    public long getBytesReceived(){
+        return mBytesReceived;
+    }
+
+    /**
+     * Getter for the length of the body sent before it was compressed. The same as the
+     * length sent if the body wasn't compressed.
+     *
+     * @return the length in bytes, or -1 if there was no body or its length is unknown.
+     */
+    public long getUncompressedBytesSent(){
+        return mUncompressedBytesSent;
+    }
+
+    /**
+     * Getter for the length of the body received once decompressed. The same as the
+     * length received if the body wasn't compressed.
+     *
+     * @return the length in bytes, or -1 if it is unknown.
+     */
+    public long getUncompressedBytesReceived(){
+        return mUncompressedBytesReceived;
+    }
+
+    /**
+     * Gets the time the request waited before being handed over to the engine.
+     *
+     * @return the time in nanoseconds, or -1.
+     */
+    public long getQueueTime(){
+        return mQueueTime;
+    }
+
+    /**
+     * Gets the time it took to resolve the host and open the connection. Engines that
+     * reuse connections report the time it took to get one from their pool, and engines
+     * that don't report it at all leave it at -1.
+     *
+     * @return the time in nanoseconds, or -1.
+     */
+    public long getConnectTime(){
+        return mConnectTime;
+    }
+
+    /**
+     * Gets the time from the moment the request was handed over to the engine to the
+     * moment the head of the response was received.
+     *
+     * @return the time in nanoseconds, or -1.
+     */
+    public long getTimeToFirstByte(){
+        return mTimeToFirstByte;
+    }
+
+    /**
+     * Gets the time it took to read the body of the response.
+     *
+     * @return the time in nanoseconds, or -1.
+     */
+    public long getTransferTime(){
+        return mTransferTime;
+    }
+
+    /**
+     * Gets the time it took to decode the body of the response.
+     *
+     * @return the time in nanoseconds, or -1.
+     */
+    public long getParseTime(){
+        return mParseTime;
+    }
+
+    /**
+     * Gets the time from the moment the result was handed to the delivery executor, the
+     * main thread by default, to the moment the callback returned.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getDeliveryTime(){
+        return mDeliveryTime;
+    }
+
+    /**
+     * Gets the time from the moment the request was made to the moment the callback
+     * returned.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getTotalTime(){
+        return mTotalTime;
+    }
+
+
+    /**
+     * Where the result of a request came from.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public enum CacheStatus{
+        /**
+         * The result came from the network.
+         */
+        NETWORK,
+
+        /**
+         * The result came from the memory tier of the cache.
+         */
+        MEMORY,
+
+        /**
+         * The result came from the disk tier of the cache.
+         */
+        DISK,
+
+        /**
+         * The result came from the cache after the server confirmed it was still valid.
+         */
+        VALIDATED
+    }
+}
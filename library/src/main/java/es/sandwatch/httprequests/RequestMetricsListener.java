@@ -0,0 +1,22 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+
+/**
+ * Receives the metrics of every request once it's been delivered. Set it when the library
+ * is initialised. Metrics are recorded when there is a listener or RequestStatistics are
+ * being kept.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public interface RequestMetricsListener{
+    /**
+     * Called right after the callback of a request returns, in the same thread. Cancelled
+     * requests aren't reported. This runs for every request, so it should be quick.
+     *
+     * @param metrics the metrics of the request.
+     */
+    void onRequestMetrics(@NonNull RequestMetrics metrics);
+}
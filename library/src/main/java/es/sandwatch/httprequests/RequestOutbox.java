@@ -0,0 +1,927 @@
+package es.sandwatch.httprequests;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Durable queue of the requests that change something on the server (POST, PUT and DELETE)
+ * and failed because there was no connectivity. Instead of being lost, they are written to
+ * a journal on disk and sent again, in the order they were made, once connectivity returns,
+ * even if the process died in between.
+ *
+ * While there is an outbox, these requests carry an Idempotency-Key header, unless they
+ * have one already, and replays carry the same key, so that the server can tell a replay of
+ * a request it already acted on from a new one. Callbacks still get the network error,
+ * with isQueued() set; the outcome of the replay goes to the listener of the outbox.
+ *
+ * The journal is append-only: a record is added for every request that is queued and for
+ * every request that is done with, and records are checksummed so that a write cut short
+ * by the process dying is dropped when the journal is loaded. Records are written, and the
+ * journal synced to disk, in batches by the outbox thread. The journal is compacted once
+ * most of its records are about requests that are gone.
+ *
+ * A replay that fails without the server turning the request down, for lack of
+ * connectivity, because it timed out, because the circuit of the host is open or because
+ * the server asked to try again later, is tried again after a delay that doubles with
+ * every failure, up to MAX_REPLAY_DELAY.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestOutbox implements Closeable{
+    private static final String TAG = "RequestOutbox";
+
+    /**
+     * The header that carries the idempotency key.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    /**
+     * The time after which queued requests are dropped, by default, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_AGE = 7*24*60*60*1000L;
+
+    /**
+     * The delay before the first replay of a request that failed to go through, in
+     * milliseconds.
+     */
+    public static final long BASE_REPLAY_DELAY = 1000;
+
+    /**
+     * The longest delay between replays of a request that keeps failing to go through, in
+     * milliseconds.
+     */
+    public static final long MAX_REPLAY_DELAY = 5*60*1000;
+
+    private static final int MAGIC = 0x48524f31;
+    private static final String JOURNAL_FILE = "journal";
+    private static final String TEMP_FILE = "journal.tmp";
+    private static final int BUFFER_SIZE = 8*1024;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    //Records about requests that are gone before the journal is compacted
+    private static final int COMPACTION_THRESHOLD = 64;
+
+
+    private final File mDirectory;
+    private final long mMaxAge;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    //Guarded by this, idempotency key -> entry, in the order the requests were made
+    private LinkedHashMap<String, Entry> mEntries;
+    private List<byte[]> mPendingRecords;
+    private int mDeadRecords;
+    private boolean mFlushScheduled;
+    private boolean mReplaying;
+    private long mReplayDelay;
+    private ScheduledFuture<?> mScheduledReplay;
+    private boolean mClosed;
+    private Context mContext;
+    private BroadcastReceiver mReceiver;
+
+    //Only touched in the outbox thread
+    private FileOutputStream mJournal;
+
+    private volatile Listener mListener;
+
+
+    /**
+     * Constructor. The journal is loaded in the background. Dropping requests older than
+     * the default maximum age.
+     *
+     * @param directory the directory to keep the journal in.
+     */
+    public RequestOutbox(@NonNull File directory){
+        this(directory, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Constructor. The journal is loaded in the background.
+     *
+     * @param directory the directory to keep the journal in.
+     * @param maxAge the time after which queued requests are dropped instead of being sent,
+     *               in milliseconds.
+     */
+    public RequestOutbox(@NonNull File directory, long maxAge){
+        if (maxAge <= 0){
+            throw new IllegalArgumentException("The maximum age must be positive.");
+        }
+        mDirectory = directory;
+        mMaxAge = maxAge;
+        mExecutor = new ScheduledThreadPoolExecutor(1,
+                new EngineThreadFactory("HttpRequest-Outbox"));
+        //Replays waiting for their delay are dropped when the outbox is closed
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        mEntries = new LinkedHashMap<>();
+        mPendingRecords = new ArrayList<>();
+        mDeadRecords = 0;
+        mFlushScheduled = false;
+        mReplaying = false;
+        mReplayDelay = 0;
+        mScheduledReplay = null;
+        mClosed = false;
+        mContext = null;
+        mReceiver = null;
+
+        execute(new Runnable(){
+            @Override
+            public void run(){
+                load();
+            }
+        });
+    }
+
+    /**
+     * Sets the listener that gets the outcome of replays.
+     *
+     * @param listener the listener, or null.
+     */
+    public void setListener(@Nullable Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Gets the number of queued requests.
+     *
+     * @return the number of requests.
+     */
+    public synchronized int getSize(){
+        return mEntries.size();
+    }
+
+    /**
+     * Gets the queued requests.
+     *
+     * @return a list with the requests, in the order they are sent.
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries(){
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Drops every queued request. Requests are dropped in the outbox thread, once the
+     * journal is loaded.
+     */
+    public void clear(){
+        execute(new Runnable(){
+            @Override
+            public void run(){
+                synchronized (RequestOutbox.this){
+                    for (String key:mEntries.keySet()){
+                        mPendingRecords.add(encodeRemove(key));
+                    }
+                    mDeadRecords += mEntries.size()*2;
+                    mEntries.clear();
+                }
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Sends the queued requests, one after the other, in the order they were made. The
+     * replay stops at the first request that fails again for lack of connectivity or
+     * because the server is unavailable, and starts over after a delay. Does nothing if a
+     * replay is going on already.
+     */
+    public void replay(){
+        execute(new Runnable(){
+            @Override
+            public void run(){
+                replayNext();
+            }
+        });
+    }
+
+    /**
+     * Stops the outbox. The records that are pending are written and the journal is
+     * closed before this method returns; replays that are waiting are dropped, and requests
+     * are no longer queued. The requests in the journal are still there for the next outbox
+     * opened on the same directory. Does nothing if the outbox is closed already.
+     */
+    @Override
+    public void close(){
+        Context context;
+        BroadcastReceiver receiver;
+        synchronized (this){
+            if (mClosed){
+                return;
+            }
+            mClosed = true;
+            context = mContext;
+            receiver = mReceiver;
+            mExecutor.execute(new Runnable(){
+                @Override
+                public void run(){
+                    flush();
+                    close(mJournal);
+                    mJournal = null;
+                }
+            });
+            mExecutor.shutdown();
+        }
+        if (receiver != null){
+            context.unregisterReceiver(receiver);
+        }
+        try{
+            if (!mExecutor.awaitTermination(10, TimeUnit.SECONDS)){
+                Log.e(TAG, "Timed out while closing the journal.");
+            }
+        }
+        catch (InterruptedException ix){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replays the queued requests whenever connectivity returns, and right away if there is
+     * connectivity already.
+     *
+     * @param context the context to listen to connectivity changes with.
+     */
+    void watchConnectivity(@NonNull Context context){
+        BroadcastReceiver receiver = new BroadcastReceiver(){
+            @Override
+            public void onReceive(Context context, Intent intent){
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)){
+                    replay();
+                }
+            }
+        };
+        synchronized (this){
+            if (mClosed){
+                return;
+            }
+            mContext = context.getApplicationContext();
+            mReceiver = receiver;
+            //The broadcast is sticky, so the receiver gets the current state as it is
+            //  registered
+            mContext.registerReceiver(receiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    /**
+     * Queues a call that failed for lack of connectivity.
+     *
+     * @param call the call.
+     * @throws IOException if the body of the call can't be encoded or the outbox is closed.
+     */
+    void add(@NonNull HttpCall call) throws IOException{
+        String key = HttpCall.getHeader(call.getHeaders(), IDEMPOTENCY_KEY_HEADER);
+        if (key == null){
+            throw new IOException("The call doesn't have an idempotency key.");
+        }
+        Entry entry = new Entry(key, System.currentTimeMillis(), call.getMethod(), call.getUrl(),
+                call.getHeaders(), call.getBodyContentType(), call.getBody());
+        byte[] record = encodeAdd(entry);
+        synchronized (this){
+            if (mClosed){
+                throw new IOException("The outbox is closed.");
+            }
+            mEntries.put(key, entry);
+            mPendingRecords.add(record);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Takes a request off the queue.
+     *
+     * @param entry the request.
+     */
+    private void remove(@NonNull Entry entry){
+        synchronized (this){
+            if (mEntries.remove(entry.mIdempotencyKey) == null){
+                return;
+            }
+            mPendingRecords.add(encodeRemove(entry.mIdempotencyKey));
+            mDeadRecords += 2;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Sends the first queued request, unless there is one in flight already. Requests that
+     * are too old are dropped on the way.
+     */
+    private void replayNext(){
+        Entry entry = null;
+        List<Entry> expired = new ArrayList<>();
+        synchronized (this){
+            if (mReplaying){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Entry queued:mEntries.values()){
+                if (now - queued.mCreatedAt <= mMaxAge){
+                    entry = queued;
+                    break;
+                }
+                expired.add(queued);
+            }
+            mReplaying = entry != null;
+        }
+
+        Listener listener = mListener;
+        for (Entry queued:expired){
+            remove(queued);
+            if (listener != null){
+                listener.onExpired(queued);
+            }
+        }
+        if (entry != null && !HttpRequest.replay(entry, new ReplayCallback(entry))){
+            synchronized (this){
+                mReplaying = false;
+            }
+        }
+    }
+
+    /**
+     * Handles the outcome of a replay. Requests are done with once the server has answered,
+     * unless it asked to try again later. Otherwise, the replay is tried again after a delay
+     * that doubles every time.
+     *
+     * @param entry the request.
+     * @param error the error, or null if the request succeeded.
+     */
+    private void onReplayed(@NonNull Entry entry, @Nullable HttpRequestError error){
+        boolean done = error == null || (error.isServerError() && !isTransient(error));
+        if (done){
+            remove(entry);
+        }
+        long delay;
+        synchronized (this){
+            mReplaying = false;
+            if (done){
+                mReplayDelay = 0;
+            }
+            else if (mReplayDelay == 0){
+                mReplayDelay = BASE_REPLAY_DELAY;
+            }
+            else{
+                mReplayDelay = Math.min(mReplayDelay*2, MAX_REPLAY_DELAY);
+            }
+            delay = mReplayDelay;
+        }
+        Listener listener = mListener;
+        if (done && listener != null){
+            listener.onReplayed(entry, error);
+        }
+        if (done){
+            replay();
+        }
+        else{
+            Log.d(TAG, "Replay failed, trying again in " + delay + " ms: " + error);
+            scheduleReplay(delay);
+        }
+    }
+
+    /**
+     * Tells whether a server error is likely to go away.
+     *
+     * @param error the error.
+     * @return true if the request should be sent again later, false otherwise.
+     */
+    private static boolean isTransient(@NonNull HttpRequestError error){
+        int statusCode = error.getStatusCode();
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Schedules the pending records to be written, unless it is scheduled already.
+     */
+    private void scheduleFlush(){
+        synchronized (this){
+            if (mFlushScheduled){
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        execute(new Runnable(){
+            @Override
+            public void run(){
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Runs a task in the outbox thread, unless the outbox is closed.
+     *
+     * @param task the task.
+     */
+    private synchronized void execute(@NonNull Runnable task){
+        if (!mClosed){
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Schedules a replay after a delay, in place of the one that was scheduled, if any,
+     * unless the outbox is closed.
+     *
+     * @param delay the delay, in milliseconds.
+     */
+    private synchronized void scheduleReplay(long delay){
+        if (mClosed){
+            return;
+        }
+        if (mScheduledReplay != null){
+            mScheduledReplay.cancel(false);
+        }
+        mScheduledReplay = mExecutor.schedule(new Runnable(){
+            @Override
+            public void run(){
+                replayNext();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the pending records to the journal and syncs it to disk. Records queued while
+     * the flush was waiting its turn go in the same batch. Runs in the outbox thread.
+     */
+    private void flush(){
+        List<byte[]> records;
+        boolean compact;
+        synchronized (this){
+            mFlushScheduled = false;
+            records = mPendingRecords;
+            mPendingRecords = new ArrayList<>();
+            compact = mDeadRecords >= COMPACTION_THRESHOLD && mDeadRecords > mEntries.size();
+        }
+        if (compact){
+            compact();
+            return;
+        }
+        if (records.isEmpty() || mJournal == null){
+            return;
+        }
+        try{
+            for (byte[] record:records){
+                mJournal.write(record);
+            }
+            mJournal.getFD().sync();
+        }
+        catch (IOException iox){
+            Log.e(TAG, "Unable to write the journal: " + iox);
+        }
+    }
+
+    /**
+     * Loads the journal, dropping whatever follows the last intact record, and opens it for
+     * appending. Requests queued before the journal was loaded go after the ones in it.
+     * Runs in the outbox thread.
+     */
+    private void load(){
+        if (!mDirectory.mkdirs() && !mDirectory.isDirectory()){
+            Log.e(TAG, "Unable to create the outbox directory.");
+            return;
+        }
+        File file = new File(mDirectory, JOURNAL_FILE);
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        int records = 0;
+        long length = 0;
+        if (file.exists()){
+            DataInputStream input = null;
+            try{
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        BUFFER_SIZE));
+                if (input.readInt() != MAGIC){
+                    throw new IOException("Not a journal.");
+                }
+                length = 4;
+                while (true){
+                    int size = input.readInt();
+                    if (size <= 0 || size > file.length()){
+                        break;
+                    }
+                    byte[] record = new byte[size];
+                    input.readFully(record);
+                    long checksum = input.readLong();
+                    if (checksum != getChecksum(record, 0, size)){
+                        break;
+                    }
+                    decode(record, entries);
+                    records++;
+                    length += 4 + size + 8;
+                }
+            }
+            catch (EOFException eofx){
+                //The end of the journal, or a record cut short
+            }
+            catch (IOException iox){
+                Log.e(TAG, "Unable to read the journal: " + iox);
+            }
+            finally{
+                close(input);
+            }
+        }
+
+        try{
+            if (length == 0){
+                DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+                output.writeInt(MAGIC);
+                output.close();
+                length = 4;
+            }
+            else if (length < file.length()){
+                RandomAccessFile journal = new RandomAccessFile(file, "rw");
+                journal.setLength(length);
+                journal.close();
+            }
+            mJournal = new FileOutputStream(file, true);
+        }
+        catch (IOException iox){
+            Log.e(TAG, "Unable to open the journal: " + iox);
+        }
+
+        synchronized (this){
+            mDeadRecords += records - entries.size();
+            entries.putAll(mEntries);
+            mEntries = entries;
+        }
+        flush();
+    }
+
+    /**
+     * Rewrites the journal with the queued requests only. The new journal is written aside
+     * and moved over the old one once it is synced. Runs in the outbox thread.
+     */
+    private void compact(){
+        List<Entry> entries;
+        synchronized (this){
+            entries = new ArrayList<>(mEntries.values());
+            mPendingRecords.clear();
+            mDeadRecords = 0;
+        }
+        File temp = new File(mDirectory, TEMP_FILE);
+        FileOutputStream output = null;
+        try{
+            output = new FileOutputStream(temp);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+            new DataOutputStream(buffer).writeInt(MAGIC);
+            for (Entry entry:entries){
+                buffer.write(encodeAdd(entry));
+            }
+            buffer.writeTo(output);
+            output.getFD().sync();
+            output.close();
+            output = null;
+
+            close(mJournal);
+            File file = new File(mDirectory, JOURNAL_FILE);
+            if (!temp.renameTo(file)){
+                throw new IOException("Unable to replace the journal.");
+            }
+            mJournal = new FileOutputStream(file, true);
+        }
+        catch (IOException iox){
+            Log.e(TAG, "Unable to compact the journal: " + iox);
+        }
+        finally{
+            close(output);
+        }
+    }
+
+    /**
+     * Applies a record of the journal.
+     *
+     * @param record the record.
+     * @param entries the requests read so far.
+     * @throws IOException if the record can't be decoded.
+     */
+    private static void decode(@NonNull byte[] record, @NonNull Map<String, Entry> entries)
+            throws IOException{
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = input.readByte();
+        String key = input.readUTF();
+        if (type == RECORD_REMOVE){
+            entries.remove(key);
+            return;
+        }
+        long createdAt = input.readLong();
+        HttpRequest.Method method = HttpRequest.Method.valueOf(input.readUTF());
+        String url = input.readUTF();
+        int headerCount = input.readInt();
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < headerCount; i++){
+            headers.put(input.readUTF(), input.readUTF());
+        }
+        String contentType = input.readUTF();
+        byte[] body = null;
+        int bodyLength = input.readInt();
+        if (bodyLength != -1){
+            body = new byte[bodyLength];
+            input.readFully(body);
+        }
+        entries.put(key, new Entry(key, createdAt, method, url, headers,
+                contentType.length() != 0 ? contentType : null, body));
+    }
+
+    /**
+     * Encodes the record of a queued request.
+     *
+     * @param entry the request.
+     * @return the record, ready to be appended to the journal.
+     */
+    private static byte[] encodeAdd(@NonNull Entry entry){
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        try{
+            output.writeByte(RECORD_ADD);
+            output.writeUTF(entry.mIdempotencyKey);
+            output.writeLong(entry.mCreatedAt);
+            output.writeUTF(entry.mMethod.name());
+            output.writeUTF(entry.mUrl);
+            output.writeInt(entry.mHeaders.size());
+            for (Map.Entry<String, String> header:entry.mHeaders.entrySet()){
+                output.writeUTF(header.getKey());
+                output.writeUTF(header.getValue());
+            }
+            output.writeUTF(entry.mContentType != null ? entry.mContentType : "");
+            if (entry.mBody != null){
+                output.writeInt(entry.mBody.length);
+                output.write(entry.mBody);
+            }
+            else{
+                output.writeInt(-1);
+            }
+        }
+        catch (IOException iox){
+            //Writing to memory doesn't fail
+            throw new IllegalStateException(iox);
+        }
+        return frame(buffer.toByteArray());
+    }
+
+    /**
+     * Encodes the record of a request that is done with.
+     *
+     * @param key the idempotency key of the request.
+     * @return the record, ready to be appended to the journal.
+     */
+    private static byte[] encodeRemove(@NonNull String key){
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        try{
+            output.writeByte(RECORD_REMOVE);
+            output.writeUTF(key);
+        }
+        catch (IOException iox){
+            throw new IllegalStateException(iox);
+        }
+        return frame(buffer.toByteArray());
+    }
+
+    /**
+     * Frames a record with its length and its checksum.
+     *
+     * @param record the record.
+     * @return the framed record.
+     */
+    private static byte[] frame(@NonNull byte[] record){
+        byte[] framed = new byte[4 + record.length + 8];
+        int length = record.length;
+        framed[0] = (byte)(length >>> 24);
+        framed[1] = (byte)(length >>> 16);
+        framed[2] = (byte)(length >>> 8);
+        framed[3] = (byte)length;
+        System.arraycopy(record, 0, framed, 4, length);
+        long checksum = getChecksum(record, 0, length);
+        for (int i = 0; i < 8; i++){
+            framed[4 + length + i] = (byte)(checksum >>> (56 - i*8));
+        }
+        return framed;
+    }
+
+    /**
+     * Calculates the checksum of a record.
+     *
+     * @param record the record.
+     * @param offset the offset of the record in the array.
+     * @param length the length of the record.
+     * @return the checksum.
+     */
+    private static long getChecksum(@NonNull byte[] record, int offset, int length){
+        CRC32 crc = new CRC32();
+        crc.update(record, offset, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Closes a stream quietly.
+     *
+     * @param stream the stream, may be null.
+     */
+    private static void close(@Nullable Closeable stream){
+        if (stream != null){
+            try{
+                stream.close();
+            }
+            catch (IOException iox){
+                //Nothing to do
+            }
+        }
+    }
+
+
+    /**
+     * Gets the outcome of the replay of a queued request.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private final class ReplayCallback implements HttpRequest.RequestCallback{
+        private final Entry mEntry;
+
+
+        /**
+         * Constructor.
+         *
+         * @param entry the request being replayed.
+         */
+        private ReplayCallback(@NonNull Entry entry){
+            mEntry = entry;
+        }
+
+        @Override
+        public void onRequestComplete(int requestCode, String result){
+            onReplayed(mEntry, null);
+        }
+
+        @Override
+        public void onRequestFailed(int requestCode, HttpRequestError error){
+            onReplayed(mEntry, error);
+        }
+    }
+
+
+    /**
+     * A queued request.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public static final class Entry{
+        private final String mIdempotencyKey;
+        private final long mCreatedAt;
+        private final HttpRequest.Method mMethod;
+        private final String mUrl;
+        private final Map<String, String> mHeaders;
+        private final String mContentType;
+        private final byte[] mBody;
+
+
+        /**
+         * Constructor.
+         *
+         * @param idempotencyKey the idempotency key.
+         * @param createdAt when the request was queued, in System.currentTimeMillis() time.
+         * @param method the HTTP method.
+         * @param url the url, with the URL parameters of the original request.
+         * @param headers the headers of the original request.
+         * @param contentType the content type of the body, or null if there isn't one.
+         * @param body the encoded body, or null if there isn't one.
+         */
+        private Entry(@NonNull String idempotencyKey, long createdAt,
+                      @NonNull HttpRequest.Method method, @NonNull String url,
+                      @NonNull Map<String, String> headers, @Nullable String contentType,
+                      @Nullable byte[] body){
+
+            mIdempotencyKey = idempotencyKey;
+            mCreatedAt = createdAt;
+            mMethod = method;
+            mUrl = url;
+            mHeaders = Collections.unmodifiableMap(headers);
+            mContentType = contentType;
+            mBody = body;
+        }
+
+        /**
+         * Getter for the idempotency key, which identifies the request.
+         *
+         * @return the idempotency key.
+         */
+        public String getIdempotencyKey(){
+            return mIdempotencyKey;
+        }
+
+        /**
+         * Getter for the moment the request was queued.
+         *
+         * @return the moment, in System.currentTimeMillis() time.
+         */
+        public long getCreatedAt(){
+            return mCreatedAt;
+        }
+
+        /**
+         * Getter for the HTTP method.
+         *
+         * @return the HTTP method.
+         */
+        public HttpRequest.Method getMethod(){
+            return mMethod;
+        }
+
+        /**
+         * Getter for the url.
+         *
+         * @return the url.
+         */
+        public String getUrl(){
+            return mUrl;
+        }
+
+        /**
+         * Getter for the headers of the original request. The map must not be modified.
+         *
+         * @return the headers.
+         */
+        public Map<String, String> getHeaders(){
+            return mHeaders;
+        }
+
+        /**
+         * Getter for the content type of the body.
+         *
+         * @return the content type, or null if there isn't a body.
+         */
+        String getContentType(){
+            return mContentType;
+        }
+
+        /**
+         * Getter for the encoded body.
+         *
+         * @return the body, or null if there isn't one.
+         */
+        byte[] getBody(){
+            return mBody;
+        }
+    }
+
+
+    /**
+     * Gets the outcome of the replays of an outbox. Methods are called from background
+     * threads.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Listener{
+        /**
+         * Called when the server has answered a replay. Requests whose replay fails for
+         * lack of connectivity, or with a 408, 429 or 5XX status code, stay queued and are
+         * replayed again later, without a call to this method.
+         *
+         * @param entry the request.
+         * @param error the error if the server turned the request down, null otherwise.
+         */
+        void onReplayed(@NonNull Entry entry, @Nullable HttpRequestError error);
+
+        /**
+         * Called when a request is dropped for being older than the maximum age.
+         *
+         * @param entry the request.
+         */
+        void onExpired(@NonNull Entry entry);
+    }
+}
@@ -0,0 +1,677 @@
+package es.sandwatch.httprequests;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+/**
+ * A source of items that are only fetched as fast as a subscriber asks for them. Items come
+ * either from a paginated endpoint, one page after another, or from a single response whose
+ * body is a JSON array, one record at a time. Every subscription starts over from the
+ * beginning, and cancelling it cancels the request in flight.
+ *
+ * @param <T> the type of the items.
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestPublisher<T>{
+    /**
+     * How long, in milliseconds, a subscription to records waits for the subscriber to ask
+     * for more before it fails, unless a different stall timeout is given.
+     */
+    public static final int DEFAULT_STALL_TIMEOUT = 30*1000;
+
+
+    private final String mUrl;
+    private final ResponseDecoder<Page<T>> mPageDecoder;
+    private final JsonDecoder<T> mRecordDecoder;
+    private final int mStallTimeout;
+
+
+    /**
+     * Constructor.
+     *
+     * @param url the url of the first page or of the records.
+     * @param pageDecoder the decoder of the pages, or null if the items are records.
+     * @param recordDecoder the decoder of the records, or null if the items come in pages.
+     * @param stallTimeout how long a subscription to records waits for demand, in ms.
+     */
+    private RequestPublisher(@NonNull String url, @Nullable ResponseDecoder<Page<T>> pageDecoder,
+                             @Nullable JsonDecoder<T> recordDecoder, int stallTimeout){
+
+        mUrl = url;
+        mPageDecoder = pageDecoder;
+        mRecordDecoder = recordDecoder;
+        mStallTimeout = stallTimeout;
+    }
+
+    /**
+     * Creates a publisher of the items of a paginated endpoint. Each page is fetched with a
+     * GET request and decoded into the items it holds and the url of the next page. Pages
+     * are fetched as they are needed, and the next one is fetched ahead of time once half
+     * of the current one has been handed to the subscriber.
+     *
+     * @param url the url of the first page.
+     * @param decoder the decoder of the pages.
+     * @param <T> the type of the items.
+     * @return the publisher.
+     */
+    @NonNull
+    public static <T> RequestPublisher<T> pages(@NonNull String url,
+                                                @NonNull ResponseDecoder<Page<T>> decoder){
+
+        return new RequestPublisher<>(url, decoder, null, 0);
+    }
+
+    /**
+     * Creates a publisher of the records of a response whose body is a JSON array, like a
+     * chunked response that is produced as it is sent. Each element of the array is decoded
+     * into a record as the subscriber asks for it; in the meantime the response isn't read
+     * any further, which holds the server back.
+     *
+     * The response is read in the thread of the engine, so for as long as a subscription
+     * lasts it holds an engine thread, a connection and one of the slots the dispatcher
+     * allows per host, even while the subscriber isn't asking for records. A subscription
+     * that gets no demand for DEFAULT_STALL_TIMEOUT fails, which lets all of them go.
+     *
+     * @param url the url of the records.
+     * @param decoder the decoder of a single record.
+     * @param <T> the type of the records.
+     * @return the publisher.
+     */
+    @NonNull
+    public static <T> RequestPublisher<T> records(@NonNull String url,
+                                                  @NonNull JsonDecoder<T> decoder){
+
+        return records(url, decoder, DEFAULT_STALL_TIMEOUT);
+    }
+
+    /**
+     * Creates a publisher of the records of a response whose body is a JSON array, failing
+     * subscriptions that get no demand for a while. See records(String, JsonDecoder).
+     *
+     * @param url the url of the records.
+     * @param decoder the decoder of a single record.
+     * @param stallTimeout how long, in ms, a subscription waits for the subscriber to ask
+     *                     for more records before it fails and lets the request go.
+     * @param <T> the type of the records.
+     * @return the publisher.
+     */
+    @NonNull
+    public static <T> RequestPublisher<T> records(@NonNull String url,
+                                                  @NonNull JsonDecoder<T> decoder,
+                                                  int stallTimeout){
+
+        if (stallTimeout <= 0){
+            throw new IllegalArgumentException("The stall timeout must be positive.");
+        }
+        return new RequestPublisher<>(url, null, decoder, stallTimeout);
+    }
+
+    /**
+     * Subscribes to the items of this publisher. The subscriber is called through the
+     * default delivery executor.
+     *
+     * @param subscriber the subscriber.
+     */
+    public void subscribe(@NonNull Subscriber<? super T> subscriber){
+        subscribe(subscriber, HttpRequest.getSubscriptionExecutor());
+    }
+
+    /**
+     * Subscribes to the items of this publisher. The subscriber is never called from more
+     * than one thread at a time, whatever the executor.
+     *
+     * @param subscriber the subscriber.
+     * @param deliveryExecutor the executor the subscriber is called through.
+     */
+    public void subscribe(@NonNull Subscriber<? super T> subscriber,
+                          @NonNull Executor deliveryExecutor){
+
+        Emitter<T> emitter;
+        if (mPageDecoder != null){
+            emitter = new PageEmitter<>(subscriber, Delivery.resolve(deliveryExecutor), mUrl,
+                    mPageDecoder);
+        }
+        else{
+            emitter = new RecordEmitter<>(subscriber, Delivery.resolve(deliveryExecutor), mUrl,
+                    mRecordDecoder, mStallTimeout);
+        }
+        emitter.drain();
+    }
+
+
+    /**
+     * Hands the items of a subscription over to the subscriber as it asks for them. Signals
+     * are drained in a single runnable of the delivery executor at a time.
+     *
+     * @param <T> the type of the items.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static abstract class Emitter<T> implements Subscription, Runnable{
+        private final Subscriber<? super T> mSubscriber;
+        private final Executor mDeliveryExecutor;
+
+        final LinkedList<T> mQueue;
+        long mRequested;
+        boolean mDemanded;
+        boolean mCancelled;
+        boolean mFinished;
+        HttpRequestError mError;
+
+        private boolean mSubscribed;
+        private boolean mDraining;
+        private boolean mTerminated;
+
+
+        /**
+         * Constructor.
+         *
+         * @param subscriber the subscriber.
+         * @param deliveryExecutor the executor the subscriber is called through.
+         */
+        Emitter(@NonNull Subscriber<? super T> subscriber, @NonNull Executor deliveryExecutor){
+            mSubscriber = subscriber;
+            mDeliveryExecutor = deliveryExecutor;
+
+            mQueue = new LinkedList<>();
+            mRequested = 0;
+            mDemanded = false;
+            mCancelled = false;
+            mFinished = false;
+            mError = null;
+
+            mSubscribed = false;
+            mDraining = false;
+            mTerminated = false;
+        }
+
+        @Override
+        public void request(long count){
+            if (count <= 0){
+                throw new IllegalArgumentException("At least one item must be requested.");
+            }
+            synchronized (this){
+                if (mCancelled || mTerminated){
+                    return;
+                }
+                mDemanded = true;
+                mRequested = mRequested + count < 0 ? Long.MAX_VALUE : mRequested + count;
+            }
+            onDemand();
+            drain();
+        }
+
+        @Override
+        public void cancel(){
+            synchronized (this){
+                if (mCancelled || mTerminated){
+                    return;
+                }
+                mCancelled = true;
+                mQueue.clear();
+            }
+            onCancel();
+        }
+
+        /**
+         * Schedules the delivery of whatever is pending, unless it is being delivered already.
+         */
+        final void drain(){
+            synchronized (this){
+                if (mDraining){
+                    return;
+                }
+                mDraining = true;
+            }
+            mDeliveryExecutor.execute(this);
+        }
+
+        @Override
+        public final void run(){
+            while (true){
+                T item = null;
+                boolean subscribe = false;
+                boolean terminate = false;
+                HttpRequestError error = null;
+                synchronized (this){
+                    if (!mSubscribed){
+                        mSubscribed = true;
+                        subscribe = true;
+                    }
+                    else if (mCancelled || mTerminated){
+                        mDraining = false;
+                        return;
+                    }
+                    else if (!mQueue.isEmpty() && mRequested > 0){
+                        item = mQueue.removeFirst();
+                        if (mRequested != Long.MAX_VALUE){
+                            mRequested--;
+                        }
+                    }
+                    else if (mQueue.isEmpty() && (mFinished || mError != null)){
+                        //Items that were received before an error are delivered first
+                        mTerminated = true;
+                        terminate = true;
+                        error = mError;
+                    }
+                    else{
+                        mDraining = false;
+                        return;
+                    }
+                }
+
+                if (subscribe){
+                    mSubscriber.onSubscribe(this);
+                }
+                else if (terminate){
+                    if (error != null){
+                        mSubscriber.onError(error);
+                    }
+                    else{
+                        mSubscriber.onComplete();
+                    }
+                }
+                else{
+                    mSubscriber.onNext(item);
+                    onTaken();
+                }
+            }
+        }
+
+        /**
+         * Called when the subscriber asks for more items.
+         */
+        abstract void onDemand();
+
+        /**
+         * Called after an item has been handed to the subscriber.
+         */
+        abstract void onTaken();
+
+        /**
+         * Called when the subscription is cancelled.
+         */
+        abstract void onCancel();
+    }
+
+
+    /**
+     * Emitter of the items of a paginated endpoint.
+     *
+     * @param <T> the type of the items.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static final class PageEmitter<T> extends Emitter<T>
+            implements RequestFuture.Callback<Page<T>>{
+
+        private final ResponseDecoder<Page<T>> mDecoder;
+
+        private String mNextUrl;
+        private boolean mFetching;
+        private RequestFuture<Page<T>> mFetch;
+        private int mPageSize;
+
+
+        /**
+         * Constructor.
+         *
+         * @param subscriber the subscriber.
+         * @param deliveryExecutor the executor the subscriber is called through.
+         * @param url the url of the first page.
+         * @param decoder the decoder of the pages.
+         */
+        private PageEmitter(@NonNull Subscriber<? super T> subscriber,
+                            @NonNull Executor deliveryExecutor, @NonNull String url,
+                            @NonNull ResponseDecoder<Page<T>> decoder){
+
+            super(subscriber, deliveryExecutor);
+            mDecoder = decoder;
+
+            mNextUrl = url;
+            mFetching = false;
+            mFetch = null;
+            mPageSize = 0;
+        }
+
+        @Override
+        void onDemand(){
+            fetch();
+        }
+
+        @Override
+        void onTaken(){
+            fetch();
+        }
+
+        @Override
+        void onCancel(){
+            RequestFuture<Page<T>> fetch;
+            synchronized (this){
+                fetch = mFetch;
+            }
+            if (fetch != null){
+                fetch.cancel(false);
+            }
+        }
+
+        /**
+         * Fetches the next page if there is one and the items at hand are running out.
+         */
+        private void fetch(){
+            String url;
+            synchronized (this){
+                if (mCancelled || mError != null || mNextUrl == null || mFetching || !mDemanded){
+                    return;
+                }
+                int buffered = mQueue.size();
+                if (buffered >= mRequested && buffered > mPageSize/2){
+                    return;
+                }
+                mFetching = true;
+                url = mNextUrl;
+            }
+
+            RequestFuture<Page<T>> fetch = HttpRequest.submit(HttpRequest.Method.GET, url, null,
+                    mDecoder);
+            boolean cancel;
+            synchronized (this){
+                cancel = mCancelled;
+                mFetch = fetch;
+            }
+            if (cancel){
+                fetch.cancel(false);
+            }
+            fetch.addCallback(this, Delivery.DIRECT);
+        }
+
+        @Override
+        public void onSuccess(Page<T> page){
+            synchronized (this){
+                mFetching = false;
+                mFetch = null;
+                mQueue.addAll(page.getItems());
+                mPageSize = page.getItems().size();
+                mNextUrl = page.getNextUrl();
+                mFinished = mNextUrl == null;
+            }
+            drain();
+            fetch();
+        }
+
+        @Override
+        public void onFailure(HttpRequestError error){
+            synchronized (this){
+                mFetching = false;
+                mFetch = null;
+                mError = error;
+            }
+            drain();
+        }
+    }
+
+
+    /**
+     * Emitter of the records of a response whose body is a JSON array.
+     *
+     * @param <T> the type of the records.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static final class RecordEmitter<T> extends Emitter<T>
+            implements HttpRequest.StreamCallback{
+
+        private final String mUrl;
+        private final JsonDecoder<T> mDecoder;
+        private final int mStallTimeout;
+
+        private boolean mSent;
+        private int mRequestCode;
+        private long mSignals;
+
+
+        /**
+         * Constructor.
+         *
+         * @param subscriber the subscriber.
+         * @param deliveryExecutor the executor the subscriber is called through.
+         * @param url the url of the records.
+         * @param decoder the decoder of a single record.
+         * @param stallTimeout how long to wait for the subscriber to ask for more, in ms.
+         */
+        private RecordEmitter(@NonNull Subscriber<? super T> subscriber,
+                              @NonNull Executor deliveryExecutor, @NonNull String url,
+                              @NonNull JsonDecoder<T> decoder, int stallTimeout){
+
+            super(subscriber, deliveryExecutor);
+            mUrl = url;
+            mDecoder = decoder;
+            mStallTimeout = stallTimeout;
+
+            mSent = false;
+            mRequestCode = -1;
+            mSignals = 0;
+        }
+
+        @Override
+        void onDemand(){
+            synchronized (this){
+                mSignals++;
+                notifyAll();
+                if (mSent){
+                    return;
+                }
+                mSent = true;
+            }
+
+            //The request is only sent when the first record is asked for
+            int requestCode = HttpRequest.publisherRequest(this, mUrl);
+            boolean cancel;
+            synchronized (this){
+                cancel = mCancelled;
+                mRequestCode = requestCode;
+            }
+            if (cancel){
+                HttpRequest.cancel(requestCode);
+            }
+        }
+
+        @Override
+        void onTaken(){
+            synchronized (this){
+                mSignals++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        void onCancel(){
+            int requestCode;
+            synchronized (this){
+                notifyAll();
+                requestCode = mRequestCode;
+            }
+            if (requestCode != -1){
+                HttpRequest.cancel(requestCode);
+            }
+        }
+
+        @Override
+        public void onResponseStream(int requestCode, InputStream stream) throws IOException{
+            //JSON documents sent over the network are UTF-8
+            JsonStreamReader reader = new JsonStreamReader(stream, "UTF-8");
+            reader.beginArray();
+            while (reader.hasNext()){
+                //Nothing else is read until the subscriber has room for another record, but
+                //the engine thread and the connection aren't held forever for an idle one
+                synchronized (this){
+                    try{
+                        long stalledAt = SystemClock.elapsedRealtime();
+                        long signals = mSignals;
+                        while (!mCancelled && mQueue.size() >= mRequested){
+                            if (mSignals != signals){
+                                //The subscriber is still taking records, just slowly
+                                stalledAt = SystemClock.elapsedRealtime();
+                                signals = mSignals;
+                            }
+                            long remaining = stalledAt + mStallTimeout
+                                    - SystemClock.elapsedRealtime();
+                            if (remaining <= 0){
+                                throw new IOException("No records were requested for "
+                                        + mStallTimeout + " ms.");
+                            }
+                            wait(remaining);
+                        }
+                    }
+                    catch (InterruptedException ix){
+                        throw new InterruptedIOException("Interrupted while waiting for demand.");
+                    }
+                    if (mCancelled){
+                        return;
+                    }
+                }
+                T record = mDecoder.read(reader);
+                synchronized (this){
+                    mQueue.add(record);
+                }
+                drain();
+            }
+            reader.endArray();
+        }
+
+        @Override
+        public void onStreamComplete(int requestCode){
+            synchronized (this){
+                mFinished = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void onRequestFailed(int requestCode, HttpRequestError error){
+            synchronized (this){
+                mError = error;
+                notifyAll();
+            }
+            drain();
+        }
+    }
+
+
+    /**
+     * A page of a paginated endpoint: the items it holds and where to find the next one.
+     *
+     * @param <T> the type of the items.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public static final class Page<T>{
+        private final List<T> mItems;
+        private final String mNextUrl;
+
+
+        /**
+         * Constructor.
+         *
+         * @param items the items of the page.
+         * @param nextUrl the absolute url of the next page, or null if this is the last one.
+         */
+        public Page(@NonNull List<T> items, @Nullable String nextUrl){
+            mItems = Collections.unmodifiableList(items);
+            mNextUrl = nextUrl;
+        }
+
+        /**
+         * Gets the items of the page.
+         *
+         * @return the items.
+         */
+        @NonNull
+        public List<T> getItems(){
+            return mItems;
+        }
+
+        /**
+         * Gets the url of the next page.
+         *
+         * @return the url, or null if this is the last page.
+         */
+        @Nullable
+        public String getNextUrl(){
+            return mNextUrl;
+        }
+    }
+
+
+    /**
+     * Receives the items of a publisher. Each subscription calls onSubscribe() first, then
+     * onNext() no more times than items have been requested, and then either onComplete()
+     * or onError(), unless it is cancelled.
+     *
+     * @param <T> the type of the items.
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Subscriber<T>{
+        /**
+         * Called when the subscription starts. Nothing is fetched until items are requested
+         * through the subscription.
+         *
+         * @param subscription the subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item.
+         *
+         * @param item the item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called when a request fails. Items received before the failure are delivered first.
+         *
+         * @param error the object containing all the information about the error.
+         */
+        void onError(HttpRequestError error);
+
+        /**
+         * Called once every item has been delivered.
+         */
+        void onComplete();
+    }
+
+
+    /**
+     * The link between a publisher and a subscriber.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public interface Subscription{
+        /**
+         * Asks for more items. Demand adds up, and Long.MAX_VALUE stands for every item.
+         *
+         * @param count the number of items.
+         * @throws IllegalArgumentException if the count isn't positive.
+         */
+        void request(long count);
+
+        /**
+         * Cancels the subscription and the request in flight. The subscriber isn't called
+         * again, except for a call that might be in progress.
+         */
+        void cancel();
+    }
+}
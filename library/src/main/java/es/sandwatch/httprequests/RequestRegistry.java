@@ -0,0 +1,129 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Lock-free registry of the requests in flight, keyed by request code. Every request code
+ * maps to a single slot in a fixed size table, and the registry hands out request codes
+ * whose slot is free, so lookups never probe and no Integer is ever boxed. Inserting and
+ * removing are compare-and-set operations, which guarantees that only one caller gets to
+ * remove a particular request even if it's cancelled while it's being delivered.
+ *
+ * The size of the table doesn't limit the number of requests in flight. Queued requests,
+ * members of batches and requests nobody collects all hold on to their slots, so when the
+ * slots a request is offered are taken it goes to an overflow map instead. The overflow is
+ * slower, and it boxes the request code, but it only comes into play once thousands of
+ * requests are in flight.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class RequestRegistry{
+    static final int DEFAULT_CAPACITY = 8192;
+
+    //Codes offered to a request before it goes to the overflow
+    private static final int MAX_ATTEMPTS = 8;
+
+
+    private final AtomicReferenceArray<HttpRequest> mSlots;
+    private final int mMask;
+    private final ConcurrentMap<Integer, HttpRequest> mOverflow;
+
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of slots in the table, must be a power of two.
+     */
+    RequestRegistry(int capacity){
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0){
+            throw new IllegalArgumentException("The capacity must be a power of two.");
+        }
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+        mOverflow = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Assigns an identifier and a request code to a request and adds it to the registry.
+     *
+     * @param request the request to register.
+     * @return the request code assigned to the request.
+     */
+    int register(@NonNull HttpRequest request){
+        //A slot can only be taken by a request that's been in flight for long enough to see
+        //  the whole table go around, so this hardly ever iterates more than once
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+            long requestId = RequestCodeGenerator.generateLong();
+            int requestCode = RequestCodeGenerator.toRequestCode(requestId);
+            request.setRequestId(requestId, requestCode);
+            if (mSlots.compareAndSet(requestCode & mMask, null, request)){
+                return requestCode;
+            }
+        }
+        while (true){
+            long requestId = RequestCodeGenerator.generateLong();
+            int requestCode = RequestCodeGenerator.toRequestCode(requestId);
+            request.setRequestId(requestId, requestCode);
+            if (mOverflow.putIfAbsent(requestCode, request) == null){
+                return requestCode;
+            }
+        }
+    }
+
+    /**
+     * Gets a request from the registry.
+     *
+     * @param requestCode the request code of the request.
+     * @return the request, or null if there is no request in flight with that code.
+     */
+    @Nullable
+    HttpRequest get(int requestCode){
+        HttpRequest request = mSlots.get(requestCode & mMask);
+        if (request != null && request.getRequestCode() == requestCode){
+            return request;
+        }
+        return mOverflow.isEmpty() ? null : mOverflow.get(requestCode);
+    }
+
+    /**
+     * Removes a request from the registry. If several threads try to remove the same
+     * request at the same time only one of them gets it.
+     *
+     * @param requestCode the request code of the request.
+     * @return the request, or null if there is no request in flight with that code.
+     */
+    @Nullable
+    HttpRequest remove(int requestCode){
+        int slot = requestCode & mMask;
+        HttpRequest request = mSlots.get(slot);
+        if (request != null && request.getRequestCode() == requestCode
+                && mSlots.compareAndSet(slot, request, null)){
+
+            return request;
+        }
+        return mOverflow.isEmpty() ? null : mOverflow.remove(requestCode);
+    }
+
+    /**
+     * Counts the requests in the registry. This walks the whole table, it isn't meant to
+     * be called in the request path.
+     *
+     * @return the number of requests in flight.
+     */
+    int size(){
+        int size = mOverflow.size();
+        for (int i = 0; i <= mMask; i++){
+            if (mSlots.get(i) != null){
+                size++;
+            }
+        }
+        return size;
+    }
+}
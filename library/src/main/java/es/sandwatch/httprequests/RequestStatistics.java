@@ -0,0 +1,502 @@
+package es.sandwatch.httprequests;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Aggregate statistics of the requests delivered since the library was initialised, overall,
+ * per host and per HTTP method. Recording is lock-free; reading is done through snapshots,
+ * which can be taken at any time from any thread. Cancelled requests aren't counted.
+ *
+ * Latencies go from the moment a request is made to the moment its callback returns, and
+ * are kept in microseconds.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RequestStatistics{
+    /**
+     * The host under which requests are counted once MAX_HOSTS hosts are being tracked.
+     */
+    public static final String OTHER_HOSTS = "*";
+
+    /**
+     * The maximum number of hosts tracked separately.
+     */
+    public static final int MAX_HOSTS = 32;
+
+
+    private final Counters mTotal;
+    private final Counters[] mMethods;
+    private final ConcurrentHashMap<String, Counters> mHosts;
+
+
+    /**
+     * Constructor.
+     */
+    RequestStatistics(){
+        mTotal = new Counters();
+        mMethods = new Counters[HttpRequest.Method.values().length];
+        for (int i = 0; i < mMethods.length; i++){
+            mMethods[i] = new Counters();
+        }
+        mHosts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records a delivered request.
+     *
+     * @param metrics the metrics of the request.
+     */
+    void record(@NonNull RequestMetrics metrics){
+        long now = SystemClock.elapsedRealtime();
+        mTotal.record(metrics, now);
+        mMethods[metrics.getMethod().ordinal()].record(metrics, now);
+        getHostCounters(HttpCall.extractHost(metrics.getUrl())).record(metrics, now);
+    }
+
+    /**
+     * Gets the counters of a host, creating them if needed.
+     *
+     * @param host the host.
+     * @return the counters of the host.
+     */
+    private Counters getHostCounters(@NonNull String host){
+        Counters counters = mHosts.get(host);
+        if (counters == null){
+            //The number of hosts may go slightly over the maximum in a race, it's harmless
+            if (mHosts.size() >= MAX_HOSTS){
+                //The counters of the rest of the hosts are only created once
+                host = OTHER_HOSTS;
+                counters = mHosts.get(host);
+                if (counters != null){
+                    return counters;
+                }
+            }
+            counters = new Counters();
+            Counters existing = mHosts.putIfAbsent(host, counters);
+            if (existing != null){
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Takes a snapshot of the statistics of every request.
+     *
+     * @return the snapshot.
+     */
+    @NonNull
+    public Snapshot getSnapshot(){
+        return mTotal.snapshot();
+    }
+
+    /**
+     * Takes a snapshot of the statistics of the requests with a particular HTTP method.
+     *
+     * @param method the HTTP method.
+     * @return the snapshot.
+     */
+    @NonNull
+    public Snapshot getSnapshot(@NonNull HttpRequest.Method method){
+        return mMethods[method.ordinal()].snapshot();
+    }
+
+    /**
+     * Takes a snapshot of the statistics of the requests sent to a particular host.
+     *
+     * @param host the host, including the port if the urls have one, or OTHER_HOSTS.
+     * @return the snapshot, or null if no requests to that host have been recorded.
+     */
+    @Nullable
+    public Snapshot getSnapshot(@NonNull String host){
+        Counters counters = mHosts.get(host.toLowerCase(Locale.US));
+        return counters != null ? counters.snapshot() : null;
+    }
+
+    /**
+     * Gets the hosts requests have been recorded for.
+     *
+     * @return the hosts.
+     */
+    @NonNull
+    public Set<String> getHosts(){
+        return new HashSet<>(mHosts.keySet());
+    }
+
+
+    /**
+     * Lock-free counters of a set of requests.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static final class Counters{
+        //Requests per second are counted over the last minute, one slot per second
+        private static final int RATE_WINDOW = 60;
+
+
+        private final long mCreatedAt;
+        private final LatencyHistogram mLatency;
+        private final AtomicLong mRequests;
+        private final AtomicLong mNetworkErrors;
+        private final AtomicLong mServerErrors;
+        private final AtomicLong mOtherErrors;
+        private final AtomicLong mBytesSent;
+        private final AtomicLong mBytesReceived;
+        private final AtomicLong mUncompressedBytesSent;
+        private final AtomicLong mUncompressedBytesReceived;
+        private final AtomicLongArray mSeconds;
+        private final AtomicLongArray mSecondCounts;
+
+
+        /**
+         * Constructor.
+         */
+        private Counters(){
+            mCreatedAt = SystemClock.elapsedRealtime();
+            mLatency = new LatencyHistogram();
+            mRequests = new AtomicLong();
+            mNetworkErrors = new AtomicLong();
+            mServerErrors = new AtomicLong();
+            mOtherErrors = new AtomicLong();
+            mBytesSent = new AtomicLong();
+            mBytesReceived = new AtomicLong();
+            mUncompressedBytesSent = new AtomicLong();
+            mUncompressedBytesReceived = new AtomicLong();
+            mSeconds = new AtomicLongArray(RATE_WINDOW);
+            mSecondCounts = new AtomicLongArray(RATE_WINDOW);
+        }
+
+        /**
+         * Records a request.
+         *
+         * @param metrics the metrics of the request.
+         * @param now the current SystemClock.elapsedRealtime() time.
+         */
+        private void record(@NonNull RequestMetrics metrics, long now){
+            mRequests.incrementAndGet();
+            mLatency.record(metrics.getTotalTime()/1000);
+            HttpRequestError error = metrics.getError();
+            if (error != null){
+                if (error.isNetworkError()){
+                    mNetworkErrors.incrementAndGet();
+                }
+                else if (error.isServerError()){
+                    mServerErrors.incrementAndGet();
+                }
+                else{
+                    mOtherErrors.incrementAndGet();
+                }
+            }
+            if (metrics.getBytesSent() > 0){
+                mBytesSent.addAndGet(metrics.getBytesSent());
+            }
+            if (metrics.getBytesReceived() > 0){
+                mBytesReceived.addAndGet(metrics.getBytesReceived());
+            }
+            if (metrics.getUncompressedBytesSent() > 0){
+                mUncompressedBytesSent.addAndGet(metrics.getUncompressedBytesSent());
+            }
+            if (metrics.getUncompressedBytesReceived() > 0){
+                mUncompressedBytesReceived.addAndGet(metrics.getUncompressedBytesReceived());
+            }
+
+            //The first request in a new second claims the slot and clears it. A request
+            //  counted in between may be lost, which is fine for a rate
+            long second = now/1000;
+            int slot = (int)(second%RATE_WINDOW);
+            long stamp = mSeconds.get(slot);
+            if (stamp != second && mSeconds.compareAndSet(slot, stamp, second)){
+                mSecondCounts.set(slot, 0);
+            }
+            mSecondCounts.incrementAndGet(slot);
+        }
+
+        /**
+         * Takes a snapshot of the counters.
+         *
+         * @return the snapshot.
+         */
+        private Snapshot snapshot(){
+            long now = SystemClock.elapsedRealtime();
+            long second = now/1000;
+            long recent = 0;
+            for (int i = 0; i < RATE_WINDOW; i++){
+                long stamp = mSeconds.get(i);
+                if (stamp > second - RATE_WINDOW && stamp <= second){
+                    recent += mSecondCounts.get(i);
+                }
+            }
+            //The window is the last minute, or less if the counters are younger than that
+            long window = Math.min((RATE_WINDOW - 1)*1000 + now%1000, now - mCreatedAt);
+            double requestsPerSecond = recent*1000d/Math.max(1, window);
+
+            return new Snapshot(mRequests.get(), mNetworkErrors.get(), mServerErrors.get(),
+                    mOtherErrors.get(), mBytesSent.get(), mBytesReceived.get(),
+                    mUncompressedBytesSent.get(), mUncompressedBytesReceived.get(),
+                    requestsPerSecond, mLatency.copyCounts(), mLatency.getSum(),
+                    mLatency.getMax());
+        }
+    }
+
+
+    /**
+     * Statistics of a set of requests at a point in time.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    public static final class Snapshot{
+        private final long mRequestCount;
+        private final long mNetworkErrorCount;
+        private final long mServerErrorCount;
+        private final long mOtherErrorCount;
+        private final long mBytesSent;
+        private final long mBytesReceived;
+        private final long mUncompressedBytesSent;
+        private final long mUncompressedBytesReceived;
+        private final double mRequestsPerSecond;
+        private final long[] mLatencyCounts;
+        private final long mLatencySum;
+        private final long mMaxLatency;
+
+
+        /**
+         * Constructor.
+         *
+         * @param requestCount the number of requests.
+         * @param networkErrorCount the number of network errors.
+         * @param serverErrorCount the number of server errors.
+         * @param otherErrorCount the number of other errors.
+         * @param bytesSent the number of bytes sent.
+         * @param bytesReceived the number of bytes received.
+         * @param uncompressedBytesSent the number of bytes sent, before compression.
+         * @param uncompressedBytesReceived the number of bytes received, after decompression.
+         * @param requestsPerSecond the recent request rate.
+         * @param latencyCounts the counts of the latency histogram.
+         * @param latencySum the sum of the latencies.
+         * @param maxLatency the highest latency.
+         */
+        private Snapshot(long requestCount, long networkErrorCount, long serverErrorCount,
+                         long otherErrorCount, long bytesSent, long bytesReceived,
+                         long uncompressedBytesSent, long uncompressedBytesReceived,
+                         double requestsPerSecond, long[] latencyCounts, long latencySum,
+                         long maxLatency){
+
+            mRequestCount = requestCount;
+            mNetworkErrorCount = networkErrorCount;
+            mServerErrorCount = serverErrorCount;
+            mOtherErrorCount = otherErrorCount;
+            mBytesSent = bytesSent;
+            mBytesReceived = bytesReceived;
+            mUncompressedBytesSent = uncompressedBytesSent;
+            mUncompressedBytesReceived = uncompressedBytesReceived;
+            mRequestsPerSecond = requestsPerSecond;
+            mLatencyCounts = latencyCounts;
+            mLatencySum = latencySum;
+            mMaxLatency = maxLatency;
+        }
+
+        /**
+         * Getter for the number of requests.
+         *
+         * @return the number of requests.
+         */
+        public long getRequestCount(){
+            return mRequestCount;
+        }
+
+        /**
+         * Gets the number of requests that failed, for whatever reason.
+         *
+         * @return the number of failed requests.
+         */
+        public long getErrorCount(){
+            return mNetworkErrorCount + mServerErrorCount + mOtherErrorCount;
+        }
+
+        /**
+         * Getter for the number of requests that failed with a network error.
+         *
+         * @return the number of network errors.
+         */
+        public long getNetworkErrorCount(){
+            return mNetworkErrorCount;
+        }
+
+        /**
+         * Getter for the number of requests that failed with a server error.
+         *
+         * @return the number of server errors.
+         */
+        public long getServerErrorCount(){
+            return mServerErrorCount;
+        }
+
+        /**
+         * Getter for the number of requests that failed with any other error, like timeouts.
+         *
+         * @return the number of other errors.
+         */
+        public long getOtherErrorCount(){
+            return mOtherErrorCount;
+        }
+
+        /**
+         * Gets the fraction of requests that failed.
+         *
+         * @return the error rate, between 0 and 1.
+         */
+        public double getErrorRate(){
+            return rate(getErrorCount());
+        }
+
+        /**
+         * Gets the fraction of requests that failed with a network error.
+         *
+         * @return the network error rate, between 0 and 1.
+         */
+        public double getNetworkErrorRate(){
+            return rate(mNetworkErrorCount);
+        }
+
+        /**
+         * Gets the fraction of requests that failed with a server error.
+         *
+         * @return the server error rate, between 0 and 1.
+         */
+        public double getServerErrorRate(){
+            return rate(mServerErrorCount);
+        }
+
+        /**
+         * Gets the fraction of requests that failed with any other error.
+         *
+         * @return the error rate, between 0 and 1.
+         */
+        public double getOtherErrorRate(){
+            return rate(mOtherErrorCount);
+        }
+
+        /**
+         * Divides a count by the number of requests.
+         *
+         * @param count the count.
+         * @return the fraction, 0 if there are no requests.
+         */
+        private double rate(long count){
+            return mRequestCount != 0 ? (double)count/mRequestCount : 0;
+        }
+
+        /**
+         * Getter for the number of body bytes sent, as they were transferred.
+         *
+         * @return the number of bytes sent.
+         */
+        public long getBytesSent(){
+            return mBytesSent;
+        }
+
+        /**
+         * Getter for the number of body bytes received, as they were transferred.
+         *
+         * @return the number of bytes received.
+         */
+        public long getBytesReceived(){
+            return mBytesReceived;
+        }
+
+        /**
+         * Getter for the number of body bytes sent, before compression.
+         *
+         * @return the number of bytes sent.
+         */
+        public long getUncompressedBytesSent(){
+            return mUncompressedBytesSent;
+        }
+
+        /**
+         * Getter for the number of body bytes received, after decompression.
+         *
+         * @return the number of bytes received.
+         */
+        public long getUncompressedBytesReceived(){
+            return mUncompressedBytesReceived;
+        }
+
+        /**
+         * Gets the number of requests per second over the last minute.
+         *
+         * @return the number of requests per second.
+         */
+        public double getRequestsPerSecond(){
+            return mRequestsPerSecond;
+        }
+
+        /**
+         * Gets a latency percentile.
+         *
+         * @param percentile the percentile, between 0 and 100.
+         * @return the latency in microseconds, or 0 if there are no requests.
+         */
+        public long getLatency(double percentile){
+            return LatencyHistogram.getPercentile(mLatencyCounts, percentile, mMaxLatency);
+        }
+
+        /**
+         * Gets the median latency.
+         *
+         * @return the latency in microseconds.
+         */
+        public long getLatencyP50(){
+            return getLatency(50);
+        }
+
+        /**
+         * Gets the 99th percentile of the latency.
+         *
+         * @return the latency in microseconds.
+         */
+        public long getLatencyP99(){
+            return getLatency(99);
+        }
+
+        /**
+         * Gets the 99.9th percentile of the latency.
+         *
+         * @return the latency in microseconds.
+         */
+        public long getLatencyP999(){
+            return getLatency(99.9);
+        }
+
+        /**
+         * Gets the mean latency.
+         *
+         * @return the latency in microseconds, or 0 if there are no requests.
+         */
+        public long getMeanLatency(){
+            return mRequestCount != 0 ? mLatencySum/mRequestCount : 0;
+        }
+
+        /**
+         * Getter for the highest latency.
+         *
+         * @return the latency in microseconds.
+         */
+        public long getMaxLatency(){
+            return mMaxLatency;
+        }
+    }
+}
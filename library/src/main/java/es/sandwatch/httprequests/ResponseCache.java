@@ -0,0 +1,643 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Two tier cache for the responses to GET requests. A small in-memory tier holds the most
+ * recently used responses in front of a larger tier on disk; each tier evicts the least
+ * recently used responses once it grows past its size.
+ *
+ * Freshness follows the Cache-Control and Expires headers of the responses, and responses
+ * marked as no-store are never cached. Responses that are no longer fresh but carry an ETag
+ * or a Last-Modified header are revalidated with a conditional request, so that their body
+ * is only transferred again if it changed. Disk access takes place in a dedicated thread.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class ResponseCache{
+    private static final int MAGIC = 0x48524331;
+    private static final String FILE_SUFFIX = ".0";
+    private static final int BUFFER_SIZE = 8*1024;
+
+
+    private final File mDirectory;
+    private final int mMaxMemorySize;
+    private final long mMaxDiskSize;
+    private final ExecutorService mExecutor;
+
+    //Guarded by mMemoryEntries
+    private final LinkedHashMap<String, Entry> mMemoryEntries;
+    private int mMemorySize;
+
+    //Guarded by mDiskEntries, file name -> file size
+    private final LinkedHashMap<String, Long> mDiskEntries;
+    private long mDiskSize;
+    private boolean mDiskIndexed;
+
+    private final AtomicLong mMemoryHitCount;
+    private final AtomicLong mDiskHitCount;
+    private final AtomicLong mMissCount;
+    private final AtomicLong mNotModifiedCount;
+
+
+    /**
+     * Constructor.
+     *
+     * @param directory the directory to keep the disk tier in.
+     * @param maxMemorySize the maximum size of the memory tier, in bytes.
+     * @param maxDiskSize the maximum size of the disk tier, in bytes.
+     */
+    public ResponseCache(@NonNull File directory, int maxMemorySize, long maxDiskSize){
+        if (maxMemorySize < 0 || maxDiskSize < 0){
+            throw new IllegalArgumentException("Cache sizes can't be negative.");
+        }
+        mDirectory = directory;
+        mMaxMemorySize = maxMemorySize;
+        mMaxDiskSize = maxDiskSize;
+        mExecutor = Executors.newSingleThreadExecutor(
+                new EngineThreadFactory("HttpRequest-Cache"));
+
+        //Access ordered, the eldest entry is the least recently used one
+        mMemoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mMemorySize = 0;
+        mDiskEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mDiskSize = 0;
+        mDiskIndexed = false;
+
+        mMemoryHitCount = new AtomicLong(0);
+        mDiskHitCount = new AtomicLong(0);
+        mMissCount = new AtomicLong(0);
+        mNotModifiedCount = new AtomicLong(0);
+    }
+
+    /**
+     * Gets the number of requests served from the memory tier.
+     *
+     * @return the number of memory hits.
+     */
+    public long getMemoryHitCount(){
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * Gets the number of requests served from the disk tier.
+     *
+     * @return the number of disk hits.
+     */
+    public long getDiskHitCount(){
+        return mDiskHitCount.get();
+    }
+
+    /**
+     * Gets the number of requests served from either tier.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount(){
+        return mMemoryHitCount.get() + mDiskHitCount.get();
+    }
+
+    /**
+     * Gets the number of cacheable requests that had to go to the network, either because
+     * the response wasn't cached or because it was no longer fresh.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount(){
+        return mMissCount.get();
+    }
+
+    /**
+     * Gets the number of misses the server answered with a 304, confirming that the cached
+     * response was still good.
+     *
+     * @return the number of successful revalidations.
+     */
+    public long getNotModifiedCount(){
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * Gets the current size of the memory tier.
+     *
+     * @return the size of the memory tier, in bytes.
+     */
+    public int getMemorySize(){
+        synchronized (mMemoryEntries){
+            return mMemorySize;
+        }
+    }
+
+    /**
+     * Gets the current size of the disk tier. The disk tier is only measured once it
+     * is used for the first time.
+     *
+     * @return the size of the disk tier, in bytes.
+     */
+    public long getDiskSize(){
+        synchronized (mDiskEntries){
+            return mDiskSize;
+        }
+    }
+
+    /**
+     * Drops every response from both tiers. The counters are kept.
+     */
+    public void clear(){
+        synchronized (mMemoryEntries){
+            mMemoryEntries.clear();
+            mMemorySize = 0;
+        }
+        mExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                synchronized (mDiskEntries){
+                    indexDisk();
+                    for (String fileName:mDiskEntries.keySet()){
+                        //noinspection ResultOfMethodCallIgnored
+                        new File(mDirectory, fileName).delete();
+                    }
+                    mDiskEntries.clear();
+                    mDiskSize = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task in the cache thread.
+     *
+     * @param task the task.
+     */
+    void execute(@NonNull Runnable task){
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Looks a response up in the memory tier. Safe to call from any thread.
+     *
+     * @param key the key of the response.
+     * @return the response, or null if it isn't in the memory tier.
+     */
+    Entry getFromMemory(@NonNull String key){
+        synchronized (mMemoryEntries){
+            return mMemoryEntries.get(key);
+        }
+    }
+
+    /**
+     * Looks a response up in the disk tier, and promotes it to the memory tier if it is
+     * there. Should only be called from the cache thread.
+     *
+     * @param key the key of the response.
+     * @return the response, or null if it isn't in the disk tier.
+     */
+    Entry getFromDisk(@NonNull String key){
+        String fileName = getFileName(key);
+        synchronized (mDiskEntries){
+            indexDisk();
+            if (mDiskEntries.get(fileName) == null){
+                return null;
+            }
+        }
+        Entry entry = read(new File(mDirectory, fileName), key);
+        if (entry != null){
+            putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a response in both tiers. The disk tier is written in the cache thread.
+     *
+     * @param key the key of the response.
+     * @param entry the response.
+     */
+    void put(@NonNull final String key, @NonNull final Entry entry){
+        putInMemory(key, entry);
+        mExecutor.execute(new Runnable(){
+            @Override
+            public void run(){
+                putOnDisk(key, entry);
+            }
+        });
+    }
+
+    /**
+     * Records a request served from the cache.
+     *
+     * @param fromMemory whether the response came from the memory tier.
+     */
+    void recordHit(boolean fromMemory){
+        (fromMemory ? mMemoryHitCount : mDiskHitCount).incrementAndGet();
+    }
+
+    /**
+     * Records a cacheable request that had to go to the network.
+     */
+    void recordMiss(){
+        mMissCount.incrementAndGet();
+    }
+
+    /**
+     * Records a revalidation the server answered with a 304.
+     */
+    void recordNotModified(){
+        mNotModifiedCount.incrementAndGet();
+    }
+
+    /**
+     * Stores a response in the memory tier, evicting the least recently used responses
+     * to make room. Responses larger than a quarter of the tier are kept on disk only.
+     *
+     * @param key the key of the response.
+     * @param entry the response.
+     */
+    private void putInMemory(@NonNull String key, @NonNull Entry entry){
+        int size = entry.getSize();
+        if (size > mMaxMemorySize/4){
+            return;
+        }
+        synchronized (mMemoryEntries){
+            Entry previous = mMemoryEntries.put(key, entry);
+            if (previous != null){
+                mMemorySize -= previous.getSize();
+            }
+            mMemorySize += size;
+            Iterator<Entry> iterator = mMemoryEntries.values().iterator();
+            while (mMemorySize > mMaxMemorySize && iterator.hasNext()){
+                mMemorySize -= iterator.next().getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a response to the disk tier, evicting the least recently used responses to
+     * make room. Should only be called from the cache thread.
+     *
+     * @param key the key of the response.
+     * @param entry the response.
+     */
+    private void putOnDisk(@NonNull String key, @NonNull Entry entry){
+        if (entry.getSize() > mMaxDiskSize){
+            return;
+        }
+        synchronized (mDiskEntries){
+            indexDisk();
+        }
+        String fileName = getFileName(key);
+        File file = new File(mDirectory, fileName);
+        if (!write(file, key, entry)){
+            return;
+        }
+        synchronized (mDiskEntries){
+            Long previous = mDiskEntries.put(fileName, file.length());
+            if (previous != null){
+                mDiskSize -= previous;
+            }
+            mDiskSize += file.length();
+            Iterator<Map.Entry<String, Long>> iterator = mDiskEntries.entrySet().iterator();
+            while (mDiskSize > mMaxDiskSize && iterator.hasNext()){
+                Map.Entry<String, Long> eldest = iterator.next();
+                //noinspection ResultOfMethodCallIgnored
+                new File(mDirectory, eldest.getKey()).delete();
+                mDiskSize -= eldest.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Builds the index of the disk tier out of the files in the directory, oldest first.
+     * Only does anything the first time. Must be called holding the disk lock.
+     */
+    private void indexDisk(){
+        if (mDiskIndexed){
+            return;
+        }
+        mDiskIndexed = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null){
+            if (!mDirectory.mkdirs() && !mDirectory.isDirectory()){
+                throw new IllegalStateException("Unable to create the cache directory.");
+            }
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>(){
+            @Override
+            public int compare(File lhs, File rhs){
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file:files){
+            if (file.getName().endsWith(FILE_SUFFIX)){
+                mDiskEntries.put(file.getName(), file.length());
+                mDiskSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Reads a response from a file.
+     *
+     * @param file the file.
+     * @param key the key of the response, to tell apart responses whose keys collide.
+     * @return the response, or null if the file can't be read or holds another response.
+     */
+    private Entry read(@NonNull File file, @NonNull String key){
+        DataInputStream input = null;
+        try{
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            if (input.readInt() != MAGIC || !key.equals(input.readUTF())){
+                return null;
+            }
+            long receivedAt = input.readLong();
+            long freshUntil = input.readLong();
+            int headerCount = input.readInt();
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount; i++){
+                headers.put(input.readUTF(), input.readUTF());
+            }
+            byte[] data = new byte[input.readInt()];
+            input.readFully(data);
+            return new Entry(data, headers, receivedAt, freshUntil);
+        }
+        catch (IOException iox){
+            //Corrupted or gone, the response is fetched again
+            return null;
+        }
+        finally{
+            close(input);
+        }
+    }
+
+    /**
+     * Writes a response to a file.
+     *
+     * @param file the file.
+     * @param key the key of the response.
+     * @param entry the response.
+     * @return true if the file was written, false otherwise.
+     */
+    private boolean write(@NonNull File file, @NonNull String key, @NonNull Entry entry){
+        DataOutputStream output = null;
+        try{
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeUTF(key);
+            output.writeLong(entry.mReceivedAt);
+            output.writeLong(entry.mFreshUntil);
+            output.writeInt(entry.mHeaders.size());
+            for (Map.Entry<String, String> header:entry.mHeaders.entrySet()){
+                output.writeUTF(header.getKey());
+                output.writeUTF(header.getValue());
+            }
+            output.writeInt(entry.mData.length);
+            output.write(entry.mData);
+            output.close();
+            output = null;
+            return true;
+        }
+        catch (IOException iox){
+            close(output);
+            output = null;
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return false;
+        }
+        finally{
+            close(output);
+        }
+    }
+
+    /**
+     * Closes a stream quietly.
+     *
+     * @param stream the stream, may be null.
+     */
+    private static void close(@Nullable Closeable stream){
+        if (stream != null){
+            try{
+                stream.close();
+            }
+            catch (IOException iox){
+                //Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the file a response is stored in.
+     *
+     * @param key the key of the response.
+     * @return the name of the file.
+     */
+    private static String getFileName(@NonNull String key){
+        //Two halves hashed separately make collisions less likely, the key itself is
+        //  stored in the file to tell the rest apart
+        int half = key.length()/2;
+        return Integer.toHexString(key.substring(0, half).hashCode())
+                + Integer.toHexString(key.substring(half).hashCode()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Creates an entry out of a response, working out its freshness from its headers.
+     *
+     * @param headers the headers of the response.
+     * @param data the body of the response.
+     * @return the entry, or null if the response must not be cached.
+     */
+    static Entry createEntry(@NonNull Map<String, String> headers, @NonNull byte[] data){
+        long now = System.currentTimeMillis();
+        long freshUntil = now;
+
+        String cacheControl = HttpCall.getHeader(headers, "Cache-Control");
+        long maxAge = -1;
+        boolean noCache = false;
+        if (cacheControl != null){
+            for (String directive:cacheControl.split(",")){
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")){
+                    return null;
+                }
+                else if (directive.equals("no-cache")){
+                    noCache = true;
+                }
+                else if (directive.startsWith("max-age=")){
+                    try{
+                        maxAge = Long.parseLong(directive.substring(8).trim());
+                    }
+                    catch (NumberFormatException nfx){
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+
+        if (noCache){
+            freshUntil = now;
+        }
+        else if (maxAge >= 0){
+            freshUntil = now + maxAge*1000;
+        }
+        else{
+            //Expires is relative to the server's clock, so it's measured against Date
+            long expires = parseDate(HttpCall.getHeader(headers, "Expires"));
+            long date = parseDate(HttpCall.getHeader(headers, "Date"));
+            if (expires > 0){
+                freshUntil = now + Math.max(0, expires - (date > 0 ? date : now));
+            }
+        }
+
+        Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        return new Entry(data, Collections.unmodifiableMap(copy), now, freshUntil);
+    }
+
+    /**
+     * Creates a fresh entry out of a cached response confirmed by a 304 response. The
+     * headers of the 304 response replace the cached ones.
+     *
+     * @param entry the cached response.
+     * @param headers the headers of the 304 response.
+     * @return the new entry, or null if the response must no longer be cached.
+     */
+    static Entry refreshEntry(@NonNull Entry entry, @NonNull Map<String, String> headers){
+        Map<String, String> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        merged.putAll(entry.mHeaders);
+        for (Map.Entry<String, String> header:headers.entrySet()){
+            //The framing headers describe the empty 304 body, not the cached one
+            String name = header.getKey();
+            if (!name.equalsIgnoreCase("Content-Length")
+                    && !name.equalsIgnoreCase("Transfer-Encoding")){
+
+                merged.put(name, header.getValue());
+            }
+        }
+        return createEntry(merged, entry.mData);
+    }
+
+    /**
+     * Gets the version of a response out of its validators.
+     *
+     * @param headers the headers of the response.
+     * @return the ETag, or the Last-Modified date if there is no ETag, or null if there
+     *         are no validators.
+     */
+    static String getVersion(@NonNull Map<String, String> headers){
+        String eTag = HttpCall.getHeader(headers, "ETag");
+        return eTag != null ? eTag : HttpCall.getHeader(headers, "Last-Modified");
+    }
+
+    /**
+     * Parses an HTTP date.
+     *
+     * @param date the date, may be null.
+     * @return the date in milliseconds, or 0 if it isn't there or can't be parsed.
+     */
+    static long parseDate(@Nullable String date){
+        if (date == null){
+            return 0;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try{
+            return format.parse(date.trim()).getTime();
+        }
+        catch (ParseException px){
+            return 0;
+        }
+    }
+
+
+    /**
+     * A cached response.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    static final class Entry{
+        final byte[] mData;
+        final Map<String, String> mHeaders;
+        final long mReceivedAt;
+        final long mFreshUntil;
+
+
+        /**
+         * Constructor.
+         *
+         * @param data the body of the response.
+         * @param headers the headers of the response.
+         * @param receivedAt the time the response was received at.
+         * @param freshUntil the time the response stops being fresh at.
+         */
+        Entry(@NonNull byte[] data, @NonNull Map<String, String> headers, long receivedAt,
+              long freshUntil){
+
+            mData = data;
+            mHeaders = headers;
+            mReceivedAt = receivedAt;
+            mFreshUntil = freshUntil;
+        }
+
+        /**
+         * Tells whether the response can still be used without checking with the server.
+         *
+         * @return true if the response is fresh, false otherwise.
+         */
+        boolean isFresh(){
+            return System.currentTimeMillis() < mFreshUntil;
+        }
+
+        /**
+         * Tells whether the response carries validators, so that it can be revalidated
+         * with a conditional request.
+         *
+         * @return true if the response has an ETag or a Last-Modified date.
+         */
+        boolean hasValidators(){
+            return getVersion(mHeaders) != null;
+        }
+
+        /**
+         * Gets the approximate memory footprint of the response.
+         *
+         * @return the size of the response, in bytes.
+         */
+        int getSize(){
+            return mData.length;
+        }
+    }
+}
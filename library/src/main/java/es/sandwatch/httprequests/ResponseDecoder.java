@@ -0,0 +1,31 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Turns the body of a response into an object. Decoders run in a worker thread, so the
+ * callback of a typed request gets an object that is ready to use. Identical requests in
+ * flight that use the same decoder get the same object.
+ *
+ * @param <T> the type of the object.
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public interface ResponseDecoder<T>{
+    /**
+     * Decodes the body of a response. When the response isn't cached and nobody else is
+     * waiting for it, the stream reads straight from the connection. The stream is closed
+     * by the library.
+     *
+     * @param stream the body of the response.
+     * @param encoding the name of the charset set in HttpRequest.
+     * @return the decoded object.
+     * @throws IOException if the stream can't be read, or a DecodingException if the body
+     *                     isn't what the decoder expects.
+     */
+    T decode(@NonNull InputStream stream, @NonNull String encoding) throws IOException;
+}
@@ -0,0 +1,83 @@
+package es.sandwatch.httprequests;
+
+
+/**
+ * Caps the retries of every request together at a fraction of the requests being made, so
+ * that when a server is struggling, retries don't pile more load on it. It's a token bucket:
+ * every request that is sent for the first time adds a fraction of a token, up to the
+ * capacity of the bucket, and every retry takes a whole token. Retries are dropped when
+ * there isn't one.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RetryBudget{
+    /**
+     * The fraction of a token each request adds, by default. Retries can amount to a tenth
+     * of the requests.
+     */
+    public static final float DEFAULT_RATIO = 0.1f;
+
+    /**
+     * The capacity of the bucket, by default.
+     */
+    public static final int DEFAULT_CAPACITY = 10;
+
+
+    private final float mRatio;
+    private final float mCapacity;
+
+    private float mTokens;
+
+
+    /**
+     * Constructor. Uses the default ratio and capacity.
+     */
+    public RetryBudget(){
+        this(DEFAULT_RATIO, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor. The bucket starts full, so that the first failures can be retried.
+     *
+     * @param ratio the fraction of a token each request adds.
+     * @param capacity the number of retries that can be saved up, which can be made in a row.
+     */
+    public RetryBudget(float ratio, int capacity){
+        if (ratio < 0 || capacity < 0){
+            throw new IllegalArgumentException("Invalid retry budget.");
+        }
+        mRatio = ratio;
+        mCapacity = capacity;
+        mTokens = capacity;
+    }
+
+    /**
+     * Gets the number of retries that can be made right now.
+     *
+     * @return the number of retries.
+     */
+    public synchronized int getAvailableRetries(){
+        return (int)mTokens;
+    }
+
+    /**
+     * Adds the share of a request that is sent for the first time.
+     */
+    synchronized void deposit(){
+        mTokens = Math.min(mCapacity, mTokens + mRatio);
+    }
+
+    /**
+     * Takes the token of a retry, if there is one.
+     *
+     * @return true if the retry can be made, false otherwise.
+     */
+    synchronized boolean withdraw(){
+        if (mTokens < 1){
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+}
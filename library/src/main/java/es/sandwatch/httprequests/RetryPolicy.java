@@ -0,0 +1,245 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.volley.NetworkError;
+import com.android.volley.TimeoutError;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+
+/**
+ * Decides whether and when a failed request is sent again. Retries wait a random delay
+ * that grows with every attempt (decorrelated jitter), so clients that failed together
+ * don't retry together, and the timeout grows by the backoff after every timeout.
+ *
+ * Only failures that are likely to go away are retried: network errors, timeouts and the
+ * 408, 429, 502, 503 and 504 status codes. Requests that aren't idempotent, POST requests,
+ * are only retried when the server can't have acted on them: when the connection couldn't
+ * be opened or the server answered with 429 or 503. A Retry-After header is honoured, and
+ * if the server asks for a longer wait than the maximum delay the request isn't retried.
+ * Every retry also needs to be allowed by the RetryBudget, if there is one.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class RetryPolicy{
+    /**
+     * The shortest delay before a retry, by default, in milliseconds.
+     */
+    public static final int DEFAULT_BASE_DELAY = 100;
+
+    /**
+     * The longest delay before a retry, by default, in milliseconds.
+     */
+    public static final int DEFAULT_MAX_DELAY = 10*1000;
+
+    /**
+     * The timeout backoff, by default.
+     */
+    public static final float DEFAULT_TIMEOUT_BACKOFF = 1.5f;
+
+    /**
+     * Policy that never retries.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0);
+
+
+    private static final Random sRandom = new Random();
+
+
+    private final int mMaxRetries;
+    private final int mBaseDelay;
+    private final int mMaxDelay;
+    private final float mTimeoutBackoff;
+    private final boolean mRetryNonIdempotent;
+
+
+    /**
+     * Constructor. Uses the default delays and timeout backoff, and retries requests that
+     * aren't idempotent only when it is safe.
+     *
+     * @param maxRetries the maximum number of retries.
+     */
+    public RetryPolicy(int maxRetries){
+        this(maxRetries, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_TIMEOUT_BACKOFF, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxRetries the maximum number of retries.
+     * @param baseDelay the shortest delay before a retry, in milliseconds.
+     * @param maxDelay the longest delay before a retry, in milliseconds.
+     * @param timeoutBackoff the increase in the timeout after a timeout. The timeout of the
+     *                       next attempt is the current timeout plus the current timeout
+     *                       times the backoff.
+     * @param retryNonIdempotent whether requests that aren't idempotent are retried like
+     *                           the rest, for instance because they carry an idempotency
+     *                           key the server understands.
+     */
+    public RetryPolicy(int maxRetries, int baseDelay, int maxDelay, float timeoutBackoff,
+                       boolean retryNonIdempotent){
+
+        if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay || timeoutBackoff < 0){
+            throw new IllegalArgumentException("Invalid retry policy.");
+        }
+        mMaxRetries = maxRetries;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mTimeoutBackoff = timeoutBackoff;
+        mRetryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Getter for the maximum number of retries.
+     *
+     * @return the maximum number of retries.
+     */
+    public int getMaxRetries(){
+        return mMaxRetries;
+    }
+
+    /**
+     * Getter for the shortest delay before a retry.
+     *
+     * @return the delay, in milliseconds.
+     */
+    public int getBaseDelay(){
+        return mBaseDelay;
+    }
+
+    /**
+     * Getter for the longest delay before a retry.
+     *
+     * @return the delay, in milliseconds.
+     */
+    public int getMaxDelay(){
+        return mMaxDelay;
+    }
+
+    /**
+     * Getter for the timeout backoff.
+     *
+     * @return the timeout backoff.
+     */
+    public float getTimeoutBackoff(){
+        return mTimeoutBackoff;
+    }
+
+    /**
+     * Tells whether requests that aren't idempotent are retried like the rest.
+     *
+     * @return true if they are, false if they are only retried when it is safe.
+     */
+    public boolean retriesNonIdempotent(){
+        return mRetryNonIdempotent;
+    }
+
+    /**
+     * Tells whether a failed attempt can be retried.
+     *
+     * @param method the HTTP method of the request.
+     * @param statusCode the status code of the response, or -1 if there wasn't one.
+     * @param cause the reason of the failure if there wasn't a response, or null.
+     * @return true if the attempt can be retried, false otherwise.
+     */
+    boolean isRetryable(@NonNull HttpRequest.Method method, int statusCode,
+                        @Nullable Throwable cause){
+
+        boolean idempotent = method.isIdempotent() || mRetryNonIdempotent;
+        if (cause != null){
+            if (isConnectFailure(cause)){
+                //The request never left
+                return true;
+            }
+            //Anything else went wrong after the request may have been sent. Decoding
+            //  errors and deadlines don't get any better by trying again
+            return idempotent && (isTimeout(cause) || cause instanceof NetworkError
+                    || (cause instanceof IOException && !(cause instanceof DecodingException)));
+        }
+        switch (statusCode){
+            case 429:
+            case 503:
+                //The server turned the request down without acting on it
+                return true;
+
+            case 408:
+            case 502:
+            case 504:
+                return idempotent;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Picks the delay before the next attempt, a random value between the base delay and
+     * three times the previous delay, capped at the maximum delay.
+     *
+     * @param previousDelay the delay before the previous attempt, or 0 for the first retry.
+     * @return the delay, in milliseconds.
+     */
+    long getNextDelay(long previousDelay){
+        long upper = Math.min(mMaxDelay, Math.max(mBaseDelay, previousDelay)*3);
+        if (upper <= mBaseDelay){
+            return mBaseDelay;
+        }
+        return mBaseDelay + (long)(sRandom.nextDouble()*(upper - mBaseDelay));
+    }
+
+    /**
+     * Parses the value of a Retry-After header, either a number of seconds or a date.
+     *
+     * @param value the value of the header, or null.
+     * @return the delay it asks for, in milliseconds, or -1 if there is none.
+     */
+    static long parseRetryAfter(@Nullable String value){
+        if (value == null){
+            return -1;
+        }
+        try{
+            return Math.max(0, Long.parseLong(value.trim())*1000);
+        }
+        catch (NumberFormatException nfx){
+            long date = ResponseCache.parseDate(value);
+            return date != 0 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    /**
+     * Tells whether a failure happened while connecting, before the request was sent.
+     *
+     * @param cause the reason of the failure.
+     * @return true if the connection couldn't be opened, false otherwise.
+     */
+    private static boolean isConnectFailure(@NonNull Throwable cause){
+        for (Throwable current = cause; current != null; current = current.getCause()){
+            if (current instanceof ConnectException || current instanceof UnknownHostException
+                    || current instanceof NoRouteToHostException){
+                return true;
+            }
+            if (current.getCause() == current){
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a failure is an attempt that timed out.
+     *
+     * @param cause the reason of the failure.
+     * @return true if the attempt timed out, false otherwise.
+     */
+    static boolean isTimeout(@NonNull Throwable cause){
+        return cause instanceof SocketTimeoutException || cause instanceof TimeoutError;
+    }
+}
@@ -0,0 +1,178 @@
+package es.sandwatch.httprequests;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Immutable set of URL parameters to be added to every URL. The encoded query string is
+ * computed once when the set is created, so adding the parameters to a URL only takes a
+ * single copy. Modifying the set creates a new one.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+final class UrlBuilder{
+    //Parameters are always encoded as UTF-8
+    private static final String URL_ENCODING = "UTF-8";
+
+    static final UrlBuilder EMPTY = new UrlBuilder(Collections.<String, String>emptyMap());
+
+
+    private final Map<String, String> mParameters;
+    private final String mQuery;
+
+
+    /**
+     * Constructor.
+     *
+     * @param parameters the parameters, which must not be modified afterwards.
+     */
+    private UrlBuilder(@NonNull Map<String, String> parameters){
+        mParameters = parameters;
+        mQuery = encode(parameters, null);
+    }
+
+    /**
+     * Creates a builder with an additional parameter.
+     *
+     * @param parameter the key of the parameter.
+     * @param value the value of the parameter.
+     * @return the new builder.
+     */
+    @NonNull
+    UrlBuilder with(@NonNull String parameter, @NonNull String value){
+        Map<String, String> parameters = new HashMap<>(mParameters);
+        parameters.put(parameter, value);
+        return new UrlBuilder(Collections.unmodifiableMap(parameters));
+    }
+
+    /**
+     * Creates a builder without a parameter.
+     *
+     * @param parameter the key of the parameter.
+     * @return the new builder, or this builder if it doesn't have the parameter.
+     */
+    @NonNull
+    UrlBuilder without(@NonNull String parameter){
+        if (!mParameters.containsKey(parameter)){
+            return this;
+        }
+        if (mParameters.size() == 1){
+            return EMPTY;
+        }
+        Map<String, String> parameters = new HashMap<>(mParameters);
+        parameters.remove(parameter);
+        return new UrlBuilder(Collections.unmodifiableMap(parameters));
+    }
+
+    /**
+     * Tells whether this builder has a parameter.
+     *
+     * @param parameter the key of the parameter.
+     * @return true if the builder has the parameter, false otherwise.
+     */
+    boolean contains(@NonNull String parameter){
+        return mParameters.containsKey(parameter);
+    }
+
+    /**
+     * Adds the parameters to a URL. The parameters go after the existing query, if any,
+     * and before the fragment, if any. Parameters of the request replace the ones of
+     * this builder that have the same key.
+     *
+     * @param url the url to add the parameters to.
+     * @param parameters the parameters of the request, or null.
+     * @return the url with the parameters.
+     */
+    @NonNull
+    String build(@NonNull String url, @Nullable Map<String, String> parameters){
+        String query;
+        if (parameters == null || parameters.isEmpty()){
+            query = mQuery;
+        }
+        else{
+            String own = encode(parameters, null);
+            String rest = encode(mParameters, parameters);
+            query = rest.length() == 0 ? own : rest + "&" + own;
+        }
+        if (query.length() == 0){
+            return url;
+        }
+
+        int fragment = url.indexOf('#');
+        int end = fragment != -1 ? fragment : url.length();
+        int question = url.indexOf('?');
+
+        //An existing query that is empty or already ends with a separator needs none
+        char separator = 0;
+        if (question == -1 || question > end){
+            separator = '?';
+        }
+        else if (end > question + 1 && url.charAt(end - 1) != '&'){
+            separator = '&';
+        }
+
+        StringBuilder builder = new StringBuilder(url.length() + query.length() + 1);
+        builder.append(url, 0, end);
+        if (separator != 0){
+            builder.append(separator);
+        }
+        builder.append(query);
+        builder.append(url, end, url.length());
+        return builder.toString();
+    }
+
+    /**
+     * Encodes a set of parameters as a query string.
+     *
+     * @param parameters the parameters to encode.
+     * @param excluded parameters whose keys should be left out, or null.
+     * @return the query string, without the leading separator.
+     */
+    @NonNull
+    private static String encode(@NonNull Map<String, String> parameters,
+                                 @Nullable Map<String, String> excluded){
+
+        if (parameters.isEmpty()){
+            return "";
+        }
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()){
+            if (excluded == null || !excluded.containsKey(parameter.getKey())){
+                if (query.length() != 0){
+                    query.append('&');
+                }
+                query.append(encode(parameter.getKey())).append('=')
+                        .append(encode(parameter.getValue()));
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * Encodes a key or a value of a parameter.
+     *
+     * @param component the key or value.
+     * @return the encoded key or value.
+     */
+    @NonNull
+    static String encode(@Nullable String component){
+        if (component == null){
+            return "";
+        }
+        try{
+            return URLEncoder.encode(component, URL_ENCODING);
+        }
+        catch (UnsupportedEncodingException uex){
+            //Every platform supports UTF-8
+            throw new IllegalStateException("UTF-8 is not supported.");
+        }
+    }
+}
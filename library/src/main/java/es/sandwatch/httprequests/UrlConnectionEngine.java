@@ -0,0 +1,246 @@
+package es.sandwatch.httprequests;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lean engine built straight on top of HttpURLConnection. Response bodies are streamed
+ * from the connection rather than buffered, and bodies produced by a RequestBody.Writer
+ * are streamed to it.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class UrlConnectionEngine implements HttpEngine{
+    private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+
+
+    private final int mThreadPoolSize;
+    private final AtomicLong mSequence;
+    private ExecutorService mExecutor;
+
+
+    /**
+     * Constructor. Uses the default number of network threads.
+     */
+    public UrlConnectionEngine(){
+        this(DEFAULT_THREAD_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadPoolSize the number of network threads.
+     */
+    public UrlConnectionEngine(int threadPoolSize){
+        if (threadPoolSize < 1){
+            throw new IllegalArgumentException("The thread pool size must be at least 1.");
+        }
+        mThreadPoolSize = threadPoolSize;
+        mSequence = new AtomicLong(0);
+    }
+
+    @Override
+    public void start(@NonNull Context context){
+        //Waiting exchanges are picked by priority, then in the order they arrived
+        mExecutor = new ThreadPoolExecutor(mThreadPoolSize, mThreadPoolSize, 0L,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new EngineThreadFactory("HttpRequest-UrlConnection"));
+    }
+
+    @Override
+    public void execute(@NonNull HttpCall call){
+        Exchange exchange = new Exchange(call, mSequence.getAndIncrement());
+        call.setTag(exchange);
+        mExecutor.execute(exchange);
+    }
+
+    @Override
+    public void cancel(@NonNull HttpCall call){
+        Object exchange = call.getTag();
+        if (exchange instanceof Exchange){
+            ((Exchange)exchange).abort();
+        }
+    }
+
+    @Override
+    public void stop(){
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads the response headers of a connection into a case insensitive map. Headers
+     * that appear more than once are joined with commas.
+     *
+     * @param connection the connection.
+     * @return the headers.
+     */
+    private static Map<String, String> readHeaders(@NonNull HttpURLConnection connection){
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header:connection.getHeaderFields().entrySet()){
+            //The status line comes with a null key
+            if (header.getKey() != null && !header.getValue().isEmpty()){
+                StringBuilder value = new StringBuilder(header.getValue().get(0));
+                for (int i = 1; i < header.getValue().size(); i++){
+                    value.append(", ").append(header.getValue().get(i));
+                }
+                headers.put(header.getKey(), value.toString());
+            }
+        }
+        return headers;
+    }
+
+
+    /**
+     * Carries out a call in a worker thread.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class Exchange implements Runnable, Comparable<Exchange>{
+        private final HttpCall mCall;
+        private final long mSequence;
+        private volatile HttpURLConnection mConnection;
+
+
+        /**
+         * Constructor.
+         *
+         * @param call the call to carry out.
+         * @param sequence the order in which the exchange was submitted.
+         */
+        private Exchange(@NonNull HttpCall call, long sequence){
+            mCall = call;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull Exchange another){
+            int priority = another.mCall.getPriority().compareTo(mCall.getPriority());
+            if (priority != 0){
+                return priority;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run(){
+            if (mCall.failIfExpired() || mCall.isCancelled()){
+                return;
+            }
+            try{
+                perform();
+            }
+            catch (IOException iox){
+                mCall.deliverFailure(iox);
+            }
+            catch (RuntimeException rx){
+                //Such as the ClassCastException of a url that isn't http or https. The
+                //  call fails rather than the worker thread
+                mCall.deliverFailure(rx);
+            }
+        }
+
+        /**
+         * Performs the exchange. Failed calls are retried by HttpRequest, not here.
+         *
+         * @throws IOException if the exchange fails before a response is received.
+         */
+        private void perform() throws IOException{
+            int timeout = mCall.getTimeout();
+            URL url = new URL(mCall.getUrl());
+            HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+            mConnection = connection;
+            //The call may have been cancelled before the connection was set
+            if (mCall.isCancelled()){
+                connection.disconnect();
+                return;
+            }
+
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            connection.setDoInput(true);
+            connection.setRequestMethod(mCall.getMethod().name());
+            for (Map.Entry<String, String> header:mCall.getHeaders().entrySet()){
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (mCall.hasBody()){
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", mCall.getBodyContentType());
+                long length = mCall.getBodyLength();
+                if (length >= 0 && length <= Integer.MAX_VALUE){
+                    connection.setFixedLengthStreamingMode((int)length);
+                }
+                else{
+                    connection.setChunkedStreamingMode(0);
+                }
+            }
+
+            //Connecting explicitly lets the connection time be told apart
+            mCall.reportConnectStart();
+            connection.connect();
+            mCall.reportConnectEnd();
+
+            if (mCall.hasBody()){
+                OutputStream output = connection.getOutputStream();
+                try{
+                    mCall.writeBody(output);
+                }
+                finally{
+                    output.close();
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+            if (statusCode == -1){
+                throw new IOException("Invalid HTTP response");
+            }
+
+            InputStream body;
+            if (statusCode >= 400){
+                body = connection.getErrorStream();
+            }
+            else{
+                body = connection.getInputStream();
+            }
+            if (body == null){
+                body = new ByteArrayInputStream(new byte[0]);
+            }
+            try{
+                mCall.deliverResponse(statusCode, readHeaders(connection), body);
+            }
+            finally{
+                //Closing the stream rather than disconnecting lets the connection be reused
+                body.close();
+            }
+        }
+
+        /**
+         * Aborts the exchange by closing its connection.
+         */
+        private void abort(){
+            HttpURLConnection connection = mConnection;
+            if (connection != null){
+                connection.disconnect();
+            }
+        }
+    }
+}
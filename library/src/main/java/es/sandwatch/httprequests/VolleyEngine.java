@@ -0,0 +1,225 @@
+package es.sandwatch.httprequests;
+
+import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpClientStack;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.HttpStack;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Engine backed by Volley. This is the default engine.
+ *
+ * @author Ismael Alonso
+ * @version 1.0.0
+ */
+public final class VolleyEngine implements HttpEngine{
+    private static final String USER_AGENT = "volley/0";
+    private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+
+
+    private final int mThreadPoolSize;
+    private RequestQueue mRequestQueue;
+
+
+    /**
+     * Constructor. Uses the default number of network threads.
+     */
+    public VolleyEngine(){
+        this(DEFAULT_THREAD_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadPoolSize the number of network threads.
+     */
+    public VolleyEngine(int threadPoolSize){
+        if (threadPoolSize < 1){
+            throw new IllegalArgumentException("The thread pool size must be at least 1.");
+        }
+        mThreadPoolSize = threadPoolSize;
+    }
+
+    @Override
+    public void start(@NonNull Context context){
+        HttpStack stack;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD){
+            stack = new HurlStack();
+        }
+        else{
+            stack = new HttpClientStack(AndroidHttpClient.newInstance(USER_AGENT));
+        }
+
+        //Results are handed over right in the network thread, HttpRequest takes care of
+        //  delivering them to the main thread. Caching is HttpRequest's business too
+        mRequestQueue = new RequestQueue(new NoCache(), new BasicNetwork(stack), mThreadPoolSize,
+                new ExecutorDelivery(new Executor(){
+                    @Override
+                    public void execute(@NonNull Runnable command){
+                        command.run();
+                    }
+                }));
+        mRequestQueue.start();
+    }
+
+    @Override
+    public void execute(@NonNull HttpCall call){
+        if (call.isCancelled()){
+            return;
+        }
+        CallRequest request = new CallRequest(call);
+        //Failed calls are retried by HttpRequest, Volley is left to a single attempt
+        request.setRetryPolicy(new DefaultRetryPolicy(call.getTimeout(), 0, 0));
+        call.setTag(request);
+        mRequestQueue.add(request);
+    }
+
+    @Override
+    public void cancel(@NonNull HttpCall call){
+        Object request = call.getTag();
+        if (request instanceof CallRequest){
+            ((CallRequest)request).cancel();
+        }
+    }
+
+    @Override
+    public void stop(){
+        mRequestQueue.stop();
+    }
+
+
+    /**
+     * Volley request wrapping an HttpCall. The response is handed over to the call from
+     * the network thread, as soon as it is available.
+     *
+     * @author Ismael Alonso
+     * @version 1.0.0
+     */
+    private static class CallRequest extends Request<Void>{
+        private final HttpCall mCall;
+
+
+        /**
+         * Constructor.
+         *
+         * @param call the call to carry out.
+         */
+        private CallRequest(@NonNull HttpCall call){
+            super(call.getMethod().getMethod(), call.getUrl(), null);
+            mCall = call;
+            setShouldCache(false);
+        }
+
+        @Override
+        public Priority getPriority(){
+            switch (mCall.getPriority()){
+                case LOW:
+                    return Priority.LOW;
+                case HIGH:
+                    return Priority.HIGH;
+                case IMMEDIATE:
+                    return Priority.IMMEDIATE;
+                default:
+                    return Priority.NORMAL;
+            }
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError{
+            //This is the last chance to drop the call before it hits the network
+            if (mCall.failIfExpired()){
+                throw new AuthFailureError("The deadline of the request has passed.");
+            }
+            return mCall.getHeaders();
+        }
+
+        @Override
+        public String getBodyContentType(){
+            return mCall.getBodyContentType();
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError{
+            try{
+                //The body is encoded once, retries reuse the encoded bytes
+                return mCall.getBody();
+            }
+            catch (IOException iox){
+                //This is the only checked exception volley lets getBody() throw
+                throw new AuthFailureError("The request body couldn't be encoded: "
+                        + iox.getMessage());
+            }
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response){
+            mCall.deliverResponse(response.statusCode, headersOf(response), dataOf(response));
+            return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(Void response){
+            //The response was handed over while parsing
+        }
+
+        @Override
+        public void deliverError(VolleyError error){
+            //Error responses go through the same path as successful ones
+            NetworkResponse response = error.networkResponse;
+            if (error instanceof ServerError && response != null && response.data != null){
+                mCall.deliverResponse(response.statusCode, headersOf(response), response.data);
+            }
+            else{
+                mCall.deliverFailure(error);
+            }
+        }
+
+        /**
+         * Gets the body of a response. Volley leaves it null for 304 responses, since it
+         * doesn't know about HttpRequest's cache.
+         *
+         * @param response the response.
+         * @return the body of the response, never null.
+         */
+        private static byte[] dataOf(@NonNull NetworkResponse response){
+            if (response.data == null){
+                return new byte[0];
+            }
+            return response.data;
+        }
+
+        /**
+         * Gets the headers of a response. Responses read from the cache may lack them.
+         *
+         * @param response the response.
+         * @return the headers of the response, never null.
+         */
+        private static Map<String, String> headersOf(@NonNull NetworkResponse response){
+            if (response.headers == null){
+                return Collections.emptyMap();
+            }
+            return response.headers;
+        }
+    }
+}